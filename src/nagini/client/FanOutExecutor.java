@@ -0,0 +1,112 @@
+package nagini.client;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Runs one client operation against many hosts in parallel, with at most a
+ * given number of hosts in flight, and prints an aggregated summary once all
+ * hosts are done.
+ */
+public class FanOutExecutor {
+
+    /**
+     * The part of an operation that is done on a single host.
+     */
+    public interface HostTask {
+
+        public void run(String hostName) throws Exception;
+    }
+
+    private final int parallelism;
+
+    public FanOutExecutor(int parallelism) {
+        if(parallelism < 1) {
+            throw new IllegalArgumentException("Client: invalid parallelism " + parallelism);
+        }
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Runs the task on all hosts and waits for all of them to finish.
+     *
+     * @param operation name of the operation, used in the summary
+     * @param hostNames
+     * @param task
+     * @return names of the hosts on which the task failed
+     */
+    public List<String> execute(String operation,
+                                Collection<String> hostNames,
+                                final HostTask task) {
+        List<String> failedHosts = Lists.newArrayList();
+        if(hostNames.isEmpty()) {
+            return failedHosts;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism,
+                                                                         hostNames.size()),
+                                                                new ThreadFactoryBuilder().setNameFormat("nagini-fanout-%d")
+                                                                                          .setDaemon(true)
+                                                                                          .build());
+        long startTime = System.currentTimeMillis();
+        Map<String, Future<Long>> results = Maps.newLinkedHashMap();
+        try {
+            for(final String hostName: hostNames) {
+                results.put(hostName, executor.submit(new Callable<Long>() {
+
+                    @Override
+                    public Long call() throws Exception {
+                        long hostStartTime = System.currentTimeMillis();
+                        task.run(hostName);
+                        return System.currentTimeMillis() - hostStartTime;
+                    }
+                }));
+            }
+
+            Map<String, Throwable> failures = Maps.newLinkedHashMap();
+            String slowestHost = null;
+            long slowestTime = -1;
+            for(String hostName: results.keySet()) {
+                try {
+                    long hostTime = results.get(hostName).get();
+                    if(hostTime > slowestTime) {
+                        slowestHost = hostName;
+                        slowestTime = hostTime;
+                    }
+                } catch(ExecutionException e) {
+                    failures.put(hostName, e.getCause());
+                } catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    failures.put(hostName, e);
+                }
+            }
+            failedHosts.addAll(failures.keySet());
+
+            // print summary
+            StringBuilder summary = new StringBuilder();
+            summary.append("Client: " + operation + " succeeded on "
+                           + (hostNames.size() - failures.size()) + "/" + hostNames.size()
+                           + " hosts in " + (System.currentTimeMillis() - startTime) + " ms");
+            if(slowestHost != null) {
+                summary.append(" (slowest: " + slowestHost + ", " + slowestTime + " ms)");
+            }
+            summary.append(".");
+            System.out.println(summary.toString());
+            for(String hostName: failures.keySet()) {
+                System.err.println("|->\tFAILED\t" + hostName + ": " + failures.get(hostName));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return failedHosts;
+    }
+}
@@ -0,0 +1,243 @@
+package nagini.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import nagini.protocol.RequestType;
+import nagini.protocol.SocketAndStreams;
+
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * A persistent protocol v2 connection to one Nagini server. Any number of
+ * requests may be outstanding at the same time; responses are matched back to
+ * their requests by id.
+ */
+public class MultiplexedConnection {
+
+    private final SocketAndStreams sands;
+    private final AtomicInteger nextRequestId;
+    private final Map<Integer, SettableFuture<byte[]>> pendingResponses;
+    private volatile IOException failure;
+
+    private MultiplexedConnection(SocketAndStreams sands) {
+        this.sands = sands;
+        this.nextRequestId = new AtomicInteger();
+        this.pendingResponses = Maps.newConcurrentMap();
+        this.failure = null;
+    }
+
+    /**
+     * Opens a connection and negotiates protocol v2.
+     *
+     * @param hostName
+     * @param portId
+     * @return the connection, or null if the server only speaks protocol v1
+     * @throws IOException
+     */
+    public static MultiplexedConnection open(String hostName, int portId) throws IOException {
+        SocketAndStreams sands = new SocketAndStreams(hostName, portId);
+        DataOutputStream dos = sands.getOutputStream();
+        dos.writeInt(RequestType.PROTOCOL_V2);
+        dos.flush();
+        // servers that predate protocol v2 reject the handshake as an invalid
+        // request and close the connection
+        int reply;
+        try {
+            reply = sands.getInputStream().readInt();
+        } catch(IOException e) {
+            reply = -1;
+        }
+        if(reply != RequestType.PROTOCOL_V2) {
+            sands.close();
+            return null;
+        }
+        final MultiplexedConnection connection = new MultiplexedConnection(sands);
+        Thread reader = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                connection.readResponses();
+            }
+        }, "nagini-connection-" + hostName);
+        reader.setDaemon(true);
+        reader.start();
+        return connection;
+    }
+
+    public boolean isOpen() {
+        return failure == null;
+    }
+
+    /**
+     * Creates the streams for one request on this connection. The request is
+     * sent when the output stream is flushed, and reading from the input
+     * stream waits for the matching response. Closing the streams leaves the
+     * connection open.
+     *
+     * @return
+     */
+    public SocketAndStreams newExchange() {
+        return new Exchange();
+    }
+
+    private SettableFuture<byte[]> send(byte[] request) throws IOException {
+        int requestId = nextRequestId.incrementAndGet();
+        SettableFuture<byte[]> response = SettableFuture.create();
+        pendingResponses.put(requestId, response);
+        try {
+            DataOutputStream dos = sands.getOutputStream();
+            synchronized(dos) {
+                checkOpen();
+                dos.writeInt(requestId);
+                dos.writeInt(request.length);
+                dos.write(request);
+                dos.flush();
+            }
+        } catch(IOException e) {
+            pendingResponses.remove(requestId);
+            fail(e);
+            throw e;
+        }
+        return response;
+    }
+
+    private void readResponses() {
+        DataInputStream dis = sands.getInputStream();
+        try {
+            while(true) {
+                int requestId = dis.readInt();
+                byte[] response = new byte[dis.readInt()];
+                dis.readFully(response);
+                SettableFuture<byte[]> future = pendingResponses.remove(requestId);
+                if(future != null) {
+                    future.set(response);
+                }
+            }
+        } catch(IOException e) {
+            fail(e);
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if(failure != null) {
+            throw new IOException("Client: connection closed. (" + failure.getMessage() + ")");
+        }
+    }
+
+    private synchronized void fail(IOException e) {
+        if(failure == null) {
+            failure = e;
+        }
+        for(Integer requestId: pendingResponses.keySet()) {
+            SettableFuture<byte[]> future = pendingResponses.remove(requestId);
+            if(future != null) {
+                future.setException(failure);
+            }
+        }
+        try {
+            sands.close();
+        } catch(IOException ioe) {
+            // already failing
+        }
+    }
+
+    public void close() {
+        fail(new IOException("connection closed by client"));
+    }
+
+    /**
+     * Streams of a single request/response exchange.
+     */
+    private class Exchange extends SocketAndStreams {
+
+        private Exchange() {
+            this(new ExchangeState());
+        }
+
+        private Exchange(ExchangeState state) {
+            super(state.new ResponseInputStream(), state.new RequestOutputStream());
+        }
+
+        @Override
+        public void close() {
+            // the connection is shared with other exchanges
+        }
+    }
+
+    /**
+     * Request bytes written so far and the response they are waiting for.
+     */
+    private class ExchangeState {
+
+        private final ByteArrayOutputStream request = new ByteArrayOutputStream();
+        private SettableFuture<byte[]> pendingResponse = null;
+        private InputStream response = null;
+
+        private InputStream getResponse() throws IOException {
+            if(response == null) {
+                if(pendingResponse == null) {
+                    throw new IOException("Client: no request has been sent.");
+                }
+                try {
+                    response = new ByteArrayInputStream(pendingResponse.get());
+                } catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException(e);
+                } catch(ExecutionException e) {
+                    throw new IOException(e.getCause());
+                }
+            }
+            return response;
+        }
+
+        /**
+         * Collects the request and sends it as one frame on flush.
+         */
+        private class RequestOutputStream extends OutputStream {
+
+            @Override
+            public void write(int b) {
+                request.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                request.write(b, off, len);
+            }
+
+            @Override
+            public void flush() throws IOException {
+                if(request.size() > 0) {
+                    pendingResponse = send(request.toByteArray());
+                    request.reset();
+                }
+            }
+        }
+
+        /**
+         * Reads from the response once it has arrived.
+         */
+        private class ResponseInputStream extends InputStream {
+
+            @Override
+            public int read() throws IOException {
+                return getResponse().read();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return getResponse().read(b, off, len);
+            }
+        }
+    }
+}
@@ -1,39 +1,97 @@
 package nagini.client;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
 
+import nagini.config.NaginiClientConfig;
 import nagini.config.NaginiConfig;
+import nagini.config.NaginiServerConfig;
+import nagini.protocol.ChunkedInputStream;
+import nagini.protocol.ChunkedOutputStream;
+import nagini.protocol.FileRange;
+import nagini.protocol.RelaySender;
+import nagini.protocol.RelayTree;
 import nagini.protocol.RequestType;
 import nagini.protocol.ResponseType;
+import nagini.protocol.ResumableTransfer;
 import nagini.protocol.SocketAndStreams;
+import nagini.protocol.Throttle;
+import nagini.server.JobStatus;
 import nagini.server.NaginiServerStatus;
+import nagini.server.NodeStatus;
+import nagini.server.ResourceStatus;
+import nagini.server.ReleaseStore;
+import nagini.server.ServiceStatus;
+import nagini.utils.CompressionPolicy;
+import nagini.utils.FileManifest;
+import nagini.utils.HashCache;
+import nagini.utils.NaginiDeltaUtils;
 import nagini.utils.NaginiFileUtils;
 import nagini.utils.NaginiZipUtils;
 import nagini.utils.process.NaginiProcessUtils;
+import nagini.utils.process.OutputBuffer;
+import nagini.utils.process.ResourceHistory;
 
+import com.google.common.base.Joiner;
+import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.RateLimiter;
 import com.google.gson.Gson;
 
 public class NaginiClient {
 
+    private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+    // how often the output of restarted nodes is read
+    private static final long RESTART_POLL_INTERVAL_MS = 1000;
+    // fewest lines of output to tell the error rate of a batch by before it
+    // is done
+    private static final long RESTART_MIN_LINES = 100;
+
     public NaginiConfig config;
     public ControlOperations controlOps;
     public FileOperations fileOps;
+    public ReleaseOperations releaseOps;
     public ServiceOperations serviceOps;
+    public LogOperations logOps;
+
+    // persistent protocol v2 connections by host
+    private final ConcurrentMap<String, HostConnection> connections;
+    // transfer throttles of the current file operation by host
+    private final ConcurrentMap<String, Throttle> throttles;
+    // shared by all hosts of the current file operation, null if unlimited
+    private volatile RateLimiter totalLimiter;
 
     public NaginiClient(String configPath) throws IOException {
         config = new NaginiConfig(configPath);
         controlOps = new ControlOperations();
         fileOps = new FileOperations();
+        releaseOps = new ReleaseOperations();
         serviceOps = new ServiceOperations();
+        logOps = new LogOperations();
+        connections = Maps.newConcurrentMap();
+        throttles = Maps.newConcurrentMap();
+        totalLimiter = null;
     }
 
     public String getClientTempPath() {
@@ -44,21 +102,336 @@ public class NaginiClient {
         config.loadConfig(configPath);
     }
 
+    /**
+     * Sets the maximum number of hosts that cluster-wide operations work on
+     * at the same time.
+     * 
+     * @param parallelism
+     */
+    public void setParallelism(Integer parallelism) {
+        if(parallelism < 1) {
+            throw new IllegalArgumentException("Client: invalid parallelism " + parallelism);
+        }
+        config.client.fanoutParallelism = parallelism;
+    }
+
+    /**
+     * Sets how files are transferred, see NaginiClientConfig.TRANSFER_MODE_*.
+     * 
+     * @param transferMode
+     */
+    public void setTransferMode(String transferMode) {
+        if(!NaginiClientConfig.isValidTransferMode(transferMode)) {
+            throw new IllegalArgumentException("Client: invalid transfer mode " + transferMode);
+        }
+        config.client.transferMode = transferMode;
+    }
+
+    /**
+     * Sets which files are stored rather than deflated, see
+     * CompressionPolicy.MODE_*.
+     * 
+     * @param compressionMode
+     */
+    public void setCompressionMode(String compressionMode) {
+        if(!CompressionPolicy.isValidMode(compressionMode)) {
+            throw new IllegalArgumentException("Client: invalid compression mode "
+                                               + compressionMode);
+        }
+        config.client.compressionMode = compressionMode;
+    }
+
+    /**
+     * Sets the deflate level, 0 to 9 or -1 for the default level.
+     * 
+     * @param compressionLevel
+     */
+    public void setCompressionLevel(Integer compressionLevel) {
+        if(compressionLevel < -1 || compressionLevel > 9) {
+            throw new IllegalArgumentException("Client: invalid compression level "
+                                               + compressionLevel);
+        }
+        config.client.compressionLevel = compressionLevel;
+    }
+
+    /**
+     * Limits the bandwidth of the transfers with each host.
+     * 
+     * @param rate bytes per second with an optional k, m or g suffix, 0 for
+     *        unlimited
+     */
+    public void setTransferRatePerHost(String rate) {
+        config.client.transferRatePerHost = parseTransferRate(rate);
+    }
+
+    /**
+     * Limits the bandwidth of the transfers with all hosts together.
+     * 
+     * @param rate bytes per second with an optional k, m or g suffix, 0 for
+     *        unlimited
+     */
+    public void setTransferRateTotal(String rate) {
+        config.client.transferRateTotal = parseTransferRate(rate);
+    }
+
+    private static long parseTransferRate(String rate) {
+        try {
+            return Throttle.parseRate(rate);
+        } catch(IllegalArgumentException e) {
+            throw new IllegalArgumentException("Client: invalid transfer rate " + rate);
+        }
+    }
+
+    private CompressionPolicy getCompressionPolicy() {
+        return new CompressionPolicy(config.client.compressionMode,
+                                     config.client.compressionLevel,
+                                     config.client.compressionStoredExtensions);
+    }
+
+    private boolean isStreamMode() {
+        return NaginiClientConfig.TRANSFER_MODE_STREAM.equals(config.client.transferMode);
+    }
+
+    private boolean isDedupMode() {
+        return NaginiClientConfig.TRANSFER_MODE_DEDUP.equals(config.client.transferMode);
+    }
+
+    private boolean isRelayMode() {
+        return NaginiClientConfig.TRANSFER_MODE_RELAY.equals(config.client.transferMode);
+    }
+
+    private boolean isSyncMode() {
+        return NaginiClientConfig.TRANSFER_MODE_SYNC.equals(config.client.transferMode);
+    }
+
+    private boolean isDeltaMode() {
+        return NaginiClientConfig.TRANSFER_MODE_DELTA.equals(config.client.transferMode);
+    }
+
+    /**
+     * Delta transfer only applies to single files, folders are sent as
+     * archives instead.
+     * 
+     * @param localPath
+     * @return
+     */
+    private boolean isDeltaPut(String localPath) {
+        if(!isDeltaMode()) {
+            return false;
+        }
+        if(new File(localPath).isFile()) {
+            return true;
+        }
+        System.out.println("Client: " + localPath
+                           + " is not a regular file, sending it as an archive.");
+        return false;
+    }
+
+    /**
+     * Runs a task on all hosts in parallel and prints a summary.
+     * 
+     * @param operation
+     * @param task
+     * @return names of the hosts on which the task failed
+     */
+    private List<String> fanOut(String operation, FanOutExecutor.HostTask task) {
+        return new FanOutExecutor(config.client.fanoutParallelism).execute(operation,
+                                                                           config.server.mapHostToNodes.keySet(),
+                                                                           task);
+    }
+
+    /**
+     * Starts counting the transfers of a file operation, with fresh rate
+     * limits.
+     */
+    private void startTransfers() {
+        throttles.clear();
+        totalLimiter = Throttle.newLimiter(config.client.transferRateTotal);
+    }
+
+    /**
+     * @param hostName
+     * @return throttle of the transfers with a host in the current file
+     *         operation, shared by all attempts
+     */
+    private Throttle getThrottle(String hostName) {
+        Throttle throttle = throttles.get(hostName);
+        if(throttle == null) {
+            RateLimiter hostLimiter = Throttle.newLimiter(config.client.transferRatePerHost);
+            Throttle newThrottle = new Throttle(hostLimiter, totalLimiter);
+            throttle = throttles.putIfAbsent(hostName, newThrottle);
+            if(throttle == null) {
+                throttle = newThrottle;
+            }
+        }
+        return throttle;
+    }
+
+    /**
+     * Opens a connection for moving file content to or from a host, limited
+     * to the configured rates.
+     * 
+     * @param hostName
+     * @return
+     * @throws IOException
+     */
+    private SocketAndStreams openTransfer(String hostName) throws IOException {
+        SocketAndStreams sands = new SocketAndStreams(hostName, config.server.portId);
+        sands.setThrottle(getThrottle(hostName));
+        return sands;
+    }
+
+    /**
+     * Prints the throughput achieved with each host and overall by the
+     * current file operation.
+     */
+    private void reportTransfers() {
+        long bytes = 0;
+        long startNanos = Long.MAX_VALUE;
+        long endNanos = Long.MIN_VALUE;
+        StringBuilder report = new StringBuilder();
+        List<String> hostNames = Lists.newArrayList(throttles.keySet());
+        Collections.sort(hostNames);
+        for(String hostName: hostNames) {
+            Throttle throttle = throttles.get(hostName);
+            if(throttle.getBytes() == 0) {
+                continue;
+            }
+            bytes += throttle.getBytes();
+            startNanos = Math.min(startNanos, throttle.getStartNanos());
+            endNanos = Math.max(endNanos, throttle.getEndNanos());
+            report.append("|->\t" + hostName + ": " + throttle.getBytes() + " bytes at "
+                          + Throttle.formatRate(throttle.getBytesPerSecond()) + LINE_SEPARATOR);
+        }
+        throttles.clear();
+        if(bytes == 0) {
+            return;
+        }
+        long bytesPerSecond = Throttle.getBytesPerSecond(bytes, endNanos - startNanos);
+        report.append("Client: transferred " + bytes + " bytes at "
+                      + Throttle.formatRate(bytesPerSecond) + " overall.");
+        System.out.println(report);
+    }
+
+    /**
+     * One attempt of a transfer that picks up where the previous attempt
+     * stopped.
+     */
+    private interface TransferAttempt {
+
+        void run() throws IOException;
+    }
+
+    /**
+     * Runs a resumable transfer, trying again with growing pauses when the
+     * connection fails.
+     * 
+     * @param hostName
+     * @param attempt
+     * @throws IOException if the last attempt failed
+     */
+    private void runResumable(String hostName, TransferAttempt attempt) throws IOException {
+        for(int retry = 0;; retry++) {
+            try {
+                attempt.run();
+                return;
+            } catch(IOException e) {
+                if(retry >= config.client.transferRetries) {
+                    throw e;
+                }
+                long pauseMs = 1000L << Math.min(retry, 4);
+                System.out.println("Client: transfer with " + hostName + " interrupted (" + e
+                                   + "), resuming in " + pauseMs + " ms ...");
+                try {
+                    Thread.sleep(pauseMs);
+                } catch(InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * @param responseMessage
+     * @return true if a server rejected a request type it does not know
+     */
+    private static boolean isUnsupportedRequest(String responseMessage) {
+        return responseMessage.startsWith("invalid request.");
+    }
+
+    /**
+     * Opens the streams for one small request to a server. With protocol v2
+     * the request shares a persistent connection to the host; otherwise, or if
+     * the server does not speak v2, a new connection is opened. File bodies
+     * always go over their own connection.
+     * 
+     * @param hostName
+     * @return
+     * @throws IOException
+     */
+    public SocketAndStreams openRequest(String hostName) throws IOException {
+        if(config.client.protocolVersion < 2) {
+            return new SocketAndStreams(hostName, config.server.portId);
+        }
+        HostConnection host = connections.get(hostName);
+        if(host == null) {
+            HostConnection newHost = new HostConnection();
+            host = connections.putIfAbsent(hostName, newHost);
+            if(host == null) {
+                host = newHost;
+            }
+        }
+        // connect to different hosts in parallel
+        MultiplexedConnection connection;
+        synchronized(host) {
+            if(!host.v1Only && (host.connection == null || !host.connection.isOpen())) {
+                host.connection = MultiplexedConnection.open(hostName, config.server.portId);
+                host.v1Only = host.connection == null;
+            }
+            connection = host.connection;
+        }
+        if(connection == null) {
+            return new SocketAndStreams(hostName, config.server.portId);
+        }
+        return connection.newExchange();
+    }
+
+    /**
+     * Closes all persistent connections.
+     */
+    public void close() {
+        for(HostConnection host: connections.values()) {
+            synchronized(host) {
+                if(host.connection != null) {
+                    host.connection.close();
+                    host.connection = null;
+                }
+            }
+        }
+        connections.clear();
+    }
+
+    /**
+     * Connection state of one host.
+     */
+    private static class HostConnection {
+
+        private MultiplexedConnection connection = null;
+        private boolean v1Only = false;
+    }
+
     public Integer receiveResponseMessage(SocketAndStreams sands) throws IOException {
         DataInputStream dis = sands.getInputStream();
         Integer responseType = dis.readInt();
         String responseMessage = null;
         switch(responseType) {
             case ResponseType.RESPONSE_SUCCESS:
-                responseMessage = dis.readUTF();
-                System.out.println(responseMessage);
-                responseMessage = dis.readUTF();
-                System.out.println(responseMessage);
-                break;
             case ResponseType.RESPONSE_FAIL:
+                // print header and message at once, as other hosts may be
+                // answering at the same time
                 responseMessage = dis.readUTF();
-                System.out.println(responseMessage);
-                responseMessage = dis.readUTF();
+                responseMessage += LINE_SEPARATOR + dis.readUTF();
                 System.out.println(responseMessage);
                 break;
             case ResponseType.RESPONSE_FILE:
@@ -93,9 +466,28 @@ public class NaginiClient {
          * @throws IOException
          */
         private void pingInner(String hostName) throws IOException {
-            SocketAndStreams sands = new SocketAndStreams(hostName, config.server.portId);
-            DataOutputStream dos = sands.getOutputStream();
             System.out.println("Client: ping " + hostName + " ...");
+            NaginiServerStatus status = getStatus(hostName);
+            // print the whole status at once, as other hosts may be
+            // answering at the same time
+            ByteArrayOutputStream statusOutput = new ByteArrayOutputStream();
+            PrintStream statusStream = new PrintStream(statusOutput);
+            statusStream.println("Server: [host=" + status.host_name + "]: ");
+            status.print(statusStream);
+            statusStream.flush();
+            System.out.print(statusOutput.toString());
+        }
+
+        /**
+         * Gets the status of one remote server without printing it.
+         * 
+         * @param hostName
+         * @return
+         * @throws IOException
+         */
+        public NaginiServerStatus getStatus(String hostName) throws IOException {
+            SocketAndStreams sands = openRequest(hostName);
+            DataOutputStream dos = sands.getOutputStream();
             // send request type
             dos.writeInt(RequestType.REQUEST_PING);
             // flush request header
@@ -105,18 +497,14 @@ public class NaginiClient {
             DataInputStream dis = sands.getInputStream();
             int responseType = dis.readInt();
             if(responseType == ResponseType.RESPONSE_SUCCESS) {
+                dis.readUTF();
                 String responseMessage = dis.readUTF();
-                System.out.println(responseMessage);
-                responseMessage = dis.readUTF();
-                NaginiServerStatus status = new Gson().fromJson(responseMessage,
-                                                                NaginiServerStatus.class);
-                status.print(System.out);
                 sands.close();
+                return new Gson().fromJson(responseMessage, NaginiServerStatus.class);
             } else {
                 sands.close();
                 throw new RuntimeException("server operation failed");
             }
-
         }
 
         /**
@@ -135,13 +523,13 @@ public class NaginiClient {
          * @throws IOException
          */
         public void pingAllHosts() throws IOException {
-            for(String hostName: config.server.mapHostToNodes.keySet()) {
-                try {
+            fanOut("ping", new FanOutExecutor.HostTask() {
+
+                @Override
+                public void run(String hostName) throws Exception {
                     pingInner(hostName);
-                } catch(IOException e) {
-                    e.printStackTrace();
                 }
-            }
+            });
         }
 
         /**
@@ -178,13 +566,13 @@ public class NaginiClient {
          * @throws IOException
          */
         public void stopAllHosts() throws IOException {
-            for(String hostName: config.server.mapHostToNodes.keySet()) {
-                try {
+            fanOut("stop", new FanOutExecutor.HostTask() {
+
+                @Override
+                public void run(String hostName) throws Exception {
                     stopInner(hostName);
-                } catch(IOException e) {
-                    e.printStackTrace();
                 }
-            }
+            });
         }
 
         /**
@@ -197,7 +585,7 @@ public class NaginiClient {
             List<String> args = Lists.newArrayList();
             System.out.println("Client: starting " + hostName + " ...");
             args.add("ssh");
-            args.add(hostName);
+            args.add(NaginiServerConfig.getHostAddress(hostName));
             args.add("\"\"sudo -u " + config.server.userName + " -sn bash "
                      + config.server.basePath + "/nagini/bin/nagini-server.sh "
                      + config.server.getConfigPath() + " " + hostName + "\"\"");
@@ -220,13 +608,13 @@ public class NaginiClient {
          * @throws Exception
          */
         public void startAllHosts() throws Exception {
-            for(String hostName: config.server.mapHostToNodes.keySet()) {
-                try {
+            fanOut("start", new FanOutExecutor.HostTask() {
+
+                @Override
+                public void run(String hostName) throws Exception {
                     startInner(hostName);
-                } catch(IOException e) {
-                    e.printStackTrace();
                 }
-            }
+            });
         }
 
         /**
@@ -237,7 +625,7 @@ public class NaginiClient {
          * @throws IOException
          */
         private void reconfigInner(String hostName, String configPath) throws IOException {
-            SocketAndStreams sands = new SocketAndStreams(hostName, config.server.portId);
+            SocketAndStreams sands = openRequest(hostName);
             DataOutputStream dos = sands.getOutputStream();
             System.out.println("Client: reloading config on " + hostName + " ...");
             // send request type
@@ -267,250 +655,1728 @@ public class NaginiClient {
          * @param configPath
          * @throws IOException
          */
-        public void reconfig(String configPath) throws IOException {
-            for(String hostName: config.server.mapHostToNodes.keySet()) {
-                reconfigInner(hostName, configPath);
+        public void reconfig(final String configPath) throws IOException {
+            List<String> failedHosts = fanOut("reconfig", new FanOutExecutor.HostTask() {
+
+                @Override
+                public void run(String hostName) throws Exception {
+                    reconfigInner(hostName, configPath);
+                }
+            });
+            if(!failedHosts.isEmpty()) {
+                throw new RuntimeException("Client: failed to reload config on " + failedHosts);
             }
         }
-    }
-
-    public class FileOperations {
 
         /**
-         * Inner function that puts file to one remote server.
+         * Sends a resources request to one remote server without waiting for
+         * the response.
          * 
-         * @param hostName, remote server host name
-         * @param localPath, absolute local path
-         * @param remotePath, absolute remote path
+         * @param hostName
+         * @param since time on the server after which samples are wanted
+         * @return streams to read the response from
          * @throws IOException
          */
-        private void putInner(String hostName, String localPath, String remotePath)
+        private SocketAndStreams sendResourcesRequest(String hostName, long since)
                 throws IOException {
-            SocketAndStreams sands = new SocketAndStreams(hostName, config.server.portId);
+            SocketAndStreams sands = openRequest(hostName);
             DataOutputStream dos = sands.getOutputStream();
-            File localFile = new File(localPath);
-            FileInputStream fis = new FileInputStream(localFile);
-
-            System.out.println("Client: putting " + localPath + " to " + hostName + " ... ("
-                               + localFile.length() + " bytes)");
-
             // send request type
-            dos.writeInt(RequestType.REQUEST_FILE_PUT);
-            // send remote file path
-            dos.writeUTF(remotePath);
-            // send file length
-            dos.writeLong(localFile.length());
+            dos.writeInt(RequestType.REQUEST_RESOURCES);
+            // send time of the last sample received
+            dos.writeLong(since);
             // flush request header
             dos.flush();
-
-            int bufferSize = 65536;
-            byte[] buffer = new byte[bufferSize];
-            int read;
-
-            while((read = fis.read(buffer)) != -1) {
-                dos.write(buffer, 0, read);
-            }
-            dos.flush();
-            fis.close();
-
-            receiveAndCheckResponseMessage(sands);
-
-            sands.close();
+            return sands;
         }
 
         /**
-         * Puts file to one remote server.
+         * Receives the resource samples of the nodes of one remote server.
          * 
-         * @param hostName
-         * @param localPath
-         * @param remotePath
+         * @param sands
+         * @param samples samples of each node, added to in place
+         * @return time of the last sample received, or 0 if there is none
          * @throws IOException
          */
-        public void putOneHost(String hostName, String localPath, String remotePath)
+        private long receiveResourcesResponse(SocketAndStreams sands,
+                                              Map<Integer, List<ResourceHistory.Sample>> samples)
                 throws IOException {
-            String tempZipPath = getClientTempPath() + ".zip";
-            localPath = localPath.replace("~", System.getProperty("user.home"));
-            if(!new File(localPath).exists()) {
-                throw new RuntimeException("Client: cannot find " + localPath);
+            try {
+                DataInputStream dis = sands.getInputStream();
+                int responseType = dis.readInt();
+                if(responseType == ResponseType.RESPONSE_SUCCESS
+                   || responseType == ResponseType.RESPONSE_FAIL) {
+                    dis.readUTF();
+                    throw new IOException(dis.readUTF());
+                } else if(responseType != ResponseType.RESPONSE_RESOURCES) {
+                    throw new IOException("unexpected server response type.");
+                }
+                long last = 0;
+                int nodeId;
+                while((nodeId = dis.readInt()) >= 0) {
+                    List<ResourceHistory.Sample> nodeSamples = Lists.newArrayList();
+                    int count = dis.readInt();
+                    for(int i = 0; i < count; i++) {
+                        ResourceHistory.Sample sample = ResourceHistory.Sample.read(dis);
+                        nodeSamples.add(sample);
+                        last = Math.max(last, sample.getTime());
+                    }
+                    samples.put(nodeId, nodeSamples);
+                }
+                return last;
+            } finally {
+                sands.close();
             }
-            System.out.println("Client: zipping " + localPath + " ...");
-            NaginiZipUtils.zip(localPath, tempZipPath, null);
-            putInner(hostName, tempZipPath, remotePath);
-            NaginiFileUtils.delete(new File(tempZipPath));
         }
 
         /**
-         * Puts file to all remote servers.
+         * Shows the resources used by the application on nodes, refreshed
+         * with the samples the servers took since the previous refresh, the
+         * busiest nodes first. Screens are printed one after another if the
+         * output is not a terminal.
          * 
-         * @param localPath
-         * @param remotePath
+         * @param nodeIds
+         * @param interval seconds between refreshes
+         * @param iterations refreshes to show, 0 for until interrupted
          * @throws IOException
          */
-        public void putAllHosts(String localPath, String remotePath) throws IOException {
-            String tempZipPath = getClientTempPath() + ".zip";
-            localPath = localPath.replace("~", System.getProperty("user.home"));
-            if(!new File(localPath).exists()) {
-                throw new RuntimeException("Client: cannot find " + localPath);
-            }
-            System.out.println("Client: zipping " + localPath + " ...");
-            NaginiZipUtils.zip(localPath, tempZipPath, null);
+        public void top(Set<Integer> nodeIds, Integer interval, Integer iterations)
+                throws IOException {
+            List<String> hostNames = Lists.newArrayList();
             for(String hostName: config.server.mapHostToNodes.keySet()) {
-                try {
-                    putInner(hostName, tempZipPath, remotePath);
-                } catch (Exception e) {
-                    System.err.println("Failed to put file on host: " + hostName);
+                if(!Collections.disjoint(config.server.mapHostToNodes.get(hostName), nodeIds)) {
+                    hostNames.add(hostName);
+                }
+            }
+            Collections.sort(hostNames);
+            // time of the last sample received from each server, on its clock
+            Map<String, Long> since = Maps.newHashMap();
+            for(String hostName: hostNames) {
+                since.put(hostName, 0L);
+            }
+            for(int iteration = 1; iterations == 0 || iteration <= iterations; iteration++) {
+                // send all requests first so that the servers answer in
+                // parallel
+                Map<String, SocketAndStreams> pendingRequests = Maps.newLinkedHashMap();
+                Map<String, String> errors = Maps.newTreeMap();
+                for(String hostName: hostNames) {
+                    try {
+                        pendingRequests.put(hostName,
+                                            sendResourcesRequest(hostName, since.get(hostName)));
+                    } catch(IOException e) {
+                        errors.put(hostName, e.getMessage());
+                    }
+                }
+                Map<Integer, List<ResourceHistory.Sample>> samples = Maps.newHashMap();
+                for(String hostName: pendingRequests.keySet()) {
+                    try {
+                        long last = receiveResourcesResponse(pendingRequests.get(hostName),
+                                                             samples);
+                        since.put(hostName, Math.max(since.get(hostName), last));
+                    } catch(IOException e) {
+                        errors.put(hostName, e.getMessage());
+                    }
+                }
+                printTop(nodeIds, samples, errors);
+                if(iterations == 0 || iteration < iterations) {
+                    try {
+                        Thread.sleep(interval * 1000L);
+                    } catch(InterruptedException e) {
+                        throw new IOException(e);
+                    }
                 }
             }
-            NaginiFileUtils.delete(new File(tempZipPath));
         }
 
         /**
-         * Inner function that gets file from one remote server.
+         * Prints one screen of top: the last sample of each node with the
+         * highest CPU use among the samples received.
          * 
-         * @param hostName, remote server host name
-         * @param remotePath, absolute remote path
-         * @param localPath, absolute local path
-         * @throws IOException
+         * @param nodeIds
+         * @param samples
+         * @param errors
          */
-        private void getInner(String hostName, String remotePath, String localPath)
-                throws IOException {
-            SocketAndStreams sands = new SocketAndStreams(hostName, config.server.portId);
-            DataOutputStream dos = sands.getOutputStream();
-            DataInputStream dis = sands.getInputStream();
-
-            System.out.println("Client: getting " + localPath + " from " + hostName + " ...");
+        private void printTop(Set<Integer> nodeIds,
+                              final Map<Integer, List<ResourceHistory.Sample>> samples,
+                              Map<String, String> errors) {
+            List<Integer> running = Lists.newArrayList();
+            List<Integer> idle = Lists.newArrayList();
+            for(Integer nodeId: nodeIds) {
+                List<ResourceHistory.Sample> nodeSamples = samples.get(nodeId);
+                if(nodeSamples == null || nodeSamples.isEmpty()) {
+                    idle.add(nodeId);
+                } else {
+                    running.add(nodeId);
+                }
+            }
+            final Map<Integer, Float> lastCpu = Maps.newHashMap();
+            for(Integer nodeId: running) {
+                List<ResourceHistory.Sample> nodeSamples = samples.get(nodeId);
+                lastCpu.put(nodeId, nodeSamples.get(nodeSamples.size() - 1).getCpuPercent());
+            }
+            Collections.sort(running, new Comparator<Integer>() {
 
-            // send request type
-            dos.writeInt(RequestType.REQUEST_FILE_GET);
-            // send remote file path
-            dos.writeUTF(remotePath);
-            // flush request header
-            dos.flush();
+                @Override
+                public int compare(Integer a, Integer b) {
+                    int byCpu = lastCpu.get(b).compareTo(lastCpu.get(a));
+                    return byCpu != 0 ? byCpu : a.compareTo(b);
+                }
+            });
+            Collections.sort(idle);
 
-            // receive file get response
-            int responseType = dis.readInt();
-            if(responseType != ResponseType.RESPONSE_FILE) {
-                sands.close();
-                throw new RuntimeException("Client: failed to get file from " + hostName
-                                           + ". (unknown)");
+            int hostWidth = 4;
+            for(Integer nodeId: nodeIds) {
+                hostWidth = Math.max(hostWidth, config.server.mapNodeToHost.get(nodeId).length());
             }
-
-            Long fileLength = dis.readLong();
-            File localFile = new File(localPath);
-            FileOutputStream fos = new FileOutputStream(localFile);
-
-            int bufferSize = 65536;
-            byte[] buffer = new byte[bufferSize];
-            int done = 0;
-            while(done < fileLength) {
-                int read = dis.read(buffer);
-                fos.write(buffer, 0, read);
-                if(read == -1) {
-                    break;
+            String rowFormat = "%6s  %-" + hostWidth + "s %8s %7s %7s %9s %7s %6s %11s %11s";
+            List<String> output = Lists.newArrayList();
+            float totalCpu = 0;
+            long totalRss = 0;
+            for(Integer nodeId: running) {
+                List<ResourceHistory.Sample> nodeSamples = samples.get(nodeId);
+                ResourceHistory.Sample last = nodeSamples.get(nodeSamples.size() - 1);
+                String cpu = String.format(Locale.ENGLISH, "%.1f", last.getCpuPercent());
+                float peakCpu = 0;
+                for(ResourceHistory.Sample sample: nodeSamples) {
+                    peakCpu = Math.max(peakCpu, sample.getCpuPercent());
                 }
-                done += read;
+                totalCpu += last.getCpuPercent();
+                totalRss += last.getRssBytes();
+                output.add(String.format(Locale.ENGLISH,
+                                         rowFormat,
+                                         nodeId,
+                                         config.server.mapNodeToHost.get(nodeId),
+                                         last.getPid(),
+                                         cpu,
+                                         String.format(Locale.ENGLISH, "%.1f", peakCpu),
+                                         ResourceStatus.formatMemory(last.getRssBytes()),
+                                         last.getThreads(),
+                                         last.getFds(),
+                                         Throttle.formatRate(last.getReadRate()),
+                                         Throttle.formatRate(last.getWriteRate())));
+            }
+            for(Integer nodeId: idle) {
+                String hostName = config.server.mapNodeToHost.get(nodeId);
+                String state = errors.containsKey(hostName) ? "unreachable" : "not running";
+                output.add(String.format(Locale.ENGLISH,
+                                         "%6s  %-" + hostWidth + "s  %s",
+                                         nodeId,
+                                         hostName,
+                                         state));
             }
-            fos.close();
-
-            sands.close();
 
-            if(localFile.exists() && done == fileLength) {
-                System.out.println("Client: successfully received file. (" + done + " bytes)");
+            List<String> screen = Lists.newArrayList();
+            screen.add("Nagini top - " + new Date() + ", " + running.size() + " of "
+                       + nodeIds.size() + " nodes running, cpu "
+                       + String.format(Locale.ENGLISH, "%.1f%%", totalCpu) + ", rss "
+                       + ResourceStatus.formatMemory(totalRss));
+            for(Map.Entry<String, String> error: errors.entrySet()) {
+                screen.add("Client: " + error.getKey() + ": " + error.getValue());
+            }
+            screen.add("");
+            screen.add(String.format(Locale.ENGLISH,
+                                     rowFormat,
+                                     "NODE",
+                                     "HOST",
+                                     "PID",
+                                     "CPU%",
+                                     "PEAK%",
+                                     "RSS",
+                                     "THREADS",
+                                     "FDS",
+                                     "READ",
+                                     "WRITE"));
+            screen.addAll(output);
+            if(System.console() != null) {
+                // clear the terminal and move to its top
+                System.out.print("\033[H\033[2J");
             } else {
-                throw new RuntimeException("Client: failed to receive file. (" + done + " bytes)");
+                screen.add("");
             }
+            System.out.println(Joiner.on(LINE_SEPARATOR).join(screen));
         }
 
         /**
-         * Gets file from one remote server.
+         * Shows the resources used by the application on all nodes.
          * 
-         * @param hostName
-         * @param remotePath
-         * @param localPath
+         * @param interval
+         * @param iterations
          * @throws IOException
          */
-        public void getOneHost(String hostName, String remotePath, String localPath)
-                throws IOException {
-            localPath = localPath.replace("~", System.getProperty("user.home"));
-            String tempZipPath = getClientTempPath() + ".zip";
-            File tempZipFile = new File(tempZipPath);
-            String destinationPath = localPath;
-            getInner(hostName, remotePath, tempZipPath);
-            System.out.println("Client: unzipping received file ...");
-            NaginiZipUtils.unzip(tempZipPath, destinationPath, null);
-            NaginiFileUtils.delete(tempZipFile);
-
+        public void topAllNodes(Integer interval, Integer iterations) throws IOException {
+            Set<Integer> nodeIds = Sets.newHashSet(config.server.mapNodeToHost.keySet());
+            top(nodeIds, interval, iterations);
         }
+    }
+
+    public class FileOperations {
 
         /**
-         * Gets file from all remote servers (automatically creates separate
-         * folders for files from each server).
+         * Inner function that puts file to one remote server, resuming after
+         * dropped connections.
          * 
-         * @param remotePath
-         * @param localPath
+         * @param hostName, remote server host name
+         * @param localPath, absolute local zip file path
+         * @param checksum, CRC32 of the zip file
+         * @param remotePath, absolute remote path
          * @throws IOException
          */
-        public void getAllHosts(String remotePath, String localPath) throws IOException {
-            localPath = localPath.replace("~", System.getProperty("user.home"));
-            for(String hostName: config.server.mapHostToNodes.keySet()) {
-                String tempZipPath = getClientTempPath() + ".zip";
-                File tempZipFile = new File(tempZipPath);
-                String destinationPath = localPath + File.separator + hostName;
-                getInner(hostName, remotePath, tempZipPath);
-                System.out.println("Client: unzipping received file ...");
-                NaginiZipUtils.unzip(tempZipPath, destinationPath, null);
-                NaginiFileUtils.delete(tempZipFile);
-            }
+        private void putInner(final String hostName,
+                              final String localPath,
+                              final long checksum,
+                              final String remotePath) throws IOException {
+            final String transferId = UUID.randomUUID().toString();
+            runResumable(hostName, new TransferAttempt() {
+
+                @Override
+                public void run() throws IOException {
+                    if(!putResumableInner(hostName, localPath, checksum, remotePath, transferId)) {
+                        putWholeInner(hostName, localPath, remotePath);
+                    }
+                }
+            });
         }
 
         /**
-         * Inner function that deletes file from one remote server.
+         * Inner function that sends file to one remote server as checksummed
+         * chunks, starting from what the server already has.
          * 
          * @param hostName, remote server host name
+         * @param localPath, absolute local zip file path
+         * @param checksum, CRC32 of the zip file
          * @param remotePath, absolute remote path
+         * @param transferId, same for all attempts of one transfer
+         * @return false if the server does not support resumable transfers
          * @throws IOException
          */
-        private void deleteInner(String hostName, String remotePath) throws IOException {
-            SocketAndStreams sands = new SocketAndStreams(hostName, config.server.portId);
+        private boolean putResumableInner(String hostName,
+                                          String localPath,
+                                          long checksum,
+                                          String remotePath,
+                                          String transferId) throws IOException {
+            SocketAndStreams sands = openTransfer(hostName);
             DataOutputStream dos = sands.getOutputStream();
-            System.out.println("Client: deleting file " + remotePath + " on " + hostName + " ...");
+            DataInputStream dis = sands.getInputStream();
+            File localFile = new File(localPath);
 
-            // send request type
-            dos.writeInt(RequestType.REQUEST_FILE_DELETE);
-            // send remote file path
-            dos.writeUTF(remotePath);
-            // flush request header
-            dos.flush();
+            try {
+                // send request type
+                dos.writeInt(RequestType.REQUEST_FILE_PUT_RESUMABLE);
+                // send remote file path
+                dos.writeUTF(remotePath);
+                // send transfer id, file length and checksum
+                dos.writeUTF(transferId);
+                dos.writeLong(localFile.length());
+                dos.writeLong(checksum);
+                // flush request header
+                dos.flush();
+
+                // receive the offset to go on from
+                int responseType = dis.readInt();
+                if(responseType == ResponseType.RESPONSE_FAIL) {
+                    String responseHeader = dis.readUTF();
+                    String responseMessage = dis.readUTF();
+                    if(isUnsupportedRequest(responseMessage)) {
+                        return false;
+                    }
+                    System.out.println(responseHeader + LINE_SEPARATOR + responseMessage);
+                }
+                if(responseType != ResponseType.RESPONSE_OFFSET) {
+                    throw new RuntimeException("Client: failed to put file to " + hostName + ".");
+                }
+                long offset = dis.readLong();
+                if(offset > 0) {
+                    System.out.println("Client: resuming put of " + localPath + " to " + hostName
+                                       + " at " + offset + " of " + localFile.length()
+                                       + " bytes ...");
+                } else {
+                    System.out.println("Client: putting " + localPath + " to " + hostName
+                                       + " ... (" + localFile.length() + " bytes)");
+                }
+                // send the rest as chunks
+                ResumableTransfer.sendChunks(dos, localFile, offset);
 
-            receiveAndCheckResponseMessage(sands);
-            sands.close();
-        }
+                receiveAndCheckResponseMessage(sands);
+            } finally {
+                sands.close();
+            }
+            return true;
+        }
+
+        /**
+         * Inner function that puts file to one remote server in one go, for
+         * servers without resumable transfers.
+         * 
+         * @param hostName, remote server host name
+         * @param localPath, absolute local path
+         * @param remotePath, absolute remote path
+         * @throws IOException
+         */
+        private void putWholeInner(String hostName, String localPath, String remotePath)
+                throws IOException {
+            SocketAndStreams sands = openTransfer(hostName);
+            DataOutputStream dos = sands.getOutputStream();
+            File localFile = new File(localPath);
+
+            System.out.println("Client: putting " + localPath + " to " + hostName + " ... ("
+                               + localFile.length() + " bytes)");
+
+            // send request type
+            dos.writeInt(RequestType.REQUEST_FILE_PUT);
+            // send remote file path
+            dos.writeUTF(remotePath);
+            // send file length
+            dos.writeLong(localFile.length());
+            // send request header and file
+            sands.sendFile(localFile);
+
+            receiveAndCheckResponseMessage(sands);
+
+            sands.close();
+        }
+
+        /**
+         * Inner function that zips a local file or folder straight into the
+         * connection to one remote server, which unzips it as it arrives.
+         * 
+         * @param hostName, remote server host name
+         * @param localPath, absolute local path
+         * @param remotePath, absolute remote path
+         * @throws IOException
+         */
+        private void putStreamInner(String hostName, String localPath, String remotePath)
+                throws IOException {
+            SocketAndStreams sands = openTransfer(hostName);
+            DataOutputStream dos = sands.getOutputStream();
+
+            System.out.println("Client: streaming " + localPath + " to " + hostName + " ...");
+
+            // send request type
+            dos.writeInt(RequestType.REQUEST_FILE_PUT_STREAM);
+            // send remote file path
+            dos.writeUTF(remotePath);
+            // send zip content in chunks
+            ChunkedOutputStream cos = new ChunkedOutputStream(dos);
+            try {
+                NaginiZipUtils.zip(localPath, cos, getCompressionPolicy(), null);
+            } catch(IOException e) {
+                cos.abort();
+                sands.close();
+                throw e;
+            }
+            cos.finish();
+
+            receiveAndCheckResponseMessage(sands);
+            sands.close();
+        }
+
+        /**
+         * Inner function that sends the manifest of a local file or folder to
+         * one remote server, followed by the content of the files that the
+         * server does not have in its blob store yet.
+         * 
+         * @param hostName, remote server host name
+         * @param manifest, manifest of the local file or folder
+         * @param remotePath, absolute remote path
+         * @throws IOException
+         */
+        private void putManifestInner(String hostName, FileManifest manifest, String remotePath)
+                throws IOException {
+            SocketAndStreams sands = openTransfer(hostName);
+            DataOutputStream dos = sands.getOutputStream();
+            DataInputStream dis = sands.getInputStream();
+
+            System.out.println("Client: sending manifest of " + manifest.getEntries().size()
+                               + " files to " + hostName + " ...");
+
+            // send request type
+            dos.writeInt(RequestType.REQUEST_FILE_PUT_MANIFEST);
+            // send remote file path
+            dos.writeUTF(remotePath);
+            // send manifest
+            manifest.write(dos);
+            // flush request header
+            dos.flush();
+
+            // receive the list of missing blobs
+            int responseType = dis.readInt();
+            if(responseType == ResponseType.RESPONSE_FAIL) {
+                String responseMessage = dis.readUTF();
+                responseMessage += LINE_SEPARATOR + dis.readUTF();
+                System.out.println(responseMessage);
+            }
+            if(responseType != ResponseType.RESPONSE_BLOB_REQUEST) {
+                sands.close();
+                throw new RuntimeException("Client: failed to put manifest to " + hostName + ".");
+            }
+            int count = dis.readInt();
+            List<String> hashes = Lists.newArrayList();
+            for(int i = 0; i < count; i++) {
+                hashes.add(dis.readUTF());
+            }
+
+            // send missing blobs
+            long sent = 0;
+            for(String hash: hashes) {
+                File file = manifest.getFile(hash);
+                if(file == null) {
+                    sands.close();
+                    throw new RuntimeException("Client: " + hostName + " asked for unknown blob "
+                                               + hash);
+                }
+                dos.writeLong(file.length());
+                sands.sendFile(file);
+                sent += file.length();
+            }
+            System.out.println("Client: sent " + hashes.size() + " of "
+                               + manifest.getHashes().size() + " files to " + hostName + ". ("
+                               + sent + " bytes)");
+
+            receiveAndCheckResponseMessage(sands);
+            sands.close();
+        }
+
+        /**
+         * Inner function that brings a tree on one remote server in line with
+         * a local file or folder: the server lists what it has, and only new
+         * or changed files are sent. Local files whose size and modification
+         * time match the server's copy are taken as unchanged without being
+         * hashed, as the server keeps the modification time of synced files.
+         * 
+         * @param hostName, remote server host name
+         * @param localPath, absolute local file/folder path
+         * @param remotePath, absolute remote folder path
+         * @param mirror, also delete remote files that do not exist locally
+         * @throws IOException
+         */
+        private void syncInner(String hostName, String localPath, String remotePath, boolean mirror)
+                throws IOException {
+            File localFile = new File(localPath).getAbsoluteFile();
+            SocketAndStreams sands = openTransfer(hostName);
+            DataOutputStream dos = sands.getOutputStream();
+            DataInputStream dis = sands.getInputStream();
+
+            // send request type
+            dos.writeInt(RequestType.REQUEST_FILE_SYNC);
+            // send remote folder path and the name of the tree in it
+            dos.writeUTF(remotePath);
+            dos.writeUTF(localFile.getName());
+            // flush request header
+            dos.flush();
+
+            // receive the manifest of the remote tree
+            int responseType = dis.readInt();
+            if(responseType == ResponseType.RESPONSE_FAIL) {
+                String responseMessage = dis.readUTF();
+                responseMessage += LINE_SEPARATOR + dis.readUTF();
+                System.out.println(responseMessage);
+            }
+            if(responseType != ResponseType.RESPONSE_MANIFEST) {
+                sands.close();
+                throw new RuntimeException("Client: failed to sync to " + hostName + ".");
+            }
+            FileManifest remoteManifest = FileManifest.readTimed(dis);
+
+            // compare, hashing only what looks changed
+            HashCache cache = new HashCache();
+            for(FileManifest.Entry entry: remoteManifest.getEntries()) {
+                if(!entry.isDirectory()) {
+                    cache.put(new File(localFile.getParentFile(),
+                                       FileManifest.toLocalPath(entry.path)),
+                              entry.size,
+                              entry.lastModified,
+                              entry.hash);
+                }
+            }
+            FileManifest localManifest = FileManifest.build(localFile.getPath(), cache);
+            List<FileManifest.Entry> changed = localManifest.getChanged(remoteManifest);
+            List<String> extraneous = mirror ? localManifest.getExtraneous(remoteManifest)
+                                             : Lists.<String> newArrayList();
+
+            // send deletions and changed files
+            dos.writeInt(extraneous.size());
+            for(String path: extraneous) {
+                dos.writeUTF(path);
+            }
+            dos.writeInt(changed.size());
+            long sent = 0;
+            for(FileManifest.Entry entry: changed) {
+                dos.writeUTF(entry.path);
+                if(entry.isDirectory()) {
+                    dos.writeLong(-1);
+                    dos.writeLong(entry.lastModified);
+                    continue;
+                }
+                File file = localManifest.getFile(entry.hash);
+                dos.writeLong(file.length());
+                dos.writeLong(entry.lastModified);
+                sands.sendFile(file);
+                sent += file.length();
+            }
+            dos.flush();
+            System.out.println("Client: sent " + changed.size() + " of "
+                               + localManifest.getEntries().size() + " files to " + hostName
+                               + (mirror ? ", deleted " + extraneous.size() : "") + ". (" + sent
+                               + " bytes)");
+
+            receiveAndCheckResponseMessage(sands);
+            sands.close();
+        }
+
+        /**
+         * Syncs a local file or folder to all remote servers.
+         * 
+         * @param localPath
+         * @param remotePath, remote folder to sync into
+         * @param mirror, also delete remote files that do not exist locally
+         * @throws IOException
+         */
+        public void syncAllHosts(String localPath, final String remotePath, final boolean mirror)
+                throws IOException {
+            final String localFullPath = localPath.replace("~", System.getProperty("user.home"));
+            startTransfers();
+            try {
+                if(!new File(localFullPath).exists()) {
+                    throw new RuntimeException("Client: cannot find " + localFullPath);
+                }
+                List<String> failedHosts = fanOut("sync", new FanOutExecutor.HostTask() {
+
+                    @Override
+                    public void run(String hostName) throws Exception {
+                        syncInner(hostName, localFullPath, remotePath, mirror);
+                    }
+                });
+                if(!failedHosts.isEmpty()) {
+                    throw new RuntimeException("Client: failed to sync to " + failedHosts);
+                }
+            } finally {
+                reportTransfers();
+            }
+        }
+
+        /**
+         * Inner function that updates a single file on one remote server by
+         * sending only the parts that differ from the copy the server has.
+         * 
+         * @param hostName, remote server host name
+         * @param localPath, absolute local file path
+         * @param remotePath, absolute remote folder path
+         * @throws IOException
+         */
+        private void putDeltaInner(String hostName, String localPath, String remotePath)
+                throws IOException {
+            SocketAndStreams sands = openTransfer(hostName);
+            DataOutputStream dos = sands.getOutputStream();
+            DataInputStream dis = sands.getInputStream();
+            File localFile = new File(localPath);
+            // same layout as unzipping an archive of the file into remotePath
+            String remoteFilePath = remotePath + "/" + localFile.getName();
+
+            System.out.println("Client: getting signature of " + remoteFilePath + " from "
+                               + hostName + " ...");
+
+            // send request type
+            dos.writeInt(RequestType.REQUEST_FILE_PUT_DELTA);
+            // send remote file path
+            dos.writeUTF(remoteFilePath);
+            // flush request header
+            dos.flush();
+
+            // receive the signature of the remote copy
+            int responseType = dis.readInt();
+            if(responseType == ResponseType.RESPONSE_FAIL) {
+                String responseMessage = dis.readUTF();
+                responseMessage += LINE_SEPARATOR + dis.readUTF();
+                System.out.println(responseMessage);
+            }
+            if(responseType != ResponseType.RESPONSE_SIGNATURE) {
+                sands.close();
+                throw new RuntimeException("Client: failed to put delta to " + hostName + ".");
+            }
+            NaginiDeltaUtils.Signature signature = NaginiDeltaUtils.Signature.read(dis);
+
+            // send delta
+            long literalLength;
+            try {
+                literalLength = NaginiDeltaUtils.writeDelta(localFile, signature, dos);
+            } catch(IOException e) {
+                sands.close();
+                throw e;
+            }
+            System.out.println("Client: sent delta of " + localPath + " to " + hostName + ". ("
+                               + literalLength + " of " + localFile.length()
+                               + " bytes literal)");
+
+            receiveAndCheckResponseMessage(sands);
+            sands.close();
+        }
+
+        /**
+         * Inner function that puts a zip file to all remote servers through a
+         * relay tree: the client feeds a few servers, which forward it to a
+         * few more each while unzipping it.
+         * 
+         * @param localPath, absolute local zip file path
+         * @param remotePath, absolute remote path
+         * @return names of the hosts on which the put failed
+         * @throws IOException
+         */
+        private List<String> putRelayInner(String localPath, String remotePath)
+                throws IOException {
+            List<String> hostNames = Lists.newArrayList(config.server.mapHostToNodes.keySet());
+            Collections.sort(hostNames);
+            List<RelayTree> trees = RelayTree.build(hostNames, config.client.relayFanout);
+            File localFile = new File(localPath);
+
+            System.out.println("Client: relaying " + localPath + " to " + hostNames.size()
+                               + " hosts (fanout " + config.client.relayFanout + ", depth "
+                               + RelayTree.depth(trees) + ") ... (" + localFile.length()
+                               + " bytes)");
+            for(RelayTree tree: trees) {
+                System.out.println("|->\t" + tree);
+            }
+
+            long start = System.currentTimeMillis();
+            RelaySender sender = new RelaySender(remotePath,
+                                                 trees,
+                                                 localFile.length(),
+                                                 config.server.portId,
+                                                 config.server.relayTimeoutMs,
+                                                 new RelaySender.Throttles() {
+
+                                                     @Override
+                                                     public Throttle get(String hostName) {
+                                                         return getThrottle(hostName);
+                                                     }
+                                                 });
+            try {
+                sender.writeFile(localFile);
+            } catch(IOException e) {
+                sender.abort();
+                throw e;
+            }
+            List<RelaySender.Result> results = sender.finish(localFile);
+            long elapsed = System.currentTimeMillis() - start;
+
+            List<String> failedHosts = Lists.newArrayList();
+            StringBuilder summary = new StringBuilder();
+            for(RelaySender.Result result: results) {
+                if(result.succeeded) {
+                    summary.append("|->\t" + result.hostName + ": " + result.message
+                                   + LINE_SEPARATOR);
+                } else {
+                    failedHosts.add(result.hostName);
+                }
+            }
+            summary.append("Client: put succeeded on " + (results.size() - failedHosts.size())
+                           + "/" + hostNames.size() + " hosts in " + elapsed + " ms. ("
+                           + localFile.length() * 1000 / Math.max(elapsed, 1)
+                           + " bytes/s per host)");
+            System.out.println(summary);
+            for(RelaySender.Result result: results) {
+                if(!result.succeeded) {
+                    System.err.println("|->\tFAILED\t" + result.hostName + ": "
+                                       + result.message);
+                }
+            }
+            return failedHosts;
+        }
+
+        /**
+         * Puts file to one remote server.
+         * 
+         * @param hostName
+         * @param localPath
+         * @param remotePath
+         * @throws IOException
+         */
+        public void putOneHost(String hostName, String localPath, String remotePath)
+                throws IOException {
+            startTransfers();
+            try {
+                String tempZipPath = getClientTempPath() + ".zip";
+                localPath = localPath.replace("~", System.getProperty("user.home"));
+                if(!new File(localPath).exists()) {
+                    throw new RuntimeException("Client: cannot find " + localPath);
+                }
+                if(isStreamMode()) {
+                    putStreamInner(hostName, localPath, remotePath);
+                    return;
+                }
+                if(isDeltaPut(localPath)) {
+                    putDeltaInner(hostName, localPath, remotePath);
+                    return;
+                }
+                if(isDedupMode()) {
+                    System.out.println("Client: hashing " + localPath + " ...");
+                    putManifestInner(hostName, FileManifest.build(localPath), remotePath);
+                    return;
+                }
+                if(isSyncMode()) {
+                    syncInner(hostName, localPath, remotePath, true);
+                    return;
+                }
+                System.out.println("Client: zipping " + localPath + " ...");
+                long checksum = NaginiZipUtils.zip(localPath,
+                                                   tempZipPath,
+                                                   getCompressionPolicy(),
+                                                   null);
+                try {
+                    putInner(hostName, tempZipPath, checksum, remotePath);
+                } finally {
+                    NaginiFileUtils.delete(new File(tempZipPath));
+                }
+            } finally {
+                reportTransfers();
+            }
+        }
+
+        /**
+         * Puts file to all remote servers.
+         * 
+         * @param localPath
+         * @param remotePath
+         * @return names of the hosts on which the put failed
+         * @throws IOException
+         */
+        public List<String> putAllHosts(String localPath, final String remotePath)
+                throws IOException {
+            final String tempZipPath = getClientTempPath() + ".zip";
+            final String localFullPath = localPath.replace("~", System.getProperty("user.home"));
+            startTransfers();
+            try {
+                if(!new File(localFullPath).exists()) {
+                    throw new RuntimeException("Client: cannot find " + localFullPath);
+                }
+                if(isStreamMode()) {
+                    // every host gets its own zip stream
+                    return fanOut("put", new FanOutExecutor.HostTask() {
+
+                        @Override
+                        public void run(String hostName) throws Exception {
+                            putStreamInner(hostName, localFullPath, remotePath);
+                        }
+                    });
+                }
+                if(isDeltaPut(localFullPath)) {
+                    // every host has its own previous version
+                    return fanOut("put", new FanOutExecutor.HostTask() {
+
+                        @Override
+                        public void run(String hostName) throws Exception {
+                            putDeltaInner(hostName, localFullPath, remotePath);
+                        }
+                    });
+                }
+                if(isDedupMode()) {
+                    System.out.println("Client: hashing " + localFullPath + " ...");
+                    final FileManifest manifest = FileManifest.build(localFullPath);
+                    return fanOut("put", new FanOutExecutor.HostTask() {
+
+                        @Override
+                        public void run(String hostName) throws Exception {
+                            putManifestInner(hostName, manifest, remotePath);
+                        }
+                    });
+                }
+                if(isSyncMode()) {
+                    // every host has its own copy to compare with
+                    return fanOut("put", new FanOutExecutor.HostTask() {
+
+                        @Override
+                        public void run(String hostName) throws Exception {
+                            syncInner(hostName, localFullPath, remotePath, true);
+                        }
+                    });
+                }
+                System.out.println("Client: zipping " + localFullPath + " ...");
+                final long checksum = NaginiZipUtils.zip(localFullPath,
+                                                         tempZipPath,
+                                                         getCompressionPolicy(),
+                                                         null);
+                if(isRelayMode()) {
+                    try {
+                        return putRelayInner(tempZipPath, remotePath);
+                    } finally {
+                        NaginiFileUtils.delete(new File(tempZipPath));
+                    }
+                }
+                try {
+                    return fanOut("put", new FanOutExecutor.HostTask() {
+
+                        @Override
+                        public void run(String hostName) throws Exception {
+                            putInner(hostName, tempZipPath, checksum, remotePath);
+                        }
+                    });
+                } finally {
+                    NaginiFileUtils.delete(new File(tempZipPath));
+                }
+            } finally {
+                reportTransfers();
+            }
+        }
+
+        /**
+         * Inner function that gets file from one remote server, resuming
+         * after dropped connections.
+         * 
+         * @param hostName, remote server host name
+         * @param remotePath, absolute remote path
+         * @param localPath, absolute local zip file path
+         * @throws IOException
+         */
+        private void getInner(final String hostName,
+                              final String remotePath,
+                              final String localPath) throws IOException {
+            final String transferId = UUID.randomUUID().toString();
+            final File partFile = new File(localPath + ResumableTransfer.PART_SUFFIX);
+            NaginiFileUtils.delete(partFile);
+            try {
+                runResumable(hostName, new TransferAttempt() {
+
+                    @Override
+                    public void run() throws IOException {
+                        if(!getResumableInner(hostName, remotePath, partFile, transferId)) {
+                            getWholeInner(hostName, remotePath, localPath);
+                            return;
+                        }
+                        File localFile = new File(localPath);
+                        NaginiFileUtils.delete(localFile);
+                        if(!partFile.renameTo(localFile)) {
+                            throw new RuntimeException("Client: cannot rename " + partFile);
+                        }
+                    }
+                });
+            } finally {
+                NaginiFileUtils.delete(partFile);
+            }
+        }
+
+        /**
+         * Inner function that receives file from one remote server as
+         * checksummed chunks, starting from what is already in the partial
+         * file.
+         * 
+         * @param hostName, remote server host name
+         * @param remotePath, absolute remote path
+         * @param partFile, local partial zip file
+         * @param transferId, same for all attempts of one transfer
+         * @return false if the server does not support resumable transfers
+         * @throws IOException
+         */
+        private boolean getResumableInner(String hostName,
+                                          String remotePath,
+                                          File partFile,
+                                          String transferId) throws IOException {
+            SocketAndStreams sands = openTransfer(hostName);
+            DataOutputStream dos = sands.getOutputStream();
+            DataInputStream dis = sands.getInputStream();
+            long fileLength;
+            long checksum;
+            long offset;
+
+            try {
+                // send request type
+                dos.writeInt(RequestType.REQUEST_FILE_GET_RESUMABLE_COMPRESSED);
+                // send remote file path
+                dos.writeUTF(remotePath);
+                // send transfer id and the offset to go on from
+                dos.writeUTF(transferId);
+                dos.writeLong(partFile.length());
+                // send how the server should compress
+                getCompressionPolicy().write(dos);
+                // flush request header
+                dos.flush();
+
+                // receive file chunks response
+                int responseType = dis.readInt();
+                if(responseType == ResponseType.RESPONSE_FAIL) {
+                    String responseHeader = dis.readUTF();
+                    String responseMessage = dis.readUTF();
+                    if(isUnsupportedRequest(responseMessage)) {
+                        return false;
+                    }
+                    System.out.println(responseHeader + LINE_SEPARATOR + responseMessage);
+                }
+                if(responseType != ResponseType.RESPONSE_FILE_CHUNKS) {
+                    throw new RuntimeException("Client: failed to get file from " + hostName + ".");
+                }
+                fileLength = dis.readLong();
+                checksum = dis.readLong();
+                offset = dis.readLong();
+                if(offset > 0) {
+                    System.out.println("Client: resuming get of " + remotePath + " from "
+                                       + hostName + " at " + offset + " of " + fileLength
+                                       + " bytes ...");
+                } else {
+                    System.out.println("Client: getting " + remotePath + " from " + hostName
+                                       + " ... (" + fileLength + " bytes)");
+                }
+                // the server starts over if it no longer has the zip
+                if(partFile.length() != offset) {
+                    RandomAccessFile raf = new RandomAccessFile(partFile, "rw");
+                    raf.setLength(offset);
+                    raf.close();
+                }
+                ResumableTransfer.receiveChunks(dis, partFile, fileLength);
+            } finally {
+                sands.close();
+            }
+
+            if(partFile.length() != fileLength) {
+                throw new IOException("connection closed at " + partFile.length() + " of "
+                                      + fileLength + " bytes");
+            }
+            if(NaginiZipUtils.crc32(partFile) != checksum) {
+                NaginiFileUtils.delete(partFile);
+                throw new RuntimeException("Client: failed to receive file from " + hostName
+                                           + ". (checksum mismatch)");
+            }
+            System.out.println("Client: successfully received file from " + hostName + ". ("
+                               + (fileLength - offset) + " of " + fileLength
+                               + " bytes transferred)");
+            return true;
+        }
+
+        /**
+         * Inner function that gets file from one remote server in one go, for
+         * servers without resumable transfers.
+         * 
+         * @param hostName, remote server host name
+         * @param remotePath, absolute remote path
+         * @param localPath, absolute local path
+         * @throws IOException
+         */
+        private void getWholeInner(String hostName, String remotePath, String localPath)
+                throws IOException {
+            SocketAndStreams sands = openTransfer(hostName);
+            DataOutputStream dos = sands.getOutputStream();
+            DataInputStream dis = sands.getInputStream();
+
+            System.out.println("Client: getting " + localPath + " from " + hostName + " ...");
+
+            // send request type
+            dos.writeInt(RequestType.REQUEST_FILE_GET);
+            // send remote file path
+            dos.writeUTF(remotePath);
+            // flush request header
+            dos.flush();
+
+            // receive file get response
+            int responseType = dis.readInt();
+            if(responseType != ResponseType.RESPONSE_FILE) {
+                sands.close();
+                throw new RuntimeException("Client: failed to get file from " + hostName
+                                           + ". (unknown)");
+            }
+
+            long fileLength = dis.readLong();
+            File localFile = new File(localPath);
+            long done = sands.receiveFile(localFile, fileLength);
+
+            sands.close();
+
+            if(localFile.exists() && done == fileLength) {
+                System.out.println("Client: successfully received file. (" + done + " bytes)");
+            } else {
+                throw new RuntimeException("Client: failed to receive file. (" + done + " bytes)");
+            }
+        }
+
+        /**
+         * Inner function that unzips a file or folder of one remote server
+         * straight from the connection as it arrives.
+         * 
+         * @param hostName, remote server host name
+         * @param remotePath, absolute remote path
+         * @param destinationPath, absolute local path to unzip to
+         * @throws IOException
+         */
+        private void getStreamInner(String hostName, String remotePath, String destinationPath)
+                throws IOException {
+            SocketAndStreams sands = openTransfer(hostName);
+            DataOutputStream dos = sands.getOutputStream();
+            DataInputStream dis = sands.getInputStream();
+
+            System.out.println("Client: streaming " + remotePath + " from " + hostName + " ...");
+
+            // send request type
+            dos.writeInt(RequestType.REQUEST_FILE_GET_STREAM_COMPRESSED);
+            // send remote file path
+            dos.writeUTF(remotePath);
+            // send how the server should compress
+            getCompressionPolicy().write(dos);
+            // flush request header
+            dos.flush();
+
+            // receive file stream response
+            int responseType = dis.readInt();
+            if(responseType == ResponseType.RESPONSE_FAIL) {
+                String responseMessage = dis.readUTF();
+                responseMessage += LINE_SEPARATOR + dis.readUTF();
+                System.out.println(responseMessage);
+            }
+            if(responseType != ResponseType.RESPONSE_FILE_STREAM) {
+                sands.close();
+                throw new RuntimeException("Client: failed to get file from " + hostName + ".");
+            }
+
+            ChunkedInputStream cis = new ChunkedInputStream(dis);
+            try {
+                NaginiZipUtils.unzip(cis, destinationPath, null);
+                cis.skipToEnd();
+            } finally {
+                sands.close();
+            }
+            System.out.println("Client: successfully received stream from " + hostName + ". ("
+                               + cis.getCount() + " bytes)");
+        }
+
+        /**
+         * Inner function that updates the local copy of a single file of one
+         * remote server by receiving only the parts that differ from it.
+         * 
+         * @param hostName, remote server host name
+         * @param remotePath, absolute remote file path
+         * @param destinationPath, absolute local folder path
+         * @throws IOException
+         */
+        private void getDeltaInner(String hostName, String remotePath, String destinationPath)
+                throws IOException {
+            // same layout as unzipping an archive of the file into
+            // destinationPath
+            File localFile = new File(destinationPath, new File(remotePath).getName());
+            NaginiDeltaUtils.Signature signature = NaginiDeltaUtils.getSignature(localFile);
+
+            SocketAndStreams sands = openTransfer(hostName);
+            DataOutputStream dos = sands.getOutputStream();
+            DataInputStream dis = sands.getInputStream();
+
+            System.out.println("Client: getting delta of " + remotePath + " from " + hostName
+                               + " ...");
+
+            // send request type
+            dos.writeInt(RequestType.REQUEST_FILE_GET_DELTA);
+            // send remote file path
+            dos.writeUTF(remotePath);
+            // send signature of the local copy
+            signature.write(dos);
+            // flush request
+            dos.flush();
+
+            // receive delta response
+            int responseType = dis.readInt();
+            if(responseType == ResponseType.RESPONSE_FAIL) {
+                String responseMessage = dis.readUTF();
+                responseMessage += LINE_SEPARATOR + dis.readUTF();
+                System.out.println(responseMessage);
+            }
+            if(responseType != ResponseType.RESPONSE_DELTA) {
+                sands.close();
+                throw new RuntimeException("Client: failed to get file from " + hostName + ".");
+            }
+
+            long fileLength;
+            try {
+                fileLength = NaginiDeltaUtils.applyDelta(localFile, signature, dis);
+            } finally {
+                sands.close();
+            }
+            System.out.println("Client: successfully rebuilt " + localFile.getPath() + " from "
+                               + hostName + ". (" + fileLength + " bytes)");
+        }
+
+        /**
+         * Gets file from one remote server.
+         * 
+         * @param hostName
+         * @param remotePath
+         * @param localPath
+         * @throws IOException
+         */
+        public void getOneHost(String hostName, String remotePath, String localPath)
+                throws IOException {
+            startTransfers();
+            try {
+                localPath = localPath.replace("~", System.getProperty("user.home"));
+                String tempZipPath = getClientTempPath() + ".zip";
+                File tempZipFile = new File(tempZipPath);
+                String destinationPath = localPath;
+                if(isStreamMode()) {
+                    getStreamInner(hostName, remotePath, destinationPath);
+                    return;
+                }
+                if(isDeltaMode()) {
+                    getDeltaInner(hostName, remotePath, destinationPath);
+                    return;
+                }
+                getInner(hostName, remotePath, tempZipPath);
+                System.out.println("Client: unzipping received file ...");
+                NaginiZipUtils.unzip(tempZipPath, destinationPath, null);
+                NaginiFileUtils.delete(tempZipFile);
+            } finally {
+                reportTransfers();
+            }
+        }
+
+        /**
+         * Gets file from all remote servers (automatically creates separate
+         * folders for files from each server).
+         * 
+         * @param remotePath
+         * @param localPath
+         * @throws IOException
+         */
+        public void getAllHosts(final String remotePath, String localPath) throws IOException {
+            final String localBasePath = localPath.replace("~", System.getProperty("user.home"));
+            startTransfers();
+            try {
+                List<String> failedHosts = fanOut("get", new FanOutExecutor.HostTask() {
+
+                    @Override
+                    public void run(String hostName) throws Exception {
+                        String tempZipPath = getClientTempPath() + "_" + hostName + ".zip";
+                        File tempZipFile = new File(tempZipPath);
+                        String destinationPath = localBasePath + File.separator + hostName;
+                        if(isStreamMode()) {
+                            getStreamInner(hostName, remotePath, destinationPath);
+                            return;
+                        }
+                        if(isDeltaMode()) {
+                            getDeltaInner(hostName, remotePath, destinationPath);
+                            return;
+                        }
+                        try {
+                            getInner(hostName, remotePath, tempZipPath);
+                            System.out.println("Client: unzipping file received from " + hostName
+                                               + " ...");
+                            NaginiZipUtils.unzip(tempZipPath, destinationPath, null);
+                        } finally {
+                            NaginiFileUtils.delete(tempZipFile);
+                        }
+                    }
+                });
+                if(!failedHosts.isEmpty()) {
+                    throw new RuntimeException("Client: failed to get file from " + failedHosts);
+                }
+            } finally {
+                reportTransfers();
+            }
+        }
+
+        /**
+         * Inner function that deletes file from one remote server.
+         * 
+         * @param hostName, remote server host name
+         * @param remotePath, absolute remote path
+         * @throws IOException
+         */
+        private void deleteInner(String hostName, String remotePath) throws IOException {
+            SocketAndStreams sands = openRequest(hostName);
+            DataOutputStream dos = sands.getOutputStream();
+            System.out.println("Client: deleting file " + remotePath + " on " + hostName + " ...");
+
+            // send request type
+            dos.writeInt(RequestType.REQUEST_FILE_DELETE);
+            // send remote file path
+            dos.writeUTF(remotePath);
+            // flush request header
+            dos.flush();
+
+            receiveAndCheckResponseMessage(sands);
+            sands.close();
+        }
+
+        /**
+         * Deletes file on one remote server.
+         * 
+         * @param remotePath
+         * @throws IOException
+         */
+        public void deleteOneHost(String hostName, String remotePath) throws IOException {
+            deleteInner(hostName, remotePath);
+        }
+
+        /**
+         * Deletes file on all remote servers.
+         * 
+         * @param remotePath
+         * @throws IOException
+         */
+        public void deleteAllHosts(final String remotePath) throws IOException {
+            fanOut("delete", new FanOutExecutor.HostTask() {
+
+                @Override
+                public void run(String hostName) throws Exception {
+                    deleteInner(hostName, remotePath);
+                }
+            });
+        }
+
+        /**
+         * Sends a request for a range of a file of one remote server without
+         * waiting for the response.
+         * 
+         * @param hostName, remote server host name
+         * @param remotePath, absolute remote file path
+         * @param offset, first byte, or negative to count back from the end
+         * @param length, number of bytes, or negative to read up to the end
+         * @return streams to read the response from
+         * @throws IOException
+         */
+        private SocketAndStreams sendReadRequest(String hostName,
+                                                 String remotePath,
+                                                 long offset,
+                                                 long length) throws IOException {
+            SocketAndStreams sands = openTransfer(hostName);
+            DataOutputStream dos = sands.getOutputStream();
+
+            // send request type
+            dos.writeInt(RequestType.REQUEST_FILE_READ);
+            // send remote file path and range
+            dos.writeUTF(remotePath);
+            dos.writeLong(offset);
+            dos.writeLong(length);
+            // flush request header
+            dos.flush();
+            return sands;
+        }
+
+        /**
+         * Sends a request for the last lines of a file of one remote server
+         * without waiting for the response.
+         * 
+         * @param hostName, remote server host name
+         * @param remotePath, absolute remote file path
+         * @param lines, number of lines
+         * @return streams to read the response from
+         * @throws IOException
+         */
+        private SocketAndStreams sendTailRequest(String hostName, String remotePath, int lines)
+                throws IOException {
+            SocketAndStreams sands = openTransfer(hostName);
+            DataOutputStream dos = sands.getOutputStream();
+
+            // send request type
+            dos.writeInt(RequestType.REQUEST_FILE_TAIL);
+            // send remote file path and number of lines
+            dos.writeUTF(remotePath);
+            dos.writeInt(lines);
+            // flush request header
+            dos.flush();
+            return sands;
+        }
+
+        /**
+         * Receives the response to a read or tail request and prints the
+         * content.
+         * 
+         * @param sands
+         * @param header, line to print before the content if there is any,
+         *        or null
+         * @return range received, or null if the server could not read the
+         *         file
+         * @throws IOException
+         */
+        private FileRange receiveRange(SocketAndStreams sands, String header) throws IOException {
+            try {
+                DataInputStream dis = sands.getInputStream();
+                int responseType = dis.readInt();
+                if(responseType == ResponseType.RESPONSE_FAIL) {
+                    String responseMessage = dis.readUTF();
+                    responseMessage += LINE_SEPARATOR + dis.readUTF();
+                    System.out.println(responseMessage);
+                    return null;
+                }
+                if(responseType != ResponseType.RESPONSE_FILE_RANGE) {
+                    throw new RuntimeException("Client: unexpected server response type.");
+                }
+                FileRange range = FileRange.read(dis);
+                if(header != null && range.getLength() > 0) {
+                    System.out.println(header);
+                }
+                byte[] buffer = new byte[65536];
+                long done = 0;
+                while(done < range.getLength()) {
+                    int read = dis.read(buffer,
+                                        0,
+                                        (int) Math.min(buffer.length, range.getLength() - done));
+                    if(read == -1) {
+                        throw new EOFException("Client: connection closed after " + done
+                                               + " of " + range.getLength() + " bytes.");
+                    }
+                    System.out.write(buffer, 0, read);
+                    done += read;
+                }
+                System.out.flush();
+                return range;
+            } finally {
+                sands.close();
+            }
+        }
+
+        /**
+         * Prints a range of files of remote servers without zipping them. All
+         * requests are sent first so that the servers read in parallel, then
+         * the content is printed file by file.
+         * 
+         * @param remoteFiles, absolute remote file paths by host name
+         * @param offset, first byte, or negative to count back from the end
+         * @param length, number of bytes, or negative to read up to the end
+         * @throws IOException
+         */
+        public void catAllHosts(ListMultimap<String, String> remoteFiles, long offset, long length)
+                throws IOException {
+            startTransfers();
+            List<Map.Entry<String, String>> files = Lists.newArrayList(remoteFiles.entries());
+            List<SocketAndStreams> pendingRequests = Lists.newArrayList();
+            try {
+                for(Map.Entry<String, String> remoteFile: files) {
+                    pendingRequests.add(sendReadRequest(remoteFile.getKey(),
+                                                        remoteFile.getValue(),
+                                                        offset,
+                                                        length));
+                }
+            } catch(IOException e) {
+                closeAll(pendingRequests);
+                throw e;
+            }
+            int failed = receiveRanges(files, files.size() > 1, pendingRequests, null).size();
+            if(failed > 0) {
+                throw new RuntimeException("Client: failed to read " + failed + " of "
+                                           + files.size() + " files.");
+            }
+        }
+
+        /**
+         * Prints the last lines of files of remote servers, and then keeps
+         * printing what is appended to them if asked to follow. A file that
+         * cannot be read is reported once and no longer followed.
+         * 
+         * @param remoteFiles, absolute remote file paths by host name
+         * @param lines, number of lines to print first
+         * @param follow, keep printing what is appended
+         * @param interval, seconds between two reads when following
+         * @throws IOException
+         */
+        public void tailAllHosts(ListMultimap<String, String> remoteFiles,
+                                 int lines,
+                                 boolean follow,
+                                 int interval) throws IOException {
+            startTransfers();
+            List<Map.Entry<String, String>> files = Lists.newArrayList(remoteFiles.entries());
+            boolean named = files.size() > 1;
+            List<SocketAndStreams> pendingRequests = Lists.newArrayList();
+            try {
+                for(Map.Entry<String, String> remoteFile: files) {
+                    pendingRequests.add(sendTailRequest(remoteFile.getKey(),
+                                                        remoteFile.getValue(),
+                                                        lines));
+                }
+            } catch(IOException e) {
+                closeAll(pendingRequests);
+                throw e;
+            }
+            List<Long> cursors = Lists.newArrayList();
+            int failed = drop(files, cursors, receiveRanges(files, named, pendingRequests, cursors),
+                              follow);
+            while(follow && !files.isEmpty()) {
+                try {
+                    Thread.sleep(interval * 1000L);
+                } catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                // read on from where the last read ended
+                pendingRequests.clear();
+                try {
+                    for(int i = 0; i < files.size(); i++) {
+                        pendingRequests.add(sendReadRequest(files.get(i).getKey(),
+                                                            files.get(i).getValue(),
+                                                            cursors.get(i),
+                                                            -1));
+                    }
+                } catch(IOException e) {
+                    closeAll(pendingRequests);
+                    throw e;
+                }
+                failed += drop(files,
+                               cursors,
+                               receiveRanges(files, named, pendingRequests, cursors),
+                               follow);
+            }
+            if(failed > 0) {
+                throw new RuntimeException("Client: failed to read " + failed + " of "
+                                           + remoteFiles.size() + " files.");
+            }
+        }
+
+        /**
+         * Stops following the files that could not be read.
+         * 
+         * @param files, files followed
+         * @param cursors, offsets to read on from, one for each file
+         * @param failed, indexes of the files that could not be read, in
+         *        ascending order
+         * @param follow, to tell that the files are no longer followed
+         * @return number of files dropped
+         */
+        private int drop(List<Map.Entry<String, String>> files,
+                         List<Long> cursors,
+                         List<Integer> failed,
+                         boolean follow) {
+            for(int i = failed.size() - 1; i >= 0; i--) {
+                Map.Entry<String, String> file = files.remove((int) failed.get(i));
+                cursors.remove((int) failed.get(i));
+                if(follow) {
+                    System.out.println("Client: no longer following " + file.getValue() + " on "
+                                       + file.getKey() + ".");
+                }
+            }
+            return failed.size();
+        }
+
+        /**
+         * Prints the responses to read or tail requests in order, and keeps
+         * the offset to read on from for each file. All requests are closed
+         * when this returns, also if a response cannot be received.
+         * 
+         * @param files, remote file paths by host name
+         * @param named, name each file before its content
+         * @param pendingRequests, one for each remote file
+         * @param cursors, offsets to read on from, filled on the first call
+         *        and updated in place, or null if the files are not followed
+         * @return indexes of the files that could not be read, in ascending
+         *         order
+         * @throws IOException
+         */
+        private List<Integer> receiveRanges(List<Map.Entry<String, String>> files,
+                                            boolean named,
+                                            List<SocketAndStreams> pendingRequests,
+                                            List<Long> cursors) throws IOException {
+            boolean following = cursors != null && !cursors.isEmpty();
+            List<Integer> failed = Lists.newArrayList();
+            try {
+                for(int i = 0; i < files.size(); i++) {
+                    String hostName = files.get(i).getKey();
+                    String remotePath = files.get(i).getValue();
+                    // name the file before its content if there are several
+                    String header = null;
+                    if(named) {
+                        header = (i == 0 && !following ? "" : LINE_SEPARATOR) + "==> " + hostName
+                                 + ":" + remotePath + " <==";
+                    }
+                    FileRange range = receiveRange(pendingRequests.get(i), header);
+                    if(range == null) {
+                        failed.add(i);
+                    } else if(following && range.getFileSize() < cursors.get(i)) {
+                        System.out.println("Client: " + remotePath + " on " + hostName
+                                           + " was truncated, reading it from the start.");
+                        cursors.set(i, 0L);
+                    } else if(following) {
+                        cursors.set(i, range.getEnd());
+                    }
+                    if(cursors != null && !following) {
+                        cursors.add(range == null ? 0L : range.getEnd());
+                    }
+                }
+            } finally {
+                closeAll(pendingRequests);
+            }
+            return failed;
+        }
+
+        /**
+         * Closes requests, e.g. those whose responses are not read as another
+         * one failed.
+         * 
+         * @param requests
+         */
+        private void closeAll(List<SocketAndStreams> requests) {
+            for(SocketAndStreams sands: requests) {
+                try {
+                    sands.close();
+                } catch(IOException e) {
+                    // nothing more to read from it
+                }
+            }
+        }
+    }
+
+    public class ReleaseOperations {
+
+        /**
+         * Inner function that creates the folder for a release on one remote
+         * server.
+         * 
+         * @param hostName, remote server host name
+         * @param version, name of the release
+         * @param seed, fill the folder with hardlinks to the active release
+         * @throws IOException
+         */
+        private void prepareInner(String hostName, String version, boolean seed)
+                throws IOException {
+            SocketAndStreams sands = openRequest(hostName);
+            DataOutputStream dos = sands.getOutputStream();
+
+            // send request type
+            dos.writeInt(RequestType.REQUEST_RELEASE_PREPARE);
+            // send release name and whether to seed it
+            dos.writeUTF(version);
+            dos.writeBoolean(seed);
+            // flush request header
+            dos.flush();
+
+            receiveAndCheckResponseMessage(sands);
+            sands.close();
+        }
+
+        /**
+         * Inner function that switches one remote server to a release.
+         * 
+         * @param hostName, remote server host name
+         * @param version, name of the release
+         * @throws IOException
+         */
+        private void activateInner(String hostName, String version) throws IOException {
+            SocketAndStreams sands = openRequest(hostName);
+            DataOutputStream dos = sands.getOutputStream();
+
+            // send request type
+            dos.writeInt(RequestType.REQUEST_RELEASE_ACTIVATE);
+            // send release name
+            dos.writeUTF(version);
+            // flush request header
+            dos.flush();
+
+            receiveAndCheckResponseMessage(sands);
+            sands.close();
+        }
+
+        /**
+         * Inner function that switches one remote server back to a previous
+         * release.
+         * 
+         * @param hostName, remote server host name
+         * @param version, name of the release, empty for the previous one
+         * @throws IOException
+         */
+        private void rollbackInner(String hostName, String version) throws IOException {
+            SocketAndStreams sands = openRequest(hostName);
+            DataOutputStream dos = sands.getOutputStream();
+
+            // send request type
+            dos.writeInt(RequestType.REQUEST_RELEASE_ROLLBACK);
+            // send release name
+            dos.writeUTF(version);
+            // flush request header
+            dos.flush();
+
+            receiveAndCheckResponseMessage(sands);
+            sands.close();
+        }
+
+        /**
+         * Inner function that lists the releases of one remote server.
+         * 
+         * @param hostName, remote server host name
+         * @throws IOException
+         */
+        private void listInner(String hostName) throws IOException {
+            SocketAndStreams sands = openRequest(hostName);
+            DataOutputStream dos = sands.getOutputStream();
+
+            // send request type
+            dos.writeInt(RequestType.REQUEST_RELEASE_LIST);
+            // flush request header
+            dos.flush();
+
+            receiveAndCheckResponseMessage(sands);
+            sands.close();
+        }
 
         /**
-         * Deletes file on one remote server.
+         * Uploads a release to all remote servers and switches them to it
+         * once every server has it. No server is switched if the upload
+         * failed anywhere.
          * 
-         * @param remotePath
+         * @param localPath, local folder named after the release
          * @throws IOException
          */
-        public void deleteOneHost(String hostName, String remotePath) throws IOException {
-            deleteInner(hostName, remotePath);
+        public void deployAllHosts(String localPath) throws IOException {
+            final String version = new File(localPath).getName();
+            if(!ReleaseStore.isValidVersion(version)) {
+                throw new IllegalArgumentException("Client: invalid release name " + version);
+            }
+            // uploads that only send what changed start from the active
+            // release, all others replace the release folder as a whole
+            final boolean seed = isSyncMode();
+            List<String> failedHosts = fanOut("prepare release", new FanOutExecutor.HostTask() {
+
+                @Override
+                public void run(String hostName) throws Exception {
+                    prepareInner(hostName, version, seed);
+                }
+            });
+            if(!failedHosts.isEmpty()) {
+                throw new RuntimeException("Client: failed to prepare release " + version + " on "
+                                           + failedHosts + ", no host was switched.");
+            }
+            failedHosts = fileOps.putAllHosts(localPath, config.server.getReleasesPath());
+            if(!failedHosts.isEmpty()) {
+                throw new RuntimeException("Client: failed to upload release " + version + " to "
+                                           + failedHosts + ", no host was switched.");
+            }
+            failedHosts = fanOut("activate release", new FanOutExecutor.HostTask() {
+
+                @Override
+                public void run(String hostName) throws Exception {
+                    activateInner(hostName, version);
+                }
+            });
+            if(!failedHosts.isEmpty()) {
+                throw new RuntimeException("Client: failed to activate release " + version
+                                           + " on " + failedHosts);
+            }
         }
 
         /**
-         * Deletes file on all remote servers.
+         * Switches all remote servers back to a previous release. Running
+         * nodes keep the release they were started from until restarted.
          * 
-         * @param remotePath
+         * @param version, name of the release, or null for the one activated
+         *        before the active one
          * @throws IOException
          */
-        public void deleteAllHosts(String remotePath) throws IOException {
-            for(String hostName: config.server.mapHostToNodes.keySet()) {
-                try {
-                    deleteInner(hostName, remotePath);
-                } catch (Exception e) {
-                    System.err.println("Failed to delete file on host: " + hostName);
+        public void rollbackAllHosts(String version) throws IOException {
+            final String requestVersion = version == null ? "" : version;
+            List<String> failedHosts = fanOut("rollback", new FanOutExecutor.HostTask() {
+
+                @Override
+                public void run(String hostName) throws Exception {
+                    rollbackInner(hostName, requestVersion);
                 }
+            });
+            if(!failedHosts.isEmpty()) {
+                throw new RuntimeException("Client: failed to roll back " + failedHosts);
             }
         }
+
+        /**
+         * Lists the releases of all remote servers, marking the active one.
+         * 
+         * @throws IOException
+         */
+        public void listAllHosts() throws IOException {
+            fanOut("list releases", new FanOutExecutor.HostTask() {
+
+                @Override
+                public void run(String hostName) throws Exception {
+                    listInner(hostName);
+                }
+            });
+        }
     }
 
     public class ServiceOperations {
@@ -524,7 +2390,7 @@ public class NaginiClient {
         private void startApplicationInner(Integer nodeId) throws IOException {
             String hostName = config.server.mapNodeToHost.get(nodeId);
 
-            SocketAndStreams sands = new SocketAndStreams(hostName, config.server.portId);
+            SocketAndStreams sands = openRequest(hostName);
             DataOutputStream dos = sands.getOutputStream();
 
             System.out.println("Client: starting application node " + nodeId + " on " + hostName
@@ -557,15 +2423,24 @@ public class NaginiClient {
          * @throws IOException
          */
         public void startApplicationAllNodes() throws IOException {
-            for(String hostName: config.server.mapHostToNodes.keySet()) {
-                for(Integer nodeId: config.server.mapHostToNodes.get(hostName)) {
-                    try {
-                        startApplicationOneNode(nodeId);
-                    } catch (Exception e) {
-                        System.err.println("Failed to start node '" + nodeId + "' on host: " + hostName);
+            fanOut("start application", new FanOutExecutor.HostTask() {
+
+                @Override
+                public void run(String hostName) throws Exception {
+                    List<Integer> failedNodeIds = Lists.newArrayList();
+                    for(Integer nodeId: config.server.mapHostToNodes.get(hostName)) {
+                        try {
+                            startApplicationOneNode(nodeId);
+                        } catch (Exception e) {
+                            System.err.println("Failed to start node '" + nodeId + "' on host: " + hostName);
+                            failedNodeIds.add(nodeId);
+                        }
+                    }
+                    if(!failedNodeIds.isEmpty()) {
+                        throw new RuntimeException("failed to start nodes " + failedNodeIds);
                     }
                 }
-            }
+            });
         }
 
         /**
@@ -576,7 +2451,7 @@ public class NaginiClient {
          */
         private void stopApplicationInner(Integer nodeId) throws IOException {
             String hostName = config.server.mapNodeToHost.get(nodeId);
-            SocketAndStreams sands = new SocketAndStreams(hostName, config.server.portId);
+            SocketAndStreams sands = openRequest(hostName);
             DataOutputStream dos = sands.getOutputStream();
 
             System.out.println("Client: stopping application node " + nodeId + " on " + hostName
@@ -609,42 +2484,109 @@ public class NaginiClient {
          * @throws IOException
          */
         public void stopApplicationAllNodes() throws IOException {
-            for(String hostName: config.server.mapHostToNodes.keySet()) {
-                for(Integer nodeId: config.server.mapHostToNodes.get(hostName)) {
-                    try {
-                        stopApplicationOneNode(nodeId);
-                    } catch (Exception e) {
-                        System.err.println("Failed to stop node '" + nodeId + "' on host: " + hostName);
+            fanOut("stop application", new FanOutExecutor.HostTask() {
+
+                @Override
+                public void run(String hostName) throws Exception {
+                    List<Integer> failedNodeIds = Lists.newArrayList();
+                    for(Integer nodeId: config.server.mapHostToNodes.get(hostName)) {
+                        try {
+                            stopApplicationOneNode(nodeId);
+                        } catch (Exception e) {
+                            System.err.println("Failed to stop node '" + nodeId + "' on host: " + hostName);
+                            failedNodeIds.add(nodeId);
+                        }
+                    }
+                    if(!failedNodeIds.isEmpty()) {
+                        throw new RuntimeException("failed to stop nodes " + failedNodeIds);
                     }
                 }
-            }
+            });
         }
 
         /**
-         * Inner function that watches one application node.
+         * Sends a watch request to one application node without waiting for
+         * the response.
          * 
          * @param nodeId
          * @param tail
-         * @return true if application is running on this node
+         * @param cursor, where to read the output on from, or null to read
+         *        what no other watcher without a cursor has read yet
+         * @return streams to read the response from
          * @throws IOException
          */
-        private Boolean watchApplicationInner(Integer nodeId, Integer tail) throws IOException {
+        private SocketAndStreams sendWatchRequest(Integer nodeId, Integer tail, Long cursor)
+                throws IOException {
             String hostName = config.server.mapNodeToHost.get(nodeId);
-            SocketAndStreams sands = new SocketAndStreams(hostName, config.server.portId);
+            SocketAndStreams sands = openRequest(hostName);
             DataOutputStream dos = sands.getOutputStream();
 
             // send request type
-            dos.writeInt(RequestType.REQUEST_SERVICE_WATCH_APPLICATION);
+            if(cursor == null) {
+                dos.writeInt(RequestType.REQUEST_SERVICE_WATCH_APPLICATION);
+            } else {
+                dos.writeInt(RequestType.REQUEST_SERVICE_READ_OUTPUT);
+            }
             // send node id
             dos.writeInt(nodeId);
             // send tail number
             dos.writeInt(tail);
+            // send cursor
+            if(cursor != null) {
+                dos.writeLong(cursor);
+            }
             // flush request header
             dos.flush();
+            return sands;
+        }
 
-            Integer responseType = receiveResponseMessage(sands);
-            sands.close();
-            return responseType == ResponseType.RESPONSE_SUCCESS;
+        /**
+         * Receives the response to a watch request and prints the output.
+         * 
+         * @param sands
+         * @param nodeId
+         * @param cursors, cursor of each node, updated in place; a node is
+         *        removed if its server does not know about cursors
+         * @return true if application is running on this node
+         * @throws IOException
+         */
+        private Boolean receiveWatchResponse(SocketAndStreams sands,
+                                             Integer nodeId,
+                                             Map<Integer, Long> cursors) throws IOException {
+            try {
+                DataInputStream dis = sands.getInputStream();
+                int responseType = dis.readInt();
+                switch(responseType) {
+                    case ResponseType.RESPONSE_OUTPUT:
+                        OutputBuffer.Chunk chunk = OutputBuffer.Chunk.read(dis);
+                        cursors.put(nodeId, chunk.getCursor());
+                        List<String> output = Lists.newArrayList();
+                        output.add("        [node = " + nodeId + "]");
+                        if(chunk.getSkipped() > 0) {
+                            output.add("        (" + chunk.getSkipped() + " lines skipped)");
+                        }
+                        output.addAll(chunk.getLines());
+                        // print at once, as other nodes are read meanwhile
+                        System.out.println(Joiner.on(LINE_SEPARATOR).join(output));
+                        return true;
+                    case ResponseType.RESPONSE_SUCCESS:
+                    case ResponseType.RESPONSE_FAIL:
+                        String responseHeader = dis.readUTF();
+                        String responseMessage = dis.readUTF();
+                        if(responseType == ResponseType.RESPONSE_FAIL
+                           && isUnsupportedRequest(responseMessage)) {
+                            // read without a cursor from now on
+                            cursors.remove(nodeId);
+                            return true;
+                        }
+                        System.out.println(responseHeader + LINE_SEPARATOR + responseMessage);
+                        return responseType == ResponseType.RESPONSE_SUCCESS;
+                    default:
+                        throw new RuntimeException("Client: unexpected server response type.");
+                }
+            } finally {
+                sands.close();
+            }
         }
 
         /**
@@ -674,10 +2616,23 @@ public class NaginiClient {
         public void watchApplicationMultipleNodes(Set<Integer> nodeIds,
                                                   Integer interval,
                                                   Integer tail) throws IOException {
+            // each watcher reads on from its own cursors, so that watchers
+            // do not take lines away from each other
+            Map<Integer, Long> cursors = Maps.newHashMap();
+            for(Integer nodeId: nodeIds) {
+                cursors.put(nodeId, 0L);
+            }
             while(nodeIds.size() > 0) {
                 Set<Integer> removedNodeIds = Sets.newHashSet();
+                // send all requests first so that the nodes answer in parallel,
+                // then print the responses in order
+                Map<Integer, SocketAndStreams> pendingRequests = Maps.newLinkedHashMap();
                 for(Integer nodeId: nodeIds) {
-                    if(!watchApplicationInner(nodeId, tail)) {
+                    pendingRequests.put(nodeId,
+                                        sendWatchRequest(nodeId, tail, cursors.get(nodeId)));
+                }
+                for(Integer nodeId: pendingRequests.keySet()) {
+                    if(!receiveWatchResponse(pendingRequests.get(nodeId), nodeId, cursors)) {
                         System.out.println("Node "
                                            + nodeId
                                            + " is not running application. Remove from watch node list.");
@@ -712,5 +2667,659 @@ public class NaginiClient {
             }
             watchApplicationMultipleNodes(nodeIds, interval, tail);
         }
+
+        /**
+         * Sends a restart request to one application node without waiting
+         * for the response.
+         * 
+         * @param nodeId
+         * @param stopTimeout seconds to wait for the node to stop
+         * @return streams to read the response from
+         * @throws IOException
+         */
+        private SocketAndStreams sendRestartRequest(Integer nodeId, Integer stopTimeout)
+                throws IOException {
+            String hostName = config.server.mapNodeToHost.get(nodeId);
+            SocketAndStreams sands = openRequest(hostName);
+            DataOutputStream dos = sands.getOutputStream();
+
+            System.out.println("Client: restarting application node " + nodeId + " on "
+                               + hostName + " ...");
+
+            // send request type
+            dos.writeInt(RequestType.REQUEST_SERVICE_RESTART_APPLICATION);
+            // send node id
+            dos.writeInt(nodeId);
+            // send stop timeout
+            dos.writeInt(stopTimeout);
+            // flush request header
+            dos.flush();
+            return sands;
+        }
+
+        /**
+         * Receives the response to a restart request.
+         * 
+         * @param sands
+         * @return cursor the output of the new run starts at
+         * @throws IOException if the node was not restarted
+         */
+        private long receiveRestartResponse(SocketAndStreams sands) throws IOException {
+            try {
+                DataInputStream dis = sands.getInputStream();
+                int responseType = dis.readInt();
+                switch(responseType) {
+                    case ResponseType.RESPONSE_OFFSET:
+                        return dis.readLong();
+                    case ResponseType.RESPONSE_SUCCESS:
+                    case ResponseType.RESPONSE_FAIL:
+                        String responseHeader = dis.readUTF();
+                        throw new IOException(responseHeader + dis.readUTF());
+                    default:
+                        throw new RuntimeException("Client: unexpected server response type.");
+                }
+            } finally {
+                sands.close();
+            }
+        }
+
+        /**
+         * Receives the response to a read output request without printing it.
+         * 
+         * @param sands
+         * @return output read, or null if the node is still starting
+         * @throws IOException if the node does not run the application or does
+         *         not keep its output
+         */
+        private OutputBuffer.Chunk receiveOutput(SocketAndStreams sands) throws IOException {
+            try {
+                DataInputStream dis = sands.getInputStream();
+                int responseType = dis.readInt();
+                switch(responseType) {
+                    case ResponseType.RESPONSE_OUTPUT:
+                        return OutputBuffer.Chunk.read(dis);
+                    case ResponseType.RESPONSE_SUCCESS:
+                        dis.readUTF();
+                        dis.readUTF();
+                        return null;
+                    case ResponseType.RESPONSE_FAIL:
+                        String responseHeader = dis.readUTF();
+                        throw new IOException(responseHeader + dis.readUTF());
+                    default:
+                        throw new RuntimeException("Client: unexpected server response type.");
+                }
+            } finally {
+                sands.close();
+            }
+        }
+
+        /**
+         * Restarts application nodes all at once.
+         * 
+         * @param nodeIds
+         * @param stopTimeout seconds to wait for a node to stop
+         * @throws IOException
+         */
+        public void restartApplication(Set<Integer> nodeIds, Integer stopTimeout)
+                throws IOException {
+            // send all requests first so that the nodes restart in parallel
+            Map<Integer, SocketAndStreams> pendingRequests = Maps.newLinkedHashMap();
+            for(Integer nodeId: Sets.newTreeSet(nodeIds)) {
+                pendingRequests.put(nodeId, sendRestartRequest(nodeId, stopTimeout));
+            }
+            List<Integer> failedNodeIds = Lists.newArrayList();
+            for(Integer nodeId: pendingRequests.keySet()) {
+                try {
+                    receiveRestartResponse(pendingRequests.get(nodeId));
+                    System.out.println("Client: restarted application node " + nodeId + ".");
+                } catch(IOException e) {
+                    System.err.println("Failed to restart node '" + nodeId + "': "
+                                       + e.getMessage());
+                    failedNodeIds.add(nodeId);
+                }
+            }
+            if(!failedNodeIds.isEmpty()) {
+                throw new RuntimeException("Client: failed to restart nodes " + failedNodeIds);
+            }
+        }
+
+        /**
+         * Restarts application nodes one batch at a time. Each batch is
+         * watched until its nodes are ready and, if so set, have settled; a
+         * batch fails if a node does not restart, exits or is not ready in
+         * time, or if too many lines of its output are errors. The output is
+         * read from the cursor each node restarted at, so server.watch.enabled
+         * must be set.
+         * 
+         * @param nodeIds
+         * @param rolling
+         * @throws IOException
+         */
+        public void restartApplicationRolling(Set<Integer> nodeIds, RollingRestart rolling)
+                throws IOException {
+            List<Integer> pending = Lists.newArrayList(Sets.newTreeSet(nodeIds));
+            Set<Integer> down = getStoppedNodes(pending);
+            if(!down.isEmpty()) {
+                System.out.println("Client: nodes " + down + " are not running.");
+            }
+            BufferedReader input = null;
+            int batchCount = 0;
+            while(!pending.isEmpty()) {
+                List<Integer> batch = rolling.nextBatch(pending, down, config.server);
+                if(batch.isEmpty()) {
+                    throw new RuntimeException("Client: rolling restart aborted, no node can be "
+                                               + "restarted while nodes " + down
+                                               + " are down, nodes " + pending
+                                               + " not restarted");
+                }
+                batchCount++;
+                System.out.println("Client: restarting batch " + batchCount + " of nodes "
+                                   + batch + " ...");
+                pending.removeAll(batch);
+                String failure = restartBatch(batch, down, rolling);
+                if(failure == null) {
+                    System.out.println("Client: batch " + batchCount + " of nodes " + batch
+                                       + " is ready, " + pending.size() + " nodes to go.");
+                    continue;
+                }
+                System.err.println("Client: batch " + batchCount + " of nodes " + batch
+                                   + " failed: " + failure);
+                if(pending.isEmpty()) {
+                    throw new RuntimeException("Client: rolling restart failed at the last batch");
+                }
+                if(rolling.isPauseOnError()) {
+                    System.out.println("Go on with nodes " + pending + "? (continue/abort)");
+                    if(input == null) {
+                        input = new BufferedReader(new InputStreamReader(System.in));
+                    }
+                    String text = input.readLine();
+                    if(text != null && text.trim().equals("continue")) {
+                        continue;
+                    }
+                }
+                throw new RuntimeException("Client: rolling restart aborted, nodes " + pending
+                                           + " not restarted");
+            }
+            System.out.println("Client: restarted " + nodeIds.size() + " nodes in " + batchCount
+                               + " batches.");
+        }
+
+        /**
+         * @param nodeIds
+         * @return nodes that are not running the application, from the status
+         *         of their hosts
+         * @throws IOException
+         */
+        private Set<Integer> getStoppedNodes(List<Integer> nodeIds) throws IOException {
+            Set<Integer> stopped = Sets.newHashSet(nodeIds);
+            Set<String> hostNames = Sets.newTreeSet();
+            for(Integer nodeId: nodeIds) {
+                hostNames.add(config.server.mapNodeToHost.get(nodeId));
+            }
+            for(String hostName: hostNames) {
+                NaginiServerStatus status;
+                try {
+                    status = controlOps.getStatus(hostName);
+                } catch(Exception e) {
+                    // nothing is restarted without knowing what is down
+                    throw new RuntimeException("Client: cannot get the status of " + hostName
+                                               + ", rolling restart not started", e);
+                }
+                for(NodeStatus node: status.node_list) {
+                    for(ServiceStatus service: node.service_list) {
+                        for(JobStatus job: service.job_list) {
+                            if(job.is_active) {
+                                stopped.remove(node.node_id);
+                            }
+                        }
+                    }
+                }
+            }
+            return stopped;
+        }
+
+        /**
+         * Restarts the nodes of one batch and watches them until they are
+         * ready and have settled.
+         * 
+         * @param batch
+         * @param down nodes that are not running, updated in place
+         * @param rolling
+         * @return why the batch failed, or null if it did not
+         * @throws IOException
+         */
+        private String restartBatch(List<Integer> batch, Set<Integer> down, RollingRestart rolling)
+                throws IOException {
+            down.addAll(batch);
+            List<String> failures = Lists.newArrayList();
+            // send all requests first so that the nodes restart in parallel
+            Map<Integer, SocketAndStreams> pendingRequests = Maps.newLinkedHashMap();
+            for(Integer nodeId: batch) {
+                pendingRequests.put(nodeId, sendRestartRequest(nodeId, rolling.getStopTimeout()));
+            }
+            Map<Integer, Long> cursors = Maps.newLinkedHashMap();
+            for(Integer nodeId: pendingRequests.keySet()) {
+                try {
+                    cursors.put(nodeId, receiveRestartResponse(pendingRequests.get(nodeId)));
+                } catch(IOException e) {
+                    failures.add("node " + nodeId + " did not restart: " + e.getMessage());
+                }
+            }
+
+            long start = System.currentTimeMillis();
+            long readyTimeout = rolling.getReadyTimeout() * 1000L;
+            Long settleEnd = null;
+            Map<Integer, Long> runningSince = Maps.newHashMap();
+            Set<Integer> ready = Sets.newHashSet();
+            long lineCount = 0;
+            long errorCount = 0;
+            while(!cursors.isEmpty()) {
+                try {
+                    Thread.sleep(RESTART_POLL_INTERVAL_MS);
+                } catch(InterruptedException e) {
+                    throw new IOException(e);
+                }
+                pendingRequests.clear();
+                for(Integer nodeId: cursors.keySet()) {
+                    pendingRequests.put(nodeId, sendWatchRequest(nodeId, 0, cursors.get(nodeId)));
+                }
+                long now = System.currentTimeMillis();
+                for(Integer nodeId: pendingRequests.keySet()) {
+                    OutputBuffer.Chunk chunk;
+                    try {
+                        chunk = receiveOutput(pendingRequests.get(nodeId));
+                    } catch(IOException e) {
+                        failures.add("node " + nodeId + " stopped: " + e.getMessage());
+                        cursors.remove(nodeId);
+                        ready.remove(nodeId);
+                        continue;
+                    }
+                    if(chunk == null) {
+                        continue;
+                    }
+                    cursors.put(nodeId, chunk.getCursor());
+                    if(!runningSince.containsKey(nodeId)) {
+                        runningSince.put(nodeId, now);
+                    }
+                    for(String line: chunk.getLines()) {
+                        lineCount++;
+                        if(rolling.getErrorPattern().matcher(line).find()) {
+                            errorCount++;
+                        }
+                        if(rolling.getReadyPattern() != null && !ready.contains(nodeId)
+                           && rolling.getReadyPattern().matcher(line).find()) {
+                            System.out.println("Client: node " + nodeId + " is ready.");
+                            ready.add(nodeId);
+                        }
+                    }
+                    if(rolling.getReadyPattern() == null && !ready.contains(nodeId)
+                       && now - runningSince.get(nodeId) >= rolling.getReadyDelay() * 1000L) {
+                        System.out.println("Client: node " + nodeId + " is ready.");
+                        ready.add(nodeId);
+                    }
+                }
+                String errorRate = checkErrorRate(rolling, lineCount, errorCount, false);
+                if(errorRate != null) {
+                    failures.add(errorRate);
+                    break;
+                }
+                if(!failures.isEmpty()) {
+                    break;
+                }
+                if(ready.containsAll(cursors.keySet())) {
+                    if(settleEnd == null) {
+                        settleEnd = now + rolling.getSettle() * 1000L;
+                    }
+                    if(now >= settleEnd) {
+                        break;
+                    }
+                } else if(now - start >= readyTimeout) {
+                    for(Integer nodeId: cursors.keySet()) {
+                        if(!ready.contains(nodeId)) {
+                            failures.add("node " + nodeId + " is not ready within "
+                                         + rolling.getReadyTimeout() + " seconds");
+                        }
+                    }
+                    break;
+                }
+            }
+            if(failures.isEmpty()) {
+                String errorRate = checkErrorRate(rolling, lineCount, errorCount, true);
+                if(errorRate != null) {
+                    failures.add(errorRate);
+                }
+            }
+            down.removeAll(ready);
+            return failures.isEmpty() ? null : Joiner.on("; ").join(failures);
+        }
+
+        /**
+         * @param rolling
+         * @param lineCount lines of output of a batch so far
+         * @param errorCount error lines among them
+         * @param last true once the batch is done, to check however few
+         *        lines there are
+         * @return why the error rate is too high, or null if it is not
+         */
+        private String checkErrorRate(RollingRestart rolling,
+                                      long lineCount,
+                                      long errorCount,
+                                      boolean last) {
+            if(rolling.getMaxErrorRate() == null || lineCount == 0
+               || (!last && lineCount < RESTART_MIN_LINES)) {
+                return null;
+            }
+            double errorRate = errorCount * 100.0 / lineCount;
+            if(errorRate <= rolling.getMaxErrorRate()) {
+                return null;
+            }
+            return String.format(Locale.ENGLISH,
+                                 "%d of %d lines are errors (%.1f%%, at most %.1f%%)",
+                                 errorCount,
+                                 lineCount,
+                                 errorRate,
+                                 rolling.getMaxErrorRate());
+        }
+    }
+
+    public class LogOperations {
+
+        /**
+         * Sends a log query to one application node without waiting for the
+         * response.
+         * 
+         * @param nodeId
+         * @param from
+         * @param to
+         * @param maxBytes most bytes of lines to read
+         * @return streams to read the response from
+         * @throws IOException
+         */
+        private SocketAndStreams sendQueryRequest(Integer nodeId, long from, long to, long maxBytes)
+                throws IOException {
+            String hostName = config.server.mapNodeToHost.get(nodeId);
+            // the lines are streamed, so the request gets its own connection
+            // rather than a frame that is answered at once
+            SocketAndStreams sands = new SocketAndStreams(hostName, config.server.portId);
+            DataOutputStream dos = sands.getOutputStream();
+
+            // send request type
+            dos.writeInt(RequestType.REQUEST_LOG_QUERY);
+            // send node id
+            dos.writeInt(nodeId);
+            // send time window
+            dos.writeLong(from);
+            dos.writeLong(to);
+            // send limit
+            dos.writeLong(maxBytes);
+            // flush request header
+            dos.flush();
+            return sands;
+        }
+
+        /**
+         * Receives the response to a log query and prints the lines as they
+         * arrive.
+         * 
+         * @param sands
+         * @param nodeId
+         * @return true if the node was queried
+         * @throws IOException
+         */
+        private Boolean receiveQueryResponse(SocketAndStreams sands, Integer nodeId)
+                throws IOException {
+            try {
+                DataInputStream dis = sands.getInputStream();
+                int responseType = dis.readInt();
+                switch(responseType) {
+                    case ResponseType.RESPONSE_LOG_LINES:
+                        System.out.println("        [node = " + nodeId + "]");
+                        int length;
+                        while((length = dis.readInt()) >= 0) {
+                            byte[] line = new byte[length];
+                            dis.readFully(line);
+                            System.out.println(new String(line, StandardCharsets.UTF_8));
+                        }
+                        if(dis.readBoolean()) {
+                            System.out.println("        (stopped at the limit of bytes of node "
+                                               + nodeId + ")");
+                        }
+                        return true;
+                    case ResponseType.RESPONSE_SUCCESS:
+                    case ResponseType.RESPONSE_FAIL:
+                        String responseHeader = dis.readUTF();
+                        String responseMessage = dis.readUTF();
+                        System.out.println(responseHeader + LINE_SEPARATOR + responseMessage);
+                        return responseType == ResponseType.RESPONSE_SUCCESS;
+                    default:
+                        throw new RuntimeException("Client: unexpected server response type.");
+                }
+            } finally {
+                sands.close();
+            }
+        }
+
+        /**
+         * Prints the output application nodes wrote in a time window, from
+         * their logs including rotated ones. Only the part of the logs around
+         * the window is read on the servers.
+         * 
+         * @param nodeIds
+         * @param from, in milliseconds since the epoch
+         * @param to, in milliseconds since the epoch
+         * @param maxBytes most bytes of lines to print from each node
+         * @throws IOException
+         */
+        public void queryMultipleNodes(Set<Integer> nodeIds, long from, long to, long maxBytes)
+                throws IOException {
+            // send all requests first so that the nodes answer in parallel,
+            // then print the responses in order
+            Map<Integer, SocketAndStreams> pendingRequests = Maps.newLinkedHashMap();
+            for(Integer nodeId: Sets.newTreeSet(nodeIds)) {
+                pendingRequests.put(nodeId, sendQueryRequest(nodeId, from, to, maxBytes));
+            }
+            int failed = 0;
+            for(Integer nodeId: pendingRequests.keySet()) {
+                if(!receiveQueryResponse(pendingRequests.get(nodeId), nodeId)) {
+                    failed++;
+                }
+            }
+            if(failed > 0) {
+                throw new RuntimeException("Client: failed to query " + failed + " of "
+                                           + nodeIds.size() + " nodes.");
+            }
+        }
+
+        /**
+         * Prints the output all application nodes wrote in a time window.
+         * 
+         * @param from, in milliseconds since the epoch
+         * @param to, in milliseconds since the epoch
+         * @param maxBytes most bytes of lines to print from each node
+         * @throws IOException
+         */
+        public void queryAllNodes(long from, long to, long maxBytes) throws IOException {
+            queryMultipleNodes(Sets.newHashSet(config.server.mapNodeToHost.keySet()),
+                               from,
+                               to,
+                               maxBytes);
+        }
+
+        /**
+         * Searches the logs of the nodes of one host, and collects the lines
+         * found by node.
+         * 
+         * @param hostName
+         * @param nodeIds
+         * @param search, request after the request type
+         * @param maxBytes, most bytes to receive from all hosts together
+         * @param results, groups of lines found by node, updated in place
+         * @param totals, bytes and matches received from all hosts, and 1 in
+         *        the last field once a host or the client hit a limit
+         * @throws IOException
+         */
+        private void searchInner(String hostName,
+                                 List<Integer> nodeIds,
+                                 byte[] search,
+                                 long maxBytes,
+                                 Map<Integer, List<List<String>>> results,
+                                 AtomicLongArray totals) throws IOException {
+            // a connection of its own, as it is closed to stop the server
+            // once the client received enough
+            SocketAndStreams sands = new SocketAndStreams(hostName, config.server.portId);
+            try {
+                DataOutputStream dos = sands.getOutputStream();
+                // send request type
+                dos.writeInt(RequestType.REQUEST_LOG_SEARCH);
+                // send expression, time window and limits
+                dos.write(search);
+                // send node ids
+                dos.writeUTF(Joiner.on(",").join(nodeIds));
+                // flush request header
+                dos.flush();
+
+                DataInputStream dis = sands.getInputStream();
+                int responseType = dis.readInt();
+                if(responseType == ResponseType.RESPONSE_SUCCESS
+                   || responseType == ResponseType.RESPONSE_FAIL) {
+                    String responseHeader = dis.readUTF();
+                    String responseMessage = dis.readUTF();
+                    throw new RuntimeException(responseHeader + responseMessage);
+                } else if(responseType != ResponseType.RESPONSE_LOG_MATCHES) {
+                    throw new RuntimeException("Client: unexpected server response type.");
+                }
+                int nodeId;
+                while((nodeId = dis.readInt()) >= 0) {
+                    int count = dis.readInt();
+                    List<String> group = Lists.newArrayListWithCapacity(count);
+                    long bytes = 0;
+                    for(int i = 0; i < count; i++) {
+                        // matching lines are marked, the others are context
+                        String marker = dis.readBoolean() ? "> " : "  ";
+                        byte[] line = new byte[dis.readInt()];
+                        dis.readFully(line);
+                        bytes += line.length;
+                        group.add(marker + new String(line, StandardCharsets.UTF_8));
+                    }
+                    if(totals.addAndGet(0, bytes) > maxBytes) {
+                        // stop reading, the server stops once it cannot send
+                        totals.set(2, 1);
+                        return;
+                    }
+                    synchronized(results) {
+                        List<List<String>> groups = results.get(nodeId);
+                        if(groups == null) {
+                            groups = Lists.newArrayList();
+                            results.put(nodeId, groups);
+                        }
+                        groups.add(group);
+                    }
+                }
+                if(nodeId == -2) {
+                    throw new RuntimeException("Client: " + dis.readUTF());
+                }
+                totals.addAndGet(1, dis.readInt());
+                if(dis.readBoolean()) {
+                    totals.set(2, 1);
+                }
+            } finally {
+                sands.close();
+            }
+        }
+
+        /**
+         * Finds the lines of the logs of application nodes, including
+         * rotated ones, that match a regular expression or contain a literal
+         * text. The servers search their nodes at the same time and only
+         * send the lines found, which are printed by node once all servers
+         * answered.
+         * 
+         * @param nodeIds
+         * @param expression
+         * @param literal, true to look for the expression as is
+         * @param from, in milliseconds since the epoch
+         * @param to, in milliseconds since the epoch
+         * @param context, lines to print before and after each match
+         * @param maxMatches, most matches per host
+         * @param maxBytes, most bytes of lines in total
+         * @throws IOException
+         */
+        public void searchMultipleNodes(Set<Integer> nodeIds,
+                                        String expression,
+                                        Boolean literal,
+                                        long from,
+                                        long to,
+                                        int context,
+                                        int maxMatches,
+                                        long maxBytes) throws IOException {
+            ByteArrayOutputStream request = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(request);
+            dos.writeUTF(expression);
+            dos.writeBoolean(literal);
+            dos.writeLong(from);
+            dos.writeLong(to);
+            dos.writeInt(context);
+            dos.writeInt(maxMatches);
+            dos.writeLong(maxBytes);
+            final byte[] search = request.toByteArray();
+            final long maxTotalBytes = maxBytes;
+            final Set<Integer> selectedNodeIds = nodeIds;
+            final Map<Integer, List<List<String>>> results = Maps.newTreeMap();
+            final AtomicLongArray totals = new AtomicLongArray(3);
+            List<String> failedHosts = fanOut("search logs", new FanOutExecutor.HostTask() {
+
+                @Override
+                public void run(String hostName) throws Exception {
+                    List<Integer> hostNodeIds = Lists.newArrayList();
+                    for(Integer nodeId: config.server.mapHostToNodes.get(hostName)) {
+                        if(selectedNodeIds.contains(nodeId)) {
+                            hostNodeIds.add(nodeId);
+                        }
+                    }
+                    if(!hostNodeIds.isEmpty()) {
+                        searchInner(hostName, hostNodeIds, search, maxTotalBytes, results, totals);
+                    }
+                }
+            });
+            for(Map.Entry<Integer, List<List<String>>> entry: results.entrySet()) {
+                System.out.println("        [node = " + entry.getKey() + "]");
+                List<String> output = Lists.newArrayList();
+                for(List<String> group: entry.getValue()) {
+                    if(!output.isEmpty()) {
+                        output.add("--");
+                    }
+                    output.addAll(group);
+                }
+                System.out.println(Joiner.on(LINE_SEPARATOR).join(output));
+            }
+            System.out.println("Client: " + totals.get(1) + " matches on " + results.size()
+                               + " nodes" + (totals.get(2) > 0 ? ", stopped at a limit." : "."));
+            if(!failedHosts.isEmpty()) {
+                throw new RuntimeException("Client: failed to search " + failedHosts.size()
+                                           + " of " + config.server.mapHostToNodes.size()
+                                           + " hosts.");
+            }
+        }
+
+        /**
+         * Searches the logs of all application nodes, see
+         * searchMultipleNodes.
+         */
+        public void searchAllNodes(String expression,
+                                   Boolean literal,
+                                   long from,
+                                   long to,
+                                   int context,
+                                   int maxMatches,
+                                   long maxBytes) throws IOException {
+            searchMultipleNodes(Sets.newHashSet(config.server.mapNodeToHost.keySet()),
+                                expression,
+                                literal,
+                                from,
+                                to,
+                                context,
+                                maxMatches,
+                                maxBytes);
+        }
     }
 }
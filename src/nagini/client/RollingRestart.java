@@ -0,0 +1,254 @@
+package nagini.client;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import nagini.config.NaginiServerConfig;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Settings of a rolling restart, which restarts application nodes in batches
+ * and waits for each batch to be ready before going on, and the rules that
+ * pick the nodes of each batch. A node counts as unavailable while it is
+ * restarted and while it is not running, so that a batch never takes more
+ * nodes of a host or zone down than allowed, counting those already down.
+ */
+public class RollingRestart {
+
+    private int batchSize;
+    private int maxUnavailablePerHost;
+    private int maxUnavailablePerZone;
+    private int stopTimeout;
+    private Pattern readyPattern;
+    private int readyDelay;
+    private int readyTimeout;
+    private int settle;
+    private Pattern errorPattern;
+    private Double maxErrorRate;
+    private Boolean pauseOnError;
+
+    public RollingRestart() {
+        this.batchSize = 1;
+        this.maxUnavailablePerHost = 1;
+        this.maxUnavailablePerZone = 0;
+        this.stopTimeout = 60;
+        this.readyPattern = null;
+        this.readyDelay = 10;
+        this.readyTimeout = 300;
+        this.settle = 0;
+        this.errorPattern = Pattern.compile("ERROR|Exception");
+        this.maxErrorRate = null;
+        this.pauseOnError = false;
+    }
+
+    /**
+     * @param batchSize most nodes to restart at a time
+     * @return
+     */
+    public RollingRestart setBatchSize(int batchSize) {
+        if(batchSize < 1) {
+            throw new IllegalArgumentException("Client: invalid batch size " + batchSize);
+        }
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    /**
+     * @param maxUnavailablePerHost most nodes of a host to have down at a time
+     * @return
+     */
+    public RollingRestart setMaxUnavailablePerHost(int maxUnavailablePerHost) {
+        if(maxUnavailablePerHost < 1) {
+            throw new IllegalArgumentException("Client: invalid max unavailable per host "
+                                               + maxUnavailablePerHost);
+        }
+        this.maxUnavailablePerHost = maxUnavailablePerHost;
+        return this;
+    }
+
+    /**
+     * @param maxUnavailablePerZone most nodes of a zone to have down at a
+     *        time, 0 for no limit
+     * @return
+     */
+    public RollingRestart setMaxUnavailablePerZone(int maxUnavailablePerZone) {
+        if(maxUnavailablePerZone < 0) {
+            throw new IllegalArgumentException("Client: invalid max unavailable per zone "
+                                               + maxUnavailablePerZone);
+        }
+        this.maxUnavailablePerZone = maxUnavailablePerZone;
+        return this;
+    }
+
+    /**
+     * @param stopTimeout seconds to wait for a node to stop
+     * @return
+     */
+    public RollingRestart setStopTimeout(int stopTimeout) {
+        this.stopTimeout = stopTimeout;
+        return this;
+    }
+
+    /**
+     * @param readyPattern output line that tells a node is ready, or null to
+     *        take a node as ready once it kept running for the ready delay
+     * @return
+     */
+    public RollingRestart setReadyPattern(Pattern readyPattern) {
+        this.readyPattern = readyPattern;
+        return this;
+    }
+
+    /**
+     * @param readyDelay seconds a node must keep running to be ready, if
+     *        there is no ready pattern
+     * @return
+     */
+    public RollingRestart setReadyDelay(int readyDelay) {
+        this.readyDelay = readyDelay;
+        return this;
+    }
+
+    /**
+     * @param readyTimeout seconds for a node to get ready
+     * @return
+     */
+    public RollingRestart setReadyTimeout(int readyTimeout) {
+        this.readyTimeout = readyTimeout;
+        return this;
+    }
+
+    /**
+     * @param settle seconds to keep watching a batch once it is ready
+     * @return
+     */
+    public RollingRestart setSettle(int settle) {
+        this.settle = settle;
+        return this;
+    }
+
+    /**
+     * @param errorPattern output line that counts as an error
+     * @return
+     */
+    public RollingRestart setErrorPattern(Pattern errorPattern) {
+        this.errorPattern = errorPattern;
+        return this;
+    }
+
+    /**
+     * @param maxErrorRate highest percentage of error lines in the output of
+     *        a batch, or null for no limit
+     * @return
+     */
+    public RollingRestart setMaxErrorRate(Double maxErrorRate) {
+        this.maxErrorRate = maxErrorRate;
+        return this;
+    }
+
+    /**
+     * @param pauseOnError true to ask whether to go on when a batch fails,
+     *        false to abort
+     * @return
+     */
+    public RollingRestart setPauseOnError(Boolean pauseOnError) {
+        this.pauseOnError = pauseOnError;
+        return this;
+    }
+
+    public int getStopTimeout() {
+        return stopTimeout;
+    }
+
+    public Pattern getReadyPattern() {
+        return readyPattern;
+    }
+
+    public int getReadyDelay() {
+        return readyDelay;
+    }
+
+    public int getReadyTimeout() {
+        return readyTimeout;
+    }
+
+    public int getSettle() {
+        return settle;
+    }
+
+    public Pattern getErrorPattern() {
+        return errorPattern;
+    }
+
+    public Double getMaxErrorRate() {
+        return maxErrorRate;
+    }
+
+    public Boolean isPauseOnError() {
+        return pauseOnError;
+    }
+
+    /**
+     * Picks the nodes to restart next: nodes that are down first, as
+     * restarting them costs nothing, then running nodes as long as no host
+     * or zone gets more nodes down than allowed.
+     *
+     * @param pending nodes not restarted yet, in the order to restart them
+     * @param down nodes that are not running, restarted or not
+     * @param serverConfig to tell the host and zone of a node
+     * @return nodes of the next batch, empty if no node can be restarted
+     *         within the limits
+     */
+    public List<Integer> nextBatch(Collection<Integer> pending,
+                                   Set<Integer> down,
+                                   NaginiServerConfig serverConfig) {
+        Map<String, Integer> hostDown = Maps.newHashMap();
+        Map<String, Integer> zoneDown = Maps.newHashMap();
+        for(Integer nodeId: down) {
+            String hostName = serverConfig.mapNodeToHost.get(nodeId);
+            increment(hostDown, hostName);
+            increment(zoneDown, serverConfig.getZone(hostName));
+        }
+        List<Integer> batch = Lists.newArrayList();
+        for(Integer nodeId: pending) {
+            if(batch.size() >= batchSize) {
+                break;
+            }
+            if(down.contains(nodeId)) {
+                batch.add(nodeId);
+            }
+        }
+        for(Integer nodeId: pending) {
+            if(batch.size() >= batchSize) {
+                break;
+            }
+            if(down.contains(nodeId)) {
+                continue;
+            }
+            String hostName = serverConfig.mapNodeToHost.get(nodeId);
+            String zone = serverConfig.getZone(hostName);
+            if(count(hostDown, hostName) >= maxUnavailablePerHost
+               || (maxUnavailablePerZone > 0 && count(zoneDown, zone) >= maxUnavailablePerZone)) {
+                continue;
+            }
+            batch.add(nodeId);
+            increment(hostDown, hostName);
+            increment(zoneDown, zone);
+        }
+        return batch;
+    }
+
+    private static int count(Map<String, Integer> counts, String key) {
+        Integer count = counts.get(key);
+        return count == null ? 0 : count;
+    }
+
+    private static void increment(Map<String, Integer> counts, String key) {
+        counts.put(key, count(counts, key) + 1);
+    }
+}
@@ -27,8 +27,12 @@ public class NaginiCommand extends AbstractCommand {
             NaginiCommandStart.executeCommand(args);
         } else if(subCmd.equals("stop")) {
             NaginiCommandStop.executeCommand(args);
+        } else if(subCmd.equals("restart")) {
+            NaginiCommandRestart.executeCommand(args);
         } else if(subCmd.equals("watch")) {
             NaginiCommandWatch.executeCommand(args);
+        } else if(subCmd.equals("log")) {
+            NaginiCommandLog.executeCommand(args);
         } else if(subCmd.equals("help") || subCmd.equals("--help") || subCmd.equals("-h")) {
             executeHelp(args, System.out);
         } else {
@@ -50,7 +54,9 @@ public class NaginiCommand extends AbstractCommand {
         stream.println("clean                  Clean application or config.");
         stream.println("start                  Start application on remote hosts.");
         stream.println("stop                   Stop application on remote hosts.");
+        stream.println("restart                Restart application on remote hosts.");
         stream.println("watch                  Watch application on remote hosts.");
+        stream.println("log                    Query or search application output.");
         stream.println("help                   Show help menu or information for each command.");
         stream.println();
         stream.println("To get more information on each command, please try \'help <command-name>\'.");
@@ -77,8 +83,12 @@ public class NaginiCommand extends AbstractCommand {
             NaginiCommandStart.executeHelp(args, stream);
         } else if(subCmd.equals("stop")) {
             NaginiCommandStop.executeHelp(args, stream);
+        } else if(subCmd.equals("restart")) {
+            NaginiCommandRestart.executeHelp(args, stream);
         } else if(subCmd.equals("watch")) {
             NaginiCommandWatch.executeHelp(args, stream);
+        } else if(subCmd.equals("log")) {
+            NaginiCommandLog.executeHelp(args, stream);
         } else {
             args = CommandUtils.copyArrayAddFirst(args, subCmd);
             NaginiCommandOther.executeHelp(args, stream);
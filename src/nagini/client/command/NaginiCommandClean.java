@@ -77,6 +77,8 @@ public class NaginiCommandClean extends AbstractCommand {
             ParserUtils.acceptsHelp(parser);
             // required options
             ParserUtils.acceptsConfig(parser);
+            // optional options
+            ParserUtils.acceptsParallelism(parser);
             return parser;
         }
 
@@ -92,7 +94,7 @@ public class NaginiCommandClean extends AbstractCommand {
             stream.println("  clean app - Clean up application on all remote hosts");
             stream.println();
             stream.println("SYNOPSIS");
-            stream.println("  clean app --config <config-path>");
+            stream.println("  clean app --config <config-path> [--parallelism <n>]");
             stream.println();
             getParser().printHelpOn(stream);
             stream.println();
@@ -129,8 +131,10 @@ public class NaginiCommandClean extends AbstractCommand {
 
             // execute command
             NaginiClient naginiClient = new NaginiClient(configPath);
+            ParserUtils.applyClientOptions(options, naginiClient);
             naginiClient.serviceOps.stopApplicationAllNodes();
             naginiClient.fileOps.deleteAllHosts(naginiClient.config.server.getApplicationPath());
+            naginiClient.fileOps.deleteAllHosts(naginiClient.config.server.getReleasesPath());
         }
     }
 
@@ -150,6 +154,8 @@ public class NaginiCommandClean extends AbstractCommand {
             ParserUtils.acceptsHelp(parser);
             // required options
             ParserUtils.acceptsConfig(parser);
+            // optional options
+            ParserUtils.acceptsParallelism(parser);
             return parser;
         }
 
@@ -165,7 +171,7 @@ public class NaginiCommandClean extends AbstractCommand {
             stream.println("  clean config - Clean up config on all remote servers");
             stream.println();
             stream.println("SYNOPSIS");
-            stream.println("  clean config --config <config-path>");
+            stream.println("  clean config --config <config-path> [--parallelism <n>]");
             stream.println();
             getParser().printHelpOn(stream);
             stream.println();
@@ -202,6 +208,7 @@ public class NaginiCommandClean extends AbstractCommand {
 
             // execute command
             NaginiClient naginiClient = new NaginiClient(configPath);
+            ParserUtils.applyClientOptions(options, naginiClient);
             naginiClient.serviceOps.stopApplicationAllNodes();
             naginiClient.fileOps.deleteAllHosts(naginiClient.config.server.getConfigPath());
         }
@@ -2,11 +2,15 @@ package nagini.client.command;
 
 import java.io.IOException;
 import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.List;
 
 import joptsimple.OptionParser;
 import joptsimple.OptionSet;
 import nagini.client.NaginiClient;
 
+import com.google.common.collect.Sets;
+
 /**
  * Implements all control commands.
  */
@@ -27,6 +31,8 @@ public class NaginiCommandControl extends AbstractCommand {
             SubCommandControlStop.executeCommand(args);
         } else if(subCmd.equals("start")) {
             SubCommandControlStart.executeCommand(args);
+        } else if(subCmd.equals("top")) {
+            SubCommandControlTop.executeCommand(args);
         } else {
             printHelp(System.out);
         }
@@ -42,6 +48,7 @@ public class NaginiCommandControl extends AbstractCommand {
         stream.println("ping           Ping all remote servers.");
         stream.println("stop           Stop all remote servers.");
         stream.println("start          Start all remote servers.");
+        stream.println("top            Show resources used by application nodes.");
         stream.println();
         stream.println("To get more information on each command,");
         stream.println("please try \'help control <command-name>\'.");
@@ -61,6 +68,8 @@ public class NaginiCommandControl extends AbstractCommand {
             SubCommandControlStop.printHelp(stream);
         } else if(subCmd.equals("start")) {
             SubCommandControlStart.printHelp(stream);
+        } else if(subCmd.equals("top")) {
+            SubCommandControlTop.printHelp(stream);
         } else {
             printHelp(stream);
         }
@@ -82,6 +91,8 @@ public class NaginiCommandControl extends AbstractCommand {
             ParserUtils.acceptsHelp(parser);
             // required options
             ParserUtils.acceptsConfig(parser);
+            // optional options
+            ParserUtils.acceptsParallelism(parser);
             return parser;
         }
 
@@ -97,7 +108,7 @@ public class NaginiCommandControl extends AbstractCommand {
             stream.println("  control ping - Print all remote Nagini server status");
             stream.println();
             stream.println("SYNOPSIS");
-            stream.println("  control ping --config <config-path>");
+            stream.println("  control ping --config <config-path> [--parallelism <n>]");
             stream.println();
             getParser().printHelpOn(stream);
             stream.println();
@@ -133,7 +144,9 @@ public class NaginiCommandControl extends AbstractCommand {
             configPath = (String) options.valueOf(ParserUtils.OPT_CONFIG);
 
             // execute command
-            new NaginiClient(configPath).controlOps.pingAllHosts();
+            NaginiClient naginiClient = new NaginiClient(configPath);
+            ParserUtils.applyClientOptions(options, naginiClient);
+            naginiClient.controlOps.pingAllHosts();
         }
     }
 
@@ -153,6 +166,8 @@ public class NaginiCommandControl extends AbstractCommand {
             ParserUtils.acceptsHelp(parser);
             // required options
             ParserUtils.acceptsConfig(parser);
+            // optional options
+            ParserUtils.acceptsParallelism(parser);
             return parser;
         }
 
@@ -168,7 +183,7 @@ public class NaginiCommandControl extends AbstractCommand {
             stream.println("  control stop - Stop all remote Nagini servers");
             stream.println();
             stream.println("SYNOPSIS");
-            stream.println("  control stop --config <config-path>");
+            stream.println("  control stop --config <config-path> [--parallelism <n>]");
             stream.println();
             getParser().printHelpOn(stream);
             stream.println();
@@ -204,7 +219,9 @@ public class NaginiCommandControl extends AbstractCommand {
             configPath = (String) options.valueOf(ParserUtils.OPT_CONFIG);
 
             // execute command
-            new NaginiClient(configPath).controlOps.stopAllHosts();
+            NaginiClient naginiClient = new NaginiClient(configPath);
+            ParserUtils.applyClientOptions(options, naginiClient);
+            naginiClient.controlOps.stopAllHosts();
         }
     }
 
@@ -224,6 +241,8 @@ public class NaginiCommandControl extends AbstractCommand {
             ParserUtils.acceptsHelp(parser);
             // required options
             ParserUtils.acceptsConfig(parser);
+            // optional options
+            ParserUtils.acceptsParallelism(parser);
             return parser;
         }
 
@@ -239,7 +258,7 @@ public class NaginiCommandControl extends AbstractCommand {
             stream.println("  control start - Start all remote Nagini servers");
             stream.println();
             stream.println("SYNOPSIS");
-            stream.println("  control start --config <config-path>");
+            stream.println("  control start --config <config-path> [--parallelism <n>]");
             stream.println();
             getParser().printHelpOn(stream);
             stream.println();
@@ -275,8 +294,126 @@ public class NaginiCommandControl extends AbstractCommand {
             configPath = (String) options.valueOf(ParserUtils.OPT_CONFIG);
 
             // execute command
-            new NaginiClient(configPath).controlOps.startAllHosts();
+            NaginiClient naginiClient = new NaginiClient(configPath);
+            ParserUtils.applyClientOptions(options, naginiClient);
+            naginiClient.controlOps.startAllHosts();
         }
     }
 
+
+    private static final String OPT_I = "i";
+    private static final String OPT_INTERVAL = "interval";
+    private static final String OPT_ITERATIONS = "iterations";
+
+    /**
+     * control top command
+     */
+    public static class SubCommandControlTop extends AbstractCommand {
+
+        /**
+         * Initializes parser
+         * 
+         * @return OptionParser object with all available options
+         */
+        protected static OptionParser getParser() {
+            OptionParser parser = new OptionParser();
+            // help options
+            ParserUtils.acceptsHelp(parser);
+            // required options
+            ParserUtils.acceptsConfig(parser);
+            // optional options
+            parser.acceptsAll(Arrays.asList(OPT_I, OPT_INTERVAL),
+                              "interval seconds to refresh, 2 by default")
+                  .withRequiredArg()
+                  .describedAs("second")
+                  .ofType(Integer.class);
+            parser.accepts(OPT_ITERATIONS, "number of refreshes, until interrupted by default")
+                  .withRequiredArg()
+                  .describedAs("count")
+                  .ofType(Integer.class);
+            ParserUtils.acceptsAllNodes(parser);
+            ParserUtils.acceptsNodeMultiple(parser);
+            return parser;
+        }
+
+        /**
+         * Prints help menu for command.
+         * 
+         * @param stream PrintStream object for output
+         * @throws IOException
+         */
+        public static void printHelp(PrintStream stream) throws IOException {
+            stream.println();
+            stream.println("NAME");
+            stream.println("  control top - Show resources used by application nodes");
+            stream.println();
+            stream.println("SYNOPSIS");
+            stream.println("  control top --config <config-path> [--interval <second>]");
+            stream.println("              [--iterations <count>]");
+            stream.println("              [-n <node-id-list> | --all-nodes]");
+            stream.println();
+            stream.println("  Shows CPU, resident memory, threads, open files and disk I/O of the");
+            stream.println("  process tree of each node. CPU% is of one processor, PEAK% the");
+            stream.println("  highest CPU use among the samples taken since the previous refresh,");
+            stream.println("  or kept by the servers for the first one.");
+            stream.println();
+            getParser().printHelpOn(stream);
+            stream.println();
+        }
+
+        /**
+         * Parses command-line and executes command.
+         * 
+         * @param args Command-line input
+         * @throws IOException
+         * 
+         */
+        @SuppressWarnings("unchecked")
+        public static void executeCommand(String[] args) throws IOException {
+
+            OptionParser parser = getParser();
+
+            // declare parameters
+            String configPath = null;
+            Boolean allNodes = true;
+            List<Integer> nodeIds = null;
+            Integer interval = 2;
+            Integer iterations = 0;
+
+            // parse command-line input
+            OptionSet options = parser.parse(args);
+            if(options.has(ParserUtils.OPT_HELP)) {
+                printHelp(System.out);
+                return;
+            }
+
+            // check required options and/or conflicting options
+            ParserUtils.checkRequired(options, ParserUtils.OPT_CONFIG);
+            ParserUtils.checkOptional(options, ParserUtils.OPT_NODE, ParserUtils.OPT_ALL_NODES);
+
+            // load parameters
+            configPath = (String) options.valueOf(ParserUtils.OPT_CONFIG);
+            if(options.has(ParserUtils.OPT_NODE)) {
+                nodeIds = (List<Integer>) options.valuesOf(ParserUtils.OPT_NODE);
+                allNodes = false;
+            }
+            if(options.has(OPT_INTERVAL)) {
+                interval = (Integer) options.valueOf(OPT_INTERVAL);
+            }
+            if(options.has(OPT_ITERATIONS)) {
+                iterations = (Integer) options.valueOf(OPT_ITERATIONS);
+            }
+            if(interval < 1 || iterations < 0) {
+                throw new IllegalArgumentException("Client: invalid top options");
+            }
+
+            // execute command
+            NaginiClient naginiClient = new NaginiClient(configPath);
+            if(allNodes) {
+                naginiClient.controlOps.topAllNodes(interval, iterations);
+            } else {
+                naginiClient.controlOps.top(Sets.newHashSet(nodeIds), interval, iterations);
+            }
+        }
+    }
 }
@@ -3,7 +3,9 @@ package nagini.client.command;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.text.SimpleDateFormat;
 import java.util.Arrays;
+import java.util.Date;
 
 import joptsimple.OptionParser;
 import joptsimple.OptionSet;
@@ -29,6 +31,10 @@ public class NaginiCommandDeploy extends AbstractCommand {
             SubCommandDeployApp.executeCommand(args);
         } else if(subCmd.equals("config")) {
             SubCommandDeployConfig.executeCommand(args);
+        } else if(subCmd.equals("releases")) {
+            SubCommandDeployReleases.executeCommand(args);
+        } else if(subCmd.equals("rollback")) {
+            SubCommandDeployRollback.executeCommand(args);
         } else {
             printHelp(System.out);
         }
@@ -43,6 +49,8 @@ public class NaginiCommandDeploy extends AbstractCommand {
         stream.println("----------------------");
         stream.println("app           Download, compile and deploy application.");
         stream.println("config        Deploy configuration files for Nagini and application.");
+        stream.println("releases      List application releases.");
+        stream.println("rollback      Switch back to a previous application release.");
         stream.println();
         stream.println("To get more information on each command,");
         stream.println("please try \'help deploy <command-name>\'.");
@@ -60,6 +68,10 @@ public class NaginiCommandDeploy extends AbstractCommand {
             SubCommandDeployApp.printHelp(stream);
         } else if(subCmd.equals("config")) {
             SubCommandDeployConfig.printHelp(stream);
+        } else if(subCmd.equals("releases")) {
+            SubCommandDeployReleases.printHelp(stream);
+        } else if(subCmd.equals("rollback")) {
+            SubCommandDeployRollback.printHelp(stream);
         } else {
             printHelp(stream);
         }
@@ -83,6 +95,9 @@ public class NaginiCommandDeploy extends AbstractCommand {
             ParserUtils.acceptsConfig(parser);
             // optional options
             ParserUtils.acceptsRefresh(parser);
+            ParserUtils.acceptsParallelism(parser);
+            ParserUtils.acceptsTransferOptions(parser);
+            ParserUtils.acceptsRelease(parser);
             return parser;
         }
 
@@ -98,7 +113,10 @@ public class NaginiCommandDeploy extends AbstractCommand {
             stream.println("  deploy app - Download from git repo, compile and deploy application");
             stream.println();
             stream.println("SYNOPSIS");
-            stream.println("  deploy app --config <config-path> [--refresh]");
+            stream.println("  deploy app --config <config-path> [--refresh] [--parallelism <n>]");
+            stream.println("             [--transfer-mode <mode>] [--compression <mode>]");
+            stream.println("             [--compression-level <level>] [--rate-per-host <rate>]");
+            stream.println("             [--rate-total <rate>] [--release <release>]");
             stream.println();
             getParser().printHelpOn(stream);
             stream.println();
@@ -119,6 +137,7 @@ public class NaginiCommandDeploy extends AbstractCommand {
 
             // declare parameters
             String configPath = null;
+            String release = null;
             boolean refresh = false;
 
             // parse command-line input
@@ -133,10 +152,16 @@ public class NaginiCommandDeploy extends AbstractCommand {
 
             // load parameters
             configPath = (String) options.valueOf(ParserUtils.OPT_CONFIG);
+            if(options.has(ParserUtils.OPT_RELEASE)) {
+                release = (String) options.valueOf(ParserUtils.OPT_RELEASE);
+            } else {
+                release = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+            }
             refresh = options.has(ParserUtils.OPT_REFRESH);
 
             // execute command
             NaginiClient naginiClient = new NaginiClient(configPath);
+            ParserUtils.applyClientOptions(options, naginiClient);
 
             String appPath = naginiClient.config.client.appPacketPath;
             File appFolder = new File(appPath);
@@ -163,20 +188,21 @@ public class NaginiCommandDeploy extends AbstractCommand {
                                        appFolder,
                                        System.out);
 
-            // create application distributable
+            // create application distributable, named after the release
             String tempApplicationPath = System.getProperty("java.io.tmpdir") + File.separator
-                                         + naginiClient.config.server.getApplicationName();
+                                         + release;
             for(String subPath: naginiClient.config.client.appBuildOutputSubPaths) {
                 NaginiFileUtils.copy(appPath + File.separator + subPath, tempApplicationPath
                                                                          + File.separator + subPath);
             }
 
-            // send application to remote servers
-            naginiClient.fileOps.putAllHosts(tempApplicationPath,
-                                             naginiClient.config.server.basePath);
-
-            // clean up temp folders
-            NaginiFileUtils.delete(tempApplicationPath);
+            // send application to remote servers and switch them to it
+            try {
+                naginiClient.releaseOps.deployAllHosts(tempApplicationPath);
+            } finally {
+                // clean up temp folders
+                NaginiFileUtils.delete(tempApplicationPath);
+            }
         }
     }
 
@@ -196,6 +222,9 @@ public class NaginiCommandDeploy extends AbstractCommand {
             ParserUtils.acceptsHelp(parser);
             // required options
             ParserUtils.acceptsConfig(parser);
+            // optional options
+            ParserUtils.acceptsParallelism(parser);
+            ParserUtils.acceptsTransferOptions(parser);
             return parser;
         }
 
@@ -211,7 +240,10 @@ public class NaginiCommandDeploy extends AbstractCommand {
             stream.println("  deploy config - Deploy Nagini configuration folder");
             stream.println();
             stream.println("SYNOPSIS");
-            stream.println("  deploy config --config <config-path>");
+            stream.println("  deploy config --config <config-path> [--parallelism <n>]");
+            stream.println("                [--transfer-mode <mode>] [--compression <mode>]");
+            stream.println("                [--compression-level <level>] [--rate-per-host <rate>]");
+            stream.println("                [--rate-total <rate>]");
             stream.println();
             getParser().printHelpOn(stream);
             stream.println();
@@ -248,9 +280,165 @@ public class NaginiCommandDeploy extends AbstractCommand {
 
             // execute command
             NaginiClient naginiClient = new NaginiClient(configPath);
+            ParserUtils.applyClientOptions(options, naginiClient);
             naginiClient.fileOps.deleteAllHosts(naginiClient.config.server.getConfigPath());
             naginiClient.fileOps.putAllHosts(configPath, naginiClient.config.server.basePath);
             naginiClient.controlOps.reconfig(naginiClient.config.server.getConfigPath());
         }
     }
+
+    /**
+     * deploy rollback command
+     */
+    public static class SubCommandDeployRollback extends AbstractCommand {
+
+        /**
+         * Initializes parser
+         * 
+         * @return OptionParser object with all available options
+         */
+        protected static OptionParser getParser() {
+            OptionParser parser = new OptionParser();
+            // help options
+            ParserUtils.acceptsHelp(parser);
+            // required options
+            ParserUtils.acceptsConfig(parser);
+            // optional options
+            ParserUtils.acceptsParallelism(parser);
+            ParserUtils.acceptsRelease(parser);
+            return parser;
+        }
+
+        /**
+         * Prints help menu for command.
+         * 
+         * @param stream PrintStream object for output
+         * @throws IOException
+         */
+        public static void printHelp(PrintStream stream) throws IOException {
+            stream.println();
+            stream.println("NAME");
+            stream.println("  deploy rollback - Switch back to a previous application release");
+            stream.println();
+            stream.println("SYNOPSIS");
+            stream.println("  deploy rollback --config <config-path> [--parallelism <n>]");
+            stream.println("                  [--release <release>]");
+            stream.println();
+            stream.println("  Without --release, switches back to the release activated before");
+            stream.println("  the active one. Nodes keep running their release until restarted.");
+            stream.println();
+            getParser().printHelpOn(stream);
+            stream.println();
+        }
+
+        /**
+         * Parses command-line and executes command.
+         * 
+         * @param args Command-line input
+         * @throws Exception
+         * 
+         */
+        public static void executeCommand(String[] args) throws Exception {
+
+            OptionParser parser = getParser();
+
+            // declare parameters
+            String configPath = null;
+            String release = null;
+
+            // parse command-line input
+            OptionSet options = parser.parse(args);
+            if(options.has(ParserUtils.OPT_HELP)) {
+                printHelp(System.out);
+                return;
+            }
+
+            // check required options and/or conflicting options
+            ParserUtils.checkRequired(options, ParserUtils.OPT_CONFIG);
+
+            // load parameters
+            configPath = (String) options.valueOf(ParserUtils.OPT_CONFIG);
+            if(options.has(ParserUtils.OPT_RELEASE)) {
+                release = (String) options.valueOf(ParserUtils.OPT_RELEASE);
+            }
+
+            // execute command
+            NaginiClient naginiClient = new NaginiClient(configPath);
+            ParserUtils.applyClientOptions(options, naginiClient);
+            naginiClient.releaseOps.rollbackAllHosts(release);
+        }
+    }
+
+    /**
+     * deploy releases command
+     */
+    public static class SubCommandDeployReleases extends AbstractCommand {
+
+        /**
+         * Initializes parser
+         * 
+         * @return OptionParser object with all available options
+         */
+        protected static OptionParser getParser() {
+            OptionParser parser = new OptionParser();
+            // help options
+            ParserUtils.acceptsHelp(parser);
+            // required options
+            ParserUtils.acceptsConfig(parser);
+            // optional options
+            ParserUtils.acceptsParallelism(parser);
+            return parser;
+        }
+
+        /**
+         * Prints help menu for command.
+         * 
+         * @param stream PrintStream object for output
+         * @throws IOException
+         */
+        public static void printHelp(PrintStream stream) throws IOException {
+            stream.println();
+            stream.println("NAME");
+            stream.println("  deploy releases - List application releases, marking the active one");
+            stream.println();
+            stream.println("SYNOPSIS");
+            stream.println("  deploy releases --config <config-path> [--parallelism <n>]");
+            stream.println();
+            getParser().printHelpOn(stream);
+            stream.println();
+        }
+
+        /**
+         * Parses command-line and executes command.
+         * 
+         * @param args Command-line input
+         * @throws Exception
+         * 
+         */
+        public static void executeCommand(String[] args) throws Exception {
+
+            OptionParser parser = getParser();
+
+            // declare parameters
+            String configPath = null;
+
+            // parse command-line input
+            OptionSet options = parser.parse(args);
+            if(options.has(ParserUtils.OPT_HELP)) {
+                printHelp(System.out);
+                return;
+            }
+
+            // check required options and/or conflicting options
+            ParserUtils.checkRequired(options, ParserUtils.OPT_CONFIG);
+
+            // load parameters
+            configPath = (String) options.valueOf(ParserUtils.OPT_CONFIG);
+
+            // execute command
+            NaginiClient naginiClient = new NaginiClient(configPath);
+            ParserUtils.applyClientOptions(options, naginiClient);
+            naginiClient.releaseOps.listAllHosts();
+        }
+    }
 }
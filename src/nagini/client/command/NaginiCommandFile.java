@@ -3,11 +3,15 @@ package nagini.client.command;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.util.Arrays;
 
 import joptsimple.OptionParser;
 import joptsimple.OptionSet;
 import nagini.client.NaginiClient;
 
+import com.google.common.collect.LinkedListMultimap;
+import com.google.common.collect.ListMultimap;
+
 /**
  * Implements all file commands.
  */
@@ -28,6 +32,12 @@ public class NaginiCommandFile extends AbstractCommand {
             SubCommandFileGet.executeCommand(args);
         } else if(subCmd.equals("delete")) {
             SubCommandFileDelete.executeCommand(args);
+        } else if(subCmd.equals("sync")) {
+            SubCommandFileSync.executeCommand(args);
+        } else if(subCmd.equals("cat")) {
+            SubCommandFileCat.executeCommand(args);
+        } else if(subCmd.equals("tail")) {
+            SubCommandFileTail.executeCommand(args);
         } else {
             printHelp(System.out);
         }
@@ -43,6 +53,9 @@ public class NaginiCommandFile extends AbstractCommand {
         stream.println("put         Put files to remote Nagini hosts.");
         stream.println("get         Get files from remote Nagini hosts.");
         stream.println("delete      Delete files on remote Nagini hosts.");
+        stream.println("sync        Send only new and changed files to remote Nagini hosts.");
+        stream.println("cat         Print a range of files on remote Nagini hosts.");
+        stream.println("tail        Print the last lines of files on remote Nagini hosts.");
         stream.println();
         stream.println("To get more information on each command,");
         stream.println("please try \'help file <command-name>\'.");
@@ -62,6 +75,12 @@ public class NaginiCommandFile extends AbstractCommand {
             SubCommandFileGet.printHelp(stream);
         } else if(subCmd.equals("delete")) {
             SubCommandFileDelete.printHelp(stream);
+        } else if(subCmd.equals("sync")) {
+            SubCommandFileSync.printHelp(stream);
+        } else if(subCmd.equals("cat")) {
+            SubCommandFileCat.printHelp(stream);
+        } else if(subCmd.equals("tail")) {
+            SubCommandFileTail.printHelp(stream);
         } else {
             printHelp(stream);
         }
@@ -86,6 +105,9 @@ public class NaginiCommandFile extends AbstractCommand {
             ParserUtils.acceptsLocalPath(parser);
             ParserUtils.acceptsRemotePath(parser);
             ParserUtils.acceptsRemoteNodePath(parser);
+            // optional options
+            ParserUtils.acceptsParallelism(parser);
+            ParserUtils.acceptsTransferOptions(parser);
             return parser;
         }
 
@@ -103,6 +125,9 @@ public class NaginiCommandFile extends AbstractCommand {
             stream.println("SYNOPSIS");
             stream.println("  file put --config <config-path> --local-path <local-path>");
             stream.println("           (--remote-path <remote-path> | --remote-node-path <node-rel-path>)");
+            stream.println("           [--parallelism <n>] [--transfer-mode <mode>]");
+            stream.println("           [--compression <mode>] [--compression-level <level>]");
+            stream.println("           [--rate-per-host <rate>] [--rate-total <rate>]");
             stream.println();
             getParser().printHelpOn(stream);
             stream.println();
@@ -153,6 +178,7 @@ public class NaginiCommandFile extends AbstractCommand {
 
             // execute command
             NaginiClient naginiClient = new NaginiClient(configPath);
+            ParserUtils.applyClientOptions(options, naginiClient);
             if(remotePath != null) {
                 naginiClient.fileOps.putAllHosts(localPath, remotePath);
             } else {
@@ -187,6 +213,9 @@ public class NaginiCommandFile extends AbstractCommand {
             ParserUtils.acceptsLocalPath(parser);
             ParserUtils.acceptsRemotePath(parser);
             ParserUtils.acceptsRemoteNodePath(parser);
+            // optional options
+            ParserUtils.acceptsParallelism(parser);
+            ParserUtils.acceptsTransferOptions(parser);
             return parser;
         }
 
@@ -204,6 +233,9 @@ public class NaginiCommandFile extends AbstractCommand {
             stream.println("SYNOPSIS");
             stream.println("  file get --config <config-path> --local-path <local-path>");
             stream.println("           (--remote-path <remote-path> | --remote-node-path <node-rel-path>)");
+            stream.println("           [--parallelism <n>] [--transfer-mode <mode>]");
+            stream.println("           [--compression <mode>] [--compression-level <level>]");
+            stream.println("           [--rate-per-host <rate>] [--rate-total <rate>]");
             stream.println();
             getParser().printHelpOn(stream);
             stream.println();
@@ -254,6 +286,7 @@ public class NaginiCommandFile extends AbstractCommand {
 
             // execute command
             NaginiClient naginiClient = new NaginiClient(configPath);
+            ParserUtils.applyClientOptions(options, naginiClient);
             if(remotePath != null) {
                 naginiClient.fileOps.getAllHosts(remotePath, localPath);
             } else {
@@ -288,6 +321,8 @@ public class NaginiCommandFile extends AbstractCommand {
             ParserUtils.acceptsConfig(parser);
             ParserUtils.acceptsRemotePath(parser);
             ParserUtils.acceptsRemoteNodePath(parser);
+            // optional options
+            ParserUtils.acceptsParallelism(parser);
             return parser;
         }
 
@@ -305,6 +340,7 @@ public class NaginiCommandFile extends AbstractCommand {
             stream.println("SYNOPSIS");
             stream.println("  file delete --config <config-path>");
             stream.println("              (--remote-path <remote-path> | --remote-node-path <node-rel-path>)");
+            stream.println("              [--parallelism <n>]");
             stream.println();
             getParser().printHelpOn(stream);
             stream.println();
@@ -358,6 +394,7 @@ public class NaginiCommandFile extends AbstractCommand {
 
             // execute command
             NaginiClient naginiClient = new NaginiClient(configPath);
+            ParserUtils.applyClientOptions(options, naginiClient);
             if(remotePath != null) {
                 naginiClient.fileOps.deleteAllHosts(remotePath);
             } else {
@@ -372,4 +409,351 @@ public class NaginiCommandFile extends AbstractCommand {
             }
         }
     }
+
+    /**
+     * file sync command
+     */
+    public static class SubCommandFileSync extends AbstractCommand {
+
+        /**
+         * Initializes parser
+         * 
+         * @return OptionParser object with all available options
+         */
+        protected static OptionParser getParser() {
+            OptionParser parser = new OptionParser();
+            // help options
+            ParserUtils.acceptsHelp(parser);
+            // required options
+            ParserUtils.acceptsConfig(parser);
+            ParserUtils.acceptsLocalPath(parser);
+            ParserUtils.acceptsRemotePath(parser);
+            // optional options
+            ParserUtils.acceptsMirror(parser);
+            ParserUtils.acceptsParallelism(parser);
+            ParserUtils.acceptsTransferRate(parser);
+            return parser;
+        }
+
+        /**
+         * Prints help menu for command.
+         * 
+         * @param stream PrintStream object for output
+         * @throws IOException
+         */
+        public static void printHelp(PrintStream stream) throws IOException {
+            stream.println();
+            stream.println("NAME");
+            stream.println("  file sync - Send only new and changed files to all remote servers");
+            stream.println();
+            stream.println("SYNOPSIS");
+            stream.println("  file sync --config <config-path> --local-path <local-path>");
+            stream.println("            --remote-path <remote-path> [--mirror] [--parallelism <n>]");
+            stream.println("            [--rate-per-host <rate>] [--rate-total <rate>]");
+            stream.println();
+            getParser().printHelpOn(stream);
+            stream.println();
+        }
+
+        /**
+         * Parses command-line and executes command.
+         * 
+         * @param args Command-line input
+         * @throws IOException
+         * 
+         */
+        public static void executeCommand(String[] args) throws IOException {
+
+            OptionParser parser = getParser();
+
+            // declare parameters
+            String configPath = null;
+            String localPath = null;
+            String remotePath = null;
+            boolean mirror = false;
+
+            // parse command-line input
+            OptionSet options = parser.parse(args);
+            if(options.has(ParserUtils.OPT_HELP)) {
+                printHelp(System.out);
+                return;
+            }
+
+            // check required options and/or conflicting options
+            ParserUtils.checkRequired(options, ParserUtils.OPT_CONFIG);
+            ParserUtils.checkRequired(options, ParserUtils.OPT_LOCAL_PATH);
+            ParserUtils.checkRequired(options, ParserUtils.OPT_REMOTE_PATH);
+
+            // load parameters
+            configPath = (String) options.valueOf(ParserUtils.OPT_CONFIG);
+            localPath = (String) options.valueOf(ParserUtils.OPT_LOCAL_PATH);
+            remotePath = (String) options.valueOf(ParserUtils.OPT_REMOTE_PATH);
+            mirror = options.has(ParserUtils.OPT_MIRROR);
+
+            // execute command
+            NaginiClient naginiClient = new NaginiClient(configPath);
+            ParserUtils.applyClientOptions(options, naginiClient);
+            naginiClient.fileOps.syncAllHosts(localPath, remotePath, mirror);
+        }
+    }
+
+    private static final String OPT_RANGE = "range";
+    private static final String OPT_LINES = "lines";
+    private static final String OPT_F = "f";
+    private static final String OPT_FOLLOW = "follow";
+    private static final String OPT_I = "i";
+    private static final String OPT_INTERVAL = "interval";
+
+    /**
+     * Lists the remote files given either by an absolute path, which is read
+     * on every host, or by a path relative to the node paths, which is read
+     * for every node.
+     * 
+     * @param naginiClient
+     * @param remotePath absolute remote path, or null
+     * @param remoteNodePath remote path relative to node paths, or null
+     * @return remote file paths by host name
+     */
+    private static ListMultimap<String, String> getRemoteFiles(NaginiClient naginiClient,
+                                                               String remotePath,
+                                                               String remoteNodePath) {
+        ListMultimap<String, String> remoteFiles = LinkedListMultimap.create();
+        for(String hostName: naginiClient.config.server.mapHostToNodes.keySet()) {
+            if(remotePath != null) {
+                remoteFiles.put(hostName, remotePath);
+                continue;
+            }
+            for(Integer nodeId: naginiClient.config.server.mapHostToNodes.get(hostName)) {
+                remoteFiles.put(hostName, naginiClient.config.server.getNodePath(nodeId)
+                                          + File.separator + remoteNodePath);
+            }
+        }
+        return remoteFiles;
+    }
+
+    /**
+     * file cat command
+     */
+    public static class SubCommandFileCat extends AbstractCommand {
+
+        /**
+         * Initializes parser
+         * 
+         * @return OptionParser object with all available options
+         */
+        protected static OptionParser getParser() {
+            OptionParser parser = new OptionParser();
+            // help options
+            ParserUtils.acceptsHelp(parser);
+            // required options
+            ParserUtils.acceptsConfig(parser);
+            ParserUtils.acceptsRemotePath(parser);
+            ParserUtils.acceptsRemoteNodePath(parser);
+            // optional options
+            parser.accepts(OPT_RANGE,
+                           "bytes to print as <offset>:<length>, where a negative offset counts back from the end and an empty length reads up to the end, e.g. -4096:")
+                  .withRequiredArg()
+                  .describedAs("offset:length")
+                  .ofType(String.class);
+            return parser;
+        }
+
+        /**
+         * Prints help menu for command.
+         * 
+         * @param stream PrintStream object for output
+         * @throws IOException
+         */
+        public static void printHelp(PrintStream stream) throws IOException {
+            stream.println();
+            stream.println("NAME");
+            stream.println("  file cat - Print a range of a file on all remote servers");
+            stream.println();
+            stream.println("SYNOPSIS");
+            stream.println("  file cat --config <config-path>");
+            stream.println("           (--remote-path <remote-path> | --remote-node-path <node-rel-path>)");
+            stream.println("           [--range <offset:length>]");
+            stream.println();
+            getParser().printHelpOn(stream);
+            stream.println();
+        }
+
+        /**
+         * Parses command-line and executes command.
+         * 
+         * @param args Command-line input
+         * @throws IOException
+         * 
+         */
+        public static void executeCommand(String[] args) throws IOException {
+
+            OptionParser parser = getParser();
+
+            // declare parameters
+            String configPath = null;
+            String remotePath = null;
+            String remoteNodePath = null;
+            long offset = 0;
+            long length = -1;
+
+            // parse command-line input
+            OptionSet options = parser.parse(args);
+            if(options.has(ParserUtils.OPT_HELP)) {
+                printHelp(System.out);
+                return;
+            }
+
+            // check required options and/or conflicting options
+            ParserUtils.checkRequired(options, ParserUtils.OPT_CONFIG);
+            ParserUtils.checkRequired(options,
+                                      ParserUtils.OPT_REMOTE_PATH,
+                                      ParserUtils.OPT_REMOTE_NODE_PATH);
+
+            // load parameters
+            configPath = (String) options.valueOf(ParserUtils.OPT_CONFIG);
+            if(options.has(ParserUtils.OPT_REMOTE_PATH)) {
+                remotePath = (String) options.valueOf(ParserUtils.OPT_REMOTE_PATH);
+            }
+            if(options.has(ParserUtils.OPT_REMOTE_NODE_PATH)) {
+                remoteNodePath = (String) options.valueOf(ParserUtils.OPT_REMOTE_NODE_PATH);
+            }
+            if(options.has(OPT_RANGE)) {
+                String range = (String) options.valueOf(OPT_RANGE);
+                int colon = range.indexOf(':');
+                try {
+                    if(colon < 0) {
+                        throw new NumberFormatException();
+                    }
+                    String offsetPart = range.substring(0, colon).trim();
+                    String lengthPart = range.substring(colon + 1).trim();
+                    offset = offsetPart.isEmpty() ? 0 : Long.parseLong(offsetPart);
+                    length = lengthPart.isEmpty() ? -1 : Long.parseLong(lengthPart);
+                    if(lengthPart.startsWith("-")) {
+                        throw new NumberFormatException();
+                    }
+                } catch(NumberFormatException e) {
+                    throw new IllegalArgumentException("invalid range " + range);
+                }
+            }
+
+            // execute command
+            NaginiClient naginiClient = new NaginiClient(configPath);
+            naginiClient.fileOps.catAllHosts(getRemoteFiles(naginiClient,
+                                                            remotePath,
+                                                            remoteNodePath),
+                                             offset,
+                                             length);
+        }
+    }
+
+    /**
+     * file tail command
+     */
+    public static class SubCommandFileTail extends AbstractCommand {
+
+        /**
+         * Initializes parser
+         * 
+         * @return OptionParser object with all available options
+         */
+        protected static OptionParser getParser() {
+            OptionParser parser = new OptionParser();
+            // help options
+            ParserUtils.acceptsHelp(parser);
+            // required options
+            ParserUtils.acceptsConfig(parser);
+            ParserUtils.acceptsRemotePath(parser);
+            ParserUtils.acceptsRemoteNodePath(parser);
+            // optional options
+            parser.accepts(OPT_LINES, "number of last lines to print, 10 by default")
+                  .withRequiredArg()
+                  .describedAs("line-number")
+                  .ofType(Integer.class);
+            parser.acceptsAll(Arrays.asList(OPT_F, OPT_FOLLOW), "keep printing what is appended");
+            parser.acceptsAll(Arrays.asList(OPT_I, OPT_INTERVAL),
+                              "interval seconds to check for appended output, 1 by default")
+                  .withRequiredArg()
+                  .describedAs("second")
+                  .ofType(Integer.class);
+            return parser;
+        }
+
+        /**
+         * Prints help menu for command.
+         * 
+         * @param stream PrintStream object for output
+         * @throws IOException
+         */
+        public static void printHelp(PrintStream stream) throws IOException {
+            stream.println();
+            stream.println("NAME");
+            stream.println("  file tail - Print the last lines of a file on all remote servers");
+            stream.println();
+            stream.println("SYNOPSIS");
+            stream.println("  file tail --config <config-path>");
+            stream.println("            (--remote-path <remote-path> | --remote-node-path <node-rel-path>)");
+            stream.println("            [--lines <line-number>] [--follow [--interval <second>]]");
+            stream.println();
+            getParser().printHelpOn(stream);
+            stream.println();
+        }
+
+        /**
+         * Parses command-line and executes command.
+         * 
+         * @param args Command-line input
+         * @throws IOException
+         * 
+         */
+        public static void executeCommand(String[] args) throws IOException {
+
+            OptionParser parser = getParser();
+
+            // declare parameters
+            String configPath = null;
+            String remotePath = null;
+            String remoteNodePath = null;
+            Integer lines = 10;
+            boolean follow = false;
+            Integer interval = 1;
+
+            // parse command-line input
+            OptionSet options = parser.parse(args);
+            if(options.has(ParserUtils.OPT_HELP)) {
+                printHelp(System.out);
+                return;
+            }
+
+            // check required options and/or conflicting options
+            ParserUtils.checkRequired(options, ParserUtils.OPT_CONFIG);
+            ParserUtils.checkRequired(options,
+                                      ParserUtils.OPT_REMOTE_PATH,
+                                      ParserUtils.OPT_REMOTE_NODE_PATH);
+
+            // load parameters
+            configPath = (String) options.valueOf(ParserUtils.OPT_CONFIG);
+            if(options.has(ParserUtils.OPT_REMOTE_PATH)) {
+                remotePath = (String) options.valueOf(ParserUtils.OPT_REMOTE_PATH);
+            }
+            if(options.has(ParserUtils.OPT_REMOTE_NODE_PATH)) {
+                remoteNodePath = (String) options.valueOf(ParserUtils.OPT_REMOTE_NODE_PATH);
+            }
+            if(options.has(OPT_LINES)) {
+                lines = (Integer) options.valueOf(OPT_LINES);
+            }
+            follow = options.has(OPT_FOLLOW);
+            if(options.has(OPT_INTERVAL)) {
+                interval = (Integer) options.valueOf(OPT_INTERVAL);
+            }
+
+            // execute command
+            NaginiClient naginiClient = new NaginiClient(configPath);
+            naginiClient.fileOps.tailAllHosts(getRemoteFiles(naginiClient,
+                                                             remotePath,
+                                                             remoteNodePath),
+                                              lines,
+                                              follow,
+                                              interval);
+        }
+    }
 }
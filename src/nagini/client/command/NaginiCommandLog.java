@@ -0,0 +1,423 @@
+package nagini.client.command;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+import nagini.client.NaginiClient;
+import nagini.protocol.Throttle;
+
+import com.google.common.collect.Sets;
+
+/**
+ * Implements all log commands.
+ */
+public class NaginiCommandLog extends AbstractCommand {
+
+    /**
+     * Parses command-line and directs to sub-commands.
+     *
+     * @param args Command-line input
+     * @throws Exception
+     */
+    public static void executeCommand(String[] args) throws Exception {
+        String subCmd = (args.length > 0) ? args[0] : "";
+        args = CommandUtils.copyArrayCutFirst(args);
+        if(subCmd.equals("query")) {
+            SubCommandLogQuery.executeCommand(args);
+        } else if(subCmd.equals("search")) {
+            SubCommandLogSearch.executeCommand(args);
+        } else {
+            printHelp(System.out);
+        }
+    }
+
+    /**
+     * Prints command-line help menu.
+     * */
+    public static void printHelp(PrintStream stream) {
+        stream.println();
+        stream.println("Nagini Log Commands");
+        stream.println("-------------------");
+        stream.println("query        Print application node output written in a time window.");
+        stream.println("search       Search application node output for a pattern.");
+        stream.println();
+        stream.println("To get more information on each command,");
+        stream.println("please try \'help log <command-name>\'.");
+        stream.println();
+    }
+
+    /**
+     * Parses command-line input and prints help menu.
+     *
+     * @throws Exception
+     */
+    public static void executeHelp(String[] args, PrintStream stream) throws Exception {
+        String subCmd = (args.length > 0) ? args[0] : "";
+        if(subCmd.equals("query")) {
+            SubCommandLogQuery.printHelp(stream);
+        } else if(subCmd.equals("search")) {
+            SubCommandLogSearch.printHelp(stream);
+        } else {
+            printHelp(stream);
+        }
+    }
+
+    private static final String OPT_FROM = "from";
+    private static final String OPT_TO = "to";
+    private static final String OPT_E = "e";
+    private static final String OPT_REGEXP = "regexp";
+    private static final String OPT_F = "F";
+    private static final String OPT_FIXED_STRING = "fixed-string";
+    private static final String OPT_C = "C";
+    private static final String OPT_AROUND = "around";
+    private static final String OPT_MAX_MATCHES = "max-matches";
+    private static final String OPT_MAX_BYTES = "max-bytes";
+
+    // accepted time formats, times of day are of today
+    private static final String[] DATE_TIME_FORMATS = { "yyyy-MM-dd HH:mm:ss", "yyyy-MM-dd HH:mm" };
+    private static final String[] TIME_FORMATS = { "HH:mm:ss", "HH:mm" };
+
+    /**
+     * Parses a time given as yyyy-MM-dd HH:mm[:ss], as HH:mm[:ss] of today,
+     * or in milliseconds since the epoch.
+     *
+     * @param time
+     * @return milliseconds since the epoch
+     */
+    static long parseTime(String time) {
+        time = time.trim();
+        if(time.matches("\\d{9,}")) {
+            return Long.parseLong(time);
+        }
+        for(String format: DATE_TIME_FORMATS) {
+            Date date = parseTime(time, format);
+            if(date != null) {
+                return date.getTime();
+            }
+        }
+        for(String format: TIME_FORMATS) {
+            Date date = parseTime(time, format);
+            if(date != null) {
+                Calendar timeOfDay = Calendar.getInstance();
+                timeOfDay.setTime(date);
+                Calendar today = Calendar.getInstance();
+                today.set(Calendar.HOUR_OF_DAY, timeOfDay.get(Calendar.HOUR_OF_DAY));
+                today.set(Calendar.MINUTE, timeOfDay.get(Calendar.MINUTE));
+                today.set(Calendar.SECOND, timeOfDay.get(Calendar.SECOND));
+                today.set(Calendar.MILLISECOND, 0);
+                return today.getTimeInMillis();
+            }
+        }
+        throw new IllegalArgumentException("Client: invalid time " + time);
+    }
+
+    private static Date parseTime(String time, String format) {
+        SimpleDateFormat dateFormat = new SimpleDateFormat(format);
+        dateFormat.setLenient(false);
+        try {
+            Date date = dateFormat.parse(time);
+            // reject trailing text, e.g. seconds given to a format without
+            return dateFormat.format(date).length() == time.length() ? date : null;
+        } catch(ParseException e) {
+            return null;
+        }
+    }
+
+    /**
+     * log query command
+     */
+    public static class SubCommandLogQuery extends AbstractCommand {
+
+        /**
+         * Initializes parser
+         *
+         * @return OptionParser object with all available options
+         */
+        protected static OptionParser getParser() {
+            OptionParser parser = new OptionParser();
+            // help options
+            ParserUtils.acceptsHelp(parser);
+            // required options
+            ParserUtils.acceptsConfig(parser);
+            parser.accepts(OPT_FROM, "start of the time window")
+                  .withRequiredArg()
+                  .describedAs("time")
+                  .ofType(String.class);
+            // optional options
+            parser.accepts(OPT_TO, "end of the time window, now if not given")
+                  .withRequiredArg()
+                  .describedAs("time")
+                  .ofType(String.class);
+            parser.accepts(OPT_MAX_BYTES,
+                           "most bytes of lines to print from each node, with a k, m or g "
+                                   + "suffix, 64m by default")
+                  .withRequiredArg()
+                  .describedAs("bytes")
+                  .ofType(String.class);
+            ParserUtils.acceptsAllNodes(parser);
+            ParserUtils.acceptsNodeMultiple(parser);
+            return parser;
+        }
+
+        /**
+         * Prints help menu for command.
+         *
+         * @param stream PrintStream object for output
+         * @throws IOException
+         */
+        public static void printHelp(PrintStream stream) throws IOException {
+            stream.println();
+            stream.println("NAME");
+            stream.println("  log query - Print node output written in a time window");
+            stream.println();
+            stream.println("SYNOPSIS");
+            stream.println("  log query --config <config-path> --from <time> [--to <time>]");
+            stream.println("            [--max-bytes <bytes>] [-n <node-id-list> | --all-nodes]");
+            stream.println();
+            stream.println("  A time is given as 'yyyy-MM-dd HH:mm[:ss]', as 'HH:mm[:ss]' of");
+            stream.println("  today, or in milliseconds since the epoch.");
+            stream.println();
+            getParser().printHelpOn(stream);
+            stream.println();
+        }
+
+        /**
+         * Parses command-line and executes command.
+         *
+         * @param args Command-line input
+         * @throws IOException
+         *
+         */
+        @SuppressWarnings("unchecked")
+        public static void executeCommand(String[] args) throws IOException {
+
+            OptionParser parser = getParser();
+
+            // declare parameters
+            String configPath = null;
+            Boolean allNodes = true;
+            List<Integer> nodeIds = null;
+            long from;
+            long to;
+            long maxBytes = Throttle.parseRate("64m");
+
+            // parse command-line input
+            OptionSet options = parser.parse(args);
+            if(options.has(ParserUtils.OPT_HELP)) {
+                printHelp(System.out);
+                return;
+            }
+
+            // check required options and/or conflicting options
+            ParserUtils.checkRequired(options, ParserUtils.OPT_CONFIG);
+            ParserUtils.checkRequired(options, OPT_FROM);
+            ParserUtils.checkOptional(options, ParserUtils.OPT_NODE, ParserUtils.OPT_ALL_NODES);
+
+            // load parameters
+            configPath = (String) options.valueOf(ParserUtils.OPT_CONFIG);
+            if(options.has(ParserUtils.OPT_NODE)) {
+                nodeIds = (List<Integer>) options.valuesOf(ParserUtils.OPT_NODE);
+                allNodes = false;
+            }
+            from = parseTime((String) options.valueOf(OPT_FROM));
+            if(options.has(OPT_TO)) {
+                to = parseTime((String) options.valueOf(OPT_TO));
+            } else {
+                to = System.currentTimeMillis();
+            }
+            if(to < from) {
+                throw new IllegalArgumentException("Client: --to is before --from");
+            }
+            if(options.has(OPT_MAX_BYTES)) {
+                maxBytes = Throttle.parseRate((String) options.valueOf(OPT_MAX_BYTES));
+            }
+            if(maxBytes < 1) {
+                throw new IllegalArgumentException("Client: invalid max bytes " + maxBytes);
+            }
+
+            // execute command
+            NaginiClient naginiClient = new NaginiClient(configPath);
+            if(allNodes) {
+                naginiClient.logOps.queryAllNodes(from, to, maxBytes);
+            } else {
+                Set<Integer> nodeIdSet = Sets.newHashSet(nodeIds);
+                naginiClient.logOps.queryMultipleNodes(nodeIdSet, from, to, maxBytes);
+            }
+        }
+    }
+
+    /**
+     * log search command
+     */
+    public static class SubCommandLogSearch extends AbstractCommand {
+
+        /**
+         * Initializes parser
+         *
+         * @return OptionParser object with all available options
+         */
+        protected static OptionParser getParser() {
+            OptionParser parser = new OptionParser();
+            // help options
+            ParserUtils.acceptsHelp(parser);
+            // required options
+            ParserUtils.acceptsConfig(parser);
+            parser.acceptsAll(Arrays.asList(OPT_E, OPT_REGEXP), "regular expression to look for")
+                  .withRequiredArg()
+                  .describedAs("regexp")
+                  .ofType(String.class);
+            parser.acceptsAll(Arrays.asList(OPT_F, OPT_FIXED_STRING), "text to look for as is")
+                  .withRequiredArg()
+                  .describedAs("text")
+                  .ofType(String.class);
+            // optional options
+            parser.accepts(OPT_FROM, "start of the time window, the oldest output if not given")
+                  .withRequiredArg()
+                  .describedAs("time")
+                  .ofType(String.class);
+            parser.accepts(OPT_TO, "end of the time window, now if not given")
+                  .withRequiredArg()
+                  .describedAs("time")
+                  .ofType(String.class);
+            parser.acceptsAll(Arrays.asList(OPT_C, OPT_AROUND),
+                              "lines to print before and after each match, 0 by default")
+                  .withRequiredArg()
+                  .describedAs("lines")
+                  .ofType(Integer.class);
+            parser.accepts(OPT_MAX_MATCHES, "most matches to print from each host, 1000 by default")
+                  .withRequiredArg()
+                  .describedAs("matches")
+                  .ofType(Integer.class);
+            parser.accepts(OPT_MAX_BYTES,
+                           "most bytes of lines to print, with a k, m or g suffix, 16m by default")
+                  .withRequiredArg()
+                  .describedAs("bytes")
+                  .ofType(String.class);
+            ParserUtils.acceptsAllNodes(parser);
+            ParserUtils.acceptsNodeMultiple(parser);
+            return parser;
+        }
+
+        /**
+         * Prints help menu for command.
+         *
+         * @param stream PrintStream object for output
+         * @throws IOException
+         */
+        public static void printHelp(PrintStream stream) throws IOException {
+            stream.println();
+            stream.println("NAME");
+            stream.println("  log search - Search node output for a pattern");
+            stream.println();
+            stream.println("SYNOPSIS");
+            stream.println("  log search --config <config-path> (-e <regexp> | -F <text>)");
+            stream.println("             [--from <time>] [--to <time>] [-C <lines>]");
+            stream.println("             [--max-matches <matches>] [--max-bytes <bytes>]");
+            stream.println("             [-n <node-id-list> | --all-nodes]");
+            stream.println();
+            stream.println("  Matching lines are printed with '> ', lines of context with '  '.");
+            stream.println("  A time is given as in 'log query'.");
+            stream.println();
+            getParser().printHelpOn(stream);
+            stream.println();
+        }
+
+        /**
+         * Parses command-line and executes command.
+         *
+         * @param args Command-line input
+         * @throws IOException
+         *
+         */
+        @SuppressWarnings("unchecked")
+        public static void executeCommand(String[] args) throws IOException {
+
+            OptionParser parser = getParser();
+
+            // declare parameters
+            String configPath = null;
+            Boolean allNodes = true;
+            List<Integer> nodeIds = null;
+            String expression;
+            Boolean literal;
+            long from = 0;
+            long to = Long.MAX_VALUE;
+            Integer context = 0;
+            Integer maxMatches = 1000;
+            long maxBytes = Throttle.parseRate("16m");
+
+            // parse command-line input
+            OptionSet options = parser.parse(args);
+            if(options.has(ParserUtils.OPT_HELP)) {
+                printHelp(System.out);
+                return;
+            }
+
+            // check required options and/or conflicting options
+            ParserUtils.checkRequired(options, ParserUtils.OPT_CONFIG);
+            ParserUtils.checkRequired(options, OPT_REGEXP, OPT_FIXED_STRING);
+            ParserUtils.checkOptional(options, ParserUtils.OPT_NODE, ParserUtils.OPT_ALL_NODES);
+
+            // load parameters
+            configPath = (String) options.valueOf(ParserUtils.OPT_CONFIG);
+            if(options.has(ParserUtils.OPT_NODE)) {
+                nodeIds = (List<Integer>) options.valuesOf(ParserUtils.OPT_NODE);
+                allNodes = false;
+            }
+            literal = options.has(OPT_FIXED_STRING);
+            if(literal) {
+                expression = (String) options.valueOf(OPT_FIXED_STRING);
+            } else {
+                expression = (String) options.valueOf(OPT_REGEXP);
+            }
+            if(options.has(OPT_FROM)) {
+                from = parseTime((String) options.valueOf(OPT_FROM));
+            }
+            if(options.has(OPT_TO)) {
+                to = parseTime((String) options.valueOf(OPT_TO));
+            }
+            if(options.has(OPT_AROUND)) {
+                context = (Integer) options.valueOf(OPT_AROUND);
+            }
+            if(options.has(OPT_MAX_MATCHES)) {
+                maxMatches = (Integer) options.valueOf(OPT_MAX_MATCHES);
+            }
+            if(options.has(OPT_MAX_BYTES)) {
+                maxBytes = Throttle.parseRate((String) options.valueOf(OPT_MAX_BYTES));
+            }
+            if(to < from || context < 0 || maxMatches < 1 || maxBytes < 1) {
+                throw new IllegalArgumentException("Client: invalid search options");
+            }
+
+            // execute command
+            NaginiClient naginiClient = new NaginiClient(configPath);
+            if(allNodes) {
+                naginiClient.logOps.searchAllNodes(expression,
+                                                   literal,
+                                                   from,
+                                                   to,
+                                                   context,
+                                                   maxMatches,
+                                                   maxBytes);
+            } else {
+                naginiClient.logOps.searchMultipleNodes(Sets.newHashSet(nodeIds),
+                                                        expression,
+                                                        literal,
+                                                        from,
+                                                        to,
+                                                        context,
+                                                        maxMatches,
+                                                        maxBytes);
+            }
+        }
+    }
+}
@@ -20,6 +20,8 @@ public class NaginiCommandOther extends AbstractCommand {
         args = CommandUtils.copyArrayCutFirst(args);
         if(subCmd.equals("ping")) {
             NaginiCommandControl.SubCommandControlPing.executeCommand(args);
+        } else if(subCmd.equals("top")) {
+            NaginiCommandControl.SubCommandControlTop.executeCommand(args);
         } else {
             NaginiCommand.printHelp(System.out);
         }
@@ -34,6 +36,8 @@ public class NaginiCommandOther extends AbstractCommand {
         String subCmd = (args.length > 0) ? args[0] : "";
         if(subCmd.equals("ping")) {
             NaginiCommandControl.SubCommandControlPing.printHelp(stream);
+        } else if(subCmd.equals("top")) {
+            NaginiCommandControl.SubCommandControlTop.printHelp(stream);
         } else {
             NaginiCommand.printHelp(stream);
         }
@@ -0,0 +1,308 @@
+package nagini.client.command;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+import nagini.client.NaginiClient;
+import nagini.client.RollingRestart;
+
+import com.google.common.collect.Sets;
+
+/**
+ * Implements all restart commands.
+ */
+public class NaginiCommandRestart extends AbstractCommand {
+
+    /**
+     * Parses command-line and directs to sub-commands.
+     *
+     * @param args Command-line input
+     * @throws Exception
+     */
+    public static void executeCommand(String[] args) throws Exception {
+        String subCmd = (args.length > 0) ? args[0] : "";
+        args = CommandUtils.copyArrayCutFirst(args);
+        if(subCmd.equals("app")) {
+            SubCommandRestartApp.executeCommand(args);
+        } else {
+            printHelp(System.out);
+        }
+    }
+
+    /**
+     * Prints command-line help menu.
+     * */
+    public static void printHelp(PrintStream stream) {
+        stream.println();
+        stream.println("Nagini Restart Commands");
+        stream.println("-----------------------");
+        stream.println("app          Restart application nodes on remote hosts.");
+        stream.println();
+        stream.println("To get more information on each command,");
+        stream.println("please try \'help restart <command-name>\'.");
+        stream.println();
+    }
+
+    /**
+     * Parses command-line input and prints help menu.
+     *
+     * @throws Exception
+     */
+    public static void executeHelp(String[] args, PrintStream stream) throws Exception {
+        String subCmd = (args.length > 0) ? args[0] : "";
+        if(subCmd.equals("app")) {
+            SubCommandRestartApp.printHelp(stream);
+        } else {
+            printHelp(stream);
+        }
+    }
+
+    private static final String OPT_ROLLING = "rolling";
+    private static final String OPT_BATCH_SIZE = "batch-size";
+    private static final String OPT_MAX_UNAVAILABLE_PER_HOST = "max-unavailable-per-host";
+    private static final String OPT_MAX_UNAVAILABLE_PER_ZONE = "max-unavailable-per-zone";
+    private static final String OPT_STOP_TIMEOUT = "stop-timeout";
+    private static final String OPT_READY_PATTERN = "ready-pattern";
+    private static final String OPT_READY_DELAY = "ready-delay";
+    private static final String OPT_READY_TIMEOUT = "ready-timeout";
+    private static final String OPT_SETTLE = "settle";
+    private static final String OPT_ERROR_PATTERN = "error-pattern";
+    private static final String OPT_MAX_ERROR_RATE = "max-error-rate";
+    private static final String OPT_ON_ERROR = "on-error";
+
+    /**
+     * restart application command
+     */
+    public static class SubCommandRestartApp extends AbstractCommand {
+
+        /**
+         * Initializes parser
+         *
+         * @return OptionParser object with all available options
+         */
+        protected static OptionParser getParser() {
+            OptionParser parser = new OptionParser();
+            // help options
+            ParserUtils.acceptsHelp(parser);
+            // required options
+            ParserUtils.acceptsConfig(parser);
+            // optional options
+            ParserUtils.acceptsAllNodes(parser);
+            ParserUtils.acceptsNodeMultiple(parser);
+            parser.accepts(OPT_STOP_TIMEOUT, "seconds to wait for a node to stop, 60 by default")
+                  .withRequiredArg()
+                  .describedAs("second")
+                  .ofType(Integer.class);
+            parser.accepts(OPT_ROLLING,
+                           "restart nodes in batches, each once the one before is ready");
+            parser.accepts(OPT_BATCH_SIZE, "most nodes to restart at a time, 1 by default")
+                  .withRequiredArg()
+                  .describedAs("count")
+                  .ofType(Integer.class);
+            parser.accepts(OPT_MAX_UNAVAILABLE_PER_HOST,
+                           "most nodes of a host to have down at a time, 1 by default")
+                  .withRequiredArg()
+                  .describedAs("count")
+                  .ofType(Integer.class);
+            parser.accepts(OPT_MAX_UNAVAILABLE_PER_ZONE,
+                           "most nodes of a zone to have down at a time, no limit by default")
+                  .withRequiredArg()
+                  .describedAs("count")
+                  .ofType(Integer.class);
+            parser.accepts(OPT_READY_PATTERN, "output line that tells a node is ready")
+                  .withRequiredArg()
+                  .describedAs("regex");
+            parser.accepts(OPT_READY_DELAY,
+                           "seconds a node must keep running to be ready if there is no ready "
+                                   + "pattern, 10 by default")
+                  .withRequiredArg()
+                  .describedAs("second")
+                  .ofType(Integer.class);
+            parser.accepts(OPT_READY_TIMEOUT, "seconds for a node to get ready, 300 by default")
+                  .withRequiredArg()
+                  .describedAs("second")
+                  .ofType(Integer.class);
+            parser.accepts(OPT_SETTLE, "seconds to keep watching a batch once it is ready")
+                  .withRequiredArg()
+                  .describedAs("second")
+                  .ofType(Integer.class);
+            parser.accepts(OPT_ERROR_PATTERN,
+                           "output line that counts as an error, 'ERROR|Exception' by default")
+                  .withRequiredArg()
+                  .describedAs("regex");
+            parser.accepts(OPT_MAX_ERROR_RATE,
+                           "highest percentage of error lines in the output of a batch")
+                  .withRequiredArg()
+                  .describedAs("percent")
+                  .ofType(Double.class);
+            parser.accepts(OPT_ON_ERROR, "abort or pause when a batch fails, abort by default")
+                  .withRequiredArg()
+                  .describedAs("abort | pause");
+            return parser;
+        }
+
+        /**
+         * Prints help menu for command.
+         *
+         * @param stream PrintStream object for output
+         * @throws IOException
+         */
+        public static void printHelp(PrintStream stream) throws IOException {
+            stream.println();
+            stream.println("NAME");
+            stream.println("  restart app - Restart application nodes on remote hosts");
+            stream.println();
+            stream.println("SYNOPSIS");
+            stream.println("  restart app --config <config-path>");
+            stream.println("              [-n <node-id-list> | --all-nodes]");
+            stream.println("              [--stop-timeout <second>]");
+            stream.println("              [--rolling [--batch-size <count>]");
+            stream.println("               [--max-unavailable-per-host <count>]");
+            stream.println("               [--max-unavailable-per-zone <count>]");
+            stream.println("               [--ready-pattern <regex> | --ready-delay <second>]");
+            stream.println("               [--ready-timeout <second>] [--settle <second>]");
+            stream.println("               [--error-pattern <regex>] [--max-error-rate <percent>]");
+            stream.println("               [--on-error <abort | pause>]]");
+            stream.println();
+            stream.println("  Without --rolling, all nodes are restarted at once. With it, nodes");
+            stream.println("  are restarted in batches, and a batch is only started once the one");
+            stream.println("  before is ready: every node printed the ready pattern, or kept");
+            stream.println("  running for the ready delay, and then the batch settled. Nodes");
+            stream.println("  that are not running count as down, and no batch takes more nodes");
+            stream.println("  of a host, or of a zone of zone.list, down than allowed. A batch");
+            stream.println("  fails if a node does not come up in time or exits, or if the error");
+            stream.println("  rate of its output is too high; the restart then aborts, or asks");
+            stream.println("  whether to go on with --on-error pause. Rolling restarts read the");
+            stream.println("  output of the nodes, which needs server.watch.enabled on the");
+            stream.println("  servers.");
+            stream.println();
+            getParser().printHelpOn(stream);
+            stream.println();
+        }
+
+        /**
+         * Parses command-line and executes command.
+         *
+         * @param args Command-line input
+         * @throws IOException
+         *
+         */
+        @SuppressWarnings("unchecked")
+        public static void executeCommand(String[] args) throws IOException {
+
+            OptionParser parser = getParser();
+
+            // declare parameters
+            String configPath = null;
+            Boolean allNodes = true;
+            List<Integer> nodeIds = null;
+            Integer stopTimeout = 60;
+            RollingRestart rolling = new RollingRestart();
+
+            // parse command-line input
+            OptionSet options = parser.parse(args);
+            if(options.has(ParserUtils.OPT_HELP)) {
+                printHelp(System.out);
+                return;
+            }
+
+            // check required options and/or conflicting options
+            ParserUtils.checkRequired(options, ParserUtils.OPT_CONFIG);
+            ParserUtils.checkOptional(options, ParserUtils.OPT_NODE, ParserUtils.OPT_ALL_NODES);
+            ParserUtils.checkOptional(options, OPT_READY_PATTERN, OPT_READY_DELAY);
+            if(!options.has(OPT_ROLLING)) {
+                for(String option: new String[] { OPT_BATCH_SIZE, OPT_MAX_UNAVAILABLE_PER_HOST,
+                        OPT_MAX_UNAVAILABLE_PER_ZONE, OPT_READY_PATTERN, OPT_READY_DELAY,
+                        OPT_READY_TIMEOUT, OPT_SETTLE, OPT_ERROR_PATTERN, OPT_MAX_ERROR_RATE,
+                        OPT_ON_ERROR }) {
+                    if(options.has(option)) {
+                        throw new IllegalArgumentException("Client: --" + option
+                                                           + " needs --rolling");
+                    }
+                }
+            }
+
+            // load parameters
+            configPath = (String) options.valueOf(ParserUtils.OPT_CONFIG);
+            if(options.has(ParserUtils.OPT_NODE)) {
+                nodeIds = (List<Integer>) options.valuesOf(ParserUtils.OPT_NODE);
+                allNodes = false;
+            }
+            if(options.has(OPT_STOP_TIMEOUT)) {
+                stopTimeout = (Integer) options.valueOf(OPT_STOP_TIMEOUT);
+            }
+            if(stopTimeout < 0) {
+                throw new IllegalArgumentException("Client: invalid stop timeout " + stopTimeout);
+            }
+            rolling.setStopTimeout(stopTimeout);
+            if(options.has(OPT_BATCH_SIZE)) {
+                rolling.setBatchSize((Integer) options.valueOf(OPT_BATCH_SIZE));
+            }
+            if(options.has(OPT_MAX_UNAVAILABLE_PER_HOST)) {
+                Integer maxUnavailable = (Integer) options.valueOf(OPT_MAX_UNAVAILABLE_PER_HOST);
+                rolling.setMaxUnavailablePerHost(maxUnavailable);
+            }
+            if(options.has(OPT_MAX_UNAVAILABLE_PER_ZONE)) {
+                Integer maxUnavailable = (Integer) options.valueOf(OPT_MAX_UNAVAILABLE_PER_ZONE);
+                rolling.setMaxUnavailablePerZone(maxUnavailable);
+            }
+            if(options.has(OPT_READY_PATTERN)) {
+                String readyPattern = (String) options.valueOf(OPT_READY_PATTERN);
+                rolling.setReadyPattern(Pattern.compile(readyPattern));
+            }
+            if(options.has(OPT_READY_DELAY)) {
+                rolling.setReadyDelay((Integer) options.valueOf(OPT_READY_DELAY));
+            }
+            if(options.has(OPT_READY_TIMEOUT)) {
+                rolling.setReadyTimeout((Integer) options.valueOf(OPT_READY_TIMEOUT));
+            }
+            if(options.has(OPT_SETTLE)) {
+                rolling.setSettle((Integer) options.valueOf(OPT_SETTLE));
+            }
+            if(options.has(OPT_ERROR_PATTERN)) {
+                String errorPattern = (String) options.valueOf(OPT_ERROR_PATTERN);
+                rolling.setErrorPattern(Pattern.compile(errorPattern));
+            }
+            if(options.has(OPT_MAX_ERROR_RATE)) {
+                Double maxErrorRate = (Double) options.valueOf(OPT_MAX_ERROR_RATE);
+                if(maxErrorRate < 0 || maxErrorRate > 100) {
+                    throw new IllegalArgumentException("Client: invalid max error rate "
+                                                       + maxErrorRate);
+                }
+                rolling.setMaxErrorRate(maxErrorRate);
+            }
+            if(options.has(OPT_ON_ERROR)) {
+                String onError = (String) options.valueOf(OPT_ON_ERROR);
+                if(!onError.equals("abort") && !onError.equals("pause")) {
+                    throw new IllegalArgumentException("Client: invalid on-error action "
+                                                       + onError);
+                }
+                rolling.setPauseOnError(onError.equals("pause"));
+            }
+
+            // execute command
+            NaginiClient naginiClient = new NaginiClient(configPath);
+            Set<Integer> restartNodeIds = Sets.newHashSet();
+            if(allNodes) {
+                restartNodeIds.addAll(naginiClient.config.server.mapNodeToHost.keySet());
+            } else {
+                restartNodeIds.addAll(nodeIds);
+                for(Integer nodeId: restartNodeIds) {
+                    if(!naginiClient.config.server.mapNodeToHost.containsKey(nodeId)) {
+                        throw new IllegalArgumentException("Client: invalid node id " + nodeId);
+                    }
+                }
+            }
+            if(options.has(OPT_ROLLING)) {
+                naginiClient.serviceOps.restartApplicationRolling(restartNodeIds, rolling);
+            } else {
+                naginiClient.serviceOps.restartApplication(restartNodeIds, stopTimeout);
+            }
+        }
+    }
+}
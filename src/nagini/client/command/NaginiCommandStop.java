@@ -76,6 +76,7 @@ public class NaginiCommandStop extends AbstractCommand {
             // optional options
             ParserUtils.acceptsAllNodes(parser);
             ParserUtils.acceptsNodeMultiple(parser);
+            ParserUtils.acceptsParallelism(parser);
             return parser;
         }
 
@@ -91,7 +92,7 @@ public class NaginiCommandStop extends AbstractCommand {
             stream.println("  stop app - Stop all application nodes on remote hosts");
             stream.println();
             stream.println("SYNOPSIS");
-            stream.println("  stop app --config <config-path> [-n <node-id-list> | --all-nodes]");
+            stream.println("  stop app --config <config-path> [-n <node-id-list> | --all-nodes] [--parallelism <n>]");
             stream.println();
             getParser().printHelpOn(stream);
             stream.println();
@@ -136,6 +137,7 @@ public class NaginiCommandStop extends AbstractCommand {
 
             // execute command
             NaginiClient naginiClient = new NaginiClient(configPath);
+            ParserUtils.applyClientOptions(options, naginiClient);
             if(allNodes) {
                 naginiClient.serviceOps.stopApplicationAllNodes();
             } else {
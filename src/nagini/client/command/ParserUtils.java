@@ -5,6 +5,7 @@ import java.util.List;
 
 import joptsimple.OptionParser;
 import joptsimple.OptionSet;
+import nagini.client.NaginiClient;
 
 import com.google.common.collect.Lists;
 
@@ -25,13 +26,21 @@ public class ParserUtils {
     public static final String OPT_CONFIRM = "confirm";
     public static final String OPT_H = "h";
     public static final String OPT_HELP = "help";
+    public static final String OPT_MIRROR = "mirror";
     public static final String OPT_REFRESH = "refresh";
 
     // options with one argument
+    public static final String OPT_COMPRESSION = "compression";
+    public static final String OPT_COMPRESSION_LEVEL = "compression-level";
     public static final String OPT_CONFIG = "config";
     public static final String OPT_LOCAL_PATH = "local-path";
+    public static final String OPT_PARALLELISM = "parallelism";
+    public static final String OPT_RATE_PER_HOST = "rate-per-host";
+    public static final String OPT_RATE_TOTAL = "rate-total";
+    public static final String OPT_RELEASE = "release";
     public static final String OPT_REMOTE_PATH = "remote-path";
     public static final String OPT_REMOTE_NODE_PATH = "remote-node-path";
+    public static final String OPT_TRANSFER_MODE = "transfer-mode";
     public static final String OPT_U = "u";
     public static final String OPT_URL = "url";
 
@@ -74,6 +83,64 @@ public class ParserUtils {
         parser.acceptsAll(Arrays.asList(OPT_H, OPT_HELP), "show help menu");
     }
 
+    /**
+     * Adds OPT_MIRROR option to OptionParser, without argument.
+     * 
+     * @param parser OptionParser to be modified
+     */
+    public static void acceptsMirror(OptionParser parser) {
+        parser.accepts(OPT_MIRROR, "also delete remote files that do not exist locally");
+    }
+
+    /**
+     * Adds OPT_COMPRESSION and OPT_COMPRESSION_LEVEL options to OptionParser,
+     * with one argument each.
+     * 
+     * @param parser OptionParser to be modified
+     */
+    public static void acceptsCompression(OptionParser parser) {
+        parser.accepts(OPT_COMPRESSION,
+                       "deflate (every file), store (no file), auto (store known compressed extensions) or adaptive (also store files whose first block hardly deflates)")
+              .withRequiredArg()
+              .describedAs("mode")
+              .ofType(String.class);
+        parser.accepts(OPT_COMPRESSION_LEVEL, "deflate level, 0 to 9 or -1 for the default")
+              .withRequiredArg()
+              .describedAs("level")
+              .ofType(Integer.class);
+    }
+
+    /**
+     * Adds OPT_RATE_PER_HOST and OPT_RATE_TOTAL options to OptionParser, with
+     * one argument each.
+     * 
+     * @param parser OptionParser to be modified
+     */
+    public static void acceptsTransferRate(OptionParser parser) {
+        parser.accepts(OPT_RATE_PER_HOST,
+                       "bandwidth limit of the transfers with each host in bytes per second, with an optional k, m or g suffix, 0 for unlimited")
+              .withRequiredArg()
+              .describedAs("rate")
+              .ofType(String.class);
+        parser.accepts(OPT_RATE_TOTAL,
+                       "bandwidth limit of the transfers with all hosts together, as for --rate-per-host")
+              .withRequiredArg()
+              .describedAs("rate")
+              .ofType(String.class);
+    }
+
+    /**
+     * Adds the options that tune file transfers to OptionParser: OPT_TRANSFER_MODE,
+     * OPT_COMPRESSION, OPT_COMPRESSION_LEVEL, OPT_RATE_PER_HOST and OPT_RATE_TOTAL.
+     * 
+     * @param parser OptionParser to be modified
+     */
+    public static void acceptsTransferOptions(OptionParser parser) {
+        acceptsTransferMode(parser);
+        acceptsCompression(parser);
+        acceptsTransferRate(parser);
+    }
+
     /**
      * Adds OPT_CONFIG option to OptionParser, with one argument.
      * 
@@ -98,6 +165,30 @@ public class ParserUtils {
               .ofType(String.class);
     }
 
+    /**
+     * Adds OPT_PARALLELISM option to OptionParser, with one argument.
+     * 
+     * @param parser OptionParser to be modified
+     */
+    public static void acceptsParallelism(OptionParser parser) {
+        parser.accepts(OPT_PARALLELISM, "maximum number of hosts to work on at the same time")
+              .withRequiredArg()
+              .describedAs("n")
+              .ofType(Integer.class);
+    }
+
+    /**
+     * Adds OPT_RELEASE option to OptionParser, with one argument.
+     * 
+     * @param parser OptionParser to be modified
+     */
+    public static void acceptsRelease(OptionParser parser) {
+        parser.accepts(OPT_RELEASE, "release name, letters, digits, '-', '_' and '.' only")
+              .withRequiredArg()
+              .describedAs("release")
+              .ofType(String.class);
+    }
+
     /**
      * Adds OPT_REMOTE_PATH option to OptionParser, with one argument.
      * 
@@ -122,6 +213,19 @@ public class ParserUtils {
               .ofType(String.class);
     }
 
+    /**
+     * Adds OPT_TRANSFER_MODE option to OptionParser, with one argument.
+     * 
+     * @param parser OptionParser to be modified
+     */
+    public static void acceptsTransferMode(OptionParser parser) {
+        parser.accepts(OPT_TRANSFER_MODE,
+                       "archive (zip to temp file first), stream (zip into connection), dedup (only files the server lacks), delta (only changed blocks of a single file), relay (servers forward to each other) or sync (only new and changed files, extraneous ones deleted)")
+              .withRequiredArg()
+              .describedAs("mode")
+              .ofType(String.class);
+    }
+
     /**
      * Adds OPT_U | OPT_URL option to OptionParser, with one argument.
      * 
@@ -158,6 +262,35 @@ public class ParserUtils {
                 .withOptionalArg();
     }
 
+    /**
+     * Sets the parallelism and transfer options that were given to the client,
+     * so that the others keep their config values. Options that the parser of
+     * a command does not accept are never given.
+     * 
+     * @param options OptionSet to read
+     * @param naginiClient NaginiClient to be modified
+     */
+    public static void applyClientOptions(OptionSet options, NaginiClient naginiClient) {
+        if(options.has(OPT_PARALLELISM)) {
+            naginiClient.setParallelism((Integer) options.valueOf(OPT_PARALLELISM));
+        }
+        if(options.has(OPT_TRANSFER_MODE)) {
+            naginiClient.setTransferMode((String) options.valueOf(OPT_TRANSFER_MODE));
+        }
+        if(options.has(OPT_COMPRESSION)) {
+            naginiClient.setCompressionMode((String) options.valueOf(OPT_COMPRESSION));
+        }
+        if(options.has(OPT_COMPRESSION_LEVEL)) {
+            naginiClient.setCompressionLevel((Integer) options.valueOf(OPT_COMPRESSION_LEVEL));
+        }
+        if(options.has(OPT_RATE_PER_HOST)) {
+            naginiClient.setTransferRatePerHost((String) options.valueOf(OPT_RATE_PER_HOST));
+        }
+        if(options.has(OPT_RATE_TOTAL)) {
+            naginiClient.setTransferRateTotal((String) options.valueOf(OPT_RATE_TOTAL));
+        }
+    }
+
     /**
      * Checks if the required option exists.
      * 
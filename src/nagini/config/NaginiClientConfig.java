@@ -4,11 +4,31 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.Properties;
 
+import nagini.utils.CompressionPolicy;
+
 public class NaginiClientConfig {
 
+    // file transfer modes
+    public static final String TRANSFER_MODE_ARCHIVE = "archive";
+    public static final String TRANSFER_MODE_STREAM = "stream";
+    public static final String TRANSFER_MODE_DEDUP = "dedup";
+    public static final String TRANSFER_MODE_DELTA = "delta";
+    public static final String TRANSFER_MODE_RELAY = "relay";
+    public static final String TRANSFER_MODE_SYNC = "sync";
+
     // client properties
     private static final String PARAM_BASE_PATH = "client.base.path";
     private static final String PARAM_TEMP_PATH = "client.temp.path";
+    private static final String PARAM_PROTOCOL_VERSION = "client.protocol.version";
+    private static final String PARAM_FANOUT_PARALLELISM = "client.fanout.parallelism";
+    private static final String PARAM_TRANSFER_MODE = "client.transfer.mode";
+    private static final String PARAM_RELAY_FANOUT = "client.relay.fanout";
+    private static final String PARAM_TRANSFER_RETRIES = "client.transfer.retries";
+    private static final String PARAM_TRANSFER_RATE_PER_HOST = "client.transfer.rate.per.host";
+    private static final String PARAM_TRANSFER_RATE_TOTAL = "client.transfer.rate.total";
+    private static final String PARAM_COMPRESSION_MODE = "client.compression.mode";
+    private static final String PARAM_COMPRESSION_LEVEL = "client.compression.level";
+    private static final String PARAM_COMPRESSION_STORED_EXTENSIONS = "client.compression.stored.extensions";
 
     // client application properties
     private static final String PARAM_JAVA_EXEC = "client.java.exec";
@@ -20,6 +40,17 @@ public class NaginiClientConfig {
 
     public String basePath;
     public String tempPath;
+    public Integer protocolVersion;
+    public Integer fanoutParallelism;
+    public String transferMode;
+    public Integer relayFanout;
+    public Integer transferRetries;
+    // bytes per second, 0 for unlimited
+    public Long transferRatePerHost;
+    public Long transferRateTotal;
+    public String compressionMode;
+    public Integer compressionLevel;
+    public String compressionStoredExtensions;
     public String javaExec;
     public String appPacketPath;
     public String appFetchCommand;
@@ -30,6 +61,41 @@ public class NaginiClientConfig {
     public void loadConfig(Properties props) {
         basePath = props.getProperty(PARAM_BASE_PATH);
         tempPath = props.getProperty(PARAM_TEMP_PATH).replace("$", this.basePath);
+        protocolVersion = Integer.parseInt(props.getProperty(PARAM_PROTOCOL_VERSION, "2"));
+        fanoutParallelism = Integer.parseInt(props.getProperty(PARAM_FANOUT_PARALLELISM, "16"));
+        if(fanoutParallelism < 1) {
+            throw new IllegalArgumentException("Config: invalid " + PARAM_FANOUT_PARALLELISM
+                                               + " " + fanoutParallelism);
+        }
+        transferMode = props.getProperty(PARAM_TRANSFER_MODE, TRANSFER_MODE_ARCHIVE);
+        if(!isValidTransferMode(transferMode)) {
+            throw new IllegalArgumentException("Config: invalid " + PARAM_TRANSFER_MODE + " "
+                                               + transferMode);
+        }
+        relayFanout = Integer.parseInt(props.getProperty(PARAM_RELAY_FANOUT, "3"));
+        if(relayFanout < 1) {
+            throw new IllegalArgumentException("Config: invalid " + PARAM_RELAY_FANOUT + " "
+                                               + relayFanout);
+        }
+        transferRetries = Integer.parseInt(props.getProperty(PARAM_TRANSFER_RETRIES, "3"));
+        if(transferRetries < 0) {
+            throw new IllegalArgumentException("Config: invalid " + PARAM_TRANSFER_RETRIES + " "
+                                               + transferRetries);
+        }
+        transferRatePerHost = NaginiConfig.parseSize(props, PARAM_TRANSFER_RATE_PER_HOST, "0");
+        transferRateTotal = NaginiConfig.parseSize(props, PARAM_TRANSFER_RATE_TOTAL, "0");
+        compressionMode = props.getProperty(PARAM_COMPRESSION_MODE, CompressionPolicy.MODE_AUTO);
+        if(!CompressionPolicy.isValidMode(compressionMode)) {
+            throw new IllegalArgumentException("Config: invalid " + PARAM_COMPRESSION_MODE + " "
+                                               + compressionMode);
+        }
+        compressionLevel = Integer.parseInt(props.getProperty(PARAM_COMPRESSION_LEVEL, "-1"));
+        if(compressionLevel < -1 || compressionLevel > 9) {
+            throw new IllegalArgumentException("Config: invalid " + PARAM_COMPRESSION_LEVEL + " "
+                                               + compressionLevel);
+        }
+        compressionStoredExtensions = props.getProperty(PARAM_COMPRESSION_STORED_EXTENSIONS,
+                                                        CompressionPolicy.DEFAULT_STORED_EXTENSIONS);
         javaExec = props.getProperty(PARAM_JAVA_EXEC, "java").replace("$", this.basePath);
         appPacketPath = props.getProperty(PARAM_APP_PACKET_PATH).replace("$", this.basePath);
         appFetchCommand = props.getProperty(PARAM_APP_FETCH_COMMAND, "")
@@ -41,4 +107,13 @@ public class NaginiClientConfig {
         appBuildOutputSubPaths = Arrays.asList(props.getProperty(PARAM_APP_BUILD_OUTPUT_REL_PATHS,
                                                                  ".").split("\\s*,\\s*"));
     }
+
+    public static boolean isValidTransferMode(String transferMode) {
+        return TRANSFER_MODE_ARCHIVE.equals(transferMode)
+               || TRANSFER_MODE_STREAM.equals(transferMode)
+               || TRANSFER_MODE_DEDUP.equals(transferMode)
+               || TRANSFER_MODE_DELTA.equals(transferMode)
+               || TRANSFER_MODE_RELAY.equals(transferMode)
+               || TRANSFER_MODE_SYNC.equals(transferMode);
+    }
 }
@@ -8,12 +8,16 @@ import java.io.InputStream;
 import java.util.List;
 import java.util.Properties;
 
+import nagini.protocol.Throttle;
 import nagini.utils.NaginiFileUtils;
 
+import com.google.common.collect.Lists;
+
 public class NaginiConfig {
 
     private static final String NAGINI_PROPERTIES_FILE = "nagini.properties";
     public static final String HOST_LIST_FILE = "host.list";
+    public static final String ZONE_LIST_FILE = "zone.list";
 
     public NaginiServerConfig server;
     public NaginiClientConfig client;
@@ -43,11 +47,36 @@ public class NaginiConfig {
         String hostFilePath = configPath + File.separator + HOST_LIST_FILE;
         List<String> hostList = NaginiFileUtils.read(hostFilePath);
 
+        // load zone.list, which is optional
+        String zoneFilePath = configPath + File.separator + ZONE_LIST_FILE;
+        List<String> zoneList = Lists.newArrayList();
+        if(new File(zoneFilePath).exists()) {
+            zoneList = NaginiFileUtils.read(zoneFilePath);
+        }
+
         // load config from the above config files
         server.loadConfig(props, hostList);
+        server.loadZones(zoneList);
         client.loadConfig(props);
 
         System.out.println("Config: loaded config from " + configPath);
     }
 
+    /**
+     * Reads a size in bytes, or a rate in bytes per second, with an optional
+     * k, m or g suffix, see Throttle.parseRate.
+     *
+     * @param props
+     * @param param
+     * @param defaultValue
+     * @return
+     */
+    static long parseSize(Properties props, String param, String defaultValue) {
+        String size = props.getProperty(param, defaultValue);
+        try {
+            return Throttle.parseRate(size);
+        } catch(IllegalArgumentException e) {
+            throw new IllegalArgumentException("Config: invalid " + param + " " + size);
+        }
+    }
 }
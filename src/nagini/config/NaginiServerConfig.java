@@ -6,6 +6,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 
+import nagini.protocol.SocketAndStreams;
+
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 
@@ -15,6 +17,9 @@ public class NaginiServerConfig {
     private static final String NAGINI_FOLDER = "nagini";
     private static final String CONFIG_FOLDER = "config";
     private static final String APPLICATION_FOLDER = "application";
+    private static final String RELEASES_FOLDER = "application-releases";
+    private static final String BLOB_FOLDER = "blobs";
+    private static final String HASH_CACHE_FILE = "hashes.cache";
 
     // server/config files
     private static final String CONFIG_APPLICATION_FOLDER = "application";
@@ -32,7 +37,29 @@ public class NaginiServerConfig {
     private static final String PARAM_TEMP_PATH = "server.temp.path";
     private static final String PARAM_PORT_ID = "server.port.id";
     private static final String PARAM_WATCH_ENABLED = "server.watch.enabled";
+    private static final String PARAM_WATCH_BUFFER_LINES = "server.watch.buffer.lines";
+    private static final String PARAM_WATCH_BUFFER_SIZE = "server.watch.buffer.size";
     private static final String PARAM_JAVA_EXEC = "server.java.exec";
+    private static final String PARAM_HANDLER_MODE = "server.handler.mode";
+    private static final String PARAM_HANDLER_THREADS = "server.handler.threads";
+    private static final String PARAM_ENGINE = "server.engine";
+    private static final String PARAM_TRANSFER_RATE = "server.transfer.rate";
+    private static final String PARAM_RELAY_TIMEOUT_MS = "server.relay.timeout.ms";
+    private static final String PARAM_LOG_BATCH_SIZE = "server.log.batch.size";
+    private static final String PARAM_LOG_ROTATE_SIZE = "server.log.rotate.size";
+    private static final String PARAM_LOG_ROTATE_HOURS = "server.log.rotate.hours";
+    private static final String PARAM_LOG_RETENTION_SIZE = "server.log.retention.size";
+    private static final String PARAM_LOG_COMPRESS = "server.log.compress";
+    private static final String PARAM_SAMPLE_INTERVAL_MS = "server.sample.interval.ms";
+    private static final String PARAM_SAMPLE_HISTORY = "server.sample.history";
+
+    // server request handler modes
+    public static final String HANDLER_MODE_SERIAL = "serial";
+    public static final String HANDLER_MODE_POOL = "pool";
+
+    // server engines
+    public static final String ENGINE_BLOCKING = "blocking";
+    public static final String ENGINE_NIO = "nio";
 
     // server application properties
     private static final String PARAM_APP_START_COMMAND = "server.app.start.command";
@@ -40,22 +67,57 @@ public class NaginiServerConfig {
     private static final String PARAM_APP_JAVA_CLASS_OPTIONS = "server.app.java.class.options";
     private static final String PARAM_APP_JAVA_MAIN_CLASS = "server.app.java.main.class";
     private static final String PARAM_APP_JVM_OPTIONS = "server.app.jvm.options";
+    private static final String PARAM_APP_RELEASES_KEEP = "server.app.releases.keep";
+    private static final String PARAM_APP_OUTPUT = "server.app.output";
+
+    // how application output reaches the node log files
+    public static final String APP_OUTPUT_PIPE = "pipe";
+    public static final String APP_OUTPUT_FILE = "file";
+
+    // zone of the hosts not listed in zone.list
+    public static final String DEFAULT_ZONE = "default";
 
     public Map<String, List<Integer>> mapHostToNodes;
     public Map<Integer, String> mapNodeToHost;
+    public Map<String, String> mapHostToZone;
 
     public String userName;
     public String basePath;
     public String tempPath;
     public Integer portId;
     public Boolean watchEnabled;
+    // most lines and characters of output kept for watchers of each node
+    public Integer watchBufferLines;
+    public Long watchBufferSize;
     public String javaExec;
+    public String handlerMode;
+    public Integer handlerThreads;
+    public String engine;
+    // bytes per second shared by all file transfers, 0 for unlimited
+    public Long transferRate;
+    // milliseconds a relay waits to connect to, send to or hear from a host
+    // before routing around it, 0 to wait forever
+    public Integer relayTimeoutMs;
+    // node log files: bytes collected before a write, bytes and hours after
+    // which they are rotated, bytes of rotated segments kept per node (0 for
+    // never or no limit), and whether rotated segments are gzipped
+    public Integer logBatchSize;
+    public Long logRotateSize;
+    public Integer logRotateHours;
+    public Long logRetentionSize;
+    public Boolean logCompress;
+    // application resources: milliseconds between samples (0 for none), and
+    // samples kept per node
+    public Long sampleIntervalMs;
+    public Integer sampleHistory;
 
     public String appStartCommand;
     public List<String> appJavaClassSubPaths;
     public String appJavaMainClass;
     public String appJavaClassOpts;
     public String appJvmOpts;
+    public Integer appReleasesKeep;
+    public String appOutput;
 
     public void loadConfig(Properties props, List<String> hosts) {
         // load config from properties
@@ -67,6 +129,56 @@ public class NaginiServerConfig {
         portId = Integer.parseInt(props.getProperty(PARAM_PORT_ID));
         watchEnabled = Boolean.parseBoolean(props.getProperty(PARAM_WATCH_ENABLED,
                                                               Boolean.toString(true)));
+        watchBufferLines = Integer.parseInt(props.getProperty(PARAM_WATCH_BUFFER_LINES, "10000"));
+        if(watchBufferLines < 1) {
+            throw new IllegalArgumentException("Config: invalid " + PARAM_WATCH_BUFFER_LINES + " "
+                                               + watchBufferLines);
+        }
+        watchBufferSize = NaginiConfig.parseSize(props, PARAM_WATCH_BUFFER_SIZE, "4m");
+        if(watchBufferSize < 1) {
+            throw new IllegalArgumentException("Config: invalid " + PARAM_WATCH_BUFFER_SIZE + " "
+                                               + watchBufferSize);
+        }
+        handlerMode = props.getProperty(PARAM_HANDLER_MODE, HANDLER_MODE_POOL).trim();
+        if(!handlerMode.equals(HANDLER_MODE_SERIAL) && !handlerMode.equals(HANDLER_MODE_POOL)) {
+            throw new IllegalArgumentException("Config: invalid " + PARAM_HANDLER_MODE + " "
+                                               + handlerMode);
+        }
+        handlerThreads = Integer.parseInt(props.getProperty(PARAM_HANDLER_THREADS, "16"));
+        engine = props.getProperty(PARAM_ENGINE, ENGINE_BLOCKING).trim();
+        if(!engine.equals(ENGINE_BLOCKING) && !engine.equals(ENGINE_NIO)) {
+            throw new IllegalArgumentException("Config: invalid " + PARAM_ENGINE + " " + engine);
+        }
+        transferRate = NaginiConfig.parseSize(props, PARAM_TRANSFER_RATE, "0");
+        relayTimeoutMs = Integer.parseInt(props.getProperty(PARAM_RELAY_TIMEOUT_MS, "60000"));
+        if(relayTimeoutMs < 0) {
+            throw new IllegalArgumentException("Config: invalid " + PARAM_RELAY_TIMEOUT_MS + " "
+                                               + relayTimeoutMs);
+        }
+        logBatchSize = (int) NaginiConfig.parseSize(props, PARAM_LOG_BATCH_SIZE, "256k");
+        if(logBatchSize < 1 || logBatchSize > 64 * 1024 * 1024) {
+            throw new IllegalArgumentException("Config: invalid " + PARAM_LOG_BATCH_SIZE + " "
+                                               + props.getProperty(PARAM_LOG_BATCH_SIZE));
+        }
+        logRotateSize = NaginiConfig.parseSize(props, PARAM_LOG_ROTATE_SIZE, "256m");
+        logRotateHours = Integer.parseInt(props.getProperty(PARAM_LOG_ROTATE_HOURS, "24"));
+        if(logRotateHours < 0) {
+            throw new IllegalArgumentException("Config: invalid " + PARAM_LOG_ROTATE_HOURS + " "
+                                               + logRotateHours);
+        }
+        logRetentionSize = NaginiConfig.parseSize(props, PARAM_LOG_RETENTION_SIZE, "10g");
+        logCompress = Boolean.parseBoolean(props.getProperty(PARAM_LOG_COMPRESS,
+                                                             Boolean.toString(true)));
+        sampleIntervalMs = Long.parseLong(props.getProperty(PARAM_SAMPLE_INTERVAL_MS, "1000"));
+        if(sampleIntervalMs < 0) {
+            throw new IllegalArgumentException("Config: invalid " + PARAM_SAMPLE_INTERVAL_MS + " "
+                                               + sampleIntervalMs);
+        }
+        sampleHistory = Integer.parseInt(props.getProperty(PARAM_SAMPLE_HISTORY, "600"));
+        if(sampleHistory < 1) {
+            throw new IllegalArgumentException("Config: invalid " + PARAM_SAMPLE_HISTORY + " "
+                                               + sampleHistory);
+        }
 
         if(props.containsKey(PARAM_APP_START_COMMAND)) {
             appStartCommand = props.getProperty(PARAM_APP_START_COMMAND)
@@ -85,6 +197,17 @@ public class NaginiServerConfig {
             appJvmOpts = props.getProperty(PARAM_APP_JVM_OPTIONS, "").replace("$", this.basePath);
         }
 
+        appReleasesKeep = Integer.parseInt(props.getProperty(PARAM_APP_RELEASES_KEEP, "5"));
+        if(appReleasesKeep < 1) {
+            throw new IllegalArgumentException("Config: invalid " + PARAM_APP_RELEASES_KEEP + " "
+                                               + appReleasesKeep);
+        }
+        appOutput = props.getProperty(PARAM_APP_OUTPUT, APP_OUTPUT_PIPE).trim();
+        if(!appOutput.equals(APP_OUTPUT_PIPE) && !appOutput.equals(APP_OUTPUT_FILE)) {
+            throw new IllegalArgumentException("Config: invalid " + PARAM_APP_OUTPUT + " "
+                                               + appOutput);
+        }
+
         // load config from host.list
         mapHostToNodes = Maps.newHashMap();
         mapNodeToHost = Maps.newHashMap();
@@ -112,6 +235,64 @@ public class NaginiServerConfig {
         }
     }
 
+    /**
+     * Loads the zones hosts are in, from lines of zone.list in the form
+     * "zone, host, host...", e.g. to keep part of every zone available.
+     * 
+     * @param zones
+     */
+    public void loadZones(List<String> zones) {
+        mapHostToZone = Maps.newHashMap();
+        for(String zoneInfo: zones) {
+            String[] info = zoneInfo.trim().split("\\s*,\\s*");
+            if(info[0].isEmpty()) {
+                continue;
+            }
+            for(int i = 1; i < info.length; ++i) {
+                String hostName = info[i];
+                if(!mapHostToNodes.containsKey(hostName)) {
+                    throw new IllegalStateException("The " + NaginiConfig.ZONE_LIST_FILE
+                                                    + " config file contains unknown host "
+                                                    + hostName + ".");
+                }
+                if(mapHostToZone.containsKey(hostName)) {
+                    throw new IllegalStateException("The " + NaginiConfig.ZONE_LIST_FILE
+                                                    + " config file puts host " + hostName
+                                                    + " in more than one zone.");
+                }
+                mapHostToZone.put(hostName, info[0]);
+            }
+        }
+    }
+
+    /**
+     * @param hostName
+     * @return the zone of a host, see zone.list
+     */
+    public String getZone(String hostName) {
+        String zone = mapHostToZone.get(hostName);
+        return zone == null ? DEFAULT_ZONE : zone;
+    }
+
+    /**
+     * Hosts in host.list can be given as host:port, or [address]:port for
+     * IPv6 addresses, e.g. to run several servers on one machine.
+     * 
+     * @param hostName
+     * @return the port of the server on the host
+     */
+    public Integer getPortId(String hostName) {
+        return SocketAndStreams.getPortId(hostName, this.portId);
+    }
+
+    /**
+     * @param hostName
+     * @return the host name without port
+     */
+    public static String getHostAddress(String hostName) {
+        return SocketAndStreams.getHostAddress(hostName);
+    }
+
     public String getBasePath() {
         return this.basePath;
     }
@@ -140,6 +321,22 @@ public class NaginiServerConfig {
         return this.basePath + File.separator + NaginiServerConfig.APPLICATION_FOLDER;
     }
 
+    /**
+     * @return folder holding one folder per application release, the
+     *         application path being a symlink to the active one
+     */
+    public String getReleasesPath() {
+        return this.basePath + File.separator + NaginiServerConfig.RELEASES_FOLDER;
+    }
+
+    public String getBlobStorePath() {
+        return this.basePath + File.separator + NaginiServerConfig.BLOB_FOLDER;
+    }
+
+    public String getHashCachePath() {
+        return this.basePath + File.separator + NaginiServerConfig.HASH_CACHE_FILE;
+    }
+
     public String getNodePath(Integer nodeId) {
         return this.basePath + File.separator + NaginiServerConfig.NODE_PREFIX + nodeId.toString();
     }
@@ -148,6 +345,15 @@ public class NaginiServerConfig {
         return getNodePath(nodeId) + File.separator + NaginiServerConfig.NODE_CONFIG_FOLDER;
     }
 
+    /**
+     * Parses a size in bytes with an optional k, m or g suffix, as the
+     * transfer rates are given.
+     *
+     * @param props
+     * @param param
+     * @param defaultValue
+     * @return
+     */
     public String getNodeApplicationLogFilePath(Integer nodeId) {
         return getNodePath(nodeId) + File.separator + NaginiServerConfig.NODE_APPLICATION_LOG_FILE;
     }
@@ -0,0 +1,29 @@
+package nagini.protocol;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Streams over one request carried in a protocol v2 frame. The response is
+ * collected in memory so that it can be framed and tagged with the request id.
+ */
+public class BufferedRequestStreams extends SocketAndStreams {
+
+    // upper bound of a single protocol v2 frame
+    public static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+    private final ByteArrayOutputStream response;
+
+    public BufferedRequestStreams(byte[] request) {
+        this(request, new ByteArrayOutputStream());
+    }
+
+    private BufferedRequestStreams(byte[] request, ByteArrayOutputStream response) {
+        super(new ByteArrayInputStream(request), response);
+        this.response = response;
+    }
+
+    public byte[] getResponseBytes() {
+        return response.toByteArray();
+    }
+}
@@ -0,0 +1,107 @@
+package nagini.protocol;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads a body written by {@link ChunkedOutputStream}. End of stream is
+ * reported at the terminating chunk, leaving the underlying stream positioned
+ * right after it. Closing this stream does not close the underlying stream.
+ */
+public class ChunkedInputStream extends InputStream {
+
+    private final DataInputStream in;
+    private int chunkRemaining;
+    private boolean finished;
+    private long count;
+
+    public ChunkedInputStream(DataInputStream in) {
+        this.in = in;
+        this.chunkRemaining = 0;
+        this.finished = false;
+        this.count = 0;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if(!nextChunk()) {
+            return -1;
+        }
+        int b = in.read();
+        if(b == -1) {
+            throw new IOException("connection closed in the middle of a chunk.");
+        }
+        chunkRemaining--;
+        count++;
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if(len == 0) {
+            return 0;
+        }
+        if(!nextChunk()) {
+            return -1;
+        }
+        int read = in.read(b, off, Math.min(len, chunkRemaining));
+        if(read == -1) {
+            throw new IOException("connection closed in the middle of a chunk.");
+        }
+        chunkRemaining -= read;
+        count += read;
+        return read;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return finished ? 0 : Math.min(chunkRemaining, in.available());
+    }
+
+    /**
+     * Skips whatever is left of the body, up to and including the terminating
+     * chunk.
+     *
+     * @throws IOException
+     */
+    public void skipToEnd() throws IOException {
+        byte[] buffer = new byte[8192];
+        while(read(buffer, 0, buffer.length) != -1) {
+            // discard
+        }
+    }
+
+    /**
+     * @return number of body bytes read so far
+     */
+    public long getCount() {
+        return count;
+    }
+
+    @Override
+    public void close() {
+        // the underlying stream carries the response as well
+    }
+
+    /**
+     * Moves on to the next chunk if the current one is used up.
+     *
+     * @return false at the end of the body
+     * @throws IOException if the sender aborted
+     */
+    private boolean nextChunk() throws IOException {
+        while(!finished && chunkRemaining == 0) {
+            int length = in.readInt();
+            if(length == 0) {
+                finished = true;
+            } else if(length < 0) {
+                finished = true;
+                throw new IOException("chunked stream aborted by sender.");
+            } else {
+                chunkRemaining = length;
+            }
+        }
+        return !finished;
+    }
+}
@@ -0,0 +1,119 @@
+package nagini.protocol;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes a body of unknown length as [Int:Length][Byte[]:Data] chunks,
+ * terminated by a chunk of length 0. A negative length tells the receiver
+ * that the sender gave up half way. Closing this stream does not close the
+ * underlying stream.
+ */
+public class ChunkedOutputStream extends OutputStream {
+
+    public static final int CHUNK_ABORTED = -1;
+
+    private static final int DEFAULT_CHUNK_SIZE = 65536;
+
+    private final DataOutputStream out;
+    private final byte[] buffer;
+    private int buffered;
+    private long count;
+    private boolean finished;
+
+    public ChunkedOutputStream(DataOutputStream out) {
+        this.out = out;
+        this.buffer = new byte[DEFAULT_CHUNK_SIZE];
+        this.buffered = 0;
+        this.count = 0;
+        this.finished = false;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if(buffered == buffer.length) {
+            writeBuffer();
+        }
+        buffer[buffered++] = (byte) b;
+        count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if(len >= buffer.length) {
+            // large writes go out as their own chunk
+            writeBuffer();
+            writeChunk(b, off, len);
+        } else {
+            if(buffered + len > buffer.length) {
+                writeBuffer();
+            }
+            System.arraycopy(b, off, buffer, buffered, len);
+            buffered += len;
+        }
+        count += len;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        writeBuffer();
+        out.flush();
+    }
+
+    /**
+     * Writes the remaining data and the terminating chunk, and flushes.
+     *
+     * @throws IOException
+     */
+    public void finish() throws IOException {
+        if(!finished) {
+            writeBuffer();
+            out.writeInt(0);
+            out.flush();
+            finished = true;
+        }
+    }
+
+    /**
+     * Tells the receiver that the body is incomplete, dropping any data that
+     * has not been sent yet.
+     *
+     * @throws IOException
+     */
+    public void abort() throws IOException {
+        if(!finished) {
+            buffered = 0;
+            out.writeInt(CHUNK_ABORTED);
+            out.flush();
+            finished = true;
+        }
+    }
+
+    /**
+     * @return number of body bytes written so far
+     */
+    public long getCount() {
+        return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        finish();
+    }
+
+    private void writeBuffer() throws IOException {
+        if(buffered > 0) {
+            writeChunk(buffer, 0, buffered);
+            buffered = 0;
+        }
+    }
+
+    private void writeChunk(byte[] b, int off, int len) throws IOException {
+        if(finished) {
+            throw new IOException("chunked stream already finished.");
+        }
+        out.writeInt(len);
+        out.write(b, off, len);
+    }
+}
@@ -0,0 +1,116 @@
+package nagini.protocol;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A range of bytes of a file, sent in place of the whole file when only part
+ * of it is wanted, e.g. the end of a large log. The file size is sent along,
+ * so that a client following a file can tell that it was truncated or
+ * replaced.
+ *
+ * Range: [Long:FileSize][Long:Offset][Long:Length]
+ */
+public class FileRange {
+
+    private static final int SCAN_BUFFER_SIZE = 65536;
+
+    private final long fileSize;
+    private final long offset;
+    private final long length;
+
+    public FileRange(long fileSize, long offset, long length) {
+        this.fileSize = fileSize;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /**
+     * Clamps a requested range to the file.
+     *
+     * @param fileSize
+     * @param offset first byte, or a negative number of bytes before the end
+     * @param length number of bytes, or a negative number for all up to the
+     *        end
+     * @return range within the file
+     */
+    public static FileRange resolve(long fileSize, long offset, long length) {
+        long start = offset < 0 ? Math.max(fileSize + offset, 0) : Math.min(offset, fileSize);
+        long end = length < 0 || length > fileSize - start ? fileSize : start + length;
+        return new FileRange(fileSize, start, end - start);
+    }
+
+    /**
+     * Finds where the last lines of a file start, scanning backwards from the
+     * end with positional reads, so that only the tail of the file is read.
+     * A line break at the very end does not count as the start of a line.
+     *
+     * @param channel
+     * @param fileSize
+     * @param lines
+     * @return offset of the first of the last lines, 0 if the file has fewer
+     * @throws IOException
+     */
+    public static long findLastLines(FileChannel channel, long fileSize, int lines)
+            throws IOException {
+        if(lines <= 0) {
+            return fileSize;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+        long end = fileSize;
+        int found = 0;
+        while(end > 0) {
+            long start = Math.max(end - buffer.capacity(), 0);
+            buffer.clear();
+            buffer.limit((int) (end - start));
+            while(buffer.hasRemaining()) {
+                if(channel.read(buffer, start + buffer.position()) == -1) {
+                    throw new IOException("file truncated while reading.");
+                }
+            }
+            for(int i = buffer.position() - 1; i >= 0; i--) {
+                long position = start + i;
+                if(buffer.get(i) == '\n' && position != fileSize - 1 && ++found == lines) {
+                    return position + 1;
+                }
+            }
+            end = start;
+        }
+        return 0;
+    }
+
+    public static FileRange read(DataInputStream dis) throws IOException {
+        long fileSize = dis.readLong();
+        long offset = dis.readLong();
+        long length = dis.readLong();
+        return new FileRange(fileSize, offset, length);
+    }
+
+    public void write(DataOutputStream dos) throws IOException {
+        dos.writeLong(fileSize);
+        dos.writeLong(offset);
+        dos.writeLong(length);
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * @return offset right after the range, where a follower reads on
+     */
+    public long getEnd() {
+        return offset + length;
+    }
+}
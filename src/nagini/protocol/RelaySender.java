@@ -0,0 +1,351 @@
+package nagini.protocol;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Feeds one payload to the roots of relay trees, each of which forwards it to
+ * its own children while storing it. Hosts that cannot be reached, or that
+ * drop out half way, are routed around: their children are fed from the
+ * sender's own copy of the payload once it is complete. So are hosts that
+ * stop answering: connecting, every read and every write to a host time out,
+ * the wait for a report growing with the depth of the tree below the host.
+ */
+public class RelaySender {
+
+    private static final int BYTE_ARRAY_SIZE = 1 << 20;
+
+    /**
+     * Outcome on one host, as reported back up the tree.
+     *
+     * Results: [Int:Count][Result...]
+     * where Result is [UTF:HostName][Boolean:Succeeded][UTF:Message]
+     */
+    public static class Result {
+
+        public final String hostName;
+        public final boolean succeeded;
+        public final String message;
+
+        public Result(String hostName, boolean succeeded, String message) {
+            this.hostName = hostName;
+            this.succeeded = succeeded;
+            this.message = message;
+        }
+
+        public static void write(DataOutputStream dos, List<Result> results) throws IOException {
+            dos.writeInt(results.size());
+            for(Result result: results) {
+                dos.writeUTF(result.hostName);
+                dos.writeBoolean(result.succeeded);
+                dos.writeUTF(result.message);
+            }
+        }
+
+        public static List<Result> read(DataInputStream dis) throws IOException {
+            int count = dis.readInt();
+            List<Result> results = Lists.newArrayList();
+            for(int i = 0; i < count; i++) {
+                results.add(new Result(dis.readUTF(), dis.readBoolean(), dis.readUTF()));
+            }
+            return results;
+        }
+    }
+
+    /**
+     * Gives the throttle of the connection to each host.
+     */
+    public interface Throttles {
+
+        /**
+         * @param hostName
+         * @return throttle of the connection to the host, or null
+         */
+        Throttle get(String hostName);
+    }
+
+    private static class Child {
+
+        private final RelayTree tree;
+        private volatile SocketAndStreams sands;
+        private String error;
+        // when the current write to the child started, 0 while not writing
+        private volatile long writingSince;
+        private volatile boolean timedOut;
+
+        private Child(RelayTree tree) {
+            this.tree = tree;
+        }
+
+        private void close() {
+            if(sands != null) {
+                try {
+                    sands.close();
+                } catch(IOException e) {
+                    // nothing left to tell the child
+                }
+                sands = null;
+            }
+        }
+
+        private void fail(String error) {
+            close();
+            this.error = error;
+        }
+
+        private void fail(String error, IOException e, int timeoutMs) {
+            if(timedOut || e instanceof SocketTimeoutException) {
+                fail(error + " (timed out after " + timeoutMs + " ms)");
+            } else {
+                fail(error + " (" + e + ")");
+            }
+        }
+    }
+
+    private final String destPath;
+    private final int portId;
+    private final int timeoutMs;
+    private final Throttles throttles;
+    private final List<Child> children;
+    // closes the connections of children stuck in a write, null without
+    // timeout
+    private final ScheduledExecutorService watchdog;
+
+    /**
+     * Connects to the roots of the trees and sends them the request header.
+     *
+     * @param destPath folder to unzip the payload to on every host
+     * @param trees
+     * @param length of the payload
+     * @param portId default port of the hosts
+     * @param timeoutMs milliseconds to wait for a host, 0 to wait forever
+     */
+    public RelaySender(String destPath,
+                       List<RelayTree> trees,
+                       long length,
+                       int portId,
+                       int timeoutMs) {
+        this(destPath, trees, length, portId, timeoutMs, null);
+    }
+
+    /**
+     * Connects to the roots of the trees and sends them the request header.
+     *
+     * @param destPath folder to unzip the payload to on every host
+     * @param trees
+     * @param length of the payload
+     * @param portId default port of the hosts
+     * @param timeoutMs milliseconds to wait for a host, 0 to wait forever
+     * @param throttles limits the connections to the roots, or null
+     */
+    public RelaySender(String destPath,
+                       List<RelayTree> trees,
+                       long length,
+                       int portId,
+                       int timeoutMs,
+                       Throttles throttles) {
+        this.destPath = destPath;
+        this.portId = portId;
+        this.timeoutMs = timeoutMs;
+        this.throttles = throttles;
+        this.children = Lists.newArrayList();
+        if(timeoutMs > 0) {
+            watchdog = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("nagini-relay-watchdog-%d")
+                                                                                             .setDaemon(true)
+                                                                                             .build());
+            long period = Math.max(timeoutMs / 4, 1);
+            watchdog.scheduleWithFixedDelay(new Runnable() {
+
+                @Override
+                public void run() {
+                    closeStuckChildren();
+                }
+            }, period, period, TimeUnit.MILLISECONDS);
+        } else {
+            watchdog = null;
+        }
+        for(RelayTree tree: trees) {
+            Child child = new Child(tree);
+            children.add(child);
+            try {
+                child.sands = new SocketAndStreams(tree.hostName, portId, timeoutMs);
+                if(throttles != null) {
+                    child.sands.setThrottle(throttles.get(tree.hostName));
+                }
+                DataOutputStream dos = child.sands.getOutputStream();
+                dos.writeInt(RequestType.REQUEST_FILE_PUT_RELAY);
+                dos.writeUTF(destPath);
+                RelayTree.write(dos, tree.children);
+                dos.writeLong(length);
+            } catch(IOException e) {
+                child.fail("unreachable", e, timeoutMs);
+            }
+        }
+    }
+
+    /**
+     * Writes cannot time out by themselves, so the connection of a child that
+     * takes longer than the timeout to accept a write is closed under it.
+     */
+    private void closeStuckChildren() {
+        long now = System.currentTimeMillis();
+        for(Child child: children) {
+            long since = child.writingSince;
+            SocketAndStreams sands = child.sands;
+            if(since > 0 && now - since > timeoutMs && sands != null) {
+                child.timedOut = true;
+                try {
+                    sands.close();
+                } catch(IOException e) {
+                    // the write fails either way
+                }
+            }
+        }
+    }
+
+    /**
+     * Forwards the next part of the payload to all roots still connected.
+     *
+     * @param b
+     * @param off
+     * @param len
+     */
+    public void write(byte[] b, int off, int len) {
+        for(Child child: children) {
+            if(child.sands != null) {
+                child.writingSince = System.currentTimeMillis();
+                try {
+                    child.sands.getOutputStream().write(b, off, len);
+                } catch(IOException e) {
+                    child.fail("dropped out during transfer", e, timeoutMs);
+                } finally {
+                    child.writingSince = 0;
+                }
+            }
+        }
+    }
+
+    /**
+     * Forwards a whole file as the payload.
+     *
+     * @param file
+     * @throws IOException if the file cannot be read
+     */
+    public void writeFile(File file) throws IOException {
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[BYTE_ARRAY_SIZE];
+            int read;
+            while((read = fis.read(buffer)) != -1) {
+                write(buffer, 0, read);
+            }
+        } finally {
+            fis.close();
+        }
+    }
+
+    /**
+     * Waits for the results of all trees, and feeds the children of every
+     * root that failed from the given copy of the payload.
+     *
+     * @param copy complete payload, or null if there is none to re-route from
+     * @return results of all hosts in the trees
+     */
+    public List<Result> finish(File copy) {
+        List<Result> results = Lists.newArrayList();
+        List<RelayTree> orphans = Lists.newArrayList();
+        for(Child child: children) {
+            if(child.sands != null) {
+                // the child reports once all hosts below it are done, each of
+                // which may wait as long for its own children
+                long wait = (long) timeoutMs * (1 + RelayTree.depth(child.tree.children));
+                int reportTimeoutMs = (int) Math.min(wait, Integer.MAX_VALUE);
+                child.writingSince = System.currentTimeMillis();
+                try {
+                    child.sands.getOutputStream().flush();
+                    child.writingSince = 0;
+                    child.sands.getSocket().setSoTimeout(reportTimeoutMs);
+                    DataInputStream dis = child.sands.getInputStream();
+                    int responseType = dis.readInt();
+                    if(responseType != ResponseType.RESPONSE_RELAY_REPORT) {
+                        throw new IOException("unexpected response 0x"
+                                              + Integer.toHexString(responseType));
+                    }
+                    results.addAll(Result.read(dis));
+                    child.close();
+                    continue;
+                } catch(IOException e) {
+                    child.fail("dropped out before reporting",
+                               e,
+                               child.timedOut ? timeoutMs : reportTimeoutMs);
+                } finally {
+                    child.writingSince = 0;
+                }
+            }
+            results.add(new Result(child.tree.hostName, false, child.error));
+            orphans.addAll(child.tree.children);
+        }
+        stopWatchdog();
+        if(orphans.isEmpty()) {
+            return results;
+        }
+        if(copy == null) {
+            for(RelayTree orphan: orphans) {
+                addNotReached(results, orphan);
+            }
+            return results;
+        }
+        System.out.println("re-routing to " + orphans.size() + " hosts around failed hosts ...");
+        RelaySender sender = new RelaySender(destPath,
+                                             orphans,
+                                             copy.length(),
+                                             portId,
+                                             timeoutMs,
+                                             throttles);
+        try {
+            sender.writeFile(copy);
+        } catch(IOException e) {
+            sender.abort();
+            for(RelayTree orphan: orphans) {
+                addNotReached(results, orphan);
+            }
+            return results;
+        }
+        results.addAll(sender.finish(copy));
+        return results;
+    }
+
+    /**
+     * Drops all connections, for when the payload cannot be completed.
+     */
+    public void abort() {
+        stopWatchdog();
+        for(Child child: children) {
+            child.fail("aborted by sender");
+        }
+    }
+
+    private void stopWatchdog() {
+        if(watchdog != null) {
+            watchdog.shutdownNow();
+        }
+    }
+
+    private static void addNotReached(List<Result> results, RelayTree tree) {
+        results.add(new Result(tree.hostName, false, "not reached, upstream host failed"));
+        for(RelayTree child: tree.children) {
+            addNotReached(results, child);
+        }
+    }
+}
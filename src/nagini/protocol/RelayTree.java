@@ -0,0 +1,103 @@
+package nagini.protocol;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+
+/**
+ * A host of a relay distribution, together with the hosts it forwards the
+ * payload to.
+ *
+ * Subtrees: [Int:Count][Node...] where Node is [UTF:HostName][Subtrees]
+ */
+public class RelayTree {
+
+    public final String hostName;
+    public final List<RelayTree> children;
+
+    public RelayTree(String hostName) {
+        this.hostName = hostName;
+        this.children = Lists.newArrayList();
+    }
+
+    /**
+     * Lays out hosts as a k-ary tree under the sender, in the given order:
+     * the sender feeds the first fanout hosts, which feed the next fanout
+     * hosts each, and so on, so that the depth grows with log(hosts).
+     *
+     * @param hostNames
+     * @param fanout
+     * @return the hosts fed by the sender
+     */
+    public static List<RelayTree> build(List<String> hostNames, int fanout) {
+        if(fanout < 1) {
+            throw new IllegalArgumentException("invalid relay fanout " + fanout);
+        }
+        List<RelayTree> nodes = Lists.newArrayList();
+        for(String hostName: hostNames) {
+            nodes.add(new RelayTree(hostName));
+        }
+        for(int i = fanout; i < nodes.size(); i++) {
+            nodes.get(i / fanout - 1).children.add(nodes.get(i));
+        }
+        return Lists.newArrayList(nodes.subList(0, Math.min(fanout, nodes.size())));
+    }
+
+    /**
+     * @param trees
+     * @return number of hosts in the trees
+     */
+    public static int count(List<RelayTree> trees) {
+        int count = trees.size();
+        for(RelayTree tree: trees) {
+            count += count(tree.children);
+        }
+        return count;
+    }
+
+    /**
+     * @param trees
+     * @return number of hops from the sender to the deepest host
+     */
+    public static int depth(List<RelayTree> trees) {
+        int depth = 0;
+        for(RelayTree tree: trees) {
+            depth = Math.max(depth, 1 + depth(tree.children));
+        }
+        return depth;
+    }
+
+    public static void write(DataOutputStream dos, List<RelayTree> trees) throws IOException {
+        dos.writeInt(trees.size());
+        for(RelayTree tree: trees) {
+            dos.writeUTF(tree.hostName);
+            write(dos, tree.children);
+        }
+    }
+
+    public static List<RelayTree> read(DataInputStream dis) throws IOException {
+        int count = dis.readInt();
+        if(count < 0) {
+            throw new IOException("invalid relay tree.");
+        }
+        List<RelayTree> trees = Lists.newArrayList();
+        for(int i = 0; i < count; i++) {
+            RelayTree tree = new RelayTree(dis.readUTF());
+            tree.children.addAll(read(dis));
+            trees.add(tree);
+        }
+        return trees;
+    }
+
+    @Override
+    public String toString() {
+        if(children.isEmpty()) {
+            return hostName;
+        }
+        return hostName + " -> [" + Joiner.on(", ").join(children) + "]";
+    }
+}
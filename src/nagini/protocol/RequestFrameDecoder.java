@@ -0,0 +1,137 @@
+package nagini.protocol;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes request frames as laid out in {@link RequestType} from partially
+ * received bytes, for servers that read requests without blocking.
+ */
+public class RequestFrameDecoder {
+
+    public static final int INCOMPLETE = -1;
+
+    /**
+     * Returns the length of the request header (request type and all fixed
+     * fields) at the start of the buffer. The buffer position and limit are
+     * left untouched.
+     *
+     * @param buffer bytes received so far, between position and limit
+     * @return header length in bytes, or INCOMPLETE if more bytes are needed
+     */
+    public static int getHeaderLength(ByteBuffer buffer) {
+        int start = buffer.position();
+        int available = buffer.remaining();
+        if(available < 4) {
+            return INCOMPLETE;
+        }
+        int requestType = buffer.getInt(start);
+        switch(requestType) {
+            case RequestType.REQUEST_PING:
+            case RequestType.REQUEST_STOP:
+            case RequestType.REQUEST_RELEASE_LIST:
+                return 4;
+            case RequestType.REQUEST_RECONFIG:
+            case RequestType.REQUEST_FILE_GET:
+            case RequestType.REQUEST_FILE_DELETE:
+            case RequestType.REQUEST_FILE_PUT_STREAM:
+            case RequestType.REQUEST_FILE_GET_STREAM:
+            case RequestType.REQUEST_FILE_PUT_MANIFEST:
+            case RequestType.REQUEST_FILE_PUT_DELTA:
+            case RequestType.REQUEST_FILE_GET_DELTA:
+            case RequestType.REQUEST_FILE_PUT_RELAY:
+            case RequestType.REQUEST_FILE_PUT_RESUMABLE:
+            case RequestType.REQUEST_FILE_GET_RESUMABLE:
+            case RequestType.REQUEST_FILE_SYNC:
+            case RequestType.REQUEST_FILE_GET_STREAM_COMPRESSED:
+            case RequestType.REQUEST_FILE_GET_RESUMABLE_COMPRESSED:
+            case RequestType.REQUEST_RELEASE_ACTIVATE:
+            case RequestType.REQUEST_RELEASE_ROLLBACK:
+                return getUTFEnd(buffer, 4);
+            case RequestType.REQUEST_RESOURCES:
+                return getFixedEnd(buffer, 4, 8);
+            case RequestType.REQUEST_FILE_PUT:
+                return getFixedEnd(buffer, getUTFEnd(buffer, 4), 8);
+            case RequestType.REQUEST_RELEASE_PREPARE:
+                return getFixedEnd(buffer, getUTFEnd(buffer, 4), 1);
+            case RequestType.REQUEST_FILE_READ:
+                return getFixedEnd(buffer, getUTFEnd(buffer, 4), 16);
+            case RequestType.REQUEST_FILE_TAIL:
+                return getFixedEnd(buffer, getUTFEnd(buffer, 4), 4);
+            case RequestType.REQUEST_SERVICE_START_APPLICATION:
+            case RequestType.REQUEST_SERVICE_STOP_APPLICATION:
+                return getFixedEnd(buffer, 4, 4);
+            case RequestType.REQUEST_SERVICE_WATCH_APPLICATION:
+            case RequestType.REQUEST_SERVICE_RESTART_APPLICATION:
+                return getFixedEnd(buffer, 4, 8);
+            case RequestType.REQUEST_SERVICE_READ_OUTPUT:
+                return getFixedEnd(buffer, 4, 16);
+            case RequestType.REQUEST_LOG_QUERY:
+                return getFixedEnd(buffer, 4, 28);
+            case RequestType.REQUEST_LOG_SEARCH:
+                return getUTFEnd(buffer, getFixedEnd(buffer, getUTFEnd(buffer, 4), 33));
+            default:
+                // unknown request, let the handler reject it
+                return 4;
+        }
+    }
+
+    /**
+     * Tells whether the request streams its body or its response, or
+     * exchanges more than one message, so that it has to be handled on a
+     * blocking connection.
+     *
+     * @param header buffer positioned at a complete request header
+     * @return
+     */
+    public static boolean isStreamingRequest(ByteBuffer header) {
+        switch(header.getInt(header.position())) {
+            case RequestType.REQUEST_FILE_PUT_STREAM:
+            case RequestType.REQUEST_FILE_GET_STREAM:
+            case RequestType.REQUEST_FILE_PUT_MANIFEST:
+            case RequestType.REQUEST_FILE_PUT_DELTA:
+            case RequestType.REQUEST_FILE_GET_DELTA:
+            case RequestType.REQUEST_FILE_PUT_RELAY:
+            case RequestType.REQUEST_FILE_PUT_RESUMABLE:
+            case RequestType.REQUEST_FILE_GET_RESUMABLE:
+            case RequestType.REQUEST_FILE_SYNC:
+            case RequestType.REQUEST_FILE_GET_STREAM_COMPRESSED:
+            case RequestType.REQUEST_FILE_GET_RESUMABLE_COMPRESSED:
+            case RequestType.REQUEST_LOG_QUERY:
+            case RequestType.REQUEST_LOG_SEARCH:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Returns the length of the body that follows a complete request header.
+     *
+     * @param header buffer positioned at a complete request header
+     * @param headerLength as returned by getHeaderLength
+     * @return body length in bytes, 0 if the request has no body or streams
+     *         it
+     */
+    public static long getBodyLength(ByteBuffer header, int headerLength) {
+        int requestType = header.getInt(header.position());
+        if(requestType == RequestType.REQUEST_FILE_PUT) {
+            return header.getLong(header.position() + headerLength - 8);
+        }
+        return 0;
+    }
+
+    private static int getUTFEnd(ByteBuffer buffer, int offset) {
+        if(offset == INCOMPLETE || buffer.remaining() < offset + 2) {
+            return INCOMPLETE;
+        }
+        int utfLength = buffer.getShort(buffer.position() + offset) & 0xFFFF;
+        return getFixedEnd(buffer, offset + 2, utfLength);
+    }
+
+    private static int getFixedEnd(ByteBuffer buffer, int offset, int length) {
+        if(offset == INCOMPLETE || buffer.remaining() < offset + length) {
+            return INCOMPLETE;
+        }
+        return offset + length;
+    }
+}
@@ -2,11 +2,22 @@ package nagini.protocol;
 
 public class RequestType {
 
+    // Protocol Negotiation
+    // Sent as the first int of a connection instead of a request type. The
+    // server answers with the same int, then both sides exchange frames
+    // until the client closes the connection.
+    // [Int:RequestId][Int:Length][Byte[]:Request]
+    public static final int PROTOCOL_V2 = 0x4E470002;
+
     // Server Control Requests
     public static final int REQUEST_PING = 0x00000000;
     public static final int REQUEST_STOP = 0x00000001;
     // [UTF:ServerConfigPath]
     public static final int REQUEST_RECONFIG = 0x00000002;
+    // [Long:Since]
+    // reads the resource samples of the nodes taken after a time, in
+    // milliseconds of the server clock, answered with RESPONSE_RESOURCES
+    public static final int REQUEST_RESOURCES = 0x00000003;
 
     // File Operation Requests
     // [UTF:DestiationPath][Long:Length][Byte[]:FileContent]
@@ -15,6 +26,52 @@ public class RequestType {
     public static final int REQUEST_FILE_GET = 0x00000011;
     // [UTF:SourcePath]
     public static final int REQUEST_FILE_DELETE = 0x00000012;
+    // [UTF:DestinationPath][Chunk...][Int:0]
+    // where Chunk is [Int:Length][Byte[]:ZipContent]
+    public static final int REQUEST_FILE_PUT_STREAM = 0x00000013;
+    // [UTF:SourcePath]
+    public static final int REQUEST_FILE_GET_STREAM = 0x00000014;
+    // [UTF:DestinationPath][Manifest] see FileManifest
+    // answered with RESPONSE_BLOB_REQUEST, after which the client sends
+    // [Long:Size][Byte[]:Content] for each requested blob in order
+    public static final int REQUEST_FILE_PUT_MANIFEST = 0x00000015;
+    // [UTF:DestinationFilePath]
+    // answered with RESPONSE_SIGNATURE of the existing file, after which the
+    // client sends the delta, see NaginiDeltaUtils
+    public static final int REQUEST_FILE_PUT_DELTA = 0x00000016;
+    // [UTF:SourceFilePath][Signature] see NaginiDeltaUtils
+    public static final int REQUEST_FILE_GET_DELTA = 0x00000017;
+    // [UTF:DestinationPath][Subtrees][Long:Length][Byte[]:ZipContent]
+    // the server forwards the zip to the roots of the subtrees while storing
+    // it, see RelayTree, and answers with RESPONSE_RELAY_REPORT
+    public static final int REQUEST_FILE_PUT_RELAY = 0x00000018;
+    // [UTF:DestinationPath][UTF:TransferId][Long:Length][Long:Crc32]
+    // answered with RESPONSE_OFFSET, after which the client sends the zip
+    // from that offset as chunks, see ResumableTransfer
+    public static final int REQUEST_FILE_PUT_RESUMABLE = 0x00000019;
+    // [UTF:SourcePath][UTF:TransferId][Long:Offset]
+    public static final int REQUEST_FILE_GET_RESUMABLE = 0x0000001A;
+    // [UTF:DestinationPath][UTF:RootName]
+    // answered with RESPONSE_MANIFEST of DestinationPath/RootName, after
+    // which the client sends [Int:Count][UTF:RelativePath...] to delete and
+    // [Int:Count][File...] to write, where File is [UTF:RelativePath]
+    // [Long:Size][Long:LastModified][Byte[]:Content] and a size of -1 stands
+    // for an empty folder
+    public static final int REQUEST_FILE_SYNC = 0x0000001B;
+    // [UTF:SourceFilePath][Long:Offset][Long:Length]
+    // a negative offset counts back from the end of the file, a negative
+    // length reads up to the end, answered with RESPONSE_FILE_RANGE
+    public static final int REQUEST_FILE_READ = 0x0000001C;
+    // [UTF:SourceFilePath][Int:Lines]
+    // answered with RESPONSE_FILE_RANGE of the last lines of the file
+    public static final int REQUEST_FILE_TAIL = 0x0000001D;
+    // [UTF:SourcePath][Compression]
+    // as REQUEST_FILE_GET_STREAM, zipped the way the client asks for, see
+    // CompressionPolicy; the plain request zips with the default policy
+    public static final int REQUEST_FILE_GET_STREAM_COMPRESSED = 0x0000001E;
+    // [UTF:SourcePath][UTF:TransferId][Long:Offset][Compression]
+    // as REQUEST_FILE_GET_RESUMABLE, zipped the way the client asks for
+    public static final int REQUEST_FILE_GET_RESUMABLE_COMPRESSED = 0x0000001F;
 
     // Service Operation Requests
     // [Int:NodeId]
@@ -23,4 +80,36 @@ public class RequestType {
     public static final int REQUEST_SERVICE_STOP_APPLICATION = 0x00000021;
     // [Int:NodeId][Int:0/Tail]
     public static final int REQUEST_SERVICE_WATCH_APPLICATION = 0x00000022;
+    // [Int:NodeId][Int:0/Tail][Long:Cursor]
+    // reads the output after the cursor of the watcher, answered with
+    // RESPONSE_OUTPUT while the application is running
+    public static final int REQUEST_SERVICE_READ_OUTPUT = 0x00000023;
+    // [Int:NodeId][Int:StopTimeout]
+    // stops the application if it is running, waits up to StopTimeout
+    // seconds for it to exit and starts it again, answered with
+    // RESPONSE_OFFSET holding the cursor its new output starts at
+    public static final int REQUEST_SERVICE_RESTART_APPLICATION = 0x00000024;
+
+    // Release Operation Requests, see ReleaseStore
+    // [UTF:Version][Boolean:Seed]
+    // creates the folder to upload a release into, seeded with hardlinks to
+    // the active release if asked to
+    public static final int REQUEST_RELEASE_PREPARE = 0x00000030;
+    // [UTF:Version]
+    public static final int REQUEST_RELEASE_ACTIVATE = 0x00000031;
+    // [UTF:Version] or an empty version for the previous release
+    public static final int REQUEST_RELEASE_ROLLBACK = 0x00000032;
+    public static final int REQUEST_RELEASE_LIST = 0x00000033;
+
+    // Log Operation Requests, see LogFile
+    // [Int:NodeId][Long:From][Long:To][Long:MaxBytes]
+    // reads the output of a node written between two times, in milliseconds,
+    // up to MaxBytes of lines, answered with RESPONSE_LOG_LINES
+    public static final int REQUEST_LOG_QUERY = 0x00000040;
+    // [UTF:Expression][Boolean:Literal][Long:From][Long:To][Int:Context]
+    // [Int:MaxMatches][Long:MaxBytes][UTF:NodeIds]
+    // finds the lines of the logs of the nodes, a comma separated list, that
+    // match a regular expression or contain a literal text, answered with
+    // RESPONSE_LOG_MATCHES
+    public static final int REQUEST_LOG_SEARCH = 0x00000041;
 }
@@ -2,6 +2,9 @@ package nagini.protocol;
 
 public class ResponseType {
 
+    // Protocol v2 response frame, matched to its request by id
+    // [Int:RequestId][Int:Length][Byte[]:Response]
+
     public static final int RESPONSE_NOOP = 0x00000000;
     // [UTF:Header][UTF:Message]
     public static final int RESPONSE_SUCCESS = 0x00000001;
@@ -9,4 +12,38 @@ public class ResponseType {
     public static final int RESPONSE_FAIL = 0x00000002;
     // [Long:Length][Byte[]:FileContent]
     public static final int RESPONSE_FILE = 0x00000010;
+    // [Chunk...][Int:0], or [Chunk...][Int:-1] if the server gave up
+    // where Chunk is [Int:Length][Byte[]:ZipContent]
+    public static final int RESPONSE_FILE_STREAM = 0x00000011;
+    // [Int:Count][UTF:Sha256...] blobs the server does not have yet
+    public static final int RESPONSE_BLOB_REQUEST = 0x00000012;
+    // [Signature] of the file the server has, see NaginiDeltaUtils
+    public static final int RESPONSE_SIGNATURE = 0x00000013;
+    // [Delta] see NaginiDeltaUtils
+    public static final int RESPONSE_DELTA = 0x00000014;
+    // [Results] of the server and all hosts it relayed to, see RelaySender
+    public static final int RESPONSE_RELAY_REPORT = 0x00000015;
+    // [Long:Offset] of the data the server already has for a transfer, or
+    // of the output of a restarted application, see OutputBuffer
+    public static final int RESPONSE_OFFSET = 0x00000016;
+    // [Long:Length][Long:Crc32][Long:Offset][Chunks] zip content from the
+    // given offset, see ResumableTransfer
+    public static final int RESPONSE_FILE_CHUNKS = 0x00000017;
+    // [TimedManifest] of the tree the server has, see FileManifest
+    public static final int RESPONSE_MANIFEST = 0x00000018;
+    // [Range][Byte[]:Content] see FileRange
+    public static final int RESPONSE_FILE_RANGE = 0x00000019;
+    // [Chunk] of application output, see OutputBuffer
+    public static final int RESPONSE_OUTPUT = 0x0000001A;
+    // [Line...][Int:-1][Boolean:Truncated] where Line is
+    // [Int:Length][Byte[]:Utf8]
+    public static final int RESPONSE_LOG_LINES = 0x0000001B;
+    // [Group...][Int:-1][Int:Matches][Boolean:Truncated], or
+    // [Group...][Int:-2][UTF:Message] if a log could not be read,
+    // where Group is [Int:NodeId][Int:Count][Line...] and Line is
+    // [Boolean:Matched][Int:Length][Byte[]:Utf8]
+    public static final int RESPONSE_LOG_MATCHES = 0x0000001C;
+    // [Node...][Int:-1] where Node is [Int:NodeId][Int:Count][Sample...],
+    // see ResourceHistory
+    public static final int RESPONSE_RESOURCES = 0x0000001D;
 }
@@ -0,0 +1,131 @@
+package nagini.protocol;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.zip.CRC32;
+
+/**
+ * Sends a file as checksummed chunks, so that the receiver can keep every
+ * chunk that arrived intact in a partial file, and a transfer that was cut
+ * off can go on from there.
+ *
+ * Chunks: [Chunk...][Int:0]
+ * where Chunk is [Int:Length][Long:Crc32][Byte[]:Content]
+ */
+public class ResumableTransfer {
+
+    public static final String PART_SUFFIX = ".part";
+
+    private static final int CHUNK_SIZE = 1 << 20;
+    private static final int BYTE_ARRAY_SIZE = 65536;
+
+    /**
+     * @param transferId
+     * @return true if the id is safe to use in a file name
+     */
+    public static boolean isValidTransferId(String transferId) {
+        if(transferId.isEmpty() || transferId.length() > 64) {
+            return false;
+        }
+        for(char c: transferId.toCharArray()) {
+            if(!Character.isLetterOrDigit(c) && c != '-') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sends a file as chunks, starting at an offset.
+     *
+     * @param dos
+     * @param file
+     * @param offset
+     * @return number of bytes sent
+     * @throws IOException
+     */
+    public static long sendChunks(DataOutputStream dos, File file, long offset)
+            throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        long done = 0;
+        try {
+            raf.seek(offset);
+            byte[] buffer = new byte[CHUNK_SIZE];
+            CRC32 crc = new CRC32();
+            int read;
+            while((read = readChunk(raf, buffer)) > 0) {
+                crc.reset();
+                crc.update(buffer, 0, read);
+                dos.writeInt(read);
+                dos.writeLong(crc.getValue());
+                dos.write(buffer, 0, read);
+                done += read;
+            }
+        } finally {
+            raf.close();
+        }
+        dos.writeInt(0);
+        dos.flush();
+        return done;
+    }
+
+    /**
+     * Receives chunks and appends every intact chunk to a partial file, which
+     * is flushed after each chunk.
+     *
+     * @param dis
+     * @param partFile
+     * @param length total length the partial file may grow to
+     * @return number of bytes appended
+     * @throws IOException if the connection fails or a chunk is corrupt; the
+     *         chunks before it are kept
+     */
+    public static long receiveChunks(DataInputStream dis, File partFile, long length)
+            throws IOException {
+        FileOutputStream fos = new FileOutputStream(partFile, true);
+        long offset = partFile.length();
+        long done = 0;
+        try {
+            byte[] buffer = new byte[CHUNK_SIZE];
+            CRC32 crc = new CRC32();
+            int chunkLength;
+            while((chunkLength = dis.readInt()) != 0) {
+                if(chunkLength < 0 || chunkLength > buffer.length
+                   || offset + done + chunkLength > length) {
+                    throw new IOException("invalid chunk length " + chunkLength + " at offset "
+                                          + (offset + done));
+                }
+                long checksum = dis.readLong();
+                dis.readFully(buffer, 0, chunkLength);
+                crc.reset();
+                crc.update(buffer, 0, chunkLength);
+                if(crc.getValue() != checksum) {
+                    throw new IOException("chunk checksum mismatch at offset " + (offset + done));
+                }
+                fos.write(buffer, 0, chunkLength);
+                fos.flush();
+                done += chunkLength;
+            }
+        } finally {
+            fos.close();
+        }
+        return done;
+    }
+
+    private static int readChunk(RandomAccessFile raf, byte[] buffer) throws IOException {
+        int done = 0;
+        while(done < buffer.length) {
+            int read = raf.read(buffer, done, buffer.length - done);
+            if(read == -1) {
+                break;
+            }
+            done += read;
+        }
+        return done;
+    }
+}
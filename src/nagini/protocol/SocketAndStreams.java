@@ -4,33 +4,106 @@ import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.ConnectException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+
+import com.google.common.net.HostAndPort;
 
 /**
  * A wrapper class that wraps a socket with its DataInputStream and
  * DataOutputStream
  */
-public class
-        SocketAndStreams {
+public class SocketAndStreams {
 
     private static final int DEFAULT_BUFFER_SIZE = 65536;
+    private static final int TRANSFER_BUFFER_SIZE = 1 << 20;
 
     private final Socket socket;
+    private DrainableBufferedInputStream bufferedInputStream;
     private DataInputStream inputStream;
     private DataOutputStream outputStream;
+    // null while transfers are not throttled
+    private volatile Throttle throttle;
 
+    /**
+     * Connects to a server.
+     * 
+     * @param hostName host name, or host:port to override the port
+     * @param portId
+     * @throws IOException
+     */
     public SocketAndStreams(String hostName, int portId) throws IOException {
+        this(hostName, portId, 0);
+    }
+
+    /**
+     * Connects to a server, giving up on connecting and on every read after
+     * the given time.
+     * 
+     * @param hostName host name, or host:port to override the port
+     * @param portId
+     * @param timeoutMs milliseconds, 0 to wait forever
+     * @throws IOException SocketTimeoutException if the connection or a later
+     *         read times out
+     */
+    public SocketAndStreams(String hostName, int portId, int timeoutMs) throws IOException {
+        portId = getPortId(hostName, portId);
+        hostName = getHostAddress(hostName);
+        InetSocketAddress address = new InetSocketAddress(hostName, portId);
+        if(address.isUnresolved()) {
+            throw new UnknownHostException(hostName);
+        }
+        // open through a channel so that files can be transferred without
+        // copying them through the streams
+        SocketChannel channel = SocketChannel.open();
         try {
-            this.socket = new Socket(hostName, portId);
-        } catch (ConnectException e) {
+            channel.socket().connect(address, timeoutMs);
+            channel.socket().setSoTimeout(timeoutMs);
+        } catch(ConnectException e) {
+            channel.close();
             System.err.println("Unable to connect to host " + hostName + " on port " + portId);
             throw e;
+        } catch(IOException e) {
+            channel.close();
+            throw e;
         }
+        this.socket = channel.socket();
         initStreams(DEFAULT_BUFFER_SIZE);
     }
 
+    /**
+     * Hosts can be given as host:port, or [address]:port for IPv6 addresses,
+     * e.g. to run several servers on one machine.
+     * 
+     * @param hostName
+     * @param portId default port
+     * @return the port in the host name, or the default port
+     */
+    public static int getPortId(String hostName, int portId) {
+        return HostAndPort.fromString(hostName).getPortOrDefault(portId);
+    }
+
+    /**
+     * @param hostName host name, host:port or [address]:port
+     * @return the host name or address without port and brackets
+     */
+    public static String getHostAddress(String hostName) {
+        return HostAndPort.fromString(hostName).getHostText();
+    }
+
     public SocketAndStreams(Socket socket) throws IOException {
         this(socket, DEFAULT_BUFFER_SIZE);
     }
@@ -40,13 +113,43 @@ public class
         initStreams(bufferSizeBytes);
     }
 
+    /**
+     * Wraps already decoded request streams that are not backed by a blocking
+     * socket, e.g. frames decoded by a non-blocking server engine.
+     *
+     * @param inputStream
+     * @param outputStream
+     */
+    protected SocketAndStreams(InputStream inputStream, OutputStream outputStream) {
+        this.socket = null;
+        this.inputStream = new DataInputStream(new ThrottledInputStream(inputStream));
+        this.outputStream = new DataOutputStream(new ThrottledOutputStream(outputStream));
+    }
+
     private void initStreams(int bufferSizeBytes) throws IOException {
-        this.inputStream = new DataInputStream(new BufferedInputStream(socket.getInputStream(),
-                bufferSizeBytes));
-        this.outputStream = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(),
+        // throttle below the buffers, so that permits are paid for in blocks
+        InputStream socketIn = new ThrottledInputStream(socket.getInputStream());
+        OutputStream socketOut = new ThrottledOutputStream(socket.getOutputStream());
+        this.bufferedInputStream = new DrainableBufferedInputStream(socketIn, bufferSizeBytes);
+        this.inputStream = new DataInputStream(bufferedInputStream);
+        this.outputStream = new DataOutputStream(new BufferedOutputStream(socketOut,
                 bufferSizeBytes));
     }
 
+    /**
+     * Limits the bandwidth of everything sent and received from now on, and
+     * counts the bytes.
+     *
+     * @param throttle null to stop throttling
+     */
+    public void setThrottle(Throttle throttle) {
+        this.throttle = throttle;
+    }
+
+    public Throttle getThrottle() {
+        return throttle;
+    }
+
     public Socket getSocket() {
         return socket;
     }
@@ -59,9 +162,215 @@ public class
         return outputStream;
     }
 
+    private SocketChannel getChannel() {
+        return socket == null ? null : socket.getChannel();
+    }
+
+    /**
+     * Sends the whole content of a file after whatever has been written to the
+     * output stream so far, and flushes. If the socket has a channel, the file
+     * is transferred by the kernel (sendfile on Linux) without being copied
+     * into user space.
+     *
+     * @param file
+     * @throws IOException
+     */
+    public void sendFile(File file) throws IOException {
+        sendFile(file, 0, file.length());
+    }
+
+    /**
+     * Sends a range of a file the same way as sendFile(File).
+     *
+     * @param file
+     * @param offset
+     * @param length
+     * @throws IOException if the file is shorter than the range
+     */
+    public void sendFile(File file, long offset, long length) throws IOException {
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            SocketChannel channel = getChannel();
+            if(channel != null) {
+                outputStream.flush();
+                FileChannel fileChannel = fis.getChannel();
+                long done = 0;
+                while(done < length) {
+                    Throttle currentThrottle = throttle;
+                    long count = length - done;
+                    if(currentThrottle != null) {
+                        count = Math.min(Throttle.MAX_CHUNK, count);
+                        currentThrottle.acquire((int) count);
+                    }
+                    long sent = fileChannel.transferTo(offset + done, count, channel);
+                    if(sent == 0 && offset + done >= fileChannel.size()) {
+                        throw new IOException("file " + file + " truncated while sending.");
+                    }
+                    done += sent;
+                }
+                return;
+            }
+            fis.getChannel().position(offset);
+            byte[] buffer = new byte[DEFAULT_BUFFER_SIZE];
+            long done = 0;
+            while(done < length) {
+                int read = fis.read(buffer, 0, (int) Math.min(buffer.length, length - done));
+                if(read == -1) {
+                    throw new IOException("file " + file + " truncated while sending.");
+                }
+                outputStream.write(buffer, 0, read);
+                done += read;
+            }
+            outputStream.flush();
+        } finally {
+            fis.close();
+        }
+    }
+
+    /**
+     * Receives a body of the given length from the input stream into a file.
+     *
+     * @param file
+     * @param length
+     * @return number of bytes actually received, less than length if the peer
+     *         closed the connection early
+     * @throws IOException
+     */
+    public long receiveFile(File file, long length) throws IOException {
+        FileOutputStream fos = new FileOutputStream(file);
+        long done = 0;
+        try {
+            byte[] buffer = new byte[DEFAULT_BUFFER_SIZE];
+            SocketChannel channel = getChannel();
+            if(channel != null) {
+                // bytes already read ahead into the stream buffer come first
+                int buffered = (int) Math.min(bufferedInputStream.getBufferedCount(), length);
+                while(done < buffered) {
+                    int read = inputStream.read(buffer, 0, (int) Math.min(buffer.length, buffered - done));
+                    fos.write(buffer, 0, read);
+                    done += read;
+                }
+                // FileChannel.transferFrom copies from a socket in small
+                // chunks, a large direct buffer keeps the data out of the
+                // Java heap with far fewer system calls
+                FileChannel fileChannel = fos.getChannel();
+                ByteBuffer directBuffer = ByteBuffer.allocateDirect(TRANSFER_BUFFER_SIZE);
+                while(done < length) {
+                    Throttle currentThrottle = throttle;
+                    int capacity = currentThrottle == null ? directBuffer.capacity()
+                                                           : Throttle.MAX_CHUNK;
+                    directBuffer.clear();
+                    directBuffer.limit((int) Math.min(capacity, length - done));
+                    int read = channel.read(directBuffer);
+                    if(read == -1) {
+                        break;
+                    }
+                    if(currentThrottle != null) {
+                        currentThrottle.acquire(read);
+                    }
+                    directBuffer.flip();
+                    while(directBuffer.hasRemaining()) {
+                        fileChannel.write(directBuffer);
+                    }
+                    done += read;
+                }
+                return done;
+            }
+            while(done < length) {
+                int read = inputStream.read(buffer, 0, (int) Math.min(buffer.length, length - done));
+                if(read == -1) {
+                    break;
+                }
+                fos.write(buffer, 0, read);
+                done += read;
+            }
+        } finally {
+            fos.close();
+        }
+        return done;
+    }
+
     public void close() throws IOException {
         if(socket != null) {
             socket.close();
         }
     }
+
+    /**
+     * Pays for the bytes read with the throttle, if there is one.
+     */
+    private class ThrottledInputStream extends FilterInputStream {
+
+        private ThrottledInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            Throttle currentThrottle = throttle;
+            if(b != -1 && currentThrottle != null) {
+                currentThrottle.acquire(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            Throttle currentThrottle = throttle;
+            if(currentThrottle == null) {
+                return super.read(b, off, len);
+            }
+            int read = super.read(b, off, Math.min(len, Throttle.MAX_CHUNK));
+            currentThrottle.acquire(read);
+            return read;
+        }
+    }
+
+    /**
+     * Pays for the bytes written with the throttle, if there is one.
+     */
+    private class ThrottledOutputStream extends FilterOutputStream {
+
+        private ThrottledOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            Throttle currentThrottle = throttle;
+            if(currentThrottle != null) {
+                currentThrottle.acquire(1);
+            }
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            Throttle currentThrottle = throttle;
+            if(currentThrottle == null) {
+                out.write(b, off, len);
+                return;
+            }
+            for(int done = 0; done < len; done += Throttle.MAX_CHUNK) {
+                int count = Math.min(len - done, Throttle.MAX_CHUNK);
+                currentThrottle.acquire(count);
+                out.write(b, off + done, count);
+            }
+        }
+    }
+
+    /**
+     * A BufferedInputStream that tells how many bytes it has read ahead.
+     */
+    private static class DrainableBufferedInputStream extends BufferedInputStream {
+
+        private DrainableBufferedInputStream(InputStream in, int size) {
+            super(in, size);
+        }
+
+        private synchronized int getBufferedCount() {
+            return count - pos;
+        }
+    }
 }
@@ -0,0 +1,142 @@
+package nagini.protocol;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.util.concurrent.RateLimiter;
+
+/**
+ * Limits the bandwidth of the transfers over one connection, so that a deploy
+ * does not starve the applications running on the hosts. Bytes are paid for
+ * with permits of a token bucket of the connection, and of a bucket shared by
+ * several connections if there is one. Buckets keep up to one second of unused
+ * permits, so a transfer may start with a short burst. A throttle without
+ * buckets only counts the bytes, for reporting the achieved throughput.
+ */
+public class Throttle {
+
+    // largest number of bytes to pay for and move at once, so that the rate
+    // stays smooth and a transfer does not run ahead of its permits
+    public static final int MAX_CHUNK = 65536;
+
+    private final RateLimiter limiter;
+    private final RateLimiter sharedLimiter;
+    private final AtomicLong bytes;
+    private volatile long startNanos;
+    private volatile long endNanos;
+
+    /**
+     * @param limiter bucket of this connection, or null
+     * @param sharedLimiter bucket shared with other connections, or null
+     */
+    public Throttle(RateLimiter limiter, RateLimiter sharedLimiter) {
+        this.limiter = limiter;
+        this.sharedLimiter = sharedLimiter;
+        this.bytes = new AtomicLong();
+    }
+
+    /**
+     * @param bytesPerSecond
+     * @return bucket for the given rate, or null if the rate is not limited
+     */
+    public static RateLimiter newLimiter(long bytesPerSecond) {
+        return bytesPerSecond > 0 ? RateLimiter.create(bytesPerSecond) : null;
+    }
+
+    /**
+     * Waits until the given number of bytes may be transferred.
+     *
+     * @param count
+     */
+    public void acquire(int count) {
+        if(count <= 0) {
+            return;
+        }
+        if(startNanos == 0) {
+            startNanos = System.nanoTime();
+        }
+        for(int done = 0; done < count; done += MAX_CHUNK) {
+            int permits = Math.min(count - done, MAX_CHUNK);
+            if(limiter != null) {
+                limiter.acquire(permits);
+            }
+            if(sharedLimiter != null) {
+                sharedLimiter.acquire(permits);
+            }
+        }
+        bytes.addAndGet(count);
+        endNanos = System.nanoTime();
+    }
+
+    /**
+     * @return number of bytes transferred so far
+     */
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    public long getStartNanos() {
+        return startNanos;
+    }
+
+    public long getEndNanos() {
+        return endNanos;
+    }
+
+    /**
+     * @return bytes per second from the first to the last byte transferred
+     */
+    public long getBytesPerSecond() {
+        return getBytesPerSecond(bytes.get(), endNanos - startNanos);
+    }
+
+    public static long getBytesPerSecond(long bytes, long nanos) {
+        return nanos > 0 ? (long) (bytes * 1e9 / nanos) : 0;
+    }
+
+    /**
+     * Parses a rate in bytes per second, with an optional k, m or g suffix
+     * for powers of 1024, e.g. "512k" or "20m". A rate of 0 means unlimited.
+     *
+     * @param rate
+     * @return bytes per second
+     * @throws IllegalArgumentException if the rate cannot be parsed
+     */
+    public static long parseRate(String rate) {
+        String value = rate.trim().toLowerCase(Locale.ENGLISH);
+        long unit = 1;
+        if(value.endsWith("k")) {
+            unit = 1L << 10;
+        } else if(value.endsWith("m")) {
+            unit = 1L << 20;
+        } else if(value.endsWith("g")) {
+            unit = 1L << 30;
+        }
+        if(unit > 1) {
+            value = value.substring(0, value.length() - 1);
+        }
+        try {
+            long bytesPerSecond = Long.parseLong(value) * unit;
+            if(bytesPerSecond >= 0) {
+                return bytesPerSecond;
+            }
+        } catch(NumberFormatException e) {
+            // reported below
+        }
+        throw new IllegalArgumentException("invalid transfer rate " + rate);
+    }
+
+    /**
+     * @param bytesPerSecond
+     * @return human readable rate, e.g. "12.5 MB/s"
+     */
+    public static String formatRate(long bytesPerSecond) {
+        if(bytesPerSecond >= 1L << 20) {
+            return String.format(Locale.ENGLISH, "%.1f MB/s", bytesPerSecond / 1048576.0);
+        }
+        if(bytesPerSecond >= 1L << 10) {
+            return String.format(Locale.ENGLISH, "%.1f KB/s", bytesPerSecond / 1024.0);
+        }
+        return bytesPerSecond + " B/s";
+    }
+}
@@ -0,0 +1,237 @@
+package nagini.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+
+import nagini.utils.FileManifest;
+import nagini.utils.HashCache;
+import nagini.utils.NaginiFileUtils;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+/**
+ * Content-addressed store of deployed files, keyed by the SHA-256 of their
+ * content. Deployed trees are made of hardlinks into the store, so unchanged
+ * files never have to be transferred again. As an application may write to
+ * its files, and so to the blobs they link to, blobs are hashed again before
+ * they are reused, through a cache that only reads blobs that changed.
+ */
+public class BlobStore {
+
+    private static final String TEMP_FOLDER = "tmp";
+
+    private final File basePath;
+    private final HashCache cache;
+
+    /**
+     * @param basePath
+     * @param cache hashes of the blobs, to tell the blobs that changed
+     */
+    public BlobStore(String basePath, HashCache cache) {
+        this.basePath = new File(basePath);
+        this.cache = cache;
+    }
+
+    private File getBlobFile(String hash) {
+        return new File(basePath, hash.substring(0, 2) + File.separator + hash);
+    }
+
+    /**
+     * @return a new file on the same file system as the store, for receiving
+     *         a blob
+     */
+    public File createTempFile() {
+        File tempPath = new File(basePath, TEMP_FOLDER);
+        tempPath.mkdirs();
+        return new File(tempPath, "Neko_" + System.nanoTime());
+    }
+
+    /**
+     * Blobs whose content no longer matches their hash are dropped from the
+     * store, and count as missing.
+     *
+     * @param hashes
+     * @return the hashes that are not in the store
+     * @throws IOException
+     */
+    public List<String> getMissing(Collection<String> hashes) throws IOException {
+        List<String> missing = Lists.newArrayList();
+        for(String hash: hashes) {
+            if(!FileManifest.isValidHash(hash)) {
+                throw new IllegalArgumentException("invalid hash " + hash);
+            }
+            File blobFile = getBlobFile(hash);
+            if(blobFile.isFile()
+               && !hash.equals(cache.getHash(blobFile,
+                                             blobFile.length(),
+                                             blobFile.lastModified()))) {
+                // only the link of the store goes, the files of the
+                // application keep what it wrote
+                System.out.println("dropping changed blob " + hash);
+                Files.delete(blobFile.toPath());
+            }
+            if(!blobFile.isFile()) {
+                missing.add(hash);
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * Moves a received file into the store after checking its content.
+     *
+     * @param hash expected SHA-256 of the content
+     * @param file
+     * @return false if the content does not match the hash
+     * @throws IOException
+     */
+    public boolean add(String hash, File file) throws IOException {
+        if(!hash.equals(FileManifest.sha256(file))) {
+            NaginiFileUtils.delete(file);
+            return false;
+        }
+        File blobFile = getBlobFile(hash);
+        blobFile.getParentFile().mkdirs();
+        try {
+            Files.move(file.toPath(), blobFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch(FileAlreadyExistsException e) {
+            // stored by someone else in the meantime
+            NaginiFileUtils.delete(file);
+        }
+        return true;
+    }
+
+    /**
+     * Lays out the tree described by a manifest under a destination folder.
+     * Files that already exist are replaced, never written to, as they may be
+     * links into the store themselves. Files and folders under the roots of
+     * the manifest that are not in the manifest are removed, other files of
+     * the destination folder are left alone.
+     *
+     * @param manifest
+     * @param destPath
+     * @return number of files that had to be copied because linking failed
+     * @throws IOException
+     */
+    public int materialize(FileManifest manifest, String destPath) throws IOException {
+        int copied = 0;
+        for(FileManifest.Entry entry: manifest.getEntries()) {
+            File target = new File(destPath, FileManifest.toLocalPath(entry.path));
+            if(entry.isDirectory()) {
+                target.mkdirs();
+                continue;
+            }
+            File blobFile = getBlobFile(entry.hash);
+            if(!blobFile.isFile()) {
+                throw new IOException("missing blob " + entry.hash + " for " + entry.path);
+            }
+            target.getParentFile().mkdirs();
+            Path targetPath = target.toPath();
+            if(Files.exists(targetPath, LinkOption.NOFOLLOW_LINKS)) {
+                if(target.exists() && Files.isSameFile(targetPath, blobFile.toPath())) {
+                    continue;
+                }
+                if(Files.isDirectory(targetPath, LinkOption.NOFOLLOW_LINKS)) {
+                    NaginiFileUtils.delete(target);
+                } else {
+                    Files.delete(targetPath);
+                }
+            }
+            try {
+                Files.createLink(targetPath, blobFile.toPath());
+            } catch(IOException e) {
+                // e.g. destination on another file system
+                Files.copy(blobFile.toPath(), targetPath);
+                copied++;
+            } catch(UnsupportedOperationException e) {
+                Files.copy(blobFile.toPath(), targetPath);
+                copied++;
+            }
+        }
+        removeExtraneous(manifest, new File(destPath));
+        return copied;
+    }
+
+    /**
+     * Removes what is under the roots of a manifest but not in it.
+     */
+    private static void removeExtraneous(FileManifest manifest, File destFolder) {
+        Set<String> paths = Sets.newHashSet();
+        Set<String> roots = Sets.newHashSet();
+        for(FileManifest.Entry entry: manifest.getEntries()) {
+            String path = entry.path;
+            paths.add(path);
+            int slash;
+            while((slash = path.lastIndexOf('/')) > 0) {
+                path = path.substring(0, slash);
+                paths.add(path);
+            }
+            roots.add(path);
+        }
+        for(String root: roots) {
+            removeExtraneous(new File(destFolder, FileManifest.toLocalPath(root)), root, paths);
+        }
+    }
+
+    private static void removeExtraneous(File folder, String folderPath, Set<String> paths) {
+        if(!Files.isDirectory(folder.toPath(), LinkOption.NOFOLLOW_LINKS)) {
+            return;
+        }
+        for(File child: folder.listFiles()) {
+            String childPath = folderPath + "/" + child.getName();
+            if(paths.contains(childPath)) {
+                removeExtraneous(child, childPath, paths);
+            } else {
+                NaginiFileUtils.delete(child);
+            }
+        }
+    }
+
+    /**
+     * Deletes blobs that are not linked from anywhere else and not in the
+     * given set. Does nothing on file systems that do not report link
+     * counts.
+     *
+     * @param keep hashes to keep in any case
+     * @return number of deleted blobs
+     */
+    public int collectGarbage(Set<String> keep) {
+        int deleted = 0;
+        File[] prefixes = basePath.listFiles();
+        if(prefixes == null) {
+            return 0;
+        }
+        for(File prefix: prefixes) {
+            if(!prefix.isDirectory() || prefix.getName().equals(TEMP_FOLDER)) {
+                continue;
+            }
+            for(File blobFile: prefix.listFiles()) {
+                if(keep.contains(blobFile.getName())) {
+                    continue;
+                }
+                try {
+                    Number links = (Number) Files.getAttribute(blobFile.toPath(), "unix:nlink");
+                    if(links.intValue() <= 1 && blobFile.delete()) {
+                        deleted++;
+                    }
+                } catch(UnsupportedOperationException e) {
+                    return deleted;
+                } catch(IllegalArgumentException e) {
+                    return deleted;
+                } catch(IOException e) {
+                    System.out.println("NaginiServer Exception: " + e.getMessage());
+                }
+            }
+        }
+        return deleted;
+    }
+}
@@ -2,37 +2,125 @@ package nagini.server;
 
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 import nagini.config.NaginiConfig;
+import nagini.config.NaginiServerConfig;
+import nagini.protocol.BufferedRequestStreams;
+import nagini.protocol.ChunkedInputStream;
+import nagini.protocol.ChunkedOutputStream;
+import nagini.protocol.FileRange;
+import nagini.protocol.RelaySender;
+import nagini.protocol.RelayTree;
 import nagini.protocol.RequestType;
+import nagini.protocol.ResumableTransfer;
 import nagini.protocol.ResponseType;
 import nagini.protocol.SocketAndStreams;
+import nagini.protocol.Throttle;
+import nagini.utils.CompressionPolicy;
 import nagini.utils.JavaCommandBuilder;
+import nagini.utils.FileManifest;
+import nagini.utils.HashCache;
+import nagini.utils.NaginiDeltaUtils;
 import nagini.utils.NaginiFileUtils;
 import nagini.utils.NaginiZipUtils;
+import nagini.utils.ParallelZipExtractor;
+import nagini.utils.process.LogArchiver;
+import nagini.utils.process.LogFile;
+import nagini.utils.process.LogSearch;
+import nagini.utils.process.LogWriter;
+import nagini.utils.process.OutputBuffer;
+import nagini.utils.process.OutputTailer;
 import nagini.utils.process.ProcessThread;
+import nagini.utils.process.ResourceHistory;
+import nagini.utils.process.ResourceSampler;
 import nagini.utils.process.Service;
+import nagini.utils.process.ServiceScheduler;
 
 import com.google.common.base.Joiner;
+import com.google.common.collect.HashMultiset;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Multiset;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.gson.Gson;
 
 public class NaginiServer {
 
+    private static final int RELAY_BUFFER_SIZE = 1 << 20;
+    // a relay parent is held up by each of its other hosts that stops
+    // reading, and by its own parent, until they time out, so it is given
+    // several timeouts before it counts as gone
+    private static final int RELAY_PARENT_TIMEOUTS = 4;
+    private static final String RESUME_PREFIX = "resume_";
+    // partial transfers nobody came back for are dropped after a day
+    private static final long RESUME_EXPIRY_MS = 24L * 60 * 60 * 1000;
+    // a release that was prepared but never activated is taken as left
+    // behind by a failed deploy after a day
+    private static final long RELEASE_PREPARE_EXPIRY_MS = 24L * 60 * 60 * 1000;
+
     public String hostName;
-    public NaginiConfig config;
-    public ServerSocket serverSocket;
-    public List<Integer> nodeIds;
-    public Map<Integer, Service> mapNodeIdToApplicationStarterService;
+    // published as a whole by loadConfig() so that concurrent handlers always
+    // see a consistent snapshot; never mutated after being published
+    public volatile NaginiConfig config;
+    public volatile ServerSocket serverSocket;
+    public volatile List<Integer> nodeIds;
+    public volatile Map<Integer, Service> mapNodeIdToApplicationStarterService;
+    // starts the jobs of all node services, across config reloads
+    private final ServiceScheduler serviceScheduler;
+    private final OutputTailer outputTailer;
+    private final LogWriter logWriter;
+    private final LogArchiver logArchiver;
+    private final ResourceSampler resourceSampler;
+    // scans node logs for log searches, one node at a time per thread
+    private final ExecutorService searchExecutor;
+
+    // serializes config reloads and service restarts
+    private final Object reconfigLock;
+    // serializes lookups and changes of the blob store
+    private final Object blobStoreLock;
+    // blobs of the deploys in progress, guarded by blobStoreLock
+    private final Multiset<String> blobsInUse;
+    // serializes changes to the application releases
+    private final Object releaseLock;
+    // releases prepared for a deploy, by time, guarded by releaseLock
+    private final Map<String, Long> releasesPrepared;
+    // releases whose activation is hashing them, guarded by releaseLock
+    private final Set<String> releasesActivating;
+    private ExecutorService handlerExecutor;
+    // hashes of synced trees, loaded on first use
+    private HashCache hashCache;
+    // shared by all file transfers, null if they are not throttled
+    private volatile RateLimiter transferLimiter;
 
     public NaginiServer(String configPath, String hostName) throws IOException {
         this.hostName = hostName;
@@ -40,6 +128,25 @@ public class NaginiServer {
         this.serverSocket = null;
         this.nodeIds = null;
         this.mapNodeIdToApplicationStarterService = null;
+        this.reconfigLock = new Object();
+        this.blobStoreLock = new Object();
+        this.blobsInUse = HashMultiset.create();
+        this.releaseLock = new Object();
+        this.releasesPrepared = Maps.newHashMap();
+        this.releasesActivating = Sets.newHashSet();
+        this.handlerExecutor = null;
+        this.hashCache = null;
+        this.transferLimiter = null;
+        this.serviceScheduler = new ServiceScheduler("application-scheduler");
+        this.outputTailer = new OutputTailer("application-output-tailer");
+        this.logWriter = new LogWriter("application-log-writer");
+        this.logArchiver = new LogArchiver("application-log-archiver");
+        this.resourceSampler = new ResourceSampler("application-resource-sampler");
+        int processors = Runtime.getRuntime().availableProcessors();
+        this.searchExecutor = Executors.newFixedThreadPool(processors,
+                                                           new ThreadFactoryBuilder().setNameFormat("log-search-%d")
+                                                                                     .setDaemon(true)
+                                                                                     .build());
         loadConfig(configPath);
     }
 
@@ -82,135 +189,500 @@ public class NaginiServer {
         }
     }
 
-    private void generateNodeConfig(Integer nodeId) throws IOException {
+    private static void generateNodeConfig(NaginiServerConfig serverConfig, Integer nodeId)
+            throws IOException {
         // check and create node/config folder
-        NaginiFileUtils.delete(config.server.getNodeConfigPath(nodeId));
-        NaginiFileUtils.copy(config.server.getConfigApplicationPath(),
-                             config.server.getNodeConfigPath(nodeId));
-        setupNodeConfig(new File(config.server.getNodeConfigPath(nodeId)), nodeId);
+        NaginiFileUtils.delete(serverConfig.getNodeConfigPath(nodeId));
+        NaginiFileUtils.copy(serverConfig.getConfigApplicationPath(),
+                             serverConfig.getNodeConfigPath(nodeId));
+        setupNodeConfig(new File(serverConfig.getNodeConfigPath(nodeId)), nodeId);
     }
 
-    private String getServerTempPath() {
+    String getServerTempPath() {
         return config.server.tempPath + File.separator + "Neko_" + System.nanoTime();
     }
 
-    public void loadConfig(String configPath) throws IOException {
-        // load config from files
-        Integer oldPortId = null;
-        if(config != null) {
-            oldPortId = config.server.portId;
-        }
-
-        config = new NaginiConfig(configPath);
+    private String getResumePath(String transferId) {
+        return config.server.tempPath + File.separator + RESUME_PREFIX + transferId;
+    }
 
-        // load server socket
-        if(serverSocket != null && oldPortId != config.server.portId) {
-            serverSocket.close();
-            serverSocket = null;
+    private synchronized HashCache getHashCache() {
+        if(hashCache == null) {
+            hashCache = HashCache.load(new File(config.server.getHashCachePath()));
         }
+        return hashCache;
+    }
 
-        if(serverSocket == null) {
-            serverSocket = new ServerSocket(config.server.portId);
+    /**
+     * Deletes files of resumable transfers that have not been touched for a
+     * while.
+     */
+    private void deleteExpiredTransfers() {
+        File[] files = new File(config.server.tempPath).listFiles();
+        if(files == null) {
+            return;
         }
+        long expiry = System.currentTimeMillis() - RESUME_EXPIRY_MS;
+        for(File file: files) {
+            if(file.getName().startsWith(RESUME_PREFIX) && file.lastModified() < expiry) {
+                NaginiFileUtils.delete(file);
+            }
+        }
+    }
 
-        // load node id list
-        nodeIds = config.server.mapHostToNodes.get(hostName);
+    public void loadConfig(String configPath) throws IOException {
+        synchronized(reconfigLock) {
+            // load config from files
+            Integer oldPortId = null;
+            if(config != null) {
+                oldPortId = config.server.getPortId(hostName);
+            }
 
-        if(nodeIds == null) {
-            nodeIds = Lists.newArrayList();
-        }
+            NaginiConfig newConfig = new NaginiConfig(configPath);
+            Integer newPortId = newConfig.server.getPortId(hostName);
 
-        // create map node to serviec
-        mapNodeIdToApplicationStarterService = Maps.newHashMap();
+            // load server socket
+            if(serverSocket != null && !newPortId.equals(oldPortId)) {
+                ServerSocket oldServerSocket = serverSocket;
+                serverSocket = openServerSocket(newPortId);
+                oldServerSocket.close();
+            }
+
+            if(serverSocket == null) {
+                serverSocket = openServerSocket(newPortId);
+            }
+
+            // load node id list
+            List<Integer> newNodeIds = newConfig.server.mapHostToNodes.get(hostName);
+
+            if(newNodeIds == null) {
+                newNodeIds = Lists.newArrayList();
+            }
+
+            // create map node to serviec
+            Map<Integer, Service> newServices = Maps.newHashMap();
+
+            // generate application node config and create node services
+            for(Integer nodeId: newNodeIds) {
+                generateNodeConfig(newConfig.server, nodeId);
+                OutputBuffer outputBuffer = null;
+                if(newConfig.server.watchEnabled) {
+                    outputBuffer = new OutputBuffer(newConfig.server.watchBufferLines,
+                                                    newConfig.server.watchBufferSize);
+                }
+                OutputTailer tailer = null;
+                if(newConfig.server.appOutput.equals(NaginiServerConfig.APP_OUTPUT_FILE)) {
+                    tailer = outputTailer;
+                }
+                String logPath = newConfig.server.getNodeApplicationLogFilePath(nodeId);
+                LogFile logFile = new LogFile(logPath,
+                                              newConfig.server.logBatchSize,
+                                              newConfig.server.logRotateSize,
+                                              newConfig.server.logRotateHours * 3600000L,
+                                              newConfig.server.logRetentionSize,
+                                              newConfig.server.logCompress,
+                                              logWriter,
+                                              logArchiver);
+                ResourceHistory resourceHistory = null;
+                if(newConfig.server.sampleIntervalMs > 0) {
+                    resourceHistory = new ResourceHistory(newConfig.server.sampleHistory);
+                }
+                newServices.put(nodeId,
+                                new Service("application-starter-" + nodeId,
+                                            logFile,
+                                            1,
+                                            outputBuffer,
+                                            tailer,
+                                            resourceHistory,
+                                            serviceScheduler));
+            }
+
+            // publish the new node list and services together
+            mapNodeIdToApplicationStarterService = newServices;
+            nodeIds = newNodeIds;
+            resourceSampler.configure(newServices, newConfig.server.sampleIntervalMs);
+
+            // keep the bucket of running transfers unless the rate changed
+            long rate = newConfig.server.transferRate;
+            if(rate == 0) {
+                transferLimiter = null;
+            } else if(transferLimiter == null || transferLimiter.getRate() != rate) {
+                transferLimiter = Throttle.newLimiter(rate);
+            }
 
-        // generate application node config and create node services
-        for(Integer nodeId: nodeIds) {
-            generateNodeConfig(nodeId);
-            mapNodeIdToApplicationStarterService.put(nodeId,
-                                                     new Service("application-starter-" + nodeId,
-                                                                 config.server.getNodeApplicationLogFilePath(nodeId),
-                                                                 1,
-                                                                 config.server.watchEnabled));
+            // publish the config last, once everything it describes is in
+            // place, so that a handler that sees it also sees its services
+            config = newConfig;
         }
     }
 
+    /**
+     * Opens a channel-backed server socket, which serves both the blocking
+     * accept loop and the non-blocking engine.
+     * 
+     * @param portId
+     * @return bound server socket
+     * @throws IOException
+     */
+    private static ServerSocket openServerSocket(int portId) throws IOException {
+        ServerSocket socket = ServerSocketChannel.open().socket();
+        socket.setReuseAddress(true);
+        socket.bind(new InetSocketAddress(portId));
+        return socket;
+    }
+
     private void startServices() {
-        Service service = null;
-        for(Integer nodeId: nodeIds) {
-            service = mapNodeIdToApplicationStarterService.get(nodeId);
-            if(service != null) {
-                service.start();
-            }
+        for(Service service: mapNodeIdToApplicationStarterService.values()) {
+            service.start();
         }
     }
 
     private void stopServices() throws InterruptedException {
-        Service service = null;
-        for(Integer nodeId: nodeIds) {
-            service = mapNodeIdToApplicationStarterService.get(nodeId);
-            if(service != null) {
-                service.terminate();
-                service.join();
-            }
+        for(Service service: mapNodeIdToApplicationStarterService.values()) {
+            service.terminate();
+        }
+        for(Service service: mapNodeIdToApplicationStarterService.values()) {
+            service.awaitTermination();
         }
     }
 
     public void start() throws IOException {
+        // left over if the server stopped while unzipping
+        ParallelZipExtractor.deleteStaging(new File(config.server.tempPath));
+        serviceScheduler.start();
+        outputTailer.start();
+        logWriter.start();
+        logArchiver.start();
+        resourceSampler.start();
         startServices();
-        handleRequests();
+        handlerExecutor = createHandlerExecutor();
+        if(config.server.engine.equals(NaginiServerConfig.ENGINE_NIO)) {
+            System.out.println("NaginiServer: using non-blocking engine.");
+            ExecutorService workerExecutor = handlerExecutor;
+            if(workerExecutor == null) {
+                workerExecutor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setNameFormat("nagini-handler-%d")
+                                                                                             .build());
+            }
+            new NioServerEngine(this, workerExecutor).run();
+        } else {
+            handleRequests();
+        }
+    }
+
+    /**
+     * Creates the executor that runs request handlers, or null if requests
+     * are to be handled one by one on the accepting thread.
+     * 
+     * @return handler executor, or null in serial mode
+     */
+    private ExecutorService createHandlerExecutor() {
+        if(config.server.handlerMode.equals(NaginiServerConfig.HANDLER_MODE_SERIAL)) {
+            System.out.println("NaginiServer: handling requests serially.");
+            return null;
+        }
+        // virtual threads are only available on newer JVMs
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            ExecutorService executor = (ExecutorService) method.invoke(null);
+            System.out.println("NaginiServer: handling requests on virtual threads.");
+            return executor;
+        } catch(Exception e) {
+            System.out.println("NaginiServer: handling requests on "
+                               + config.server.handlerThreads + " worker threads.");
+            return Executors.newFixedThreadPool(config.server.handlerThreads,
+                                                new ThreadFactoryBuilder().setNameFormat("nagini-handler-%d")
+                                                                          .build());
+        }
     }
 
     private void handleRequests() throws IOException {
         while(true) {
-            SocketAndStreams sands = null;
+            ServerSocket currentServerSocket = serverSocket;
+            final Socket socket;
             try {
-                sands = new SocketAndStreams(serverSocket.accept());
-                int requestType = sands.getInputStream().readInt();
-                switch(requestType) {
-                    case RequestType.REQUEST_PING:
-                        handleControlPing(sands);
-                        break;
-                    case RequestType.REQUEST_STOP:
-                        handleControlStop(sands);
-                        break;
-                    case RequestType.REQUEST_RECONFIG:
-                        handleControlReconfig(sands);
-                        break;
-                    case RequestType.REQUEST_FILE_PUT:
-                        handleFilePutRequest(sands);
-                        break;
-                    case RequestType.REQUEST_FILE_GET:
-                        handleFileGetRequest(sands);
-                        break;
-                    case RequestType.REQUEST_FILE_DELETE:
-                        handleFileDeleteRequest(sands);
-                        break;
-                    case RequestType.REQUEST_SERVICE_START_APPLICATION:
-                        handleStartApplicationRequest(sands);
-                        break;
-                    case RequestType.REQUEST_SERVICE_STOP_APPLICATION:
-                        handleStopApplicationRequest(sands);
-                        break;
-                    case RequestType.REQUEST_SERVICE_WATCH_APPLICATION:
-                        handleWatchApplicationRequest(sands);
-                        break;
-                    default:
-                        sendFailResponse(sands,
-                                         "invalid request. (0x" + Integer.toHexString(requestType)
-                                                 + ")");
-                        break;
+                socket = currentServerSocket.accept();
+            } catch(IOException e) {
+                if(currentServerSocket != serverSocket) {
+                    // server socket has been replaced by a config reload
+                    continue;
                 }
-            } catch(Exception e) {
-                System.out.println("NaginiServer Exception: " + e.getMessage());
-                e.printStackTrace();
-            } finally {
-                if(sands != null) {
-                    sands.close();
+                throw e;
+            }
+            if(handlerExecutor == null) {
+                handleRequest(socket);
+            } else {
+                handlerExecutor.execute(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        handleRequest(socket);
+                    }
+                });
+            }
+        }
+    }
+
+    private void handleRequest(Socket socket) {
+        SocketAndStreams sands = null;
+        try {
+            sands = new SocketAndStreams(socket);
+            int requestType = sands.getInputStream().readInt();
+            if(requestType == RequestType.PROTOCOL_V2) {
+                // persistent connections get their own reader thread rather
+                // than holding on to a worker for their whole lifetime
+                final SocketAndStreams connection = sands;
+                sands = null;
+                Thread reader = new Thread(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        try {
+                            handleMultiplexedRequests(connection);
+                        } catch(IOException e) {
+                            System.out.println("NaginiServer Exception: " + e.getMessage());
+                        } finally {
+                            closeQuietly(connection);
+                        }
+                    }
+                }, "nagini-connection-" + socket.getRemoteSocketAddress());
+                reader.setDaemon(true);
+                reader.start();
+            } else {
+                handleRequest(requestType, sands);
+                closeQuietly(sands);
+            }
+        } catch(Exception e) {
+            System.out.println("NaginiServer Exception: " + e.getMessage());
+            e.printStackTrace();
+            if(sands != null) {
+                closeQuietly(sands);
+            } else {
+                try {
+                    socket.close();
+                } catch(IOException ioe) {
+                    System.out.println("NaginiServer Exception: " + ioe.getMessage());
                 }
             }
         }
     }
 
+    private static void closeQuietly(SocketAndStreams sands) {
+        try {
+            sands.close();
+        } catch(IOException e) {
+            System.out.println("NaginiServer Exception: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Serves a protocol v2 connection: reads request frames until the client
+     * closes the connection and answers each one, possibly out of order, with
+     * a response frame carrying the same request id.
+     * 
+     * @param sands
+     * @throws IOException
+     */
+    private void handleMultiplexedRequests(SocketAndStreams sands) throws IOException {
+        final DataOutputStream dos = sands.getOutputStream();
+        DataInputStream dis = sands.getInputStream();
+        dos.writeInt(RequestType.PROTOCOL_V2);
+        dos.flush();
+        while(true) {
+            final int requestId;
+            try {
+                requestId = dis.readInt();
+            } catch(EOFException e) {
+                return;
+            }
+            int length = dis.readInt();
+            if(length < 0 || length > BufferedRequestStreams.MAX_FRAME_SIZE) {
+                throw new IOException("invalid frame length " + length);
+            }
+            final byte[] request = new byte[length];
+            dis.readFully(request);
+            Runnable task = new Runnable() {
+
+                @Override
+                public void run() {
+                    BufferedRequestStreams streams = new BufferedRequestStreams(request);
+                    try {
+                        handleRequest(streams);
+                    } catch(Exception e) {
+                        System.out.println("NaginiServer Exception: " + e.getMessage());
+                        e.printStackTrace();
+                    }
+                    byte[] response = streams.getResponseBytes();
+                    try {
+                        synchronized(dos) {
+                            dos.writeInt(requestId);
+                            dos.writeInt(response.length);
+                            dos.write(response);
+                            dos.flush();
+                        }
+                    } catch(IOException e) {
+                        System.out.println("NaginiServer Exception: " + e.getMessage());
+                    }
+                }
+            };
+            if(handlerExecutor == null) {
+                task.run();
+            } else {
+                handlerExecutor.execute(task);
+            }
+        }
+    }
+
+    /**
+     * Reads the request type and runs the matching handler. Shared by the
+     * blocking and the non-blocking engine.
+     * 
+     * @param sands
+     * @throws Exception
+     */
+    void handleRequest(SocketAndStreams sands) throws Exception {
+        handleRequest(sands.getInputStream().readInt(), sands);
+    }
+
+    /**
+     * @return true if file transfers are limited by server.transfer.rate
+     */
+    boolean isTransferThrottled() {
+        return transferLimiter != null;
+    }
+
+    /**
+     * @param requestType
+     * @return true if the request moves file content
+     */
+    static boolean isFileTransferRequest(int requestType) {
+        switch(requestType) {
+            case RequestType.REQUEST_FILE_PUT:
+            case RequestType.REQUEST_FILE_GET:
+            case RequestType.REQUEST_FILE_PUT_STREAM:
+            case RequestType.REQUEST_FILE_GET_STREAM:
+            case RequestType.REQUEST_FILE_PUT_MANIFEST:
+            case RequestType.REQUEST_FILE_PUT_DELTA:
+            case RequestType.REQUEST_FILE_GET_DELTA:
+            case RequestType.REQUEST_FILE_PUT_RELAY:
+            case RequestType.REQUEST_FILE_PUT_RESUMABLE:
+            case RequestType.REQUEST_FILE_GET_RESUMABLE:
+            case RequestType.REQUEST_FILE_SYNC:
+            case RequestType.REQUEST_FILE_READ:
+            case RequestType.REQUEST_FILE_TAIL:
+            case RequestType.REQUEST_FILE_GET_STREAM_COMPRESSED:
+            case RequestType.REQUEST_FILE_GET_RESUMABLE_COMPRESSED:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private void handleRequest(int requestType, SocketAndStreams sands) throws Exception {
+        RateLimiter limiter = transferLimiter;
+        if(limiter != null && isFileTransferRequest(requestType)) {
+            sands.setThrottle(new Throttle(null, limiter));
+        }
+        switch(requestType) {
+            case RequestType.REQUEST_PING:
+                handleControlPing(sands);
+                break;
+            case RequestType.REQUEST_STOP:
+                handleControlStop(sands);
+                break;
+            case RequestType.REQUEST_RECONFIG:
+                handleControlReconfig(sands);
+                break;
+            case RequestType.REQUEST_RESOURCES:
+                handleControlResources(sands);
+                break;
+            case RequestType.REQUEST_FILE_PUT:
+                handleFilePutRequest(sands);
+                break;
+            case RequestType.REQUEST_FILE_GET:
+                handleFileGetRequest(sands);
+                break;
+            case RequestType.REQUEST_FILE_DELETE:
+                handleFileDeleteRequest(sands);
+                break;
+            case RequestType.REQUEST_FILE_PUT_STREAM:
+                handleFilePutStreamRequest(sands);
+                break;
+            case RequestType.REQUEST_FILE_GET_STREAM:
+                handleFileGetStreamRequest(sands, false);
+                break;
+            case RequestType.REQUEST_FILE_PUT_MANIFEST:
+                handleFilePutManifestRequest(sands);
+                break;
+            case RequestType.REQUEST_FILE_PUT_DELTA:
+                handleFilePutDeltaRequest(sands);
+                break;
+            case RequestType.REQUEST_FILE_GET_DELTA:
+                handleFileGetDeltaRequest(sands);
+                break;
+            case RequestType.REQUEST_FILE_PUT_RELAY:
+                handleFilePutRelayRequest(sands);
+                break;
+            case RequestType.REQUEST_FILE_PUT_RESUMABLE:
+                handleFilePutResumableRequest(sands);
+                break;
+            case RequestType.REQUEST_FILE_GET_RESUMABLE:
+                handleFileGetResumableRequest(sands, false);
+                break;
+            case RequestType.REQUEST_FILE_SYNC:
+                handleFileSyncRequest(sands);
+                break;
+            case RequestType.REQUEST_FILE_READ:
+                handleFileReadRequest(sands);
+                break;
+            case RequestType.REQUEST_FILE_TAIL:
+                handleFileTailRequest(sands);
+                break;
+            case RequestType.REQUEST_FILE_GET_STREAM_COMPRESSED:
+                handleFileGetStreamRequest(sands, true);
+                break;
+            case RequestType.REQUEST_FILE_GET_RESUMABLE_COMPRESSED:
+                handleFileGetResumableRequest(sands, true);
+                break;
+            case RequestType.REQUEST_RELEASE_PREPARE:
+                handleReleasePrepareRequest(sands);
+                break;
+            case RequestType.REQUEST_RELEASE_ACTIVATE:
+                handleReleaseActivateRequest(sands);
+                break;
+            case RequestType.REQUEST_RELEASE_ROLLBACK:
+                handleReleaseRollbackRequest(sands);
+                break;
+            case RequestType.REQUEST_RELEASE_LIST:
+                handleReleaseListRequest(sands);
+                break;
+            case RequestType.REQUEST_SERVICE_START_APPLICATION:
+                handleStartApplicationRequest(sands);
+                break;
+            case RequestType.REQUEST_SERVICE_STOP_APPLICATION:
+                handleStopApplicationRequest(sands);
+                break;
+            case RequestType.REQUEST_SERVICE_WATCH_APPLICATION:
+                handleWatchApplicationRequest(sands);
+                break;
+            case RequestType.REQUEST_SERVICE_READ_OUTPUT:
+                handleReadOutputRequest(sands);
+                break;
+            case RequestType.REQUEST_SERVICE_RESTART_APPLICATION:
+                handleRestartApplicationRequest(sands);
+                break;
+            case RequestType.REQUEST_LOG_QUERY:
+                handleLogQueryRequest(sands);
+                break;
+            case RequestType.REQUEST_LOG_SEARCH:
+                handleLogSearchRequest(sands);
+                break;
+            default:
+                sendFailResponse(sands, "invalid request. (0x" + Integer.toHexString(requestType)
+                                        + ")");
+                break;
+        }
+    }
+
     private void sendSuccessResponse(SocketAndStreams sands, String message) throws IOException {
         DataOutputStream dos = sands.getOutputStream();
         dos.writeInt(ResponseType.RESPONSE_SUCCESS);
@@ -227,10 +699,15 @@ public class NaginiServer {
         dos.flush();
     }
 
+    /**
+     * Sends the output of a node, either what no watcher without a cursor has
+     * read yet, or what follows the cursor of the watcher.
+     */
     private void sendWatchResponse(SocketAndStreams sands,
                                    Service service,
                                    Integer nodeId,
-                                   Integer tail) throws IOException {
+                                   Integer tail,
+                                   Long cursor) throws IOException {
         if(!service.isAlive()) {
             sendFailResponse(sands, "service " + service.getName() + " is corrupted.");
         } else if(service.getJobCount() == 0) {
@@ -239,16 +716,26 @@ public class NaginiServer {
         } else if(!service.isRunningJob()) {
             sendSuccessResponse(sands, "service " + service.getName()
                                        + " is going to run the next job.");
-        } else {
+        } else if(cursor == null) {
+            List<String> lines = service.readOutput();
+            if(tail > 0 && lines.size() > tail) {
+                lines = lines.subList(lines.size() - tail, lines.size());
+            }
             List<String> output = Lists.newArrayList();
             output.add("        [node = " + nodeId + "]");
-            output.addAll(service.readOutput());
-            if(tail > 0) {
-                while(output.size() > tail) {
-                    output.remove(0);
-                }
-            }
+            output.addAll(lines);
             sendSuccessResponse(sands, Joiner.on("\n").join(output));
+        } else {
+            OutputBuffer.Chunk chunk = service.readOutput(cursor, tail);
+            if(chunk == null) {
+                sendFailResponse(sands, "service " + service.getName()
+                                        + " does not keep output, see server.watch.enabled.");
+                return;
+            }
+            DataOutputStream dos = sands.getOutputStream();
+            dos.writeInt(ResponseType.RESPONSE_OUTPUT);
+            chunk.write(dos);
+            dos.flush();
         }
     }
 
@@ -270,20 +757,81 @@ public class NaginiServer {
         return status;
     }
 
-    private NodeStatus getNodeStatus(Integer nodeId) {
+    /**
+     * @param service
+     * @param since
+     * @return samples of the running application taken after a time, leaving
+     *         out those of jobs that ran before
+     */
+    private static List<ResourceHistory.Sample> getResourceSamples(Service service, long since) {
+        List<ResourceHistory.Sample> samples = Lists.newArrayList();
+        ResourceHistory history = service.getResourceHistory();
+        ProcessThread job = service.getCurrentJob();
+        Integer pid = job == null ? null : job.getPid();
+        if(history == null || pid == null) {
+            return samples;
+        }
+        for(ResourceHistory.Sample sample: history.getSamples(since)) {
+            if(sample.getPid() == pid) {
+                samples.add(sample);
+            }
+        }
+        return samples;
+    }
+
+    /**
+     * Sums up the samples of the running application.
+     *
+     * @param service
+     * @return resources of the running application, or null if there are no
+     *         samples of it
+     */
+    private ResourceStatus getResourceStatus(Service service) {
+        List<ResourceHistory.Sample> samples = getResourceSamples(service, 0);
+        if(samples.isEmpty()) {
+            return null;
+        }
+        ResourceHistory.Sample last = samples.get(samples.size() - 1);
+        ResourceStatus status = new ResourceStatus();
+        status.pid = last.getPid();
+        status.sample_time = last.getTime();
+        status.sample_count = samples.size();
+        status.cpu_percent = last.getCpuPercent();
+        status.cpu_percent_max = 0f;
+        status.rss_bytes = last.getRssBytes();
+        status.rss_bytes_min = Long.MAX_VALUE;
+        status.rss_bytes_max = 0L;
+        status.threads = last.getThreads();
+        status.fds = last.getFds();
+        status.read_bytes_per_sec = last.getReadRate();
+        status.write_bytes_per_sec = last.getWriteRate();
+        float cpuTotal = 0;
+        for(ResourceHistory.Sample sample: samples) {
+            cpuTotal += sample.getCpuPercent();
+            status.cpu_percent_max = Math.max(status.cpu_percent_max, sample.getCpuPercent());
+            status.rss_bytes_min = Math.min(status.rss_bytes_min, sample.getRssBytes());
+            status.rss_bytes_max = Math.max(status.rss_bytes_max, sample.getRssBytes());
+        }
+        status.cpu_percent_avg = cpuTotal / status.sample_count;
+        return status;
+    }
+
+    private NodeStatus getNodeStatus(Integer nodeId, Service service) {
         NodeStatus status = new NodeStatus();
         status.node_id = nodeId;
         status.service_list = Lists.newArrayList();
-        status.service_list.add(getServiceStatus(mapNodeIdToApplicationStarterService.get(nodeId)));
+        status.service_list.add(getServiceStatus(service));
+        status.resources = getResourceStatus(service);
         return status;
     }
 
     private NaginiServerStatus getServerStatus() {
+        Map<Integer, Service> services = mapNodeIdToApplicationStarterService;
         NaginiServerStatus status = new NaginiServerStatus();
         status.host_name = hostName;
         status.node_list = Lists.newArrayList();
-        for(Integer nodeId: nodeIds) {
-            status.node_list.add(getNodeStatus(nodeId));
+        for(Map.Entry<Integer, Service> entry: services.entrySet()) {
+            status.node_list.add(getNodeStatus(entry.getKey(), entry.getValue()));
         }
         return status;
     }
@@ -295,9 +843,27 @@ public class NaginiServer {
         sendSuccessResponse(sands, responseMessage);
     }
 
+    private void handleControlResources(SocketAndStreams sands) throws IOException {
+        DataInputStream dis = sands.getInputStream();
+        long since = dis.readLong();
+        DataOutputStream dos = sands.getOutputStream();
+        dos.writeInt(ResponseType.RESPONSE_RESOURCES);
+        for(Map.Entry<Integer, Service> entry: mapNodeIdToApplicationStarterService.entrySet()) {
+            List<ResourceHistory.Sample> samples = getResourceSamples(entry.getValue(), since);
+            dos.writeInt(entry.getKey());
+            dos.writeInt(samples.size());
+            for(ResourceHistory.Sample sample: samples) {
+                sample.write(dos);
+            }
+        }
+        dos.writeInt(-1);
+        dos.flush();
+    }
+
     private void handleControlStop(SocketAndStreams sands) throws IOException, InterruptedException {
         sendSuccessResponse(sands, "stopping Nagini server ...");
         stopServices();
+        sands.close();
         System.exit(0);
     }
 
@@ -306,9 +872,11 @@ public class NaginiServer {
         DataInputStream dis = sands.getInputStream();
         String configPath = dis.readUTF();
         sendSuccessResponse(sands, "started reloading config file from " + configPath);
-        stopServices();
-        loadConfig(configPath);
-        startServices();
+        synchronized(reconfigLock) {
+            stopServices();
+            loadConfig(configPath);
+            startServices();
+        }
     }
 
     private void handleFilePutRequest(SocketAndStreams sands) throws IOException {
@@ -316,20 +884,8 @@ public class NaginiServer {
         File tempZipFile = new File(tempZipPath);
         DataInputStream dis = sands.getInputStream();
         String destPath = dis.readUTF();
-        Long fileLength = dis.readLong();
-        FileOutputStream fos = new FileOutputStream(tempZipFile);
-        int bufferSize = 65536;
-        byte[] buffer = new byte[bufferSize];
-        int done = 0;
-        while(done < fileLength) {
-            int read = dis.read(buffer);
-            fos.write(buffer, 0, read);
-            if(read == -1) {
-                break;
-            }
-            done += read;
-        }
-        fos.close();
+        long fileLength = dis.readLong();
+        long done = sands.receiveFile(tempZipFile, fileLength);
         if(tempZipFile.exists() && done == fileLength) {
             sendSuccessResponse(sands, "successfully received file + " + tempZipPath + ". (" + done
                                        + " bytes)");
@@ -356,24 +912,574 @@ public class NaginiServer {
         System.out.println("zipping " + filePath + " ...");
         NaginiZipUtils.zip(filePath, tempZipPath, null);
 
-        FileInputStream fis = new FileInputStream(tempZipFile);
-        Long fileLength = tempZipFile.length();
-
-        int bufferSize = 65536;
-        byte[] buffer = new byte[bufferSize];
-        int read;
+        long fileLength = tempZipFile.length();
 
         System.out.println("sending " + tempZipPath + " ...");
         dos.writeInt(ResponseType.RESPONSE_FILE);
         dos.writeLong(fileLength);
-        while((read = fis.read(buffer)) != -1) {
-            dos.write(buffer, 0, read);
+        sands.sendFile(tempZipFile);
+        NaginiFileUtils.delete(tempZipFile);
+
+        System.out.println("" + filePath + " sent.");
+    }
+
+    private void handleFilePutStreamRequest(SocketAndStreams sands) throws IOException {
+        DataInputStream dis = sands.getInputStream();
+        String destPath = dis.readUTF();
+        ChunkedInputStream cis = new ChunkedInputStream(dis);
+        System.out.println("unzipping stream to " + destPath + " ...");
+        try {
+            NaginiZipUtils.unzip(cis, destPath, null);
+            cis.skipToEnd();
+        } catch(IOException e) {
+            sendFailResponse(sands, "failed to receive stream to " + destPath + ". ("
+                                    + e.getMessage() + ", " + cis.getCount() + " bytes)");
+            return;
+        }
+        System.out.println("unzipped stream to " + destPath + ".");
+        sendSuccessResponse(sands, "successfully received stream to " + destPath + ". ("
+                                   + cis.getCount() + " bytes)");
+    }
+
+    private void handleFileGetStreamRequest(SocketAndStreams sands, boolean compressed)
+            throws IOException {
+        DataOutputStream dos = sands.getOutputStream();
+        DataInputStream dis = sands.getInputStream();
+        String filePath = dis.readUTF();
+        CompressionPolicy policy = compressed ? CompressionPolicy.read(dis)
+                                             : CompressionPolicy.getDefault();
+        if(!new File(filePath).exists()) {
+            sendFailResponse(sands, "failed to send " + filePath + ". (file does not exist)");
+            return;
+        }
+
+        System.out.println("streaming " + filePath + " (" + policy + ") ...");
+        dos.writeInt(ResponseType.RESPONSE_FILE_STREAM);
+        ChunkedOutputStream cos = new ChunkedOutputStream(dos);
+        try {
+            NaginiZipUtils.zip(filePath, cos, policy, null);
+        } catch(IOException e) {
+            cos.abort();
+            throw e;
         }
+        cos.finish();
+
+        System.out.println("" + filePath + " sent. (" + cos.getCount() + " bytes)");
+    }
+
+    private void handleFilePutManifestRequest(SocketAndStreams sands) throws IOException {
+        DataInputStream dis = sands.getInputStream();
+        DataOutputStream dos = sands.getOutputStream();
+        String destPath = dis.readUTF();
+        FileManifest manifest = FileManifest.read(dis);
+        HashCache cache = getHashCache();
+        BlobStore blobStore = new BlobStore(config.server.getBlobStorePath(), cache);
+
+        // the lock is only held to look blobs up and to change the store, the
+        // blobs of the manifest are kept from garbage collection meanwhile
+        List<String> missingHashes;
+        synchronized(blobStoreLock) {
+            try {
+                missingHashes = blobStore.getMissing(manifest.getHashes());
+            } catch(IllegalArgumentException e) {
+                sendFailResponse(sands, "invalid manifest. (" + e.getMessage() + ")");
+                return;
+            }
+            blobsInUse.addAll(manifest.getHashes());
+        }
+        try {
+            cache.save();
+        } catch(IOException e) {
+            System.out.println("NaginiServer Exception: " + e.getMessage());
+        }
+
+        try {
+            // ask for the blobs we do not have
+            dos.writeInt(ResponseType.RESPONSE_BLOB_REQUEST);
+            dos.writeInt(missingHashes.size());
+            for(String hash: missingHashes) {
+                dos.writeUTF(hash);
+            }
+            dos.flush();
+
+            long received = 0;
+            List<String> corruptHashes = Lists.newArrayList();
+            for(String hash: missingHashes) {
+                long blobLength = dis.readLong();
+                File blobFile = blobStore.createTempFile();
+                long done = sands.receiveFile(blobFile, blobLength);
+                if(done != blobLength) {
+                    NaginiFileUtils.delete(blobFile);
+                    sendFailResponse(sands, "failed to receive blob " + hash + ". (" + done
+                                            + " out of " + blobLength + " bytes)");
+                    return;
+                }
+                // keep reading the remaining blobs to stay in sync
+                boolean added;
+                synchronized(blobStoreLock) {
+                    added = blobStore.add(hash, blobFile);
+                }
+                if(!added) {
+                    corruptHashes.add(hash);
+                }
+                received += done;
+            }
+            if(!corruptHashes.isEmpty()) {
+                sendFailResponse(sands, "received blobs do not match their hash "
+                                        + corruptHashes + ". (local files changed?)");
+                return;
+            }
+
+            System.out.println("materializing " + destPath + " ...");
+            int copied;
+            try {
+                copied = blobStore.materialize(manifest, destPath);
+            } catch(IllegalArgumentException e) {
+                sendFailResponse(sands, "invalid manifest. (" + e.getMessage() + ")");
+                return;
+            }
+            // blobs can only be told unused when they are linked
+            int collected = 0;
+            if(copied == 0) {
+                synchronized(blobStoreLock) {
+                    collected = blobStore.collectGarbage(blobsInUse.elementSet());
+                }
+            }
+            System.out.println("materialized " + destPath + ".");
+            sendSuccessResponse(sands, "successfully deployed " + manifest.getEntries().size()
+                                       + " files to " + destPath + ". (" + missingHashes.size()
+                                       + " of " + manifest.getHashes().size()
+                                       + " blobs transferred, " + received + " bytes, "
+                                       + collected + " unused blobs removed)");
+        } finally {
+            synchronized(blobStoreLock) {
+                for(String hash: manifest.getHashes()) {
+                    blobsInUse.remove(hash);
+                }
+            }
+        }
+    }
+
+    private void handleFilePutDeltaRequest(SocketAndStreams sands) throws IOException {
+        DataInputStream dis = sands.getInputStream();
+        DataOutputStream dos = sands.getOutputStream();
+        String filePath = dis.readUTF();
+        File file = new File(filePath);
+        if(file.isDirectory()) {
+            sendFailResponse(sands, "failed to receive " + filePath + ". (not a regular file)");
+            return;
+        }
+
+        System.out.println("computing signature of " + filePath + " ...");
+        NaginiDeltaUtils.Signature signature = NaginiDeltaUtils.getSignature(file);
+        dos.writeInt(ResponseType.RESPONSE_SIGNATURE);
+        signature.write(dos);
         dos.flush();
-        fis.close();
+
+        System.out.println("rebuilding " + filePath + " ...");
+        long fileLength;
+        try {
+            fileLength = NaginiDeltaUtils.applyDelta(file, signature, dis);
+        } catch(IOException e) {
+            sendFailResponse(sands, "failed to rebuild " + filePath + ". (" + e.getMessage()
+                                    + ")");
+            return;
+        }
+        System.out.println("rebuilt " + filePath + ".");
+        sendSuccessResponse(sands, "successfully rebuilt " + filePath + ". (" + fileLength
+                                   + " bytes, " + signature.getBlockCount()
+                                   + " blocks of the previous version)");
+    }
+
+    private void handleFileGetDeltaRequest(SocketAndStreams sands) throws IOException {
+        DataInputStream dis = sands.getInputStream();
+        DataOutputStream dos = sands.getOutputStream();
+        String filePath = dis.readUTF();
+        NaginiDeltaUtils.Signature signature = NaginiDeltaUtils.Signature.read(dis);
+        File file = new File(filePath);
+        if(!file.isFile()) {
+            sendFailResponse(sands, "failed to send " + filePath
+                                    + ". (file does not exist or is not a regular file)");
+            return;
+        }
+
+        System.out.println("sending delta of " + filePath + " ...");
+        dos.writeInt(ResponseType.RESPONSE_DELTA);
+        long literalLength = NaginiDeltaUtils.writeDelta(file, signature, dos);
+
+        System.out.println("" + filePath + " sent. (" + literalLength + " of " + file.length()
+                           + " bytes literal)");
+    }
+
+    private void handleFilePutRelayRequest(SocketAndStreams sands) throws IOException {
+        DataInputStream dis = sands.getInputStream();
+        DataOutputStream dos = sands.getOutputStream();
+        String destPath = dis.readUTF();
+        List<RelayTree> children = RelayTree.read(dis);
+        long fileLength = dis.readLong();
+        String tempZipPath = getServerTempPath() + ".zip";
+        File tempZipFile = new File(tempZipPath);
+
+        System.out.println("receiving " + tempZipPath + " and relaying it to "
+                           + RelayTree.count(children) + " hosts ...");
+        RelaySender sender = new RelaySender(destPath,
+                                             children,
+                                             fileLength,
+                                             config.server.portId,
+                                             config.server.relayTimeoutMs);
+        // a parent that stops sending counts as a dropped payload
+        Socket socket = sands.getSocket();
+        int oldTimeout = socket == null ? 0 : socket.getSoTimeout();
+        if(socket != null) {
+            socket.setSoTimeout(config.server.relayTimeoutMs * RELAY_PARENT_TIMEOUTS);
+        }
+        long done = 0;
+        FileOutputStream fos = new FileOutputStream(tempZipFile);
+        try {
+            byte[] buffer = new byte[RELAY_BUFFER_SIZE];
+            while(done < fileLength) {
+                int read = dis.read(buffer, 0, (int) Math.min(buffer.length, fileLength - done));
+                if(read == -1) {
+                    break;
+                }
+                fos.write(buffer, 0, read);
+                sender.write(buffer, 0, read);
+                done += read;
+            }
+        } catch(IOException e) {
+            System.out.println("NaginiServer Exception: " + e.getMessage());
+        } finally {
+            fos.close();
+            if(socket != null && !socket.isClosed()) {
+                socket.setSoTimeout(oldTimeout);
+            }
+        }
+
+        List<RelaySender.Result> results = Lists.newArrayList();
+        if(done == fileLength) {
+            try {
+                System.out.println("unzipping file " + tempZipPath + "...");
+                NaginiZipUtils.unzip(tempZipPath, destPath, null);
+                results.add(new RelaySender.Result(hostName, true, "successfully deployed to "
+                                                                   + destPath + ". (" + done
+                                                                   + " bytes)"));
+            } catch(IOException e) {
+                results.add(new RelaySender.Result(hostName, false, "failed to unzip to "
+                                                                    + destPath + ". ("
+                                                                    + e.getMessage() + ")"));
+            }
+            results.addAll(sender.finish(tempZipFile));
+        } else {
+            // the children got an incomplete payload and fail as well
+            sender.abort();
+            results.add(new RelaySender.Result(hostName, false, "failed to receive file. ("
+                                                                + done + " out of "
+                                                                + fileLength + " bytes)"));
+            results.addAll(sender.finish(null));
+        }
         NaginiFileUtils.delete(tempZipFile);
 
-        System.out.println("" + filePath + " sent.");
+        try {
+            dos.writeInt(ResponseType.RESPONSE_RELAY_REPORT);
+            RelaySender.Result.write(dos, results);
+            dos.flush();
+        } catch(IOException e) {
+            // the sender re-routes around us
+            System.out.println("NaginiServer Exception: " + e.getMessage());
+        }
+        System.out.println("relayed " + destPath + " to " + (results.size() - 1) + " hosts.");
+    }
+
+    private void handleFilePutResumableRequest(SocketAndStreams sands) throws IOException {
+        DataInputStream dis = sands.getInputStream();
+        DataOutputStream dos = sands.getOutputStream();
+        String destPath = dis.readUTF();
+        String transferId = dis.readUTF();
+        long fileLength = dis.readLong();
+        long checksum = dis.readLong();
+        if(!ResumableTransfer.isValidTransferId(transferId)) {
+            sendFailResponse(sands, "invalid transfer id " + transferId);
+            return;
+        }
+        deleteExpiredTransfers();
+
+        // the partial file only ever holds chunks that arrived intact
+        File partFile = new File(getResumePath(transferId) + ".zip"
+                                 + ResumableTransfer.PART_SUFFIX);
+        if(partFile.length() > fileLength) {
+            NaginiFileUtils.delete(partFile);
+        }
+        long offset = partFile.length();
+        if(offset > 0) {
+            System.out.println("resuming transfer " + transferId + " at " + offset + " of "
+                               + fileLength + " bytes ...");
+        }
+        dos.writeInt(ResponseType.RESPONSE_OFFSET);
+        dos.writeLong(offset);
+        dos.flush();
+        try {
+            ResumableTransfer.receiveChunks(dis, partFile, fileLength);
+        } catch(IOException e) {
+            // the client resumes from what we kept
+            System.out.println("transfer " + transferId + " interrupted at "
+                               + partFile.length() + " of " + fileLength + " bytes. ("
+                               + e.getMessage() + ")");
+            throw e;
+        }
+
+        if(partFile.length() != fileLength) {
+            sendFailResponse(sands, "failed to receive file. (" + partFile.length()
+                                    + " out of " + fileLength + " bytes)");
+            return;
+        }
+        if(NaginiZipUtils.crc32(partFile) != checksum) {
+            NaginiFileUtils.delete(partFile);
+            sendFailResponse(sands, "failed to receive file. (checksum mismatch)");
+            return;
+        }
+        System.out.println("unzipping transfer " + transferId + " to " + destPath + " ...");
+        try {
+            NaginiZipUtils.unzip(partFile.getPath(), destPath, null);
+        } finally {
+            NaginiFileUtils.delete(partFile);
+        }
+        System.out.println("unzipped transfer " + transferId + ".");
+        sendSuccessResponse(sands, "successfully received file to " + destPath + ". ("
+                                   + (fileLength - offset) + " of " + fileLength + " bytes sent)");
+    }
+
+    private void handleFileGetResumableRequest(SocketAndStreams sands, boolean compressed)
+            throws IOException {
+        DataInputStream dis = sands.getInputStream();
+        DataOutputStream dos = sands.getOutputStream();
+        String filePath = dis.readUTF();
+        String transferId = dis.readUTF();
+        long offset = dis.readLong();
+        CompressionPolicy policy = compressed ? CompressionPolicy.read(dis)
+                                             : CompressionPolicy.getDefault();
+        if(!ResumableTransfer.isValidTransferId(transferId)) {
+            sendFailResponse(sands, "invalid transfer id " + transferId);
+            return;
+        }
+        deleteExpiredTransfers();
+
+        // the zip is kept until it has been sent completely, so that a
+        // resumed transfer gets the same bytes
+        File zipFile = new File(getResumePath(transferId) + ".zip");
+        long checksum;
+        if(zipFile.exists() && offset <= zipFile.length()) {
+            System.out.println("resuming transfer " + transferId + " at " + offset + " of "
+                               + zipFile.length() + " bytes ...");
+            checksum = NaginiZipUtils.crc32(zipFile);
+        } else {
+            if(!new File(filePath).exists()) {
+                sendFailResponse(sands, "failed to send " + filePath + ". (file does not exist)");
+                return;
+            }
+            System.out.println("zipping " + filePath + " (" + policy + ") ...");
+            String tempZipPath = getServerTempPath() + ".zip";
+            checksum = NaginiZipUtils.zip(filePath, tempZipPath, policy, null);
+            NaginiFileUtils.delete(zipFile);
+            if(!new File(tempZipPath).renameTo(zipFile)) {
+                NaginiFileUtils.delete(new File(tempZipPath));
+                sendFailResponse(sands, "failed to send " + filePath + ". (cannot keep zip)");
+                return;
+            }
+            offset = 0;
+        }
+
+        long fileLength = zipFile.length();
+        System.out.println("sending " + zipFile.getPath() + " ...");
+        dos.writeInt(ResponseType.RESPONSE_FILE_CHUNKS);
+        dos.writeLong(fileLength);
+        dos.writeLong(checksum);
+        dos.writeLong(offset);
+        long done = ResumableTransfer.sendChunks(dos, zipFile, offset);
+        NaginiFileUtils.delete(zipFile);
+
+        System.out.println("" + filePath + " sent. (" + done + " of " + fileLength + " bytes)");
+    }
+
+    private void handleFileSyncRequest(SocketAndStreams sands) throws IOException {
+        DataInputStream dis = sands.getInputStream();
+        DataOutputStream dos = sands.getOutputStream();
+        String destPath = dis.readUTF();
+        String rootName = dis.readUTF();
+        File root;
+        try {
+            root = new File(destPath, FileManifest.toLocalPath(rootName));
+        } catch(IllegalArgumentException e) {
+            sendFailResponse(sands, "invalid sync root. (" + e.getMessage() + ")");
+            return;
+        }
+
+        // tell the client what is there
+        System.out.println("listing " + root.getPath() + " ...");
+        HashCache cache = getHashCache();
+        FileManifest manifest = root.exists() ? FileManifest.build(root.getPath(), cache)
+                                              : FileManifest.empty();
+        try {
+            cache.save();
+        } catch(IOException e) {
+            System.out.println("NaginiServer Exception: " + e.getMessage());
+        }
+        dos.writeInt(ResponseType.RESPONSE_MANIFEST);
+        manifest.writeTimed(dos);
+        dos.flush();
+
+        // apply what the client sends back, reading it all to stay in sync
+        List<String> errors = Lists.newArrayList();
+        int deleteCount = dis.readInt();
+        for(int i = 0; i < deleteCount; i++) {
+            String path = dis.readUTF();
+            try {
+                File target = new File(destPath, FileManifest.toLocalPath(path));
+                NaginiFileUtils.delete(target);
+                deleteEmptyParents(target, new File(destPath));
+            } catch(IllegalArgumentException e) {
+                errors.add(e.getMessage());
+            }
+        }
+        int fileCount = dis.readInt();
+        long received = 0;
+        for(int i = 0; i < fileCount; i++) {
+            String path = dis.readUTF();
+            long size = dis.readLong();
+            long lastModified = dis.readLong();
+            File target = null;
+            try {
+                target = new File(destPath, FileManifest.toLocalPath(path));
+                clearWayTo(target, new File(destPath));
+            } catch(IllegalArgumentException e) {
+                errors.add(e.getMessage());
+            }
+            if(size < 0) {
+                if(target != null) {
+                    if(target.isFile()) {
+                        NaginiFileUtils.delete(target);
+                    }
+                    target.mkdirs();
+                }
+                continue;
+            }
+            File tempFile = target == null ? new File(getServerTempPath())
+                                           : new File(target.getParentFile(), "." + target.getName()
+                                                                              + ".nagini-"
+                                                                              + System.nanoTime());
+            boolean moved = false;
+            try {
+                long done = sands.receiveFile(tempFile, size);
+                if(done != size) {
+                    throw new IOException("connection closed while receiving " + path + ". ("
+                                          + done + " out of " + size + " bytes)");
+                }
+                received += done;
+                if(target == null) {
+                    continue;
+                }
+                tempFile.setLastModified(lastModified);
+                if(target.isDirectory()) {
+                    NaginiFileUtils.delete(target);
+                }
+                Files.move(tempFile.toPath(),
+                           target.toPath(),
+                           StandardCopyOption.ATOMIC_MOVE,
+                           StandardCopyOption.REPLACE_EXISTING);
+                moved = true;
+            } finally {
+                // nothing half written is left next to the target
+                if(!moved) {
+                    NaginiFileUtils.delete(tempFile);
+                }
+            }
+        }
+
+        if(!errors.isEmpty()) {
+            sendFailResponse(sands, "failed to sync " + root.getPath() + ". (" + errors + ")");
+            return;
+        }
+        System.out.println("synced " + root.getPath() + ".");
+        sendSuccessResponse(sands, "successfully synced " + root.getPath() + ". (" + fileCount
+                                   + " written, " + deleteCount + " deleted, " + received
+                                   + " bytes)");
+    }
+
+    /**
+     * Deletes the folders above a deleted file that it leaves empty, up to a
+     * base folder.
+     */
+    private static void deleteEmptyParents(File file, File baseFolder) {
+        File parent = file.getParentFile();
+        while(parent != null && !parent.equals(baseFolder)) {
+            String[] children = parent.list();
+            if(children == null || children.length > 0 || !parent.delete()) {
+                return;
+            }
+            parent = parent.getParentFile();
+        }
+    }
+
+    /**
+     * Makes room for a file or folder to be written below a base folder, by
+     * deleting files where its parent folders should be.
+     */
+    private static void clearWayTo(File target, File baseFolder) {
+        List<File> parents = Lists.newArrayList();
+        for(File parent = target.getParentFile(); parent != null && !parent.equals(baseFolder);
+            parent = parent.getParentFile()) {
+            parents.add(0, parent);
+        }
+        for(File parent: parents) {
+            if(parent.exists() && !parent.isDirectory()) {
+                NaginiFileUtils.delete(parent);
+            }
+        }
+        target.getParentFile().mkdirs();
+    }
+
+    private void handleFileReadRequest(SocketAndStreams sands) throws IOException {
+        DataInputStream dis = sands.getInputStream();
+        String filePath = dis.readUTF();
+        long offset = dis.readLong();
+        long length = dis.readLong();
+        File file = new File(filePath);
+        if(!file.isFile()) {
+            sendFailResponse(sands, "failed to read " + filePath + ". (not a file)");
+            return;
+        }
+        sendFileRange(sands, file, FileRange.resolve(file.length(), offset, length));
+    }
+
+    private void handleFileTailRequest(SocketAndStreams sands) throws IOException {
+        String filePath = sands.getInputStream().readUTF();
+        int lines = sands.getInputStream().readInt();
+        File file = new File(filePath);
+        if(!file.isFile()) {
+            sendFailResponse(sands, "failed to read " + filePath + ". (not a file)");
+            return;
+        }
+        FileRange range;
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            FileChannel channel = fis.getChannel();
+            long fileSize = channel.size();
+            long offset = FileRange.findLastLines(channel, fileSize, lines);
+            range = new FileRange(fileSize, offset, fileSize - offset);
+        } finally {
+            fis.close();
+        }
+        sendFileRange(sands, file, range);
+    }
+
+    /**
+     * Sends a range of a file as is, without zipping the file.
+     */
+    private void sendFileRange(SocketAndStreams sands, File file, FileRange range)
+            throws IOException {
+        DataOutputStream dos = sands.getOutputStream();
+        dos.writeInt(ResponseType.RESPONSE_FILE_RANGE);
+        range.write(dos);
+        sands.sendFile(file, range.getOffset(), range.getLength());
     }
 
     private void handleFileDeleteRequest(SocketAndStreams sands) throws IOException {
@@ -392,6 +1498,185 @@ public class NaginiServer {
         }
     }
 
+    private ReleaseStore getReleaseStore() {
+        return new ReleaseStore(config.server.getReleasesPath(), config.server.getApplicationPath());
+    }
+
+    /**
+     * @param releaseStore
+     * @return releases that the jobs of the nodes, running or queued, were
+     *         started from
+     * @throws IOException
+     */
+    private Set<String> getReleasesInUse(ReleaseStore releaseStore) throws IOException {
+        Set<String> inUse = Sets.newHashSet();
+        for(String version: releaseStore.getReleases()) {
+            Pattern pattern = getPathPattern(releaseStore.getReleaseFolder(version)
+                                                         .getCanonicalPath());
+            for(Service service: mapNodeIdToApplicationStarterService.values()) {
+                for(ProcessThread job: service.getAllJobs()) {
+                    for(String arg: job.getArguments()) {
+                        if(pattern.matcher(arg).find()) {
+                            inUse.add(version);
+                        }
+                    }
+                }
+            }
+        }
+        return inUse;
+    }
+
+    /**
+     * Must be called with releaseLock held.
+     *
+     * @param releaseStore
+     * @return releases that are in use or that a deploy is still working
+     *         on, which are kept by a prune
+     * @throws IOException
+     */
+    private Set<String> getReleasesRetained(ReleaseStore releaseStore) throws IOException {
+        Set<String> retained = getReleasesInUse(releaseStore);
+        retained.addAll(releasesActivating);
+        long expiry = System.currentTimeMillis() - RELEASE_PREPARE_EXPIRY_MS;
+        Iterator<Map.Entry<String, Long>> prepared = releasesPrepared.entrySet().iterator();
+        while(prepared.hasNext()) {
+            Map.Entry<String, Long> entry = prepared.next();
+            if(entry.getValue() < expiry) {
+                prepared.remove();
+            } else {
+                retained.add(entry.getKey());
+            }
+        }
+        return retained;
+    }
+
+    /**
+     * @param path
+     * @return pattern of a path as a whole in a command line, not as the
+     *         prefix of a longer name such as path-releases
+     */
+    private static Pattern getPathPattern(String path) {
+        return Pattern.compile("(?<![^\\s=:,;'\"])" + Pattern.quote(path)
+                               + "(?![^/\\s:,;'\"])");
+    }
+
+    private void handleReleasePrepareRequest(SocketAndStreams sands) throws IOException {
+        DataInputStream dis = sands.getInputStream();
+        String version = dis.readUTF();
+        boolean seed = dis.readBoolean();
+        if(!ReleaseStore.isValidVersion(version)) {
+            sendFailResponse(sands, "invalid release " + version + ".");
+            return;
+        }
+        File releaseFolder;
+        try {
+            synchronized(releaseLock) {
+                if(releasesActivating.contains(version)) {
+                    sendFailResponse(sands, "release " + version + " is being activated.");
+                    return;
+                }
+                ReleaseStore releaseStore = getReleaseStore();
+                releaseFolder = releaseStore.prepare(version, seed, getReleasesInUse(releaseStore));
+                releasesPrepared.put(version, System.currentTimeMillis());
+            }
+        } catch(IOException e) {
+            sendFailResponse(sands, "failed to prepare release " + version + ". ("
+                                    + e.getMessage() + ")");
+            return;
+        }
+        sendSuccessResponse(sands, "prepared " + releaseFolder + ".");
+    }
+
+    private void handleReleaseActivateRequest(SocketAndStreams sands) throws IOException {
+        String version = sands.getInputStream().readUTF();
+        if(!ReleaseStore.isValidVersion(version)) {
+            sendFailResponse(sands, "invalid release " + version + ".");
+            return;
+        }
+        int linked;
+        String previous;
+        List<String> pruned;
+        ReleaseStore releaseStore;
+        try {
+            synchronized(releaseLock) {
+                releaseStore = getReleaseStore();
+                if(!releaseStore.getReleaseFolder(version).isDirectory()) {
+                    sendFailResponse(sands, "release " + version + " does not exist.");
+                    return;
+                }
+                if(!releasesActivating.add(version)) {
+                    sendFailResponse(sands, "release " + version + " is being activated.");
+                    return;
+                }
+                releaseStore.adoptLegacy();
+            }
+        } catch(IOException e) {
+            sendFailResponse(sands, "failed to activate release " + version + ". ("
+                                    + e.getMessage() + ")");
+            return;
+        }
+        try {
+            // hashing a release may take minutes on a cold cache, so node
+            // starts and other release requests are not held up by it
+            HashCache cache = getHashCache();
+            linked = releaseStore.linkUnchanged(version, cache);
+            cache.save();
+            synchronized(releaseLock) {
+                previous = releaseStore.activate(version);
+                releasesPrepared.remove(version);
+                pruned = releaseStore.prune(config.server.appReleasesKeep,
+                                            getReleasesRetained(releaseStore));
+            }
+        } catch(IOException e) {
+            sendFailResponse(sands, "failed to activate release " + version + ". ("
+                                    + e.getMessage() + ")");
+            return;
+        } finally {
+            synchronized(releaseLock) {
+                releasesActivating.remove(version);
+            }
+        }
+        System.out.println("activated release " + version + " (previous " + previous + ", "
+                           + linked + " unchanged files linked, pruned " + pruned + ")");
+        sendSuccessResponse(sands, "activated release " + version
+                                   + (previous == null ? "" : " replacing " + previous) + ". ("
+                                   + linked + " unchanged files linked"
+                                   + (pruned.isEmpty() ? "" : ", deleted " + pruned) + ")");
+    }
+
+    private void handleReleaseRollbackRequest(SocketAndStreams sands) throws IOException {
+        String version = sands.getInputStream().readUTF();
+        if(!version.isEmpty() && !ReleaseStore.isValidVersion(version)) {
+            sendFailResponse(sands, "invalid release " + version + ".");
+            return;
+        }
+        String active;
+        try {
+            synchronized(releaseLock) {
+                active = getReleaseStore().rollback(version.isEmpty() ? null : version);
+            }
+        } catch(IOException e) {
+            sendFailResponse(sands, "failed to roll back. (" + e.getMessage() + ")");
+            return;
+        }
+        System.out.println("rolled back to release " + active);
+        sendSuccessResponse(sands, "rolled back to release " + active + ".");
+    }
+
+    private void handleReleaseListRequest(SocketAndStreams sands) throws IOException {
+        ReleaseStore releaseStore = getReleaseStore();
+        String active = releaseStore.getActive();
+        List<String> lines = Lists.newArrayList();
+        for(String version: releaseStore.getReleases()) {
+            lines.add((version.equals(active) ? "* " : "  ") + version);
+        }
+        if(lines.isEmpty()) {
+            sendSuccessResponse(sands, "no releases.");
+            return;
+        }
+        sendSuccessResponse(sands, Joiner.on("\n").join(lines));
+    }
+
     private void handleStartApplicationRequest(SocketAndStreams sands) throws Exception {
         Integer nodeId = sands.getInputStream().readInt();
         Service service = mapNodeIdToApplicationStarterService.get(nodeId);
@@ -405,27 +1690,12 @@ public class NaginiServer {
             sendSuccessResponse(sands, "application is already running.");
         } else {
             try {
-                List<String> args = null;
-                if(config.server.appStartCommand == null) {
-                    JavaCommandBuilder jcb = new JavaCommandBuilder();
-                    jcb.setClassName(config.server.appJavaMainClass)
-                            .setJavaExec(config.server.expandNodePath(config.server.javaExec, nodeId))
-                            .setJvmOption(config.server.expandNodePath(config.server.appJvmOpts, nodeId))
-                            .addClassOption(config.server.expandNodePath(config.server.appJavaClassOpts,
-                                    nodeId));
-                    for(String subPath: config.server.appJavaClassSubPaths) {
-                        jcb.addClassPathByFolder(config.server.getApplicationPath() + File.separator
-                                + subPath);
-                    }
-                    args = jcb.getJavaCommand();
-                } else {
-                    args = Arrays.asList(config.server.expandNodePath(config.server.appStartCommand,
-                            nodeId).split(" "));
+                // another handler may have queued a job for this node meanwhile
+                if(!startApplication(nodeId, service)) {
+                    sendSuccessResponse(sands, "application is already running.");
+                    return;
                 }
                 sendSuccessResponse(sands, "starting application ...");
-                service.addJob("application-" + nodeId, args, config.server.getNodePath(nodeId));
-                System.out.println("starting application: (node = " + nodeId + ")");
-                System.out.println(Joiner.on(" ").join(args));
             } catch (Exception e) {
                 String failureMessage = "Failed to start application because of: " + e.getMessage();
                 sendFailResponse(sands, failureMessage);
@@ -435,6 +1705,56 @@ public class NaginiServer {
         }
     }
 
+    /**
+     * Queues a job that runs the application of a node.
+     *
+     * @param nodeId
+     * @param service
+     * @return false if the service already has a job
+     * @throws IOException
+     */
+    private Boolean startApplication(Integer nodeId, Service service) throws IOException {
+        // the release must not be pruned between resolving it and queuing
+        // the job that tells it is in use
+        synchronized(releaseLock) {
+            return startApplicationInner(nodeId, service);
+        }
+    }
+
+    private Boolean startApplicationInner(Integer nodeId, Service service) throws IOException {
+        NaginiServerConfig serverConfig = config.server;
+        // resolve the release symlink once, so that the node keeps
+        // running the release it was started from after a switch
+        String applicationPath = new File(serverConfig.getApplicationPath())
+                .getCanonicalPath();
+        List<String> args = null;
+        if(serverConfig.appStartCommand == null) {
+            JavaCommandBuilder jcb = new JavaCommandBuilder();
+            jcb.setClassName(serverConfig.appJavaMainClass)
+                    .setJavaExec(serverConfig.expandNodePath(serverConfig.javaExec, nodeId))
+                    .setJvmOption(serverConfig.expandNodePath(serverConfig.appJvmOpts, nodeId))
+                    .addClassOption(serverConfig.expandNodePath(serverConfig.appJavaClassOpts,
+                            nodeId));
+            for(String subPath: serverConfig.appJavaClassSubPaths) {
+                jcb.addClassPathByFolder(applicationPath + File.separator + subPath);
+            }
+            args = jcb.getJavaCommand();
+        } else {
+            // only whole occurrences of the application path, not of paths
+            // that merely start with it
+            String command = serverConfig.expandNodePath(serverConfig.appStartCommand, nodeId);
+            args = Arrays.asList(getPathPattern(serverConfig.getApplicationPath()).matcher(command)
+                    .replaceAll(Matcher.quoteReplacement(applicationPath))
+                    .split(" "));
+        }
+        if(!service.addJob("application-" + nodeId, args, serverConfig.getNodePath(nodeId))) {
+            return false;
+        }
+        System.out.println("starting application: (node = " + nodeId + ")");
+        System.out.println(Joiner.on(" ").join(args));
+        return true;
+    }
+
     private void handleStopApplicationRequest(SocketAndStreams sands) throws IOException {
         Integer nodeId = sands.getInputStream().readInt();
         Service service = mapNodeIdToApplicationStarterService.get(nodeId);
@@ -453,11 +1773,192 @@ public class NaginiServer {
         }
     }
 
+    private void handleRestartApplicationRequest(SocketAndStreams sands) throws Exception {
+        DataInputStream dis = sands.getInputStream();
+        Integer nodeId = dis.readInt();
+        Integer stopTimeout = dis.readInt();
+        Service service = mapNodeIdToApplicationStarterService.get(nodeId);
+
+        if (service == null || !service.isAlive()) {
+            sendFailResponse(sands, "application starter service is corrupted.");
+            return;
+        }
+
+        if(service.isRunningJob()) {
+            System.out.println("stopping application. (node = " + nodeId + ")");
+        }
+        service.removeAllJobs();
+        if(!service.awaitIdle(stopTimeout * 1000L)) {
+            sendFailResponse(sands, "application did not stop within " + stopTimeout
+                                    + " seconds.");
+            return;
+        }
+        // output of the new run starts here
+        long cursor = service.getOutputEnd();
+        if(!startApplication(nodeId, service)) {
+            sendFailResponse(sands, "application was started by another request meanwhile.");
+            return;
+        }
+        DataOutputStream dos = sands.getOutputStream();
+        dos.writeInt(ResponseType.RESPONSE_OFFSET);
+        dos.writeLong(cursor);
+        dos.flush();
+    }
+
     private void handleWatchApplicationRequest(SocketAndStreams sands) throws IOException {
         DataInputStream dis = sands.getInputStream();
         Integer nodeId = dis.readInt();
         Integer tail = dis.readInt();
         Service service = mapNodeIdToApplicationStarterService.get(nodeId);
-        sendWatchResponse(sands, service, nodeId, tail);
+        sendWatchResponse(sands, service, nodeId, tail, null);
+    }
+
+    private void handleReadOutputRequest(SocketAndStreams sands) throws IOException {
+        DataInputStream dis = sands.getInputStream();
+        Integer nodeId = dis.readInt();
+        Integer tail = dis.readInt();
+        Long cursor = dis.readLong();
+        Service service = mapNodeIdToApplicationStarterService.get(nodeId);
+        sendWatchResponse(sands, service, nodeId, tail, cursor);
+    }
+
+    private void handleLogQueryRequest(SocketAndStreams sands) throws IOException {
+        DataInputStream dis = sands.getInputStream();
+        Integer nodeId = dis.readInt();
+        long from = dis.readLong();
+        long to = dis.readLong();
+        long maxBytes = dis.readLong();
+        Service service = mapNodeIdToApplicationStarterService.get(nodeId);
+        if(service == null) {
+            sendFailResponse(sands, "node " + nodeId + " is not on this host.");
+            return;
+        }
+        if(sands instanceof BufferedRequestStreams) {
+            // a protocol v2 frame is answered at once, keep it within bounds
+            maxBytes = Math.min(maxBytes, BufferedRequestStreams.MAX_FRAME_SIZE / 2);
+        }
+        final long limit = maxBytes;
+        final DataOutputStream dos = sands.getOutputStream();
+        final long[] written = new long[1];
+        dos.writeInt(ResponseType.RESPONSE_LOG_LINES);
+        boolean complete = service.getLogFile().scan(from, to, new LogFile.RawLineHandler() {
+
+            @Override
+            public boolean handle(byte[] bytes, int length) throws IOException {
+                byte[] line = LogFile.decode(bytes, length).getBytes(StandardCharsets.UTF_8);
+                if(written[0] + line.length > limit) {
+                    return false;
+                }
+                written[0] += line.length;
+                dos.writeInt(line.length);
+                dos.write(line);
+                return true;
+            }
+        });
+        dos.writeInt(-1);
+        dos.writeBoolean(!complete);
+        dos.flush();
+    }
+
+    private void handleLogSearchRequest(SocketAndStreams sands) throws Exception {
+        DataInputStream dis = sands.getInputStream();
+        String expression = dis.readUTF();
+        boolean literal = dis.readBoolean();
+        final long from = dis.readLong();
+        final long to = dis.readLong();
+        int context = dis.readInt();
+        int maxMatches = dis.readInt();
+        long maxBytes = dis.readLong();
+        String nodeIds = dis.readUTF();
+        final LogSearch search;
+        try {
+            search = new LogSearch(expression, literal, context, maxMatches, maxBytes);
+        } catch(PatternSyntaxException e) {
+            sendFailResponse(sands, "invalid expression " + expression + ". (" + e.getDescription()
+                                    + ")");
+            return;
+        }
+        final DataOutputStream dos = sands.getOutputStream();
+        dos.writeInt(ResponseType.RESPONSE_LOG_MATCHES);
+        // tells a client that went away from a log that could not be read
+        final AtomicBoolean sendFailed = new AtomicBoolean(false);
+        // scan the logs of all nodes at the same time, the groups found are
+        // written as they come
+        List<Future<Void>> scans = Lists.newArrayList();
+        for(String node: nodeIds.split(",")) {
+            final Integer nodeId = Integer.parseInt(node.trim());
+            final Service service = mapNodeIdToApplicationStarterService.get(nodeId);
+            if(service == null) {
+                continue;
+            }
+            scans.add(searchExecutor.submit(new Callable<Void>() {
+
+                @Override
+                public Void call() throws Exception {
+                    LogSearch.Scanner scanner = search.newScanner(new LogSearch.GroupHandler() {
+
+                        @Override
+                        public void handle(List<String> lines, List<Boolean> matched)
+                                throws IOException {
+                            synchronized(dos) {
+                                try {
+                                    dos.writeInt(nodeId);
+                                    dos.writeInt(lines.size());
+                                    for(int i = 0; i < lines.size(); i++) {
+                                        byte[] bytes = lines.get(i)
+                                                            .getBytes(StandardCharsets.UTF_8);
+                                        dos.writeBoolean(matched.get(i));
+                                        dos.writeInt(bytes.length);
+                                        dos.write(bytes);
+                                    }
+                                } catch(IOException e) {
+                                    sendFailed.set(true);
+                                    throw e;
+                                }
+                            }
+                        }
+                    });
+                    try {
+                        service.getLogFile().scan(from, to, scanner);
+                        scanner.finish();
+                    } catch(IOException e) {
+                        if(sendFailed.get()) {
+                            throw e;
+                        }
+                        throw new IOException("node " + nodeId + ": " + e.getMessage(), e);
+                    }
+                    return null;
+                }
+            }));
+        }
+        ExecutionException failure = null;
+        for(Future<Void> scan: scans) {
+            try {
+                scan.get();
+            } catch(ExecutionException e) {
+                if(failure == null) {
+                    failure = e;
+                    // stop the other scans, they are waited for so that
+                    // nothing follows the end of the response
+                    search.cancel();
+                }
+            }
+        }
+        if(failure != null) {
+            if(sendFailed.get()) {
+                // the client went away
+                throw failure;
+            }
+            System.out.println("failed to search the logs. (" + failure.getCause() + ")");
+            failure.getCause().printStackTrace();
+            dos.writeInt(-2);
+            dos.writeUTF("failed to search the logs. (" + failure.getCause().getMessage() + ")");
+            dos.flush();
+            return;
+        }
+        dos.writeInt(-1);
+        dos.writeInt(search.getMatchCount());
+        dos.writeBoolean(search.isTruncated());
+        dos.flush();
     }
 }
@@ -2,6 +2,9 @@ package nagini.server;
 
 import java.io.PrintStream;
 import java.util.List;
+import java.util.Locale;
+
+import nagini.protocol.Throttle;
 
 public class NaginiServerStatus {
 
@@ -11,6 +14,9 @@ public class NaginiServerStatus {
     public void print(PrintStream stream) {
         for(NodeStatus ns: node_list) {
             stream.println("|->\tNode [id " + ns.node_id + "] contains the following services:");
+            if(ns.resources != null) {
+                printResources(stream, ns.resources);
+            }
             for(ServiceStatus ss: ns.service_list) {
                 stream.println("\t|->\t" + (ss.is_alive ? "OK" : "ERROR") + "\t" + ss.service_name + " handling the following jobs:");
                 for(JobStatus js: ss.job_list) {
@@ -22,4 +28,21 @@ public class NaginiServerStatus {
             }
         }
     }
+
+    private static void printResources(PrintStream stream, ResourceStatus rs) {
+        stream.println(String.format(Locale.ENGLISH,
+                                     "\t|->\tpid %d: cpu %.1f%% (avg %.1f%%, max %.1f%%), rss %s "
+                                             + "(min %s, max %s), over %d samples",
+                                     rs.pid,
+                                     rs.cpu_percent,
+                                     rs.cpu_percent_avg,
+                                     rs.cpu_percent_max,
+                                     ResourceStatus.formatMemory(rs.rss_bytes),
+                                     ResourceStatus.formatMemory(rs.rss_bytes_min),
+                                     ResourceStatus.formatMemory(rs.rss_bytes_max),
+                                     rs.sample_count));
+        stream.println("\t|->\t" + rs.threads + " threads, " + rs.fds + " open files, disk read "
+                       + Throttle.formatRate(rs.read_bytes_per_sec) + ", write "
+                       + Throttle.formatRate(rs.write_bytes_per_sec));
+    }
 }
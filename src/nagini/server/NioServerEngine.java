@@ -0,0 +1,643 @@
+package nagini.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import nagini.protocol.BufferedRequestStreams;
+import nagini.protocol.RequestFrameDecoder;
+import nagini.protocol.RequestType;
+import nagini.protocol.SocketAndStreams;
+import nagini.utils.NaginiFileUtils;
+
+/**
+ * Non-blocking server engine. A single selector thread accepts connections,
+ * decodes request frames incrementally, spools file bodies to disk and writes
+ * responses (including file bodies) with non-blocking channel writes. Decoded
+ * requests are dispatched to the same handlers as the blocking engine: cheap
+ * ones inline on the selector thread, the rest on the worker executor.
+ * Protocol v2 connections stay open and are answered frame by frame.
+ * Connections of streaming requests are handed over to a worker and served
+ * in blocking mode.
+ */
+public class NioServerEngine {
+
+    private static final int READ_BUFFER_SIZE = 65536;
+    private static final int MAX_HEADER_SIZE = 131072;
+    private static final long SELECT_TIMEOUT_MS = 1000;
+    private static final long CLOSE_DRAIN_TIMEOUT_MS = 10000;
+
+    private final NaginiServer server;
+    private final ExecutorService workerExecutor;
+    private final Selector selector;
+    private final Queue<Runnable> selectorTasks;
+    private final ByteBuffer bodyBuffer;
+    private volatile Thread selectorThread;
+    private ServerSocketChannel serverChannel;
+
+    public NioServerEngine(NaginiServer server, ExecutorService workerExecutor) throws IOException {
+        this.server = server;
+        this.workerExecutor = workerExecutor;
+        this.selector = Selector.open();
+        this.selectorTasks = new ConcurrentLinkedQueue<Runnable>();
+        this.bodyBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        this.selectorThread = null;
+        this.serverChannel = null;
+    }
+
+    /**
+     * Runs the selector loop on the calling thread.
+     *
+     * @throws IOException
+     */
+    public void run() throws IOException {
+        selectorThread = Thread.currentThread();
+        while(true) {
+            registerServerChannel();
+            selector.select(SELECT_TIMEOUT_MS);
+            Runnable task;
+            while((task = selectorTasks.poll()) != null) {
+                task.run();
+            }
+            Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+            while(iterator.hasNext()) {
+                SelectionKey key = iterator.next();
+                iterator.remove();
+                Connection connection = (Connection) key.attachment();
+                try {
+                    if(!key.isValid()) {
+                        continue;
+                    }
+                    if(key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    if(key.isReadable()) {
+                        connection.read();
+                    }
+                    if(key.isValid() && key.isWritable()) {
+                        connection.write();
+                    }
+                } catch(IOException e) {
+                    System.out.println("NaginiServer Exception: " + e.getMessage());
+                    if(connection != null) {
+                        connection.close();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * (Re-)registers the server channel, which is replaced when a config
+     * reload changes the port.
+     *
+     * @throws IOException
+     */
+    private void registerServerChannel() throws IOException {
+        ServerSocket serverSocket = server.serverSocket;
+        ServerSocketChannel channel = serverSocket.getChannel();
+        if(channel != serverChannel && channel.isOpen()) {
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_ACCEPT);
+            serverChannel = channel;
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if(channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+        key.attach(new Connection(channel, key));
+    }
+
+    private void runOnSelector(Runnable task) {
+        selectorTasks.add(task);
+        selector.wakeup();
+    }
+
+    private boolean isSelectorThread() {
+        return Thread.currentThread() == selectorThread;
+    }
+
+    /**
+     * Tells whether a request is cheap enough to be handled on the selector
+     * thread without delaying other connections.
+     *
+     * @param requestType
+     * @return
+     */
+    private static boolean isInlineRequest(int requestType) {
+        switch(requestType) {
+            case RequestType.REQUEST_PING:
+            case RequestType.REQUEST_SERVICE_START_APPLICATION:
+            case RequestType.REQUEST_SERVICE_STOP_APPLICATION:
+            case RequestType.REQUEST_SERVICE_WATCH_APPLICATION:
+            case RequestType.REQUEST_SERVICE_READ_OUTPUT:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * A region of an open file queued for sending.
+     */
+    private static class FileRegion {
+
+        private final FileChannel channel;
+        private long position;
+        private final long end;
+
+        private FileRegion(FileChannel channel, long offset, long length) {
+            this.channel = channel;
+            this.position = offset;
+            this.end = offset + length;
+        }
+    }
+
+    /**
+     * State of one client connection, which carries either exactly one
+     * request, or any number of protocol v2 frames.
+     */
+    private class Connection {
+
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private ByteBuffer headerBuffer;
+        private byte[] header;
+        private long bodyLength;
+        private long bodyReceived;
+        private volatile File spoolFile;
+        private FileChannel spoolChannel;
+        private final Queue<Object> writeQueue;
+        private volatile boolean responseComplete;
+        private boolean multiplexed;
+        private final CountDownLatch closed;
+
+        private Connection(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+            this.headerBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            this.header = null;
+            this.bodyLength = 0;
+            this.bodyReceived = 0;
+            this.spoolFile = null;
+            this.spoolChannel = null;
+            this.writeQueue = new ConcurrentLinkedQueue<Object>();
+            this.responseComplete = false;
+            this.multiplexed = false;
+            this.closed = new CountDownLatch(1);
+        }
+
+        private void read() throws IOException {
+            if(multiplexed) {
+                readFrames();
+                return;
+            }
+            if(header == null && !readHeader()) {
+                return;
+            }
+            while(bodyReceived < bodyLength) {
+                bodyBuffer.clear();
+                bodyBuffer.limit((int) Math.min(bodyBuffer.capacity(), bodyLength - bodyReceived));
+                int read = channel.read(bodyBuffer);
+                if(read == -1) {
+                    close();
+                    return;
+                }
+                if(read == 0) {
+                    return;
+                }
+                bodyBuffer.flip();
+                while(bodyBuffer.hasRemaining()) {
+                    spoolChannel.write(bodyBuffer);
+                }
+                bodyReceived += read;
+            }
+            dispatch();
+        }
+
+        /**
+         * Reads until a complete request header is available.
+         *
+         * @return true if the header is complete
+         * @throws IOException
+         */
+        private boolean readHeader() throws IOException {
+            if(channel.read(headerBuffer) == -1) {
+                close();
+                return false;
+            }
+            headerBuffer.flip();
+            if(headerBuffer.remaining() >= 4
+               && headerBuffer.getInt(headerBuffer.position()) == RequestType.PROTOCOL_V2) {
+                headerBuffer.getInt();
+                multiplexed = true;
+                ByteBuffer accept = ByteBuffer.allocate(4);
+                accept.putInt(RequestType.PROTOCOL_V2).flip();
+                enqueue(accept);
+                decodeFrames();
+                return false;
+            }
+            int headerLength = RequestFrameDecoder.getHeaderLength(headerBuffer);
+            if(headerLength == RequestFrameDecoder.INCOMPLETE) {
+                if(headerBuffer.limit() == headerBuffer.capacity()) {
+                    if(headerBuffer.capacity() >= MAX_HEADER_SIZE) {
+                        throw new IOException("request header too large.");
+                    }
+                    ByteBuffer larger = ByteBuffer.allocate(headerBuffer.capacity() * 2);
+                    larger.put(headerBuffer);
+                    headerBuffer = larger;
+                } else {
+                    headerBuffer.compact();
+                }
+                return false;
+            }
+            // bodies moved by the selector cannot be throttled, so whole file
+            // puts and gets are handed over too when transfers are throttled
+            int requestType = headerBuffer.getInt(headerBuffer.position());
+            if(RequestFrameDecoder.isStreamingRequest(headerBuffer)
+               || (server.isTransferThrottled()
+                   && NaginiServer.isFileTransferRequest(requestType))) {
+                byte[] received = new byte[headerBuffer.remaining()];
+                headerBuffer.get(received);
+                headerBuffer = null;
+                handOff(received);
+                return false;
+            }
+            bodyLength = RequestFrameDecoder.getBodyLength(headerBuffer, headerLength);
+            header = new byte[headerLength];
+            headerBuffer.get(header);
+            if(bodyLength > 0) {
+                spoolFile = new File(server.getServerTempPath() + ".spool");
+                spoolChannel = new RandomAccessFile(spoolFile, "rw").getChannel();
+                // part of the body may have arrived together with the header
+                if(headerBuffer.remaining() > bodyLength) {
+                    headerBuffer.limit(headerBuffer.position() + (int) bodyLength);
+                }
+                bodyReceived = headerBuffer.remaining();
+                while(headerBuffer.hasRemaining()) {
+                    spoolChannel.write(headerBuffer);
+                }
+            }
+            headerBuffer = null;
+            return true;
+        }
+
+        /**
+         * Hands the connection over to a worker thread that handles the
+         * request in blocking mode, as streamed bodies and responses can
+         * neither be spooled nor buffered.
+         *
+         * @param received bytes of the request received so far
+         */
+        private void handOff(final byte[] received) {
+            key.cancel();
+            // the channel can only be made blocking once the selector has
+            // deregistered it, which happens on the next select
+            runOnSelector(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        channel.configureBlocking(true);
+                    } catch(IOException e) {
+                        System.out.println("NaginiServer Exception: " + e.getMessage());
+                        close();
+                        return;
+                    }
+                    workerExecutor.execute(new Runnable() {
+
+                        @Override
+                        public void run() {
+                            HandedOffStreams streams = new HandedOffStreams(channel, received);
+                            try {
+                                server.handleRequest(streams);
+                            } catch(Exception e) {
+                                System.out.println("NaginiServer Exception: " + e.getMessage());
+                                e.printStackTrace();
+                            } finally {
+                                streams.close();
+                            }
+                        }
+                    });
+                }
+            });
+        }
+
+        private void readFrames() throws IOException {
+            if(channel.read(headerBuffer) == -1) {
+                close();
+                return;
+            }
+            headerBuffer.flip();
+            decodeFrames();
+        }
+
+        /**
+         * Dispatches all complete frames in the (flipped) buffer and leaves it
+         * ready for the next read.
+         *
+         * @throws IOException
+         */
+        private void decodeFrames() throws IOException {
+            while(headerBuffer.remaining() >= 8) {
+                int position = headerBuffer.position();
+                int requestId = headerBuffer.getInt(position);
+                int length = headerBuffer.getInt(position + 4);
+                if(length < 0 || length > BufferedRequestStreams.MAX_FRAME_SIZE) {
+                    throw new IOException("invalid frame length " + length);
+                }
+                if(headerBuffer.remaining() < 8 + length) {
+                    if(headerBuffer.capacity() < 8 + length) {
+                        ByteBuffer larger = ByteBuffer.allocate(8 + length);
+                        larger.put(headerBuffer);
+                        headerBuffer = larger;
+                        return;
+                    }
+                    break;
+                }
+                headerBuffer.position(position + 8);
+                byte[] request = new byte[length];
+                headerBuffer.get(request);
+                dispatchFrame(requestId, request);
+            }
+            headerBuffer.compact();
+        }
+
+        private void dispatchFrame(final int requestId, byte[] request) {
+            final BufferedRequestStreams streams = new BufferedRequestStreams(request);
+            Runnable task = new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        server.handleRequest(streams);
+                    } catch(Exception e) {
+                        System.out.println("NaginiServer Exception: " + e.getMessage());
+                        e.printStackTrace();
+                    }
+                    byte[] response = streams.getResponseBytes();
+                    ByteBuffer frame = ByteBuffer.allocate(8 + response.length);
+                    frame.putInt(requestId).putInt(response.length).put(response).flip();
+                    enqueue(frame);
+                }
+            };
+            if(request.length >= 4 && isInlineRequest(ByteBuffer.wrap(request).getInt())) {
+                task.run();
+            } else {
+                workerExecutor.execute(task);
+            }
+        }
+
+        private void dispatch() throws IOException {
+            key.interestOps(0);
+            if(spoolChannel != null) {
+                spoolChannel.close();
+                spoolChannel = null;
+            }
+            final FrameStreams streams = new FrameStreams(this, new ByteArrayInputStream(header));
+            Runnable task = new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        server.handleRequest(streams);
+                    } catch(Exception e) {
+                        System.out.println("NaginiServer Exception: " + e.getMessage());
+                        e.printStackTrace();
+                    } finally {
+                        streams.finish();
+                    }
+                }
+            };
+            if(isInlineRequest(ByteBuffer.wrap(header).getInt())) {
+                task.run();
+            } else {
+                workerExecutor.execute(task);
+            }
+        }
+
+        private void enqueue(Object part) {
+            writeQueue.add(part);
+            requestWrite();
+        }
+
+        private void complete() {
+            responseComplete = true;
+            requestWrite();
+        }
+
+        private void requestWrite() {
+            runOnSelector(new Runnable() {
+
+                @Override
+                public void run() {
+                    if(key.isValid()) {
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    }
+                }
+            });
+        }
+
+        private void write() throws IOException {
+            Object part;
+            while((part = writeQueue.peek()) != null) {
+                if(part instanceof ByteBuffer) {
+                    ByteBuffer buffer = (ByteBuffer) part;
+                    channel.write(buffer);
+                    if(buffer.hasRemaining()) {
+                        return;
+                    }
+                } else {
+                    FileRegion region = (FileRegion) part;
+                    long sent = region.channel.transferTo(region.position,
+                                                          region.end - region.position,
+                                                          channel);
+                    if(sent == 0 && region.position >= region.channel.size()) {
+                        // the file was truncated under us, the client sees
+                        // the connection end before the announced length
+                        throw new IOException("file truncated while sending.");
+                    }
+                    region.position += sent;
+                    if(region.position < region.end) {
+                        return;
+                    }
+                    region.channel.close();
+                }
+                writeQueue.poll();
+            }
+            if(responseComplete && !multiplexed) {
+                close();
+            } else {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            }
+        }
+
+        private void close() {
+            key.cancel();
+            try {
+                channel.close();
+                if(spoolChannel != null) {
+                    spoolChannel.close();
+                }
+                for(Object part: writeQueue) {
+                    if(part instanceof FileRegion) {
+                        ((FileRegion) part).channel.close();
+                    }
+                }
+            } catch(IOException e) {
+                System.out.println("NaginiServer Exception: " + e.getMessage());
+            }
+            if(spoolFile != null) {
+                NaginiFileUtils.delete(spoolFile);
+                spoolFile = null;
+            }
+            closed.countDown();
+        }
+    }
+
+    /**
+     * Collects handler output and hands it to the selector on flush.
+     */
+    private static class FrameOutputStream extends OutputStream {
+
+        private final Connection connection;
+        private final ByteArrayOutputStream pending;
+
+        private FrameOutputStream(Connection connection) {
+            this.connection = connection;
+            this.pending = new ByteArrayOutputStream();
+        }
+
+        @Override
+        public synchronized void write(int b) {
+            pending.write(b);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            pending.write(b, off, len);
+        }
+
+        @Override
+        public synchronized void flush() {
+            if(pending.size() > 0) {
+                connection.enqueue(ByteBuffer.wrap(pending.toByteArray()));
+                pending.reset();
+            }
+        }
+    }
+
+    /**
+     * Blocking streams of a connection that has been handed over to a worker.
+     */
+    private static class HandedOffStreams extends SocketAndStreams {
+
+        private final SocketChannel channel;
+
+        private HandedOffStreams(SocketChannel channel, byte[] received) {
+            super(new SequenceInputStream(new ByteArrayInputStream(received),
+                                          new BufferedInputStream(Channels.newInputStream(channel),
+                                                                  READ_BUFFER_SIZE)),
+                  new BufferedOutputStream(Channels.newOutputStream(channel), READ_BUFFER_SIZE));
+            this.channel = channel;
+        }
+
+        @Override
+        public void close() {
+            try {
+                getOutputStream().flush();
+            } catch(IOException e) {
+                System.out.println("NaginiServer Exception: " + e.getMessage());
+            }
+            try {
+                channel.close();
+            } catch(IOException e) {
+                System.out.println("NaginiServer Exception: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Streams handed to request handlers in place of a blocking socket.
+     */
+    private class FrameStreams extends SocketAndStreams {
+
+        private final Connection connection;
+
+        private FrameStreams(Connection connection, InputStream inputStream) {
+            super(inputStream, new FrameOutputStream(connection));
+            this.connection = connection;
+        }
+
+        @Override
+        public void sendFile(File file, long offset, long length) throws IOException {
+            getOutputStream().flush();
+            connection.enqueue(new FileRegion(new FileInputStream(file).getChannel(),
+                                              offset,
+                                              length));
+        }
+
+        @Override
+        public long receiveFile(File file, long length) throws IOException {
+            File spoolFile = connection.spoolFile;
+            if(spoolFile == null) {
+                return 0;
+            }
+            connection.spoolFile = null;
+            if(!spoolFile.renameTo(file)) {
+                NaginiFileUtils.copy(spoolFile, file);
+                NaginiFileUtils.delete(spoolFile);
+            }
+            return Math.min(connection.bodyReceived, length);
+        }
+
+        private void finish() {
+            try {
+                getOutputStream().flush();
+            } catch(IOException e) {
+                System.out.println("NaginiServer Exception: " + e.getMessage());
+            }
+            connection.complete();
+        }
+
+        @Override
+        public void close() {
+            finish();
+            if(!isSelectorThread()) {
+                try {
+                    connection.closed.await(CLOSE_DRAIN_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                } catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+}
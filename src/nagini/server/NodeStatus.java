@@ -6,4 +6,6 @@ public class NodeStatus {
 
     public Integer node_id;
     public List<ServiceStatus> service_list;
+    // null if the application is not running or not sampled
+    public ResourceStatus resources;
 }
@@ -0,0 +1,401 @@
+package nagini.server;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+
+import nagini.utils.HashCache;
+import nagini.utils.NaginiFileUtils;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+/**
+ * Keeps every deployed version of the application in a folder of its own,
+ * and points the application path at the active one through a symlink. A
+ * release is switched to by replacing the symlink in a single rename, so
+ * nodes never see a half written release, and rolling back only takes
+ * another rename. Files that did not change from the previous release are
+ * hardlinked to it rather than stored twice.
+ *
+ * Releases: [Folder:Version...][File:.history]
+ * where .history lists the activated versions, one per line, oldest first
+ */
+public class ReleaseStore {
+
+    private static final String HISTORY_FILE = ".history";
+    private static final String LINK_PREFIX = ".link-";
+    private static final String LEGACY_PREFIX = "legacy-";
+
+    private final File releasesFolder;
+    private final File activeLink;
+
+    /**
+     * @param releasesPath folder holding one folder per release
+     * @param activePath symlink to the active release
+     */
+    public ReleaseStore(String releasesPath, String activePath) {
+        this.releasesFolder = new File(releasesPath);
+        this.activeLink = new File(activePath);
+    }
+
+    /**
+     * @param version
+     * @return true if the version is safe to use as a folder name
+     */
+    public static boolean isValidVersion(String version) {
+        if(version.isEmpty() || version.length() > 64 || version.startsWith(".")) {
+            return false;
+        }
+        for(char c: version.toCharArray()) {
+            if(!Character.isLetterOrDigit(c) && c != '-' && c != '_' && c != '.') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public File getReleaseFolder(String version) {
+        return new File(releasesFolder, version);
+    }
+
+    /**
+     * @return version the application path points at, or null if there is
+     *         no active release
+     * @throws IOException
+     */
+    public String getActive() throws IOException {
+        Path link = activeLink.toPath();
+        if(!Files.isSymbolicLink(link)) {
+            return null;
+        }
+        return Files.readSymbolicLink(link).getFileName().toString();
+    }
+
+    /**
+     * @return versions of all releases, by name
+     */
+    public List<String> getReleases() {
+        List<String> versions = Lists.newArrayList();
+        File[] folders = releasesFolder.listFiles();
+        if(folders != null) {
+            for(File folder: folders) {
+                if(folder.isDirectory() && isValidVersion(folder.getName())) {
+                    versions.add(folder.getName());
+                }
+            }
+        }
+        Collections.sort(versions);
+        return versions;
+    }
+
+    /**
+     * @return activated versions, oldest first
+     * @throws IOException
+     */
+    public List<String> getHistory() throws IOException {
+        File historyFile = new File(releasesFolder, HISTORY_FILE);
+        if(!historyFile.isFile()) {
+            return Lists.newArrayList();
+        }
+        List<String> history = Lists.newArrayList();
+        for(String line: NaginiFileUtils.read(historyFile)) {
+            if(isValidVersion(line.trim())) {
+                history.add(line.trim());
+            }
+        }
+        return history;
+    }
+
+    private void writeHistory(List<String> history) throws IOException {
+        File historyFile = new File(releasesFolder, HISTORY_FILE);
+        File tempFile = new File(releasesFolder, HISTORY_FILE + ".tmp");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(tempFile),
+                                               StandardCharsets.UTF_8);
+        try {
+            for(String version: history) {
+                writer.write(version + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+        Files.move(tempFile.toPath(),
+                   historyFile.toPath(),
+                   StandardCopyOption.ATOMIC_MOVE,
+                   StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Turns an application folder deployed before releases existed into the
+     * first release, so that it can be linked to and rolled back to.
+     *
+     * @return version of the adopted folder, or null if there was none
+     * @throws IOException
+     */
+    public String adoptLegacy() throws IOException {
+        Path active = activeLink.toPath();
+        if(Files.isSymbolicLink(active) || !Files.isDirectory(active)) {
+            return null;
+        }
+        releasesFolder.mkdirs();
+        String version = LEGACY_PREFIX + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+        Files.move(active, getReleaseFolder(version).toPath(), StandardCopyOption.ATOMIC_MOVE);
+        switchTo(version);
+        List<String> history = getHistory();
+        history.add(version);
+        writeHistory(history);
+        return version;
+    }
+
+    /**
+     * Creates an empty folder for a release to be uploaded into, or one that
+     * is seeded with hardlinks to the files of the active release, for
+     * uploads that only send what changed. A release that was activated or
+     * is in use is never overwritten; one left behind by a failed deploy is
+     * replaced.
+     *
+     * @param version
+     * @param seed
+     * @param inUse releases that nodes are running
+     * @return the release folder
+     * @throws IOException if the release exists already and may be needed
+     */
+    public File prepare(String version, boolean seed, Set<String> inUse) throws IOException {
+        adoptLegacy();
+        File releaseFolder = getReleaseFolder(version);
+        if(Files.exists(releaseFolder.toPath(), LinkOption.NOFOLLOW_LINKS)) {
+            if(getHistory().contains(version) || version.equals(getActive())
+               || inUse.contains(version)) {
+                throw new IOException("release " + version + " already exists.");
+            }
+            NaginiFileUtils.delete(releaseFolder);
+        }
+        String active = getActive();
+        if(seed && active != null) {
+            linkTree(getReleaseFolder(active).toPath(), releaseFolder.toPath());
+        } else {
+            releaseFolder.mkdirs();
+        }
+        return releaseFolder;
+    }
+
+    /**
+     * Replaces files of a release with hardlinks to identical files of the
+     * active release, so that unchanged files share disk and page cache.
+     *
+     * @param version
+     * @param cache hashes of files by size and modification time
+     * @return number of files linked
+     * @throws IOException
+     */
+    public int linkUnchanged(String version, final HashCache cache) throws IOException {
+        String active = getActive();
+        if(active == null || active.equals(version)) {
+            return 0;
+        }
+        final Path releasePath = getReleaseFolder(version).toPath();
+        final Path activePath = getReleaseFolder(active).toPath();
+        final int[] linked = new int[1];
+        Files.walkFileTree(releasePath, new SimpleFileVisitor<Path>() {
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+                    throws IOException {
+                if(!attrs.isRegularFile()) {
+                    return FileVisitResult.CONTINUE;
+                }
+                Path previous = activePath.resolve(releasePath.relativize(file));
+                if(!Files.isRegularFile(previous, LinkOption.NOFOLLOW_LINKS)
+                   || Files.size(previous) != attrs.size() || Files.isSameFile(file, previous)) {
+                    return FileVisitResult.CONTINUE;
+                }
+                long previousModified = Files.getLastModifiedTime(previous,
+                                                                  LinkOption.NOFOLLOW_LINKS)
+                                             .toMillis();
+                String hash = cache.getHash(file.toFile(),
+                                            attrs.size(),
+                                            attrs.lastModifiedTime().toMillis());
+                String previousHash = cache.getHash(previous.toFile(),
+                                                    attrs.size(),
+                                                    previousModified);
+                if(!hash.equals(previousHash)) {
+                    return FileVisitResult.CONTINUE;
+                }
+                Path temp = file.resolveSibling(LINK_PREFIX + System.nanoTime());
+                try {
+                    Files.createLink(temp, previous);
+                } catch(IOException e) {
+                    // e.g. releases on a file system without hardlinks
+                    return FileVisitResult.TERMINATE;
+                } catch(UnsupportedOperationException e) {
+                    return FileVisitResult.TERMINATE;
+                }
+                Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+                linked[0]++;
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return linked[0];
+    }
+
+    /**
+     * Makes a release the active one and records it in the history.
+     *
+     * @param version
+     * @return version that was active before, or null
+     * @throws IOException
+     */
+    public String activate(String version) throws IOException {
+        String previous = getActive();
+        switchTo(version);
+        List<String> history = getHistory();
+        history.add(version);
+        writeHistory(history);
+        return previous;
+    }
+
+    /**
+     * Goes back to a previous release: the one activated before the active
+     * one if no version is given, which is then dropped from the history.
+     *
+     * @param version release to go back to, or null for the previous one
+     * @return version that is active now
+     * @throws IOException
+     */
+    public String rollback(String version) throws IOException {
+        List<String> history = getHistory();
+        String active = getActive();
+        if(version == null) {
+            // drop the active release and everything that is gone
+            while(!history.isEmpty()) {
+                String last = history.get(history.size() - 1);
+                if(!last.equals(active) && getReleaseFolder(last).isDirectory()) {
+                    break;
+                }
+                history.remove(history.size() - 1);
+            }
+            if(history.isEmpty()) {
+                throw new IOException("no previous release to roll back to.");
+            }
+            version = history.get(history.size() - 1);
+        } else {
+            history.add(version);
+        }
+        switchTo(version);
+        writeHistory(history);
+        return version;
+    }
+
+    /**
+     * Deletes all releases but the active one, those activated last and
+     * those still in use, including releases that were never activated.
+     *
+     * @param keep number of most recently activated releases to keep
+     * @param inUse releases that nodes are running or that deploys are still
+     *        uploading, kept in any case
+     * @return versions of the deleted releases
+     * @throws IOException
+     */
+    public List<String> prune(int keep, Set<String> inUse) throws IOException {
+        List<String> history = getHistory();
+        Set<String> kept = Sets.newHashSet();
+        String active = getActive();
+        if(active != null) {
+            kept.add(active);
+        }
+        for(int i = history.size() - 1; i >= 0; i--) {
+            if(kept.size() < keep) {
+                kept.add(history.get(i));
+            }
+        }
+        // releases in use stay in the history, to be pruned once unused
+        kept.addAll(inUse);
+        List<String> keptHistory = Lists.newArrayList();
+        for(String version: history) {
+            if(kept.contains(version)) {
+                keptHistory.add(version);
+            }
+        }
+        List<String> deleted = Lists.newArrayList();
+        for(String version: getReleases()) {
+            if(!kept.contains(version)) {
+                NaginiFileUtils.delete(getReleaseFolder(version));
+                deleted.add(version);
+            }
+        }
+        writeHistory(keptHistory);
+        return deleted;
+    }
+
+    /**
+     * Points the application path at a release in a single rename.
+     */
+    private void switchTo(String version) throws IOException {
+        File releaseFolder = getReleaseFolder(version);
+        if(!releaseFolder.isDirectory()) {
+            throw new IOException("release " + version + " does not exist.");
+        }
+        Path active = activeLink.toPath();
+        if(!Files.isSymbolicLink(active) && Files.exists(active, LinkOption.NOFOLLOW_LINKS)) {
+            throw new IOException(activeLink + " is not a symlink.");
+        }
+        // relative, so that the base path can be moved as a whole
+        Path target = active.getParent().relativize(releaseFolder.toPath());
+        Path temp = active.resolveSibling(LINK_PREFIX + System.nanoTime());
+        Files.createSymbolicLink(temp, target);
+        try {
+            Files.move(temp, active, StandardCopyOption.ATOMIC_MOVE);
+        } catch(IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+    }
+
+    /**
+     * Recreates a tree with hardlinks to its files.
+     */
+    private static void linkTree(final Path src, final Path dest) throws IOException {
+        Files.walkFileTree(src, new SimpleFileVisitor<Path>() {
+
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs)
+                    throws IOException {
+                Files.createDirectories(dest.resolve(src.relativize(dir)));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+                    throws IOException {
+                Path target = dest.resolve(src.relativize(file));
+                if(attrs.isSymbolicLink()) {
+                    Files.createSymbolicLink(target, Files.readSymbolicLink(file));
+                } else {
+                    try {
+                        Files.createLink(target, file);
+                    } catch(IOException e) {
+                        Files.copy(file, target, StandardCopyOption.COPY_ATTRIBUTES);
+                    } catch(UnsupportedOperationException e) {
+                        Files.copy(file, target, StandardCopyOption.COPY_ATTRIBUTES);
+                    }
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -0,0 +1,35 @@
+package nagini.server;
+
+import java.util.Locale;
+
+/**
+ * Summary of the resource samples kept for the running application of a
+ * node: the last sample, and the spread of the samples of the same process.
+ */
+public class ResourceStatus {
+
+    public Integer pid;
+    public Long sample_time;
+    public Integer sample_count;
+    public Float cpu_percent;
+    public Float cpu_percent_avg;
+    public Float cpu_percent_max;
+    public Long rss_bytes;
+    public Long rss_bytes_min;
+    public Long rss_bytes_max;
+    public Integer threads;
+    public Integer fds;
+    public Long read_bytes_per_sec;
+    public Long write_bytes_per_sec;
+
+    /**
+     * @param bytes
+     * @return human readable amount of memory, e.g. "512.0 MB"
+     */
+    public static String formatMemory(long bytes) {
+        if(bytes >= 1L << 30) {
+            return String.format(Locale.ENGLISH, "%.1f GB", bytes / 1073741824.0);
+        }
+        return String.format(Locale.ENGLISH, "%.1f MB", bytes / 1048576.0);
+    }
+}
@@ -0,0 +1,160 @@
+package nagini.utils;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Sets;
+
+/**
+ * Decides how each file of a zip is stored. Deflating files that are
+ * compressed already, such as jars and gzips, costs cpu on both ends for
+ * next to no saving, so such files can be stored as they are.
+ *
+ * Compression: [UTF:Mode][Int:Level][UTF:StoredExtensions]
+ */
+public class CompressionPolicy {
+
+    // deflate every file
+    public static final String MODE_DEFLATE = "deflate";
+    // store every file
+    public static final String MODE_STORE = "store";
+    // store files with a known compressed extension, deflate the rest
+    public static final String MODE_AUTO = "auto";
+    // as auto, and also store files whose first block hardly deflates
+    public static final String MODE_ADAPTIVE = "adaptive";
+
+    public static final String DEFAULT_STORED_EXTENSIONS = "jar,war,ear,zip,gz,tgz,bz2,xz,zst,"
+                                                           + "7z,png,jpg,jpeg,gif,mp3,mp4";
+
+    private static final int SAMPLE_SIZE = 65536;
+    // a sample that deflates to more than this part of its size is stored
+    private static final double SAMPLE_MAX_RATIO = 0.9;
+
+    private final String mode;
+    private final int level;
+    private final Set<String> storedExtensions;
+
+    /**
+     * @param mode see MODE_*
+     * @param level deflate level, 0 to 9 or -1 for the default level; 0
+     *        stores every file
+     * @param storedExtensions comma separated file extensions, without dots
+     */
+    public CompressionPolicy(String mode, int level, String storedExtensions) {
+        if(!isValidMode(mode)) {
+            throw new IllegalArgumentException("invalid compression mode " + mode);
+        }
+        if(level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("invalid compression level " + level);
+        }
+        this.mode = mode;
+        this.level = level;
+        this.storedExtensions = Sets.newTreeSet();
+        for(String extension: Splitter.on(',').trimResults().omitEmptyStrings()
+                                      .split(storedExtensions)) {
+            this.storedExtensions.add(extension.toLowerCase(Locale.ENGLISH));
+        }
+    }
+
+    /**
+     * @return policy for zips of which the client has no say, deflating at
+     *         the default level except for known compressed extensions
+     */
+    public static CompressionPolicy getDefault() {
+        return new CompressionPolicy(MODE_AUTO,
+                                     Deflater.DEFAULT_COMPRESSION,
+                                     DEFAULT_STORED_EXTENSIONS);
+    }
+
+    public static boolean isValidMode(String mode) {
+        return MODE_DEFLATE.equals(mode) || MODE_STORE.equals(mode) || MODE_AUTO.equals(mode)
+               || MODE_ADAPTIVE.equals(mode);
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * @param file
+     * @return true if the file should be stored rather than deflated
+     * @throws IOException if the file cannot be sampled
+     */
+    public boolean isStored(File file) throws IOException {
+        if(MODE_STORE.equals(mode) || level == Deflater.NO_COMPRESSION) {
+            return true;
+        }
+        if(MODE_DEFLATE.equals(mode)) {
+            return false;
+        }
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        if(dot >= 0 && storedExtensions.contains(name.substring(dot + 1)
+                                                     .toLowerCase(Locale.ENGLISH))) {
+            return true;
+        }
+        return MODE_ADAPTIVE.equals(mode) && file.length() >= SAMPLE_SIZE
+               && !isWorthDeflating(file);
+    }
+
+    /**
+     * Deflates the first block of a file to see if deflating pays off.
+     */
+    private boolean isWorthDeflating(File file) throws IOException {
+        byte[] sample = new byte[SAMPLE_SIZE];
+        int length = 0;
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            int read;
+            while(length < sample.length
+                  && (read = fis.read(sample, length, sample.length - length)) != -1) {
+                length += read;
+            }
+        } finally {
+            fis.close();
+        }
+        Deflater deflater = new Deflater(level, true);
+        try {
+            deflater.setInput(sample, 0, length);
+            deflater.finish();
+            byte[] output = new byte[sample.length];
+            long deflated = 0;
+            while(!deflater.finished()) {
+                deflated += deflater.deflate(output);
+            }
+            return deflated <= length * SAMPLE_MAX_RATIO;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    public void write(DataOutputStream dos) throws IOException {
+        dos.writeUTF(mode);
+        dos.writeInt(level);
+        dos.writeUTF(Joiner.on(',').join(storedExtensions));
+    }
+
+    public static CompressionPolicy read(DataInputStream dis) throws IOException {
+        String mode = dis.readUTF();
+        int level = dis.readInt();
+        String storedExtensions = dis.readUTF();
+        try {
+            return new CompressionPolicy(mode, level, storedExtensions);
+        } catch(IllegalArgumentException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return mode + (level == Deflater.DEFAULT_COMPRESSION ? "" : ", level " + level);
+    }
+}
@@ -0,0 +1,336 @@
+package nagini.utils;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * Lists the files of a tree together with the SHA-256 of their content. Paths
+ * are relative to the parent of the tree root and use '/' as separator, so
+ * that a manifest of /a/b describes the same layout as a zip of /a/b.
+ * Directories without files are listed with an empty hash.
+ *
+ * Manifest: [Int:Count][Entry...]
+ * where Entry is [UTF:Path][UTF:Sha256][Long:Size]
+ *
+ * TimedManifest: [Int:Count][TimedEntry...]
+ * where TimedEntry is [UTF:Path][UTF:Sha256][Long:Size][Long:LastModified]
+ */
+public class FileManifest {
+
+    public static final String DIRECTORY_HASH = "";
+
+    private static final int BYTE_ARRAY_SIZE = 65536;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    public static class Entry {
+
+        public final String path;
+        public final String hash;
+        public final long size;
+        public final long lastModified;
+
+        public Entry(String path, String hash, long size, long lastModified) {
+            this.path = path;
+            this.hash = hash;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        public boolean isDirectory() {
+            return DIRECTORY_HASH.equals(hash);
+        }
+
+        private boolean hasSameContent(Entry other) {
+            return hash.equals(other.hash) && size == other.size;
+        }
+    }
+
+    private final List<Entry> entries;
+    // local file by hash, only known on the side that built the manifest
+    private final Map<String, File> files;
+
+    private FileManifest() {
+        this.entries = Lists.newArrayList();
+        this.files = Maps.newHashMap();
+    }
+
+    public List<Entry> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * @return hashes of all file contents, without duplicates
+     */
+    public Set<String> getHashes() {
+        Set<String> hashes = Sets.newLinkedHashSet();
+        for(Entry entry: entries) {
+            if(!entry.isDirectory()) {
+                hashes.add(entry.hash);
+            }
+        }
+        return hashes;
+    }
+
+    /**
+     * @param hash
+     * @return a local file with the given content, or null
+     */
+    public File getFile(String hash) {
+        return files.get(hash);
+    }
+
+    /**
+     * Builds the manifest of a local file or folder.
+     *
+     * @param src
+     * @return
+     * @throws IOException
+     */
+    public static FileManifest build(String src) throws IOException {
+        return build(src, null);
+    }
+
+    /**
+     * Builds the manifest of a local file or folder, taking the hashes of
+     * unchanged files from a cache.
+     *
+     * @param src
+     * @param cache may be null
+     * @return
+     * @throws IOException
+     */
+    public static FileManifest build(String src, HashCache cache) throws IOException {
+        File srcFile = new File(src);
+        if(!srcFile.exists()) {
+            throw new RuntimeException(src + " does not exist.");
+        }
+        FileManifest manifest = new FileManifest();
+        manifest.add(srcFile, null, cache);
+        return manifest;
+    }
+
+    /**
+     * @return a manifest without entries, e.g. of a tree that does not exist
+     */
+    public static FileManifest empty() {
+        return new FileManifest();
+    }
+
+    /**
+     * @param other manifest of the same tree elsewhere
+     * @return entries of this manifest that the other manifest lacks or has
+     *         with a different content or type
+     */
+    public List<Entry> getChanged(FileManifest other) {
+        Map<String, Entry> otherEntries = other.getEntriesByPath();
+        List<Entry> changed = Lists.newArrayList();
+        for(Entry entry: entries) {
+            Entry otherEntry = otherEntries.get(entry.path);
+            if(otherEntry == null || !entry.hasSameContent(otherEntry)) {
+                changed.add(entry);
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * @param other manifest of the same tree elsewhere
+     * @return paths of the other manifest that are neither in this manifest
+     *         nor folders that hold its entries
+     */
+    public List<String> getExtraneous(FileManifest other) {
+        Set<String> paths = Sets.newHashSet();
+        for(Entry entry: entries) {
+            String path = entry.path;
+            paths.add(path);
+            // a folder of the other tree may just be the parent of entries
+            int slash;
+            while((slash = path.lastIndexOf('/')) > 0) {
+                path = path.substring(0, slash);
+                paths.add(path);
+            }
+        }
+        List<String> extraneous = Lists.newArrayList();
+        for(Entry entry: other.entries) {
+            if(!paths.contains(entry.path)) {
+                extraneous.add(entry.path);
+            }
+        }
+        return extraneous;
+    }
+
+    private Map<String, Entry> getEntriesByPath() {
+        Map<String, Entry> entriesByPath = Maps.newHashMap();
+        for(Entry entry: entries) {
+            entriesByPath.put(entry.path, entry);
+        }
+        return entriesByPath;
+    }
+
+    private void add(File file, String parentPath, HashCache cache) throws IOException {
+        String currentPath = file.getName();
+        if(parentPath != null) {
+            currentPath = parentPath + "/" + currentPath;
+        }
+        // one stat per file, this runs over large trees on every sync
+        BasicFileAttributes attributes = Files.readAttributes(file.toPath(),
+                                                              BasicFileAttributes.class);
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        if(attributes.isDirectory()) {
+            File[] children = file.listFiles();
+            for(File child: children) {
+                add(child, currentPath, cache);
+            }
+            if(children.length == 0) {
+                entries.add(new Entry(currentPath, DIRECTORY_HASH, 0, lastModified));
+            }
+        } else {
+            long size = attributes.size();
+            String hash = cache == null ? sha256(file) : cache.getHash(file, size, lastModified);
+            entries.add(new Entry(currentPath, hash, size, lastModified));
+            files.put(hash, file);
+        }
+    }
+
+    public void write(DataOutputStream dos) throws IOException {
+        write(dos, false);
+    }
+
+    /**
+     * Writes the manifest with the modification times of the entries.
+     *
+     * @param dos
+     * @throws IOException
+     */
+    public void writeTimed(DataOutputStream dos) throws IOException {
+        write(dos, true);
+    }
+
+    private void write(DataOutputStream dos, boolean timed) throws IOException {
+        dos.writeInt(entries.size());
+        for(Entry entry: entries) {
+            dos.writeUTF(entry.path);
+            dos.writeUTF(entry.hash);
+            dos.writeLong(entry.size);
+            if(timed) {
+                dos.writeLong(entry.lastModified);
+            }
+        }
+    }
+
+    /**
+     * @param dis
+     * @return manifest of which the entries have a modification time of 0
+     * @throws IOException
+     */
+    public static FileManifest read(DataInputStream dis) throws IOException {
+        return read(dis, false);
+    }
+
+    /**
+     * Reads a manifest written by writeTimed.
+     *
+     * @param dis
+     * @return
+     * @throws IOException
+     */
+    public static FileManifest readTimed(DataInputStream dis) throws IOException {
+        return read(dis, true);
+    }
+
+    private static FileManifest read(DataInputStream dis, boolean timed) throws IOException {
+        FileManifest manifest = new FileManifest();
+        int count = dis.readInt();
+        for(int i = 0; i < count; i++) {
+            String path = dis.readUTF();
+            String hash = dis.readUTF();
+            long size = dis.readLong();
+            long lastModified = timed ? dis.readLong() : 0;
+            manifest.entries.add(new Entry(path, hash, size, lastModified));
+        }
+        return manifest;
+    }
+
+    /**
+     * @param file
+     * @return lower case hex SHA-256 of the file content
+     * @throws IOException
+     */
+    public static String sha256(File file) throws IOException {
+        MessageDigest digest = newDigest();
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[BYTE_ARRAY_SIZE];
+            int read;
+            while((read = fis.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        } finally {
+            fis.close();
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Turns a manifest path into a local relative path, rejecting paths that
+     * would leave the destination folder.
+     *
+     * @param path
+     * @return
+     */
+    public static String toLocalPath(String path) {
+        if(path.startsWith("/")) {
+            throw new IllegalArgumentException("invalid manifest path " + path);
+        }
+        for(String part: path.split("/")) {
+            if(part.isEmpty() || part.equals(".") || part.equals("..")) {
+                throw new IllegalArgumentException("invalid manifest path " + path);
+            }
+        }
+        return path.replace("/", File.separator);
+    }
+
+    public static boolean isValidHash(String hash) {
+        if(hash.length() != 64) {
+            return false;
+        }
+        for(char c: hash.toCharArray()) {
+            if((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch(NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+        for(int i = 0; i < bytes.length; i++) {
+            hex[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xF];
+            hex[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xF];
+        }
+        return new String(hex);
+    }
+}
@@ -0,0 +1,173 @@
+package nagini.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.Map;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Remembers the SHA-256 of files by path, size and modification time, so that
+ * unchanged files do not have to be read again to be hashed. Hashes of files
+ * modified within the last few seconds are not kept, as a change within the
+ * same timestamp would go unnoticed.
+ *
+ * Cache file: [Int:Count][Entry...]
+ * where Entry is [UTF:Path][Long:Size][Long:LastModified][UTF:Sha256]
+ */
+public class HashCache {
+
+    private static final long RACY_INTERVAL_MS = 2000;
+
+    private static class CachedHash {
+
+        private final long size;
+        private final long lastModified;
+        private final String hash;
+
+        private CachedHash(long size, long lastModified, String hash) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+    }
+
+    // null for a cache that is only kept in memory
+    private final File cacheFile;
+    private final Map<String, CachedHash> hashes;
+    private boolean modified;
+
+    /**
+     * Creates an empty cache that is only kept in memory.
+     */
+    public HashCache() {
+        this(null);
+    }
+
+    private HashCache(File cacheFile) {
+        this.cacheFile = cacheFile;
+        this.hashes = Maps.newHashMap();
+    }
+
+    /**
+     * Loads a cache from a file. A missing or unreadable file gives an empty
+     * cache.
+     *
+     * @param cacheFile
+     * @return
+     */
+    public static HashCache load(File cacheFile) {
+        HashCache cache = new HashCache(cacheFile);
+        if(!cacheFile.exists()) {
+            return cache;
+        }
+        try {
+            InputStream in = new BufferedInputStream(new FileInputStream(cacheFile));
+            DataInputStream dis = new DataInputStream(in);
+            try {
+                int count = dis.readInt();
+                for(int i = 0; i < count; i++) {
+                    String path = dis.readUTF();
+                    long size = dis.readLong();
+                    long lastModified = dis.readLong();
+                    String hash = dis.readUTF();
+                    cache.hashes.put(path, new CachedHash(size, lastModified, hash));
+                }
+            } finally {
+                dis.close();
+            }
+        } catch(IOException e) {
+            System.out.println("ignoring unreadable hash cache " + cacheFile + " ("
+                               + e.getMessage() + ")");
+            cache.hashes.clear();
+        }
+        return cache;
+    }
+
+    /**
+     * Remembers the hash of a file as of the given size and modification
+     * time.
+     *
+     * @param file
+     * @param size
+     * @param lastModified
+     * @param hash
+     */
+    public synchronized void put(File file, long size, long lastModified, String hash) {
+        hashes.put(file.getAbsolutePath(), new CachedHash(size, lastModified, hash));
+        modified = true;
+    }
+
+    /**
+     * @param file
+     * @param size current size of the file
+     * @param lastModified current modification time of the file
+     * @return SHA-256 of the file content, read from the file only if it
+     *         changed since it was last hashed
+     * @throws IOException
+     */
+    public String getHash(File file, long size, long lastModified) throws IOException {
+        String path = file.getAbsolutePath();
+        synchronized(this) {
+            CachedHash cached = hashes.get(path);
+            if(cached != null && cached.size == size && cached.lastModified == lastModified) {
+                return cached.hash;
+            }
+        }
+        String hash = FileManifest.sha256(file);
+        if(lastModified < System.currentTimeMillis() - RACY_INTERVAL_MS
+           && file.lastModified() == lastModified && file.length() == size) {
+            put(file, size, lastModified, hash);
+        }
+        return hash;
+    }
+
+    /**
+     * Writes the cache back to its file if it changed, leaving out files that
+     * no longer exist.
+     *
+     * @throws IOException
+     */
+    public synchronized void save() throws IOException {
+        if(cacheFile == null || !modified) {
+            return;
+        }
+        Iterator<String> paths = hashes.keySet().iterator();
+        while(paths.hasNext()) {
+            if(!new File(paths.next()).isFile()) {
+                paths.remove();
+            }
+        }
+        cacheFile.getParentFile().mkdirs();
+        File tempFile = new File(cacheFile.getPath() + ".tmp");
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(tempFile));
+        DataOutputStream dos = new DataOutputStream(out);
+        try {
+            dos.writeInt(hashes.size());
+            for(Map.Entry<String, CachedHash> entry: hashes.entrySet()) {
+                dos.writeUTF(entry.getKey());
+                dos.writeLong(entry.getValue().size);
+                dos.writeLong(entry.getValue().lastModified);
+                dos.writeUTF(entry.getValue().hash);
+            }
+        } finally {
+            dos.close();
+        }
+        Files.move(tempFile.toPath(),
+                   cacheFile.toPath(),
+                   StandardCopyOption.ATOMIC_MOVE,
+                   StandardCopyOption.REPLACE_EXISTING);
+        modified = false;
+    }
+}
@@ -1,6 +1,7 @@
 package nagini.utils;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.List;
 
 import com.google.common.collect.Lists;
@@ -67,8 +68,17 @@ public class JavaCommandBuilder {
         return this;
     }
 
-    public JavaCommandBuilder addClassPathByFolder(String folderPath) {
-        File folder = new File(folderPath);
+    /**
+     * Adds every file of a folder to the class path. Symlinks in the path are
+     * resolved, so that the class path does not change under a running JVM
+     * when a symlink is switched to another folder.
+     * 
+     * @param folderPath
+     * @return
+     * @throws IOException if the path cannot be resolved
+     */
+    public JavaCommandBuilder addClassPathByFolder(String folderPath) throws IOException {
+        File folder = new File(folderPath).getCanonicalFile();
         if (folder.exists()) {
             for(File file: folder.listFiles()) {
                 addClassPath(file.getPath());
@@ -0,0 +1,480 @@
+package nagini.utils;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * rsync-style delta transfer of a single file. The side that has an old copy
+ * sends a signature (weak rolling checksum and MD5 of every block), the side
+ * that has the new copy answers with a delta made of references to matching
+ * old blocks and literal data, and the old side rebuilds the new file next to
+ * the old one and renames it into place once its SHA-256 checks out.
+ *
+ * Signature: [Long:Length][Int:BlockSize][Int:Count][Block...]
+ * where Block is [Int:Weak][Byte[16]:MD5]
+ * Delta: [Op...][Byte:0][UTF:Sha256] where Op is either
+ * [Byte:1][Int:FirstBlock][Int:BlockCount] or [Byte:2][Int:Length][Byte[]]
+ */
+public class NaginiDeltaUtils {
+
+    private static final int MIN_BLOCK_SIZE = 2048;
+    private static final int MAX_BLOCK_SIZE = 131072;
+    private static final int MAX_LITERAL_SIZE = 65536;
+    private static final int READ_BUFFER_SIZE = 1 << 20;
+    private static final int STRONG_SIZE = 16;
+
+    private static final byte OP_END = 0;
+    private static final byte OP_COPY = 1;
+    private static final byte OP_LITERAL = 2;
+
+    public static class Signature {
+
+        public final long length;
+        public final int blockSize;
+        public final int[] weak;
+        public final byte[][] strong;
+
+        private Signature(long length, int blockSize, int count) {
+            this.length = length;
+            this.blockSize = blockSize;
+            this.weak = new int[count];
+            this.strong = new byte[count][];
+        }
+
+        public int getBlockCount() {
+            return weak.length;
+        }
+
+        public void write(DataOutputStream dos) throws IOException {
+            dos.writeLong(length);
+            dos.writeInt(blockSize);
+            dos.writeInt(weak.length);
+            for(int i = 0; i < weak.length; i++) {
+                dos.writeInt(weak[i]);
+                dos.write(strong[i]);
+            }
+        }
+
+        public static Signature read(DataInputStream dis) throws IOException {
+            long length = dis.readLong();
+            int blockSize = dis.readInt();
+            int count = dis.readInt();
+            if(blockSize < 1 || count < 0 || count > length / blockSize + 1) {
+                throw new IOException("invalid signature.");
+            }
+            Signature signature = new Signature(length, blockSize, count);
+            for(int i = 0; i < count; i++) {
+                signature.weak[i] = dis.readInt();
+                signature.strong[i] = new byte[STRONG_SIZE];
+                dis.readFully(signature.strong[i]);
+            }
+            return signature;
+        }
+    }
+
+    private static int getBlockSize(long length) {
+        long blockSize = (long) Math.sqrt(length);
+        return (int) Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, blockSize));
+    }
+
+    /**
+     * Computes the signature of the old copy of a file.
+     *
+     * @param file old copy, may not exist
+     * @return
+     * @throws IOException
+     */
+    public static Signature getSignature(File file) throws IOException {
+        if(!file.isFile()) {
+            return new Signature(0, MIN_BLOCK_SIZE, 0);
+        }
+        long length = file.length();
+        int blockSize = getBlockSize(length);
+        int count = (int) ((length + blockSize - 1) / blockSize);
+        Signature signature = new Signature(length, blockSize, count);
+        MessageDigest md5 = newDigest("MD5");
+        InputStream is = new FileInputStream(file);
+        try {
+            byte[] block = new byte[blockSize];
+            for(int i = 0; i < count; i++) {
+                int size = readFully(is, block, blockSize);
+                signature.weak[i] = getWeak(block, 0, size);
+                md5.update(block, 0, size);
+                signature.strong[i] = md5.digest();
+            }
+        } finally {
+            is.close();
+        }
+        return signature;
+    }
+
+    /**
+     * Writes the delta that turns the file described by the signature into
+     * the given file.
+     *
+     * @param file new copy
+     * @param signature of the old copy
+     * @param dos
+     * @return number of literal bytes written
+     * @throws IOException
+     */
+    public static long writeDelta(File file, Signature signature, DataOutputStream dos)
+            throws IOException {
+        DeltaWriter writer = new DeltaWriter(signature, dos);
+        InputStream is = new FileInputStream(file);
+        try {
+            writer.run(is);
+        } finally {
+            is.close();
+        }
+        return writer.literalBytes;
+    }
+
+    /**
+     * Rebuilds a new copy from the old copy and a delta, and replaces the old
+     * copy with it.
+     *
+     * @param file old copy, replaced by the new copy; may not exist
+     * @param signature the signature the delta was made against
+     * @param dis
+     * @return length of the new copy
+     * @throws IOException if the delta is invalid, or the result does not
+     *         match its hash, in which case the old copy is left untouched
+     */
+    public static long applyDelta(File file, Signature signature, DataInputStream dis)
+            throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        parent.mkdirs();
+        File tempFile = new File(parent, "." + file.getName() + ".nagini-" + System.nanoTime());
+        RandomAccessFile base = file.isFile() ? new RandomAccessFile(file, "r") : null;
+        FileOutputStream fos = new FileOutputStream(tempFile);
+        MessageDigest sha256 = newDigest("SHA-256");
+        long length = 0;
+        boolean complete = false;
+        try {
+            byte[] buffer = new byte[Math.max(signature.blockSize, MAX_LITERAL_SIZE)];
+            byte op;
+            while((op = dis.readByte()) != OP_END) {
+                if(op == OP_COPY) {
+                    int first = dis.readInt();
+                    int count = dis.readInt();
+                    if(base == null || first < 0 || count < 1
+                       || (long) first + count > signature.getBlockCount()) {
+                        throw new IOException("invalid block reference in delta.");
+                    }
+                    long position = (long) first * signature.blockSize;
+                    long end = Math.min(signature.length, position + (long) count
+                                                                      * signature.blockSize);
+                    base.seek(position);
+                    while(position < end) {
+                        int size = (int) Math.min(buffer.length, end - position);
+                        base.readFully(buffer, 0, size);
+                        fos.write(buffer, 0, size);
+                        sha256.update(buffer, 0, size);
+                        position += size;
+                        length += size;
+                    }
+                } else if(op == OP_LITERAL) {
+                    int size = dis.readInt();
+                    if(size < 0 || size > buffer.length) {
+                        throw new IOException("invalid literal in delta.");
+                    }
+                    dis.readFully(buffer, 0, size);
+                    fos.write(buffer, 0, size);
+                    sha256.update(buffer, 0, size);
+                    length += size;
+                } else {
+                    throw new IOException("invalid delta operation " + op);
+                }
+            }
+            String expectedHash = dis.readUTF();
+            fos.close();
+            if(!expectedHash.equals(FileManifest.toHex(sha256.digest()))) {
+                throw new IOException("rebuilt file does not match its hash.");
+            }
+            // rename over the old copy, so that it is never written to, as it
+            // may be a hardlink shared with other trees
+            Files.move(tempFile.toPath(),
+                       file.toPath(),
+                       StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+            complete = true;
+        } finally {
+            fos.close();
+            if(base != null) {
+                base.close();
+            }
+            if(!complete) {
+                NaginiFileUtils.delete(tempFile);
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Scans the new copy with a rolling checksum and writes block references
+     * wherever a block of the old copy matches.
+     */
+    private static class DeltaWriter {
+
+        private final Signature signature;
+        private final DataOutputStream dos;
+        private final Map<Integer, List<Integer>> blocksByWeak;
+        // cheap first check of the weak checksum before the map lookup
+        private final boolean[] tags;
+        private final MessageDigest md5;
+        private final MessageDigest sha256;
+        private final int blockSize;
+        private final byte[] buffer;
+        private int length;
+        // start of the current window, and of data not yet written out
+        private int position;
+        private int literalStart;
+        private boolean eof;
+        private int copyFirst;
+        private int copyCount;
+        private long literalBytes;
+
+        private DeltaWriter(Signature signature, DataOutputStream dos) {
+            this.signature = signature;
+            this.dos = dos;
+            this.blocksByWeak = Maps.newHashMap();
+            this.tags = new boolean[1 << 16];
+            // a short last block of the old copy can only match at the end
+            for(int i = 0; i < signature.getBlockCount(); i++) {
+                if((long) (i + 1) * signature.blockSize <= signature.length) {
+                    List<Integer> blocks = blocksByWeak.get(signature.weak[i]);
+                    if(blocks == null) {
+                        blocks = Lists.newArrayList();
+                        blocksByWeak.put(signature.weak[i], blocks);
+                    }
+                    blocks.add(i);
+                    tags[getTag(signature.weak[i])] = true;
+                }
+            }
+            this.md5 = newDigest("MD5");
+            this.sha256 = newDigest("SHA-256");
+            this.blockSize = signature.blockSize;
+            this.buffer = new byte[Math.max(READ_BUFFER_SIZE, 4 * (MAX_LITERAL_SIZE + blockSize))];
+            this.length = 0;
+            this.position = 0;
+            this.literalStart = 0;
+            this.eof = false;
+            this.copyFirst = -1;
+            this.copyCount = 0;
+            this.literalBytes = 0;
+        }
+
+        private void run(InputStream is) throws IOException {
+            boolean haveWeak = false;
+            int a = 0, b = 0;
+            while(true) {
+                if(length - position <= blockSize && !eof) {
+                    // rolling needs the byte after the window as well
+                    fill(is);
+                    continue;
+                }
+                if(length - position < blockSize || blocksByWeak.isEmpty()) {
+                    break;
+                }
+                if(!haveWeak) {
+                    int weak = getWeak(buffer, position, blockSize);
+                    a = weak & 0xFFFF;
+                    b = weak >>> 16;
+                    haveWeak = true;
+                }
+                int weak = a | (b << 16);
+                int match = tags[getTag(weak)] ? findBlock(weak) : -1;
+                if(match >= 0) {
+                    writeLiterals(position);
+                    addCopy(match, blockSize);
+                    position += blockSize;
+                    literalStart = position;
+                    haveWeak = false;
+                    continue;
+                }
+                if(position + blockSize >= length) {
+                    // end of file, no byte to roll in
+                    position++;
+                    haveWeak = false;
+                    continue;
+                }
+                int out = buffer[position] & 0xFF;
+                int in = buffer[position + blockSize] & 0xFF;
+                a = (a - out + in) & 0xFFFF;
+                b = (b - blockSize * out + a) & 0xFFFF;
+                position++;
+                if(position - literalStart >= MAX_LITERAL_SIZE) {
+                    writeLiteral(position);
+                    literalStart = position;
+                }
+            }
+            // whatever is left is literal, apart from a short last block
+            while(!eof) {
+                writeLiterals(length - blockSize);
+                fill(is);
+            }
+            findLastBlock();
+            writeLiterals(length);
+            flushCopy();
+            dos.writeByte(OP_END);
+            dos.writeUTF(FileManifest.toHex(sha256.digest()));
+            dos.flush();
+        }
+
+        /**
+         * Matches the end of the new copy against a short last block of the
+         * old copy.
+         */
+        private void findLastBlock() throws IOException {
+            int last = signature.getBlockCount() - 1;
+            int size = (int) (signature.length - (long) last * blockSize);
+            if(last < 0 || size == blockSize || length - literalStart < size) {
+                return;
+            }
+            position = length - size;
+            if(signature.weak[last] != getWeak(buffer, position, size)) {
+                return;
+            }
+            md5.update(buffer, position, size);
+            if(Arrays.equals(md5.digest(), signature.strong[last])) {
+                // the data before it was scanned without rolling at the end
+                // of the file, so it may be longer than one literal
+                writeLiterals(position);
+                addCopy(last, size);
+                literalStart = length;
+            }
+        }
+
+        private int findBlock(int weak) {
+            List<Integer> blocks = blocksByWeak.get(weak);
+            if(blocks == null) {
+                return -1;
+            }
+            md5.update(buffer, position, blockSize);
+            byte[] strong = md5.digest();
+            // prefer the block that continues the current copy
+            int next = copyFirst + copyCount;
+            if(copyCount > 0 && blocks.contains(next)
+               && Arrays.equals(strong, signature.strong[next])) {
+                return next;
+            }
+            for(int block: blocks) {
+                if(Arrays.equals(strong, signature.strong[block])) {
+                    return block;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Moves unwritten data to the front of the buffer and reads more.
+         */
+        private void fill(InputStream is) throws IOException {
+            if(literalStart > 0) {
+                System.arraycopy(buffer, literalStart, buffer, 0, length - literalStart);
+                length -= literalStart;
+                position -= literalStart;
+                literalStart = 0;
+            }
+            int read = is.read(buffer, length, buffer.length - length);
+            if(read == -1) {
+                eof = true;
+            } else {
+                length += read;
+            }
+        }
+
+        private void writeLiteral(int end) throws IOException {
+            if(end > literalStart) {
+                flushCopy();
+                dos.writeByte(OP_LITERAL);
+                dos.writeInt(end - literalStart);
+                dos.write(buffer, literalStart, end - literalStart);
+                sha256.update(buffer, literalStart, end - literalStart);
+                literalBytes += end - literalStart;
+            }
+        }
+
+        private void writeLiterals(int end) throws IOException {
+            while(literalStart < end) {
+                int literalEnd = Math.min(end, literalStart + MAX_LITERAL_SIZE);
+                writeLiteral(literalEnd);
+                literalStart = literalEnd;
+            }
+        }
+
+        private void addCopy(int block, int size) throws IOException {
+            if(copyCount > 0 && block == copyFirst + copyCount) {
+                copyCount++;
+            } else {
+                flushCopy();
+                copyFirst = block;
+                copyCount = 1;
+            }
+            sha256.update(buffer, position, size);
+        }
+
+        private void flushCopy() throws IOException {
+            if(copyCount > 0) {
+                dos.writeByte(OP_COPY);
+                dos.writeInt(copyFirst);
+                dos.writeInt(copyCount);
+                copyCount = 0;
+            }
+        }
+    }
+
+    /**
+     * rsync's weak checksum: a is the sum of the bytes, b the sum of the
+     * running sums of a, both modulo 2^16.
+     */
+    private static int getWeak(byte[] data, int offset, int size) {
+        int a = 0, b = 0;
+        for(int i = 0; i < size; i++) {
+            a += data[offset + i] & 0xFF;
+            b += (size - i) * (data[offset + i] & 0xFF);
+        }
+        return (a & 0xFFFF) | ((b & 0xFFFF) << 16);
+    }
+
+    private static int getTag(int weak) {
+        return (weak ^ (weak >>> 16)) & 0xFFFF;
+    }
+
+    private static int readFully(InputStream is, byte[] buffer, int size) throws IOException {
+        int done = 0;
+        while(done < size) {
+            int read = is.read(buffer, done, size - done);
+            if(read == -1) {
+                break;
+            }
+            done += read;
+        }
+        return done;
+    }
+
+    private static MessageDigest newDigest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch(NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -6,6 +6,8 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.util.List;
 
 import com.google.common.collect.Lists;
@@ -31,6 +33,11 @@ public class NaginiFileUtils {
                 ret = ret && copy(file, new File(dest.getPath() + File.separator + file.getName()));
             }
         } else {
+            // replace rather than overwrite, dest may be a hardlink shared
+            // with other trees
+            if(dest.exists()) {
+                delete(dest);
+            }
             FileInputStream fis = new FileInputStream(src);
             FileOutputStream fos = new FileOutputStream(dest);
             byte[] buffer = new byte[65536];
@@ -49,17 +56,24 @@ public class NaginiFileUtils {
         return copy(new File(src), new File(dest));
     }
 
+    /**
+     * Deletes a file or folder with all its content. Symlinks are deleted
+     * themselves, never what they point at.
+     * 
+     * @param target
+     * @return true if the target is gone
+     */
     public static boolean delete(File target) {
-        if(target == null || !target.exists()) {
+        if(target == null || !Files.exists(target.toPath(), LinkOption.NOFOLLOW_LINKS)) {
             return true;
         }
-        if(target.isDirectory()) {
+        if(Files.isDirectory(target.toPath(), LinkOption.NOFOLLOW_LINKS)) {
             for(File file: target.listFiles()) {
                 delete(file);
             }
         }
         target.delete();
-        return !target.exists();
+        return !Files.exists(target.toPath(), LinkOption.NOFOLLOW_LINKS);
     }
 
     public static boolean delete(String target) {
@@ -4,21 +4,94 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.zip.CRC32;
-import java.util.zip.CheckedInputStream;
 import java.util.zip.CheckedOutputStream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 public class NaginiZipUtils {
 
     private static final int BYTE_ARRAY_SIZE = 65536;
 
+    // extraction waits on the disk more than on the cpu
+    private static final int UNZIP_THREADS_PER_CORE = 4;
+
+    // shared by all zips of the process, created on first use
+    private static ForkJoinPool zipPool;
+    private static ExecutorService unzipExecutor;
+
+    /**
+     * @return pool to deflate on, or null to zip sequentially on a single
+     *         core machine
+     */
+    private static synchronized ForkJoinPool getZipPool() {
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        if(parallelism < 2) {
+            return null;
+        }
+        if(zipPool == null) {
+            zipPool = new ForkJoinPool(parallelism);
+        }
+        return zipPool;
+    }
+
+    private static synchronized ExecutorService getUnzipExecutor() {
+        if(unzipExecutor == null) {
+            int threads = Runtime.getRuntime().availableProcessors() * UNZIP_THREADS_PER_CORE;
+            unzipExecutor = Executors.newFixedThreadPool(threads,
+                                                         new ThreadFactoryBuilder().setNameFormat("nagini-unzip-%d")
+                                                                                   .setDaemon(true)
+                                                                                   .build());
+        }
+        return unzipExecutor;
+    }
+
+    /**
+     * Zips a file or folder into a stream, deflating in parallel where more
+     * than one core is available. The stream is flushed but left open.
+     */
+    private static void zip(File srcFile,
+                            OutputStream out,
+                            CompressionPolicy policy,
+                            PrintStream stream) throws IOException {
+        ForkJoinPool pool = getZipPool();
+        if(pool != null) {
+            ParallelZipWriter writer = new ParallelZipWriter(out, pool, policy);
+            writer.write(srcFile, stream);
+            writer.finish();
+        } else {
+            zipSequential(srcFile, out, policy, stream);
+        }
+    }
+
+    /**
+     * Zips a file or folder into a stream on the calling thread. The stream
+     * is flushed but left open.
+     */
+    static void zipSequential(File srcFile,
+                              OutputStream out,
+                              CompressionPolicy policy,
+                              PrintStream stream) throws IOException {
+        ZipOutputStream zos = new ZipOutputStream(out);
+        zos.setLevel(policy.getLevel());
+        innerZip(zos, srcFile, null, policy, stream);
+        zos.finish();
+        zos.flush();
+    }
+
     private static void innerZip(ZipOutputStream zos,
                                  File srcFile,
                                  String parentPath,
+                                 CompressionPolicy policy,
                                  PrintStream stream) throws IOException {
         if(srcFile == null || !srcFile.exists()) {
             return;
@@ -36,7 +109,7 @@ public class NaginiZipUtils {
             // list all files and recurse into sub-folders
             for(File file: srcFile.listFiles()) {
                 fileCount++;
-                innerZip(zos, file, currentPath, stream);
+                innerZip(zos, file, currentPath, policy, stream);
             }
             // create empty folder entry if this is an empty folder
             if(fileCount == 0) {
@@ -48,7 +121,16 @@ public class NaginiZipUtils {
             FileInputStream fis = new FileInputStream(srcFile);
             byte[] buffer = new byte[BYTE_ARRAY_SIZE];
             int read;
-            zos.putNextEntry(new ZipEntry(currentPath));
+            ZipEntry entry = new ZipEntry(currentPath);
+            if(policy.isStored(srcFile)) {
+                // stored entries need their crc and size up front
+                long length = srcFile.length();
+                entry.setMethod(ZipEntry.STORED);
+                entry.setSize(length);
+                entry.setCompressedSize(length);
+                entry.setCrc(crc32(srcFile, length));
+            }
+            zos.putNextEntry(entry);
             while((read = fis.read(buffer)) > 0) {
                 zos.write(buffer, 0, read);
             }
@@ -57,6 +139,36 @@ public class NaginiZipUtils {
         }
     }
 
+    /**
+     * @param file
+     * @return CRC32 of the file content
+     * @throws IOException
+     */
+    public static long crc32(File file) throws IOException {
+        return crc32(file, file.length());
+    }
+
+    /**
+     * @return CRC32 of the first length bytes of a file
+     */
+    static long crc32(File file, long length) throws IOException {
+        CRC32 crc = new CRC32();
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[BYTE_ARRAY_SIZE];
+            long done = 0;
+            int read;
+            while(done < length && (read = fis.read(buffer)) != -1) {
+                read = (int) Math.min(read, length - done);
+                crc.update(buffer, 0, read);
+                done += read;
+            }
+        } finally {
+            fis.close();
+        }
+        return crc.getValue();
+    }
+
     private static void innerUnzip(ZipInputStream zis, String destPath, PrintStream stream)
             throws IOException {
         if(destPath == null) {
@@ -66,6 +178,9 @@ public class NaginiZipUtils {
         int read;
         byte data[] = new byte[BYTE_ARRAY_SIZE];
         while((entry = zis.getNextEntry()) != null) {
+            if(!ParallelZipExtractor.isSafeName(entry.getName())) {
+                throw new IOException("invalid zip entry name " + entry.getName());
+            }
             String currentPath = destPath + File.separator + entry.getName();
             if(stream != null) {
                 stream.println(currentPath);
@@ -78,6 +193,11 @@ public class NaginiZipUtils {
             if(entry.isDirectory()) {
                 currentFile.mkdirs();
             } else {
+                // replace rather than overwrite, the file may be a hardlink
+                // shared with other trees
+                if(currentFile.exists()) {
+                    NaginiFileUtils.delete(currentFile);
+                }
                 FileOutputStream fos = new FileOutputStream(currentFile);
                 while((read = zis.read(data)) != -1) {
                     fos.write(data, 0, read);
@@ -89,29 +209,113 @@ public class NaginiZipUtils {
         }
     }
 
-    public static void zip(String src, String dest, PrintStream stream) throws IOException {
+    /**
+     * Zips a file or folder to a zip file.
+     * 
+     * @param src
+     * @param dest
+     * @param stream
+     * @return CRC32 of the zip file, for checking it after transfer
+     * @throws IOException
+     */
+    public static long zip(String src, String dest, PrintStream stream) throws IOException {
+        return zip(src, dest, CompressionPolicy.getDefault(), stream);
+    }
+
+    /**
+     * Zips a file or folder to a zip file.
+     * 
+     * @param src
+     * @param dest
+     * @param policy decides which files are stored and the deflate level
+     * @param stream
+     * @return CRC32 of the zip file, for checking it after transfer
+     * @throws IOException
+     */
+    public static long zip(String src, String dest, CompressionPolicy policy, PrintStream stream)
+            throws IOException {
         src = src.replace("~", System.getProperty("user.home"));
         dest = dest.replace("~", System.getProperty("user.home"));
         File srcFile = new File(src);
         if(!srcFile.exists()) {
             throw new RuntimeException(src + " does not exist.");
         }
-        ZipOutputStream zos = new ZipOutputStream(new CheckedOutputStream(new FileOutputStream(dest),
-                                                                          new CRC32()));
-        innerZip(zos, srcFile, null, stream);
-        zos.flush();
-        zos.close();
+        CheckedOutputStream cos = new CheckedOutputStream(new FileOutputStream(dest), new CRC32());
+        try {
+            zip(srcFile, cos, policy, stream);
+        } finally {
+            cos.close();
+        }
+        return cos.getChecksum().getValue();
     }
 
+    /**
+     * Zips a file or folder straight into a stream, e.g. a socket. The stream
+     * is flushed but left open.
+     * 
+     * @param src
+     * @param out
+     * @param stream
+     * @throws IOException
+     */
+    public static void zip(String src, OutputStream out, PrintStream stream) throws IOException {
+        zip(src, out, CompressionPolicy.getDefault(), stream);
+    }
+
+    /**
+     * Zips a file or folder straight into a stream, e.g. a socket. The stream
+     * is flushed but left open.
+     * 
+     * @param src
+     * @param out
+     * @param policy decides which files are stored and the deflate level
+     * @param stream
+     * @throws IOException
+     */
+    public static void zip(String src,
+                           OutputStream out,
+                           CompressionPolicy policy,
+                           PrintStream stream) throws IOException {
+        src = src.replace("~", System.getProperty("user.home"));
+        File srcFile = new File(src);
+        if(!srcFile.exists()) {
+            throw new RuntimeException(src + " does not exist.");
+        }
+        zip(srcFile, out, policy, stream);
+    }
+
+    /**
+     * Unzips a zip file with its entries written in parallel, staged next to
+     * the zip file. Every file of the zip appears in the destination folder
+     * fully extracted, replacing the file of the same name; other files of
+     * the destination folder are kept.
+     * 
+     * @param src
+     * @param dest
+     * @param stream
+     * @throws IOException
+     */
     public static void unzip(String src, String dest, PrintStream stream) throws IOException {
         src = src.replace("~", System.getProperty("user.home"));
         dest = dest.replace("~", System.getProperty("user.home"));
         if(!new File(src).exists()) {
             throw new RuntimeException(src + " does not exist.");
         }
-        ZipInputStream zis = new ZipInputStream(new CheckedInputStream(new FileInputStream(src),
-                                                                       new CRC32()));
+        new ParallelZipExtractor(getUnzipExecutor()).extract(new File(src), new File(dest), stream);
+    }
+
+    /**
+     * Unzips straight from a stream, e.g. a socket. Reading stops after the
+     * last entry and the stream is left open.
+     * 
+     * @param in
+     * @param dest
+     * @param stream
+     * @throws IOException
+     */
+    public static void unzip(InputStream in, String dest, PrintStream stream) throws IOException {
+        dest = dest.replace("~", System.getProperty("user.home"));
+        ZipInputStream zis = new ZipInputStream(in);
         innerUnzip(zis, dest, stream);
-        zis.close();
     }
 }
@@ -0,0 +1,312 @@
+package nagini.utils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+/**
+ * Extracts a zip file with its entries written concurrently. The central
+ * directory is read up front, so that all folders are created once before
+ * any file is written, and large files are sized to their final length
+ * before their content is written. Everything is extracted into a staging
+ * folder next to the zip file, which callers keep in a temp folder of their
+ * own, and then merged into the destination: folders that do not exist yet
+ * are renamed into place as a whole, files replace their targets in one
+ * rename each, so that no file ever appears half extracted. Files of the
+ * destination that are not in the zip are kept.
+ */
+public class ParallelZipExtractor {
+
+    private static final int BYTE_ARRAY_SIZE = 65536;
+    private static final long PREALLOCATE_THRESHOLD = 1 << 20;
+    private static final String STAGING_PREFIX = ".nagini-unzip-";
+
+    private class EntryTask implements Callable<Void> {
+
+        private final ZipFile zipFile;
+        private final ZipEntry entry;
+        private final File file;
+
+        private EntryTask(ZipFile zipFile, ZipEntry entry, File file) {
+            this.zipFile = zipFile;
+            this.entry = entry;
+            this.file = file;
+        }
+
+        @Override
+        public Void call() throws IOException {
+            InputStream in = zipFile.getInputStream(entry);
+            try {
+                if(entry.getSize() >= PREALLOCATE_THRESHOLD) {
+                    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                    try {
+                        raf.setLength(entry.getSize());
+                        long done = copy(in, raf);
+                        raf.setLength(done);
+                    } finally {
+                        raf.close();
+                    }
+                } else {
+                    OutputStream out = new FileOutputStream(file);
+                    try {
+                        copy(in, out);
+                    } finally {
+                        out.close();
+                    }
+                }
+            } finally {
+                in.close();
+            }
+            return null;
+        }
+    }
+
+    private final ExecutorService executor;
+
+    /**
+     * @param executor to write the entries on
+     */
+    public ParallelZipExtractor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Extracts a zip file into a folder.
+     *
+     * @param zip
+     * @param destFolder
+     * @param stream prints entry paths if not null
+     * @throws IOException
+     */
+    public void extract(File zip, File destFolder, PrintStream stream) throws IOException {
+        destFolder.mkdirs();
+        File stagingFolder = new File(zip.getAbsoluteFile().getParentFile(),
+                                      STAGING_PREFIX + System.nanoTime());
+        if(!stagingFolder.mkdir()) {
+            throw new IOException("failed to create staging folder " + stagingFolder);
+        }
+        try {
+            Set<String> topNames = extractToStaging(zip, stagingFolder, destFolder, stream);
+            for(String topName: topNames) {
+                merge(new File(stagingFolder, topName), new File(destFolder, topName));
+            }
+        } finally {
+            NaginiFileUtils.delete(stagingFolder);
+        }
+    }
+
+    /**
+     * Deletes the staging folders left in a folder by extractions that were
+     * cut short, e.g. by a crash.
+     *
+     * @param folder
+     */
+    public static void deleteStaging(File folder) {
+        File[] files = folder.listFiles();
+        if(files == null) {
+            return;
+        }
+        for(File file: files) {
+            if(file.getName().startsWith(STAGING_PREFIX)) {
+                NaginiFileUtils.delete(file);
+            }
+        }
+    }
+
+    /**
+     * @return names of the top level files and folders of the zip
+     */
+    private Set<String> extractToStaging(File zip,
+                                         File stagingFolder,
+                                         File destFolder,
+                                         PrintStream stream) throws IOException {
+        ZipFile zipFile = new ZipFile(zip);
+        try {
+            Set<String> topNames = Sets.newLinkedHashSet();
+            Set<File> folders = Sets.newTreeSet();
+            List<ZipEntry> fileEntries = Lists.newArrayList();
+            for(Enumeration<? extends ZipEntry> e = zipFile.entries(); e.hasMoreElements();) {
+                ZipEntry entry = e.nextElement();
+                String name = entry.getName();
+                if(!isSafeName(name)) {
+                    throw new IOException("invalid zip entry name " + name);
+                }
+                if(stream != null) {
+                    stream.println(destFolder.getPath() + File.separator + name);
+                }
+                topNames.add(name.split("[/\\\\]", 2)[0]);
+                File file = new File(stagingFolder, name);
+                if(entry.isDirectory()) {
+                    folders.add(file);
+                } else {
+                    folders.add(file.getParentFile());
+                    fileEntries.add(entry);
+                }
+            }
+
+            // create all folders once, parents before children
+            for(File folder: folders) {
+                if(!folder.isDirectory() && !folder.mkdirs()) {
+                    throw new IOException("failed to create folder " + folder);
+                }
+            }
+
+            // start the largest files first, so that they do not finish last
+            Collections.sort(fileEntries, new Comparator<ZipEntry>() {
+
+                @Override
+                public int compare(ZipEntry e1, ZipEntry e2) {
+                    return Long.compare(e2.getSize(), e1.getSize());
+                }
+            });
+            List<Future<Void>> futures = Lists.newArrayList();
+            for(ZipEntry entry: fileEntries) {
+                File file = new File(stagingFolder, entry.getName());
+                futures.add(executor.submit(new EntryTask(zipFile, entry, file)));
+            }
+            waitFor(futures);
+            return topNames;
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    /**
+     * Merges a staged file or folder into place. A folder that is not there
+     * yet is moved in one rename, otherwise its content is merged one by one;
+     * a file replaces the target in one rename.
+     */
+    private static void merge(File staged, File target) throws IOException {
+        boolean targetIsFolder = Files.isDirectory(target.toPath(), LinkOption.NOFOLLOW_LINKS);
+        if(staged.isDirectory()) {
+            if(!targetIsFolder) {
+                NaginiFileUtils.delete(target);
+                if(move(staged, target)) {
+                    return;
+                }
+                if(!target.mkdir()) {
+                    throw new IOException("failed to create folder " + target);
+                }
+            }
+            for(File child: staged.listFiles()) {
+                merge(child, new File(target, child.getName()));
+            }
+            return;
+        }
+        if(targetIsFolder) {
+            NaginiFileUtils.delete(target);
+        }
+        if(move(staged, target)) {
+            return;
+        }
+        // the staging folder is on another file system, copy next to the
+        // target first so that it is still replaced in one rename
+        File temp = new File(target.getParentFile(), "." + target.getName() + STAGING_PREFIX
+                                                     + System.nanoTime());
+        try {
+            Files.copy(staged.toPath(), temp.toPath());
+            Files.move(temp.toPath(),
+                       target.toPath(),
+                       StandardCopyOption.ATOMIC_MOVE,
+                       StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            NaginiFileUtils.delete(temp);
+        }
+    }
+
+    /**
+     * @return false if the source and destination are not on the same file
+     *         system
+     */
+    private static boolean move(File src, File dest) throws IOException {
+        try {
+            Files.move(src.toPath(),
+                       dest.toPath(),
+                       StandardCopyOption.ATOMIC_MOVE,
+                       StandardCopyOption.REPLACE_EXISTING);
+            return true;
+        } catch(AtomicMoveNotSupportedException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @param name of a zip entry
+     * @return true if the entry stays inside the folder it is extracted to
+     */
+    static boolean isSafeName(String name) {
+        if(name.isEmpty() || name.startsWith("/") || name.startsWith("\\")) {
+            return false;
+        }
+        for(String part: name.split("[/\\\\]")) {
+            if(part.equals("..")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void waitFor(List<Future<Void>> futures) throws IOException {
+        IOException error = null;
+        for(Future<Void> future: futures) {
+            try {
+                future.get();
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                error = new IOException("interrupted while extracting", e);
+            } catch(ExecutionException e) {
+                if(error == null) {
+                    error = e.getCause() instanceof IOException ? (IOException) e.getCause()
+                                                                : new IOException(e.getCause());
+                }
+            }
+        }
+        if(error != null) {
+            throw error;
+        }
+    }
+
+    private static long copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[BYTE_ARRAY_SIZE];
+        long done = 0;
+        int read;
+        while((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+            done += read;
+        }
+        return done;
+    }
+
+    private static long copy(InputStream in, RandomAccessFile raf) throws IOException {
+        byte[] buffer = new byte[BYTE_ARRAY_SIZE];
+        long done = 0;
+        int read;
+        while((read = in.read(buffer)) != -1) {
+            raf.write(buffer, 0, read);
+            done += read;
+        }
+        return done;
+    }
+}
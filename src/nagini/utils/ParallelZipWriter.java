@@ -0,0 +1,539 @@
+package nagini.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Calendar;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.CountingOutputStream;
+
+/**
+ * Writes a zip of a file or folder with the deflating spread over a fork-join
+ * pool. Files are cut into blocks that are deflated independently, each
+ * primed with the end of the previous block as dictionary, and flushed to a
+ * byte boundary, so that the blocks of a file concatenate into one deflate
+ * stream (as pigz does). Blocks are written in order as they complete, with
+ * a bounded number in flight. Deflated entries carry a data descriptor, as
+ * written by ZipOutputStream to streams, so the result reads with
+ * ZipInputStream and ZipFile alike. Files that the compression policy
+ * stores are copied as they are by the writer, with their CRC32 taken
+ * beforehand, as stored entries need it in the local header.
+ */
+public class ParallelZipWriter {
+
+    private static final int BLOCK_SIZE = 1 << 20;
+    private static final int DICTIONARY_SIZE = 32768;
+    private static final int BLOCKS_IN_FLIGHT_PER_THREAD = 4;
+
+    private static final int LOCSIG = 0x04034b50;
+    private static final int EXTSIG = 0x08074b50;
+    private static final int CENSIG = 0x02014b50;
+    private static final int ENDSIG = 0x06054b50;
+    private static final int ZIP64_ENDSIG = 0x06064b50;
+    private static final int ZIP64_LOCSIG = 0x07064b50;
+    private static final long ZIP64_MAGICVAL = 0xFFFFFFFFL;
+    private static final int ZIP64_MAGICCOUNT = 0xFFFF;
+    private static final int ZIP64_EXTID = 0x0001;
+    private static final int VERSION_STORED = 10;
+    private static final int VERSION_DEFLATED = 20;
+    private static final int VERSION_ZIP64 = 45;
+    private static final int FLAG_DATA_DESCRIPTOR = 0x0008;
+    private static final int FLAG_UTF8 = 0x0800;
+    private static final int METHOD_STORED = 0;
+    private static final int METHOD_DEFLATED = 8;
+    private static final int BYTE_ARRAY_SIZE = 65536;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static class Entry {
+
+        private final String name;
+        // null for an empty folder
+        private final File file;
+        private final long length;
+        private final int time;
+        private final boolean stored;
+        private long crc;
+        private long size;
+        private long compressedSize;
+        private long offset;
+
+        private Entry(String name, File file, boolean stored) {
+            this.name = name;
+            this.file = file;
+            this.length = file == null ? 0 : file.length();
+            this.time = toDosTime(file == null ? System.currentTimeMillis() : file.lastModified());
+            this.stored = stored;
+        }
+
+        private int getMethod() {
+            return stored ? METHOD_STORED : METHOD_DEFLATED;
+        }
+
+        private int getFlags() {
+            return stored ? FLAG_UTF8 : FLAG_DATA_DESCRIPTOR | FLAG_UTF8;
+        }
+
+        private int getBlockCount() {
+            return (int) Math.max(1, (length + BLOCK_SIZE - 1) / BLOCK_SIZE);
+        }
+    }
+
+    private static class Block {
+
+        private final byte[] data;
+        private final int length;
+        private final long crc;
+        private final int size;
+
+        private Block(byte[] data, int length, long crc, int size) {
+            this.data = data;
+            this.length = length;
+            this.crc = crc;
+            this.size = size;
+        }
+    }
+
+    private class BlockTask implements Callable<Block> {
+
+        private final Entry entry;
+        private final int index;
+
+        private BlockTask(Entry entry, int index) {
+            this.entry = entry;
+            this.index = index;
+        }
+
+        @Override
+        public Block call() throws IOException {
+            long position = (long) index * BLOCK_SIZE;
+            int size = (int) Math.min(BLOCK_SIZE, entry.length - position);
+            int dictionarySize = (int) Math.min(DICTIONARY_SIZE, position);
+            byte[] input = new byte[dictionarySize + size];
+            if(entry.file != null && input.length > 0) {
+                RandomAccessFile raf = new RandomAccessFile(entry.file, "r");
+                try {
+                    raf.seek(position - dictionarySize);
+                    raf.readFully(input);
+                } finally {
+                    raf.close();
+                }
+            }
+            CRC32 crc = new CRC32();
+            crc.update(input, dictionarySize, size);
+
+            Deflater deflater = new Deflater(policy.getLevel(), true);
+            try {
+                if(dictionarySize > 0) {
+                    deflater.setDictionary(input, 0, dictionarySize);
+                }
+                deflater.setInput(input, dictionarySize, size);
+                boolean last = index == entry.getBlockCount() - 1;
+                byte[] output = new byte[size + size / 8 + 64];
+                int length = 0;
+                if(last) {
+                    deflater.finish();
+                }
+                while(true) {
+                    if(length == output.length) {
+                        byte[] grown = new byte[output.length * 2];
+                        System.arraycopy(output, 0, grown, 0, length);
+                        output = grown;
+                    }
+                    int space = output.length - length;
+                    int deflated;
+                    if(last) {
+                        deflated = deflater.deflate(output, length, space);
+                        length += deflated;
+                        if(deflater.finished()) {
+                            break;
+                        }
+                    } else {
+                        // flush to a byte boundary without ending the stream,
+                        // so that the next block can follow
+                        deflated = deflater.deflate(output, length, space, Deflater.SYNC_FLUSH);
+                        length += deflated;
+                        if(deflated < space) {
+                            break;
+                        }
+                    }
+                }
+                return new Block(output, length, crc.getValue(), size);
+            } finally {
+                deflater.end();
+            }
+        }
+    }
+
+    private final ForkJoinPool pool;
+    private final CompressionPolicy policy;
+    private final CountingOutputStream out;
+    private final DataOutputStream dos;
+    private final List<Entry> entries;
+
+    /**
+     * @param out stream to write the zip to, left open
+     * @param pool
+     * @param policy decides which files are stored and the deflate level
+     */
+    public ParallelZipWriter(OutputStream out, ForkJoinPool pool, CompressionPolicy policy) {
+        this.pool = pool;
+        this.policy = policy;
+        this.out = new CountingOutputStream(new BufferedOutputStream(out, BLOCK_SIZE));
+        this.dos = new DataOutputStream(this.out);
+        this.entries = Lists.newArrayList();
+    }
+
+    /**
+     * Writes the zip of a file or folder, with the same entries as a
+     * sequential zip by NaginiZipUtils.
+     *
+     * @param srcFile
+     * @param stream prints entry names if not null
+     * @throws IOException
+     */
+    public void write(File srcFile, PrintStream stream) throws IOException {
+        List<Entry> pendingEntries = Lists.newArrayList();
+        collect(srcFile, null, stream, pendingEntries);
+
+        // deflate ahead of the writer, but not too far ahead
+        int maxInFlight = pool.getParallelism() * BLOCKS_IN_FLIGHT_PER_THREAD;
+        Deque<ForkJoinTask<Block>> inFlight = new ArrayDeque<ForkJoinTask<Block>>();
+        Iterator<BlockTask> tasks = getTasks(pendingEntries).iterator();
+        try {
+            for(Entry entry: pendingEntries) {
+                if(entry.stored) {
+                    // deflating goes on in the pool meanwhile
+                    writeStoredEntry(entry);
+                    entries.add(entry);
+                    continue;
+                }
+                writeLocalHeader(entry);
+                for(int i = 0; i < entry.getBlockCount(); i++) {
+                    while(inFlight.size() < maxInFlight && tasks.hasNext()) {
+                        inFlight.add(pool.submit(tasks.next()));
+                    }
+                    Block block = join(inFlight.removeFirst());
+                    dos.write(block.data, 0, block.length);
+                    entry.crc = crc32Combine(entry.crc, block.crc, block.size);
+                    entry.size += block.size;
+                    entry.compressedSize += block.length;
+                }
+                writeDataDescriptor(entry);
+                entries.add(entry);
+            }
+        } finally {
+            for(ForkJoinTask<Block> task: inFlight) {
+                task.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Writes the central directory. The underlying stream is flushed but left
+     * open.
+     *
+     * @throws IOException
+     */
+    public void finish() throws IOException {
+        long centralOffset = out.getCount();
+        for(Entry entry: entries) {
+            writeCentralHeader(entry);
+        }
+        long centralLength = out.getCount() - centralOffset;
+        writeEnd(centralOffset, centralLength);
+        dos.flush();
+    }
+
+    private void collect(File file, String parentPath, PrintStream stream, List<Entry> result)
+            throws IOException {
+        if(file == null || !file.exists()) {
+            return;
+        }
+        String currentPath = file.getName();
+        if(parentPath != null && parentPath.length() != 0) {
+            currentPath = parentPath + File.separator + currentPath;
+        }
+        if(stream != null) {
+            stream.println(currentPath);
+        }
+        if(file.isDirectory()) {
+            File[] children = file.listFiles();
+            for(File child: children) {
+                collect(child, currentPath, stream, result);
+            }
+            if(children.length == 0) {
+                result.add(new Entry(currentPath + File.separator, null, false));
+            }
+        } else {
+            result.add(new Entry(currentPath, file, policy.isStored(file)));
+        }
+    }
+
+    private List<BlockTask> getTasks(List<Entry> pendingEntries) {
+        List<BlockTask> tasks = Lists.newArrayList();
+        for(Entry entry: pendingEntries) {
+            if(entry.stored) {
+                continue;
+            }
+            for(int i = 0; i < entry.getBlockCount(); i++) {
+                tasks.add(new BlockTask(entry, i));
+            }
+        }
+        return tasks;
+    }
+
+    private static Block join(ForkJoinTask<Block> task) throws IOException {
+        try {
+            return task.join();
+        } catch(RuntimeException e) {
+            if(e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private void writeStoredEntry(Entry entry) throws IOException {
+        entry.crc = NaginiZipUtils.crc32(entry.file, entry.length);
+        entry.size = entry.length;
+        entry.compressedSize = entry.length;
+        boolean zip64Size = entry.size >= ZIP64_MAGICVAL;
+        byte[] name = entry.name.getBytes(UTF8);
+        entry.offset = out.getCount();
+        writeInt(LOCSIG);
+        writeShort(zip64Size ? VERSION_ZIP64 : VERSION_STORED);
+        writeShort(entry.getFlags());
+        writeShort(METHOD_STORED);
+        writeInt(entry.time);
+        writeInt(entry.crc);
+        writeInt(zip64Size ? ZIP64_MAGICVAL : entry.compressedSize);
+        writeInt(zip64Size ? ZIP64_MAGICVAL : entry.size);
+        writeShort(name.length);
+        writeShort(zip64Size ? 20 : 0);
+        dos.write(name);
+        if(zip64Size) {
+            writeShort(ZIP64_EXTID);
+            writeShort(16);
+            writeLong(entry.size);
+            writeLong(entry.compressedSize);
+        }
+        FileInputStream fis = new FileInputStream(entry.file);
+        try {
+            byte[] buffer = new byte[BYTE_ARRAY_SIZE];
+            long done = 0;
+            int read;
+            while(done < entry.length && (read = fis.read(buffer)) != -1) {
+                read = (int) Math.min(read, entry.length - done);
+                dos.write(buffer, 0, read);
+                done += read;
+            }
+            if(done != entry.length) {
+                throw new IOException(entry.file + " shrank while being zipped");
+            }
+        } finally {
+            fis.close();
+        }
+    }
+
+    private void writeLocalHeader(Entry entry) throws IOException {
+        byte[] name = entry.name.getBytes(UTF8);
+        entry.offset = out.getCount();
+        writeInt(LOCSIG);
+        writeShort(VERSION_DEFLATED);
+        writeShort(entry.getFlags());
+        writeShort(entry.getMethod());
+        writeInt(entry.time);
+        // crc and sizes follow in the data descriptor
+        writeInt(0);
+        writeInt(0);
+        writeInt(0);
+        writeShort(name.length);
+        writeShort(0);
+        dos.write(name);
+    }
+
+    private void writeDataDescriptor(Entry entry) throws IOException {
+        writeInt(EXTSIG);
+        writeInt(entry.crc);
+        if(entry.compressedSize >= ZIP64_MAGICVAL || entry.size >= ZIP64_MAGICVAL) {
+            writeLong(entry.compressedSize);
+            writeLong(entry.size);
+        } else {
+            writeInt(entry.compressedSize);
+            writeInt(entry.size);
+        }
+    }
+
+    private void writeCentralHeader(Entry entry) throws IOException {
+        byte[] name = entry.name.getBytes(UTF8);
+        boolean zip64Size = entry.compressedSize >= ZIP64_MAGICVAL
+                            || entry.size >= ZIP64_MAGICVAL;
+        boolean zip64Offset = entry.offset >= ZIP64_MAGICVAL;
+        int extraLength = (zip64Size ? 16 : 0) + (zip64Offset ? 8 : 0);
+        int version = extraLength > 0 ? VERSION_ZIP64
+                                      : entry.stored ? VERSION_STORED : VERSION_DEFLATED;
+        writeInt(CENSIG);
+        writeShort(version);
+        writeShort(version);
+        writeShort(entry.getFlags());
+        writeShort(entry.getMethod());
+        writeInt(entry.time);
+        writeInt(entry.crc);
+        writeInt(zip64Size ? ZIP64_MAGICVAL : entry.compressedSize);
+        writeInt(zip64Size ? ZIP64_MAGICVAL : entry.size);
+        writeShort(name.length);
+        writeShort(extraLength > 0 ? extraLength + 4 : 0);
+        // comment, disk number, internal and external attributes
+        writeShort(0);
+        writeShort(0);
+        writeShort(0);
+        writeInt(0);
+        writeInt(zip64Offset ? ZIP64_MAGICVAL : entry.offset);
+        dos.write(name);
+        if(extraLength > 0) {
+            writeShort(ZIP64_EXTID);
+            writeShort(extraLength);
+            if(zip64Size) {
+                writeLong(entry.size);
+                writeLong(entry.compressedSize);
+            }
+            if(zip64Offset) {
+                writeLong(entry.offset);
+            }
+        }
+    }
+
+    private void writeEnd(long centralOffset, long centralLength) throws IOException {
+        int count = entries.size();
+        if(count >= ZIP64_MAGICCOUNT || centralOffset >= ZIP64_MAGICVAL
+           || centralLength >= ZIP64_MAGICVAL) {
+            long zip64EndOffset = out.getCount();
+            writeInt(ZIP64_ENDSIG);
+            writeLong(44);
+            writeShort(VERSION_ZIP64);
+            writeShort(VERSION_ZIP64);
+            writeInt(0);
+            writeInt(0);
+            writeLong(count);
+            writeLong(count);
+            writeLong(centralLength);
+            writeLong(centralOffset);
+            writeInt(ZIP64_LOCSIG);
+            writeInt(0);
+            writeLong(zip64EndOffset);
+            writeInt(1);
+        }
+        writeInt(ENDSIG);
+        writeShort(0);
+        writeShort(0);
+        writeShort(Math.min(count, ZIP64_MAGICCOUNT));
+        writeShort(Math.min(count, ZIP64_MAGICCOUNT));
+        writeInt(Math.min(centralLength, ZIP64_MAGICVAL));
+        writeInt(Math.min(centralOffset, ZIP64_MAGICVAL));
+        writeShort(0);
+    }
+
+    private void writeShort(int value) throws IOException {
+        dos.write(value & 0xFF);
+        dos.write((value >>> 8) & 0xFF);
+    }
+
+    private void writeInt(long value) throws IOException {
+        writeShort((int) (value & 0xFFFF));
+        writeShort((int) ((value >>> 16) & 0xFFFF));
+    }
+
+    private void writeLong(long value) throws IOException {
+        writeInt(value & ZIP64_MAGICVAL);
+        writeInt(value >>> 32);
+    }
+
+    private static int toDosTime(long time) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        int year = calendar.get(Calendar.YEAR);
+        if(year < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return (year - 1980) << 25 | (calendar.get(Calendar.MONTH) + 1) << 21
+               | calendar.get(Calendar.DAY_OF_MONTH) << 16
+               | calendar.get(Calendar.HOUR_OF_DAY) << 11 | calendar.get(Calendar.MINUTE) << 5
+               | calendar.get(Calendar.SECOND) >> 1;
+    }
+
+    /**
+     * Combines the CRC32 of two adjacent pieces of data into the CRC32 of
+     * both, as zlib's crc32_combine does.
+     *
+     * @param crc1 CRC32 of the first piece
+     * @param crc2 CRC32 of the second piece
+     * @param length2 length of the second piece
+     * @return
+     */
+    static long crc32Combine(long crc1, long crc2, long length2) {
+        if(length2 <= 0) {
+            return crc1;
+        }
+        long[] even = new long[32];
+        long[] odd = new long[32];
+        // operator for one zero bit in odd
+        odd[0] = 0xEDB88320L;
+        long row = 1;
+        for(int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+        // operators for two and four zero bits
+        gf2MatrixSquare(even, odd);
+        gf2MatrixSquare(odd, even);
+        // apply length2 zeros to crc1, one bit of length2 at a time
+        do {
+            gf2MatrixSquare(even, odd);
+            if((length2 & 1) != 0) {
+                crc1 = gf2MatrixTimes(even, crc1);
+            }
+            length2 >>= 1;
+            if(length2 == 0) {
+                break;
+            }
+            gf2MatrixSquare(odd, even);
+            if((length2 & 1) != 0) {
+                crc1 = gf2MatrixTimes(odd, crc1);
+            }
+            length2 >>= 1;
+        } while(length2 != 0);
+        return crc1 ^ crc2;
+    }
+
+    private static long gf2MatrixTimes(long[] matrix, long vector) {
+        long sum = 0;
+        for(int i = 0; vector != 0; i++, vector >>>= 1) {
+            if((vector & 1) != 0) {
+                sum ^= matrix[i];
+            }
+        }
+        return sum;
+    }
+
+    private static void gf2MatrixSquare(long[] square, long[] matrix) {
+        for(int n = 0; n < 32; n++) {
+            square[n] = gf2MatrixTimes(matrix, matrix[n]);
+        }
+    }
+}
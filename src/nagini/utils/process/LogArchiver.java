@@ -0,0 +1,175 @@
+package nagini.utils.process;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.GZIPOutputStream;
+
+import nagini.utils.NaginiFileUtils;
+
+import com.google.common.collect.Queues;
+
+/**
+ * Compresses rotated log segments of all nodes, and deletes the oldest
+ * segments of a node once they take more room than it may use. Runs on a
+ * single thread of low priority, so that it does not compete with the
+ * applications.
+ */
+public class LogArchiver extends Thread {
+
+    private static final int BUFFER_SIZE = 65536;
+    // output compressed into each gzip member
+    private static final int MEMBER_SIZE = 256 * 1024;
+
+    private final BlockingQueue<Segment> segments;
+    private volatile Boolean exitFlag;
+
+    public LogArchiver(String name) {
+        this.setName(name);
+        this.setDaemon(true);
+        this.setPriority(Thread.MIN_PRIORITY);
+        this.segments = Queues.newLinkedBlockingQueue();
+        this.exitFlag = false;
+    }
+
+    /**
+     * Queues a rotated segment of a log file.
+     *
+     * @param logFile
+     * @param segment
+     */
+    void submit(LogFile logFile, File segment) {
+        segments.add(new Segment(logFile, segment));
+    }
+
+    @Override
+    public void run() {
+        while(!exitFlag) {
+            Segment next;
+            try {
+                next = segments.take();
+            } catch(InterruptedException e) {
+                continue;
+            }
+            try {
+                if(next.logFile.isCompressed() && next.file.exists()) {
+                    compress(next.file);
+                }
+                next.logFile.enforceRetention();
+            } catch(Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Replaces a segment by a gzipped copy of it, made of independent gzip
+     * members of MEMBER_SIZE bytes of output each, so that reading can start
+     * at any member. The index of the segment is carried over with the
+     * position of the member of each entry.
+     *
+     * @param segment
+     * @throws IOException
+     */
+    private void compress(File segment) throws IOException {
+        File compressed = new File(segment.getPath() + LogFile.COMPRESSED_SUFFIX);
+        File temp = new File(compressed.getPath() + ".tmp");
+        File index = LogIndex.getIndexFile(segment);
+        File compressedIndex = LogIndex.getIndexFile(compressed);
+        File tempIndex = new File(compressedIndex.getPath() + ".tmp");
+        List<LogIndex.Entry> entries = LogIndex.read(index);
+        int next = 0;
+        InputStream is = new FileInputStream(segment);
+        try {
+            FileOutputStream fos = new FileOutputStream(temp);
+            OutputStream indexFile = new BufferedOutputStream(new FileOutputStream(tempIndex));
+            DataOutputStream indexStream = new DataOutputStream(indexFile);
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                long offset = 0;
+                int read = 0;
+                while(read >= 0) {
+                    long position = fos.getChannel().position();
+                    long memberOffset = offset;
+                    GZIPOutputStream member = new GZIPOutputStream(new UnclosedOutputStream(fos),
+                                                                   BUFFER_SIZE);
+                    while(offset - memberOffset < MEMBER_SIZE && (read = is.read(buffer)) >= 0) {
+                        member.write(buffer, 0, read);
+                        offset += read;
+                    }
+                    member.finish();
+                    for(; next < entries.size() && entries.get(next).getOffset() < offset; next++) {
+                        LogIndex.Entry entry = entries.get(next);
+                        new LogIndex.Entry(entry.getTime(),
+                                           entry.getOffset(),
+                                           position,
+                                           memberOffset).write(indexStream);
+                    }
+                }
+            } finally {
+                fos.close();
+                indexStream.close();
+            }
+        } catch(IOException e) {
+            NaginiFileUtils.delete(temp);
+            NaginiFileUtils.delete(tempIndex);
+            throw e;
+        } finally {
+            is.close();
+        }
+        NaginiFileUtils.move(tempIndex, compressedIndex);
+        NaginiFileUtils.move(temp, compressed);
+        NaginiFileUtils.delete(segment);
+        if(index.exists()) {
+            NaginiFileUtils.delete(index);
+        }
+    }
+
+    /**
+     * Stops this archiver thread, queued segments are left uncompressed
+     */
+    public void terminate() {
+        exitFlag = true;
+        interrupt();
+    }
+
+    private static class Segment {
+
+        private final LogFile logFile;
+        private final File file;
+
+        private Segment(LogFile logFile, File file) {
+            this.logFile = logFile;
+            this.file = file;
+        }
+    }
+
+    /**
+     * Lets a gzip member be finished without closing the file it is written
+     * to.
+     */
+    private static class UnclosedOutputStream extends FilterOutputStream {
+
+        private UnclosedOutputStream(OutputStream os) {
+            super(os);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
@@ -0,0 +1,486 @@
+package nagini.utils.process;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import nagini.utils.NaginiFileUtils;
+
+import com.google.common.collect.Lists;
+
+/**
+ * The log file of a node, and the rules for rotating it. A rotated segment is
+ * named [log].[start].[end] after the times its output was written between,
+ * and gets a .gz suffix once compressed. The file and each segment have a
+ * LogIndex, which lets the output of a time window be read without reading
+ * the rest.
+ */
+public class LogFile {
+
+    public static final String COMPRESSED_SUFFIX = ".gz";
+    private static final int READ_BUFFER_SIZE = 65536;
+    private static final long MAP_SIZE = 64 * 1024 * 1024;
+    private static final int MAX_LINE_BYTES = 1024 * 1024;
+
+    private final File file;
+    private final int batchSize;
+    private final long rotateSize;
+    private final long rotateInterval;
+    private final long retentionSize;
+    private final Boolean compress;
+    private final LogWriter writer;
+    private final LogArchiver archiver;
+    private volatile long segmentStart;
+
+    /**
+     * @param path
+     * @param batchSize bytes of output to collect before writing them out
+     * @param rotateSize bytes after which the file is rotated, 0 for never
+     * @param rotateInterval milliseconds after which the file is rotated, 0
+     *        for never
+     * @param retentionSize most bytes of rotated segments to keep, 0 for no
+     *        limit
+     * @param compress whether to gzip rotated segments
+     * @param writer
+     * @param archiver
+     */
+    public LogFile(String path,
+                   int batchSize,
+                   long rotateSize,
+                   long rotateInterval,
+                   long retentionSize,
+                   Boolean compress,
+                   LogWriter writer,
+                   LogArchiver archiver) {
+        this.file = new File(path);
+        this.batchSize = batchSize;
+        this.rotateSize = rotateSize;
+        this.rotateInterval = rotateInterval;
+        this.retentionSize = retentionSize;
+        this.compress = compress;
+        this.writer = writer;
+        this.archiver = archiver;
+        this.segmentStart = System.currentTimeMillis();
+    }
+
+    public String getPath() {
+        return file.getPath();
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public File getIndexFile() {
+        return LogIndex.getIndexFile(file);
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public Boolean isCompressed() {
+        return compress;
+    }
+
+    /**
+     * Opens a sink that writes to this file in batches.
+     *
+     * @return
+     */
+    public LogSink openSink() {
+        return writer.open(this);
+    }
+
+    /**
+     * Deletes the file, for a new job to start writing to it.
+     *
+     * @param now
+     */
+    public synchronized void reset(long now) {
+        if(file.exists()) {
+            NaginiFileUtils.delete(file);
+        }
+        if(getIndexFile().exists()) {
+            NaginiFileUtils.delete(getIndexFile());
+        }
+        segmentStart = now;
+    }
+
+    /**
+     * @param size bytes written to the file
+     * @param now
+     * @return true if the file is due for rotation
+     */
+    public synchronized Boolean shouldRotate(long size, long now) {
+        if(size == 0) {
+            return false;
+        }
+        return (rotateSize > 0 && size >= rotateSize)
+               || (rotateInterval > 0 && now - segmentStart >= rotateInterval);
+    }
+
+    /**
+     * Moves the file aside as a segment, and hands the segment to the
+     * archiver to be compressed and to make room for it.
+     *
+     * @param now
+     */
+    public synchronized void rotate(long now) {
+        if(file.exists()) {
+            File segment = new File(file.getPath() + "." + segmentStart + "." + now);
+            NaginiFileUtils.move(file, segment);
+            if(getIndexFile().exists()) {
+                NaginiFileUtils.move(getIndexFile(), LogIndex.getIndexFile(segment));
+            }
+            archiver.submit(this, segment);
+        }
+        segmentStart = now;
+    }
+
+    /**
+     * @return rotated segments, oldest first
+     */
+    public List<File> getSegments() {
+        List<File> segments = Lists.newArrayList();
+        File[] files = file.getAbsoluteFile().getParentFile().listFiles();
+        if(files == null) {
+            return segments;
+        }
+        for(File candidate: files) {
+            if(getSegmentStart(candidate) != null) {
+                segments.add(candidate);
+            }
+        }
+        Collections.sort(segments, new Comparator<File>() {
+
+            @Override
+            public int compare(File a, File b) {
+                return getSegmentStart(a).compareTo(getSegmentStart(b));
+            }
+        });
+        return segments;
+    }
+
+    /**
+     * @param segment
+     * @return time the output in a segment starts at, or null if the file is
+     *         not a segment of this log
+     */
+    public Long getSegmentStart(File segment) {
+        String[] times = getSegmentTimes(segment);
+        return times == null ? null : Long.parseLong(times[0]);
+    }
+
+    /**
+     * @param segment
+     * @return time the output in a segment ends at, or null if the file is
+     *         not a segment of this log
+     */
+    public Long getSegmentEnd(File segment) {
+        String[] times = getSegmentTimes(segment);
+        return times == null ? null : Long.parseLong(times[1]);
+    }
+
+    private String[] getSegmentTimes(File segment) {
+        String prefix = file.getName() + ".";
+        String name = segment.getName();
+        if(!name.startsWith(prefix)) {
+            return null;
+        }
+        name = name.substring(prefix.length());
+        if(name.endsWith(COMPRESSED_SUFFIX)) {
+            name = name.substring(0, name.length() - COMPRESSED_SUFFIX.length());
+        }
+        String[] times = name.split("\\.");
+        if(times.length != 2 || !times[0].matches("\\d+") || !times[1].matches("\\d+")) {
+            return null;
+        }
+        return times;
+    }
+
+    /**
+     * Deletes the oldest segments until the rest fit in the retention size.
+     */
+    public void enforceRetention() {
+        if(retentionSize <= 0) {
+            return;
+        }
+        List<File> segments = getSegments();
+        long total = 0;
+        for(File segment: segments) {
+            total += segment.length() + LogIndex.getIndexFile(segment).length();
+        }
+        for(File segment: segments) {
+            if(total <= retentionSize) {
+                break;
+            }
+            File index = LogIndex.getIndexFile(segment);
+            total -= segment.length() + index.length();
+            NaginiFileUtils.delete(segment);
+            if(index.exists()) {
+                NaginiFileUtils.delete(index);
+            }
+        }
+    }
+
+    /**
+     * Handles lines read from a log.
+     */
+    public interface LineHandler {
+
+        void handle(String line) throws IOException;
+    }
+
+    /**
+     * Handles lines read from a log as they are stored, before decoding.
+     */
+    public interface RawLineHandler {
+
+        /**
+         * @param bytes line without the line separator, only valid during
+         *        the call
+         * @param length
+         * @return false to stop reading
+         * @throws IOException
+         */
+        boolean handle(byte[] bytes, int length) throws IOException;
+    }
+
+    /**
+     * Reads the lines written in a time window, see scan.
+     *
+     * @param from
+     * @param to
+     * @param handler
+     * @throws IOException
+     */
+    public void query(long from, long to, final LineHandler handler) throws IOException {
+        scan(from, to, new RawLineHandler() {
+
+            @Override
+            public boolean handle(byte[] bytes, int length) throws IOException {
+                handler.handle(decode(bytes, length));
+                return true;
+            }
+        });
+    }
+
+    /**
+     * @param bytes
+     * @param length
+     * @return line as written by the sink
+     */
+    public static String decode(byte[] bytes, int length) {
+        return new String(bytes, 0, length, Charset.defaultCharset());
+    }
+
+    /**
+     * Reads the lines written in a time window, from the segments and the
+     * file. Only the part of a segment between the index entries around the
+     * window is read, so a window is found to within LogIndex.INTERVAL_MS;
+     * segments without an index, e.g. written by the application itself, are
+     * read whole. Plain segments are mapped and scanned in place.
+     *
+     * @param from
+     * @param to
+     * @param handler
+     * @return false if the handler stopped reading
+     * @throws IOException
+     */
+    public boolean scan(long from, long to, RawLineHandler handler) throws IOException {
+        long currentStart = segmentStart;
+        for(File segment: getSegments()) {
+            if(!segment.getName().endsWith(COMPRESSED_SUFFIX)
+               && new File(segment.getPath() + COMPRESSED_SUFFIX).exists()) {
+                // being compressed, about to be deleted
+                continue;
+            }
+            if(getSegmentEnd(segment) >= from && getSegmentStart(segment) <= to) {
+                if(!scanFile(segment, from, to, handler)) {
+                    return false;
+                }
+            }
+        }
+        if(currentStart <= to) {
+            return scanFile(file, from, to, handler);
+        }
+        return true;
+    }
+
+    private boolean scanFile(File segment, long from, long to, RawLineHandler handler)
+            throws IOException {
+        // last entry at or before the window, and first entry after it
+        LogIndex.Entry first = null;
+        long endOffset = Long.MAX_VALUE;
+        for(LogIndex.Entry entry: LogIndex.read(LogIndex.getIndexFile(segment))) {
+            if(entry.getTime() <= from) {
+                first = entry;
+            } else if(entry.getTime() > to) {
+                endOffset = entry.getOffset();
+                break;
+            }
+        }
+        if(first == null) {
+            first = new LogIndex.Entry(0, 0, 0, 0);
+        }
+        FileInputStream fis;
+        try {
+            fis = new FileInputStream(segment);
+        } catch(FileNotFoundException e) {
+            // rotated or compressed meanwhile
+            return true;
+        }
+        try {
+            FileChannel channel = fis.getChannel();
+            LineSplitter lines = new LineSplitter(handler);
+            if(segment.getName().endsWith(COMPRESSED_SUFFIX)) {
+                byte[] buffer = new byte[READ_BUFFER_SIZE];
+                channel.position(first.getPosition());
+                // reads on through the following gzip members
+                InputStream is = new GZIPInputStream(new BufferedInputStream(fis, READ_BUFFER_SIZE),
+                                                     READ_BUFFER_SIZE);
+                long offset = first.getPositionOffset();
+                while(offset < first.getOffset()) {
+                    long skipped = is.skip(first.getOffset() - offset);
+                    if(skipped <= 0) {
+                        return true;
+                    }
+                    offset += skipped;
+                }
+                while(offset < endOffset) {
+                    int wanted = (int) Math.min(buffer.length, endOffset - offset);
+                    int read = is.read(buffer, 0, wanted);
+                    if(read < 0) {
+                        break;
+                    }
+                    if(!lines.add(buffer, read)) {
+                        return false;
+                    }
+                    offset += read;
+                }
+            } else {
+                long end = Math.min(endOffset, channel.size());
+                for(long offset = first.getOffset(); offset < end; offset += MAP_SIZE) {
+                    MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY,
+                                                       offset,
+                                                       Math.min(MAP_SIZE, end - offset));
+                    if(!lines.add(map)) {
+                        return false;
+                    }
+                }
+            }
+            return lines.finish();
+        } finally {
+            fis.close();
+        }
+    }
+
+    /**
+     * Splits what is read into lines for a handler.
+     */
+    private static class LineSplitter {
+
+        private final RawLineHandler handler;
+        private byte[] line;
+        private int length;
+
+        private LineSplitter(RawLineHandler handler) {
+            this.handler = handler;
+            this.line = new byte[1024];
+            this.length = 0;
+        }
+
+        private boolean add(byte[] buffer, int count) throws IOException {
+            int start = 0;
+            for(int i = 0; i < count; i++) {
+                if(buffer[i] == '\n') {
+                    append(buffer, start, i - start);
+                    start = i + 1;
+                    if(!emit()) {
+                        return false;
+                    }
+                }
+            }
+            append(buffer, start, count - start);
+            return true;
+        }
+
+        /**
+         * Same as add(byte[], int), but looks for line separators in the
+         * buffer itself, e.g. a mapped region, and only copies the lines.
+         */
+        private boolean add(ByteBuffer buffer) throws IOException {
+            int start = buffer.position();
+            int limit = buffer.limit();
+            for(int i = start; i < limit; i++) {
+                if(buffer.get(i) == '\n') {
+                    append(buffer, start, i - start);
+                    start = i + 1;
+                    if(!emit()) {
+                        return false;
+                    }
+                }
+            }
+            append(buffer, start, limit - start);
+            return true;
+        }
+
+        private void append(byte[] buffer, int start, int count) {
+            count = reserve(count);
+            if(count > 0) {
+                System.arraycopy(buffer, start, line, length, count);
+                length += count;
+            }
+        }
+
+        private void append(ByteBuffer buffer, int start, int count) {
+            count = reserve(count);
+            if(count > 0) {
+                buffer.position(start);
+                buffer.get(line, length, count);
+                length += count;
+            }
+        }
+
+        /**
+         * @param count
+         * @return number of bytes to append, as longer lines are cut
+         */
+        private int reserve(int count) {
+            count = Math.min(count, MAX_LINE_BYTES - length);
+            if(count > 0 && length + count > line.length) {
+                line = Arrays.copyOf(line, Math.max(line.length * 2, length + count));
+            }
+            return count;
+        }
+
+        private boolean emit() throws IOException {
+            int end = length;
+            if(end > 0 && line[end - 1] == '\r') {
+                end--;
+            }
+            length = 0;
+            return handler.handle(line, end);
+        }
+
+        /**
+         * Hands over a last line without a line separator
+         */
+        private boolean finish() throws IOException {
+            return length == 0 || emit();
+        }
+    }
+}
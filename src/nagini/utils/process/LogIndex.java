@@ -0,0 +1,119 @@
+package nagini.utils.process;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Sparse index from time to offset of a log segment, kept next to the
+ * segment in a file with an .idx suffix. An entry is added at most once per
+ * interval, for the first line written after it, so the index of a segment
+ * stays small and a time is located to within the interval.
+ *
+ * Index: [Entry...]
+ * where Entry is [Long:Time][Long:Offset][Long:Position][Long:PositionOffset]:
+ * the line at Offset of the uncompressed output was written at Time, and
+ * reading the file from Position gives the output from PositionOffset on.
+ * Both pairs are equal in a plain segment; in a gzipped segment Position is
+ * where the gzip member that holds the line starts.
+ */
+public class LogIndex {
+
+    public static final String SUFFIX = ".idx";
+    // least time between two entries
+    public static final long INTERVAL_MS = 1000;
+    private static final int ENTRY_SIZE = 32;
+
+    /**
+     * @param segment
+     * @return index file of a log segment or log file
+     */
+    public static File getIndexFile(File segment) {
+        return new File(segment.getPath() + SUFFIX);
+    }
+
+    /**
+     * Reads an index, ignoring an entry that is still being written.
+     *
+     * @param index
+     * @return entries in the order of their offsets, empty if there is no
+     *         index
+     * @throws IOException
+     */
+    public static List<Entry> read(File index) throws IOException {
+        List<Entry> entries = Lists.newArrayList();
+        InputStream is;
+        try {
+            is = new BufferedInputStream(new FileInputStream(index));
+        } catch(FileNotFoundException e) {
+            return entries;
+        }
+        DataInputStream dis = new DataInputStream(is);
+        try {
+            long count = index.length() / ENTRY_SIZE;
+            for(long i = 0; i < count; i++) {
+                entries.add(Entry.read(dis));
+            }
+        } catch(EOFException e) {
+            // truncated meanwhile, keep what was read
+        } finally {
+            dis.close();
+        }
+        return entries;
+    }
+
+    public static class Entry {
+
+        private final long time;
+        private final long offset;
+        private final long position;
+        private final long positionOffset;
+
+        public Entry(long time, long offset, long position, long positionOffset) {
+            this.time = time;
+            this.offset = offset;
+            this.position = position;
+            this.positionOffset = positionOffset;
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public long getPosition() {
+            return position;
+        }
+
+        public long getPositionOffset() {
+            return positionOffset;
+        }
+
+        public static Entry read(DataInputStream dis) throws IOException {
+            long time = dis.readLong();
+            long offset = dis.readLong();
+            long position = dis.readLong();
+            long positionOffset = dis.readLong();
+            return new Entry(time, offset, position, positionOffset);
+        }
+
+        public void write(DataOutputStream dos) throws IOException {
+            dos.writeLong(time);
+            dos.writeLong(offset);
+            dos.writeLong(position);
+            dos.writeLong(positionOffset);
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package nagini.utils.process;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Finds the lines of node logs that match a regular expression or contain a
+ * literal text, with lines of context around them. The limits on matches and
+ * bytes are shared by all nodes searched, so that a search stops as a whole
+ * once it found enough.
+ */
+public class LogSearch {
+
+    private final Pattern pattern;
+    private final byte[] literal;
+    private final int context;
+    private final int maxMatches;
+    private final long maxBytes;
+
+    private final AtomicInteger matches;
+    private final AtomicLong bytes;
+    private volatile Boolean truncated;
+
+    /**
+     * @param expression
+     * @param literal true to look for the expression as is, which is faster
+     *        as lines that do not contain it are never decoded
+     * @param context lines to return before and after each match
+     * @param maxMatches most matches to return
+     * @param maxBytes most bytes of lines to return
+     * @throws java.util.regex.PatternSyntaxException
+     */
+    public LogSearch(String expression,
+                     Boolean literal,
+                     int context,
+                     int maxMatches,
+                     long maxBytes) {
+        if(literal) {
+            this.pattern = null;
+            this.literal = expression.getBytes(Charset.defaultCharset());
+        } else {
+            this.pattern = Pattern.compile(expression);
+            this.literal = null;
+        }
+        this.context = context;
+        this.maxMatches = maxMatches;
+        this.maxBytes = maxBytes;
+        this.matches = new AtomicInteger(0);
+        this.bytes = new AtomicLong(0);
+        this.truncated = false;
+    }
+
+    public int getMatchCount() {
+        return Math.min(matches.get(), maxMatches);
+    }
+
+    /**
+     * @return true if the search stopped at a limit
+     */
+    public Boolean isTruncated() {
+        return truncated;
+    }
+
+    /**
+     * Stops the search, e.g. when the lines found cannot be sent
+     */
+    public void cancel() {
+        truncated = true;
+    }
+
+    /**
+     * Handles the lines found, a match or a run of matches with their
+     * context.
+     */
+    public interface GroupHandler {
+
+        /**
+         * @param lines
+         * @param matched tells for each line whether it matched
+         * @throws IOException
+         */
+        void handle(List<String> lines, List<Boolean> matched) throws IOException;
+    }
+
+    /**
+     * @param handler
+     * @return a handler to scan one log with
+     */
+    public Scanner newScanner(GroupHandler handler) {
+        return new Scanner(handler);
+    }
+
+    private boolean isMatch(byte[] line, int length) {
+        if(literal == null) {
+            return pattern.matcher(LogFile.decode(line, length)).find();
+        }
+        if(literal.length == 0) {
+            return true;
+        }
+        int last = length - literal.length;
+        for(int i = 0; i <= last; i++) {
+            if(line[i] == literal[0]) {
+                int j = 1;
+                while(j < literal.length && line[i + j] == literal[j]) {
+                    j++;
+                }
+                if(j == literal.length) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Scans one log, keeping the last lines for the context of the next
+     * match.
+     */
+    public class Scanner implements LogFile.RawLineHandler {
+
+        private final GroupHandler handler;
+        private final LinkedList<byte[]> before;
+        private List<String> group;
+        private List<Boolean> matched;
+        private int after;
+
+        private Scanner(GroupHandler handler) {
+            this.handler = handler;
+            this.before = Lists.newLinkedList();
+            this.group = null;
+            this.matched = null;
+            this.after = 0;
+        }
+
+        @Override
+        public boolean handle(byte[] line, int length) throws IOException {
+            if(truncated) {
+                return false;
+            }
+            if(isMatch(line, length)) {
+                if(matches.incrementAndGet() > maxMatches) {
+                    truncated = true;
+                    return flush();
+                }
+                if(group == null) {
+                    group = Lists.newArrayList();
+                    matched = Lists.newArrayList();
+                    for(byte[] previous: before) {
+                        if(!add(previous, previous.length, false)) {
+                            return false;
+                        }
+                    }
+                    before.clear();
+                }
+                after = context;
+                if(!add(line, length, true)) {
+                    return false;
+                }
+                return context > 0 || flush();
+            }
+            if(group != null) {
+                if(!add(line, length, false)) {
+                    return false;
+                }
+                if(--after == 0) {
+                    return flush();
+                }
+            } else if(context > 0) {
+                before.add(Arrays.copyOf(line, length));
+                if(before.size() > context) {
+                    before.removeFirst();
+                }
+            }
+            return true;
+        }
+
+        private boolean add(byte[] line, int length, Boolean isMatch) throws IOException {
+            if(bytes.addAndGet(length) > maxBytes) {
+                truncated = true;
+                return flush();
+            }
+            group.add(LogFile.decode(line, length));
+            matched.add(isMatch);
+            return true;
+        }
+
+        /**
+         * Hands over what is left of the last group, once the log is read.
+         *
+         * @throws IOException
+         */
+        public void finish() throws IOException {
+            flush();
+        }
+
+        /**
+         * Hands over the current group
+         *
+         * @return false once the search is truncated
+         * @throws IOException
+         */
+        private boolean flush() throws IOException {
+            if(group != null && !group.isEmpty()) {
+                handler.handle(group, matched);
+            }
+            group = null;
+            matched = null;
+            return !truncated;
+        }
+    }
+}
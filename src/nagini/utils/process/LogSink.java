@@ -0,0 +1,185 @@
+package nagini.utils.process;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Collects the output of a job in memory, for the LogWriter to write to the
+ * log file in large batches. Writing a line only copies it, unless the writer
+ * has fallen far behind. The time lines are written at is noted in the
+ * LogIndex of the file.
+ */
+public class LogSink {
+
+    private static final byte[] NEW_LINE = System.getProperty("line.separator")
+                                                 .getBytes(Charset.defaultCharset());
+
+    private final LogWriter writer;
+    private final LogFile logFile;
+    private final int maxPending;
+
+    // guarded by this
+    private ByteArrayOutputStream pending;
+    // time and offset in pending of lines to index
+    private List<long[]> pendingIndex;
+    private long lastIndexTime;
+    private Boolean closed;
+    private Boolean finished;
+
+    // used by the writer thread only
+    private ByteArrayOutputStream spare;
+    private List<long[]> spareIndex;
+    private FileOutputStream stream;
+    private DataOutputStream indexStream;
+    private long size;
+
+    LogSink(LogWriter writer, LogFile logFile) {
+        this.writer = writer;
+        this.logFile = logFile;
+        this.maxPending = logFile.getBatchSize() * 4;
+        this.pending = new ByteArrayOutputStream(logFile.getBatchSize());
+        this.pendingIndex = Lists.newArrayList();
+        this.lastIndexTime = 0;
+        this.closed = false;
+        this.finished = false;
+        this.spare = new ByteArrayOutputStream(logFile.getBatchSize());
+        this.spareIndex = Lists.newArrayList();
+        this.stream = null;
+        this.indexStream = null;
+        this.size = logFile.getFile().length();
+    }
+
+    /**
+     * Adds a line to the log, lines added after close are dropped.
+     *
+     * @param line
+     */
+    public void println(String line) {
+        byte[] bytes = line.getBytes(Charset.defaultCharset());
+        long now = System.currentTimeMillis();
+        Boolean full;
+        synchronized(this) {
+            while(!closed && pending.size() >= maxPending) {
+                writer.wakeUp();
+                try {
+                    wait();
+                } catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            if(closed) {
+                return;
+            }
+            if(now - lastIndexTime >= LogIndex.INTERVAL_MS) {
+                pendingIndex.add(new long[] { now, pending.size() });
+                lastIndexTime = now;
+            }
+            pending.write(bytes, 0, bytes.length);
+            pending.write(NEW_LINE, 0, NEW_LINE.length);
+            full = pending.size() >= logFile.getBatchSize();
+        }
+        if(full) {
+            writer.wakeUp();
+        }
+    }
+
+    /**
+     * Writes out what is left and closes the log file.
+     *
+     * @throws InterruptedException
+     */
+    public void close() throws InterruptedException {
+        synchronized(this) {
+            closed = true;
+            notifyAll();
+        }
+        writer.wakeUp();
+        synchronized(this) {
+            while(!finished) {
+                wait();
+            }
+        }
+    }
+
+    /**
+     * Called by the writer: writes the collected output, and rotates the log
+     * file when it is due.
+     *
+     * @param now
+     * @return true once the sink is closed and everything is written
+     */
+    Boolean flush(long now) {
+        ByteArrayOutputStream batch;
+        List<long[]> batchIndex;
+        Boolean last;
+        synchronized(this) {
+            batch = pending;
+            pending = spare;
+            batchIndex = pendingIndex;
+            pendingIndex = spareIndex;
+            last = closed;
+            notifyAll();
+        }
+        try {
+            if(batch.size() > 0) {
+                if(stream == null) {
+                    stream = new FileOutputStream(logFile.getFile(), true);
+                    FileOutputStream index = new FileOutputStream(logFile.getIndexFile(), true);
+                    indexStream = new DataOutputStream(new BufferedOutputStream(index));
+                }
+                batch.writeTo(stream);
+                for(long[] entry: batchIndex) {
+                    long offset = size + entry[1];
+                    new LogIndex.Entry(entry[0], offset, offset, offset).write(indexStream);
+                }
+                indexStream.flush();
+                size += batch.size();
+            }
+            if(!last && logFile.shouldRotate(size, now)) {
+                closeStream();
+                logFile.rotate(now);
+                size = 0;
+                synchronized(this) {
+                    // index the first line of the next segment
+                    lastIndexTime = 0;
+                }
+            }
+        } catch(IOException e) {
+            System.out.println(e.getMessage());
+        } finally {
+            batch.reset();
+            spare = batch;
+            batchIndex.clear();
+            spareIndex = batchIndex;
+        }
+        if(last) {
+            closeStream();
+            synchronized(this) {
+                finished = true;
+                notifyAll();
+            }
+        }
+        return last;
+    }
+
+    private void closeStream() {
+        if(stream != null) {
+            try {
+                stream.close();
+                indexStream.close();
+            } catch(IOException e) {
+                System.out.println(e.getMessage());
+            }
+            stream = null;
+            indexStream = null;
+        }
+    }
+}
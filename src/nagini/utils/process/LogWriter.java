@@ -0,0 +1,81 @@
+package nagini.utils.process;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.google.common.collect.Sets;
+
+/**
+ * Writes the output collected by the log sinks of all nodes from a single
+ * thread, when a sink has a full batch or at least once a second, so that the
+ * threads reading the output of the jobs never wait for the disk.
+ */
+public class LogWriter extends Thread {
+
+    private static final long FLUSH_INTERVAL_MS = 1000;
+
+    private final Set<LogSink> sinks;
+    private volatile Boolean exitFlag;
+    // guarded by this
+    private Boolean signaled;
+
+    public LogWriter(String name) {
+        this.setName(name);
+        this.setDaemon(true);
+        this.sinks = Sets.newSetFromMap(new ConcurrentHashMap<LogSink, Boolean>());
+        this.exitFlag = false;
+        this.signaled = false;
+    }
+
+    /**
+     * @param logFile
+     * @return a new sink writing to a log file
+     */
+    LogSink open(LogFile logFile) {
+        LogSink sink = new LogSink(this, logFile);
+        sinks.add(sink);
+        return sink;
+    }
+
+    /**
+     * Asks the writer to write out the sinks without waiting for the interval
+     */
+    synchronized void wakeUp() {
+        signaled = true;
+        notifyAll();
+    }
+
+    @Override
+    public void run() {
+        while(!exitFlag) {
+            synchronized(this) {
+                if(!signaled) {
+                    try {
+                        wait(FLUSH_INTERVAL_MS);
+                    } catch(InterruptedException e) {
+                        continue;
+                    }
+                }
+                signaled = false;
+            }
+            long now = System.currentTimeMillis();
+            for(LogSink sink: sinks) {
+                try {
+                    if(sink.flush(now)) {
+                        sinks.remove(sink);
+                    }
+                } catch(Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops this writer thread, output not yet written is lost
+     */
+    public void terminate() {
+        exitFlag = true;
+        interrupt();
+    }
+}
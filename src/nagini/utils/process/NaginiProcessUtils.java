@@ -15,8 +15,8 @@ public class NaginiProcessUtils {
         stream.println("Command to be executed: " + Joiner.on(" ").join(args));
 
         Process process = processBuilder.start();
-        StreamWatchThread stdout = new StreamWatchThread(process.getInputStream(), stream, false);
-        StreamWatchThread stderr = new StreamWatchThread(process.getErrorStream(), stream, false);
+        StreamWatchThread stdout = new StreamWatchThread(process.getInputStream(), stream, null);
+        StreamWatchThread stderr = new StreamWatchThread(process.getErrorStream(), stream, null);
 
         // read stdout and stderr
         stdout.start();
@@ -0,0 +1,159 @@
+package nagini.utils.process;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Keeps the most recent lines of output of a service in a ring of fixed
+ * capacity, so that memory use does not depend on how much a node prints or
+ * whether anyone watches it. Every line gets a sequence number; readers keep
+ * the number to read on from as their own cursor, so any number of watchers
+ * can read the same lines.
+ */
+public class OutputBuffer {
+
+    private final String[] lines;
+    private final long maxChars;
+    // sequence number of the oldest line kept, and of the next line
+    private long first;
+    private long next;
+    private long chars;
+
+    /**
+     * @param maxLines most lines to keep
+     * @param maxChars most characters to keep, longer lines are cut
+     */
+    public OutputBuffer(int maxLines, long maxChars) {
+        this.lines = new String[maxLines];
+        this.maxChars = maxChars;
+        this.first = 0;
+        this.next = 0;
+        this.chars = 0;
+    }
+
+    /**
+     * Adds a line, dropping the oldest lines to make room for it.
+     *
+     * @param line
+     */
+    public synchronized void append(String line) {
+        if(line.length() > maxChars) {
+            line = line.substring(0, (int) maxChars);
+        }
+        while(first < next && (next - first >= lines.length || chars + line.length() > maxChars)) {
+            int index = (int) (first % lines.length);
+            chars -= lines[index].length();
+            lines[index] = null;
+            first++;
+        }
+        lines[(int) (next % lines.length)] = line;
+        chars += line.length();
+        next++;
+    }
+
+    /**
+     * @return cursor after the last line, for readers that only want what
+     *         comes next
+     */
+    public synchronized long getEnd() {
+        return next;
+    }
+
+    /**
+     * Reads the lines after a cursor.
+     *
+     * @param cursor sequence number of the first line wanted, as returned by
+     *        the previous read, or 0 for the oldest line kept
+     * @param tail most lines to return, the last ones, or 0 for all
+     * @return lines read and the cursor to read on from
+     */
+    public synchronized Chunk read(long cursor, int tail) {
+        long skipped = 0;
+        long start = cursor;
+        if(start > next) {
+            // cursor of an earlier buffer, e.g. before a server restart
+            start = first;
+        } else if(start < first) {
+            skipped = first - start;
+            start = first;
+        }
+        if(tail > 0 && next - start > tail) {
+            skipped += next - tail - start;
+            start = next - tail;
+        }
+        List<String> result = Lists.newArrayListWithCapacity((int) (next - start));
+        for(long sequence = start; sequence < next; sequence++) {
+            result.add(lines[(int) (sequence % lines.length)]);
+        }
+        return new Chunk(result, next, skipped);
+    }
+
+    /**
+     * Lines returned by one read.
+     *
+     * Chunk: [Long:Cursor][Long:Skipped][Int:Count][Line...]
+     * where Line is [Int:Length][Byte[]:Utf8], as lines may be longer than
+     * writeUTF allows
+     */
+    public static class Chunk {
+
+        private final List<String> lines;
+        private final long cursor;
+        private final long skipped;
+
+        public Chunk(List<String> lines, long cursor, long skipped) {
+            this.lines = Collections.unmodifiableList(lines);
+            this.cursor = cursor;
+            this.skipped = skipped;
+        }
+
+        public List<String> getLines() {
+            return lines;
+        }
+
+        /**
+         * @return cursor to pass to the next read
+         */
+        public long getCursor() {
+            return cursor;
+        }
+
+        /**
+         * @return number of lines after the given cursor that were dropped
+         *         or left out by the tail limit
+         */
+        public long getSkipped() {
+            return skipped;
+        }
+
+        public static Chunk read(DataInputStream dis) throws IOException {
+            long cursor = dis.readLong();
+            long skipped = dis.readLong();
+            int count = dis.readInt();
+            List<String> lines = Lists.newArrayListWithCapacity(count);
+            for(int i = 0; i < count; i++) {
+                byte[] line = new byte[dis.readInt()];
+                dis.readFully(line);
+                lines.add(new String(line, StandardCharsets.UTF_8));
+            }
+            return new Chunk(lines, cursor, skipped);
+        }
+
+        public void write(DataOutputStream dos) throws IOException {
+            dos.writeLong(cursor);
+            dos.writeLong(skipped);
+            dos.writeInt(lines.size());
+            for(String line: lines) {
+                byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+                dos.writeInt(bytes.length);
+                dos.write(bytes);
+            }
+        }
+    }
+}
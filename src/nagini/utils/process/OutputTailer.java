@@ -0,0 +1,157 @@
+package nagini.utils.process;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.google.common.collect.Sets;
+
+/**
+ * Feeds the output buffers of processes that write straight to their log
+ * files, by reading what was appended to the files from a single thread. The
+ * processes never wait for the reader, and no thread copies their output
+ * line by line.
+ */
+public class OutputTailer extends Thread {
+
+    private static final long POLL_INTERVAL_MS = 200;
+    private static final int READ_BUFFER_SIZE = 65536;
+    // longest line kept whole, longer lines are split
+    private static final int MAX_LINE_BYTES = 65536;
+
+    private final Set<Tail> tails;
+    private volatile Boolean exitFlag;
+
+    public OutputTailer(String name) {
+        this.setName(name);
+        this.setDaemon(true);
+        this.tails = Sets.newSetFromMap(new ConcurrentHashMap<Tail, Boolean>());
+        this.exitFlag = false;
+    }
+
+    /**
+     * Starts feeding the lines appended to a file from now on into a buffer.
+     *
+     * @param file
+     * @param buffer
+     * @return handle to stop following the file with
+     * @throws IOException
+     */
+    public Tail follow(File file, OutputBuffer buffer) throws IOException {
+        Tail tail = new Tail(file, buffer);
+        tails.add(tail);
+        return tail;
+    }
+
+    /**
+     * Reads what is left of a file, and stops following it.
+     *
+     * @param tail
+     */
+    public void stopFollowing(Tail tail) {
+        tails.remove(tail);
+        tail.close();
+    }
+
+    @Override
+    public void run() {
+        while(!exitFlag) {
+            for(Tail tail: tails) {
+                tail.poll();
+            }
+            try {
+                Thread.sleep(POLL_INTERVAL_MS);
+            } catch(InterruptedException e) {
+                // check exitFlag
+            }
+        }
+    }
+
+    /**
+     * Stops this tailer thread, files being followed are left unread
+     */
+    public void terminate() {
+        exitFlag = true;
+        interrupt();
+    }
+
+    /**
+     * A file being followed.
+     */
+    public static class Tail {
+
+        private final FileChannel channel;
+        private final OutputBuffer buffer;
+        private final ByteBuffer readBuffer;
+        private final ByteArrayOutputStream partialLine;
+        private long position;
+
+        private Tail(File file, OutputBuffer buffer) throws IOException {
+            this.channel = new FileInputStream(file).getChannel();
+            this.buffer = buffer;
+            this.readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            this.partialLine = new ByteArrayOutputStream();
+            this.position = channel.size();
+        }
+
+        private synchronized void poll() {
+            try {
+                if(channel.size() < position) {
+                    // truncated, read it again from the start
+                    position = 0;
+                    partialLine.reset();
+                }
+                int read;
+                while(true) {
+                    readBuffer.clear();
+                    read = channel.read(readBuffer, position);
+                    if(read <= 0) {
+                        return;
+                    }
+                    position += read;
+                    byte[] bytes = readBuffer.array();
+                    for(int i = 0; i < read; i++) {
+                        if(bytes[i] == '\n') {
+                            appendLine();
+                        } else {
+                            partialLine.write(bytes[i]);
+                            if(partialLine.size() >= MAX_LINE_BYTES) {
+                                appendLine();
+                            }
+                        }
+                    }
+                }
+            } catch(IOException e) {
+                System.out.println(e.getMessage());
+            }
+        }
+
+        private void appendLine() {
+            byte[] line = partialLine.toByteArray();
+            int length = line.length;
+            if(length > 0 && line[length - 1] == '\r') {
+                length--;
+            }
+            buffer.append(new String(line, 0, length, Charset.defaultCharset()));
+            partialLine.reset();
+        }
+
+        private synchronized void close() {
+            poll();
+            if(partialLine.size() > 0) {
+                appendLine();
+            }
+            try {
+                channel.close();
+            } catch(IOException e) {
+                System.out.println(e.getMessage());
+            }
+        }
+    }
+}
@@ -1,34 +1,57 @@
 package nagini.utils.process;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.PrintStream;
+import java.lang.reflect.Field;
 import java.util.Date;
 import java.util.List;
 
 public class ProcessThread extends Thread {
 
+    // how long the last lines of a process that exited may take to be read
+    // from its pipe; a child of the process may keep the pipe open forever
+    private static final long PIPE_DRAIN_TIMEOUT_MS = 10000;
+
     private Process process;
     private StreamWatchThread stdout;
-    private StreamWatchThread stderr;
-    private Boolean watchBufferEnabled;
+    private OutputBuffer outputBuffer;
+    private OutputTailer outputTailer;
+    private volatile Boolean terminated;
+    private volatile Boolean exited;
+    private volatile Runnable exitListener;
 
     private List<String> args;
     private String path;
-    private String logfile;
+    private LogFile logFile;
 
+    /**
+     * @param name
+     * @param args
+     * @param path
+     * @param logFile
+     * @param outputBuffer buffer to keep the output in for watchers, or null
+     * @param outputTailer tailer to feed the buffer from the log file, or
+     *        null to pipe the output through this server instead of letting
+     *        the process write to the log file itself
+     */
     public ProcessThread(String name,
                          List<String> args,
                          String path,
-                         String logfile,
-                         Boolean watchBufferEnabled) {
+                         LogFile logFile,
+                         OutputBuffer outputBuffer,
+                         OutputTailer outputTailer) {
         process = null;
         stdout = null;
-        stderr = null;
         this.setName(name);
         this.args = args;
         this.path = path;
-        this.logfile = logfile;
-        this.watchBufferEnabled = watchBufferEnabled;
+        this.logFile = logFile;
+        this.outputBuffer = outputBuffer;
+        this.outputTailer = outputTailer;
+        this.terminated = false;
+        this.exited = false;
+        this.exitListener = null;
     }
 
     public List<String> getArguments() {
@@ -43,47 +66,139 @@ public class ProcessThread extends Thread {
         return process.exitValue();
     }
 
-    public void terminate() {
+    /**
+     * @return id of the process, or null if it is not running or its id
+     *         cannot be told
+     */
+    public synchronized Integer getPid() {
+        if(process == null || exited) {
+            return null;
+        }
+        try {
+            try {
+                // Process.pid() since Java 9
+                return ((Long) Process.class.getMethod("pid").invoke(process)).intValue();
+            } catch(NoSuchMethodException e) {
+                Field field = process.getClass().getDeclaredField("pid");
+                field.setAccessible(true);
+                return field.getInt(process);
+            }
+        } catch(Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Destroys the process, or keeps it from being started if it is not yet
+     */
+    public synchronized void terminate() {
+        terminated = true;
         if(process != null) {
             process.destroy();
         }
     }
 
-    public List<String> readStdOut() {
-        if(stdout != null) {
-            return stdout.readOutput();
-        } else {
-            return null;
-        }
+    /**
+     * @return true once the process has exited, or failed to start
+     */
+    public Boolean hasExited() {
+        return exited;
     }
 
-    public List<String> readStdErr() {
-        if(stderr != null) {
-            return stderr.readOutput();
-        } else {
-            return null;
-        }
+    /**
+     * @param exitListener called on this thread right after the process
+     *        exited, or failed to start
+     */
+    public void setExitListener(Runnable exitListener) {
+        this.exitListener = exitListener;
     }
 
     @Override
     public void run() throws RuntimeException {
+        // stderr is merged into stdout, so there is a single stream to read
         ProcessBuilder processBuilder = new ProcessBuilder(args).redirectErrorStream(true)
                                                                 .directory(new File(path));
+        String header = "Starting process " + this.getName() + " at " + new Date().toString();
         try {
-            PrintStream stream = new PrintStream(logfile);
-            stream.println("Starting process " + this.getName() + " at " + new Date().toString());
+            if(outputTailer != null) {
+                PrintStream stream = new PrintStream(logFile.getFile());
+                stream.println(header);
+                stream.close();
+                runToFile(processBuilder);
+            } else {
+                LogSink sink = logFile.openSink();
+                sink.println(header);
+                runToPipe(processBuilder, sink);
+            }
+        } catch(Exception e) {
+            throw new RuntimeException(e);
+        } finally {
+            exited = true;
+            Runnable listener = exitListener;
+            if(listener != null) {
+                listener.run();
+            }
+        }
+    }
+
+    private Boolean startProcess(ProcessBuilder processBuilder) throws IOException {
+        synchronized(this) {
+            if(terminated) {
+                return false;
+            }
             process = processBuilder.start();
-            stdout = new StreamWatchThread(process.getInputStream(), stream, watchBufferEnabled);
-            stderr = new StreamWatchThread(process.getErrorStream(), stream, watchBufferEnabled);
-            stdout.start();
-            stderr.start();
+            return true;
+        }
+    }
+
+    /**
+     * Copies the output of the process to the log sink and buffer line by
+     * line
+     */
+    private void runToPipe(ProcessBuilder processBuilder, LogSink sink) throws Exception {
+        try {
+            if(!startProcess(processBuilder)) {
+                return;
+            }
+            StreamWatchThread watcher = new StreamWatchThread(process.getInputStream(),
+                                                              sink,
+                                                              outputBuffer);
+            stdout = watcher;
+            watcher.start();
             process.waitFor();
-            stream.flush();
-            stream.close();
+            // the sink drops lines once it is closed, so let the watcher copy
+            // what is left in the pipe first
+            watcher.join(PIPE_DRAIN_TIMEOUT_MS);
+            if(watcher.isAlive()) {
+                System.out.println("gave up reading the output of " + getName()
+                                   + ", its pipe is still open");
+            }
             stdout = null;
-            stderr = null;
-        } catch(Exception e) {
-            throw new RuntimeException(e);
+        } finally {
+            sink.close();
+        }
+    }
+
+    /**
+     * Lets the process append to the log file itself, so that it never waits
+     * for this server, and has the buffer fed from the file
+     */
+    private void runToFile(ProcessBuilder processBuilder) throws Exception {
+        File file = logFile.getFile();
+        processBuilder.redirectOutput(ProcessBuilder.Redirect.appendTo(file));
+        OutputTailer.Tail tail = null;
+        if(outputBuffer != null) {
+            tail = outputTailer.follow(file, outputBuffer);
+        }
+        try {
+            if(!startProcess(processBuilder)) {
+                return;
+            }
+            process.waitFor();
+        } finally {
+            if(tail != null) {
+                outputTailer.stopFollowing(tail);
+            }
         }
     }
 }
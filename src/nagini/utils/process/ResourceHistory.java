@@ -0,0 +1,203 @@
+package nagini.utils.process;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+/**
+ * The last resource samples of a node, kept in fixed-size arrays of
+ * primitives used as a ring, so that the memory kept per node is known up
+ * front and adding a sample allocates nothing. Sample objects are only made
+ * when samples are read.
+ */
+public class ResourceHistory {
+
+    private final int capacity;
+    // guarded by this
+    private final long[] times;
+    private final int[] pids;
+    private final float[] cpuPercents;
+    private final long[] rssBytes;
+    private final int[] threads;
+    private final int[] fds;
+    private final long[] readRates;
+    private final long[] writeRates;
+    // index of the next sample to write, and number of samples kept
+    private int next;
+    private int count;
+
+    /**
+     * @param capacity most samples to keep
+     */
+    public ResourceHistory(int capacity) {
+        this.capacity = capacity;
+        this.times = new long[capacity];
+        this.pids = new int[capacity];
+        this.cpuPercents = new float[capacity];
+        this.rssBytes = new long[capacity];
+        this.threads = new int[capacity];
+        this.fds = new int[capacity];
+        this.readRates = new long[capacity];
+        this.writeRates = new long[capacity];
+        this.next = 0;
+        this.count = 0;
+    }
+
+    /**
+     * Adds a sample, in place of the oldest one if the history is full.
+     *
+     * @param time
+     * @param pid of the process the tree starts at
+     * @param cpuPercent of one processor, since the previous sample
+     * @param rssBytes
+     * @param threads
+     * @param fds open file descriptors
+     * @param readRate bytes per second read from storage
+     * @param writeRate bytes per second written to storage
+     */
+    public synchronized void add(long time,
+                                 int pid,
+                                 float cpuPercent,
+                                 long rssBytes,
+                                 int threads,
+                                 int fds,
+                                 long readRate,
+                                 long writeRate) {
+        times[next] = time;
+        pids[next] = pid;
+        cpuPercents[next] = cpuPercent;
+        this.rssBytes[next] = rssBytes;
+        this.threads[next] = threads;
+        this.fds[next] = fds;
+        readRates[next] = readRate;
+        writeRates[next] = writeRate;
+        next = (next + 1) % capacity;
+        count = Math.min(count + 1, capacity);
+    }
+
+    /**
+     * @param since
+     * @return samples taken after a time, oldest first
+     */
+    public synchronized List<Sample> getSamples(long since) {
+        List<Sample> samples = Lists.newArrayList();
+        for(int i = count; i > 0; i--) {
+            int index = (next - i + capacity) % capacity;
+            if(times[index] > since) {
+                samples.add(new Sample(times[index],
+                                       pids[index],
+                                       cpuPercents[index],
+                                       rssBytes[index],
+                                       threads[index],
+                                       fds[index],
+                                       readRates[index],
+                                       writeRates[index]));
+            }
+        }
+        return samples;
+    }
+
+    /**
+     * Resources used by the process tree of a node at one time.
+     *
+     * Sample: [Long:Time][Int:Pid][Float:CpuPercent][Long:RssBytes]
+     * [Int:Threads][Int:Fds][Long:ReadRate][Long:WriteRate]
+     */
+    public static class Sample {
+
+        private final long time;
+        private final int pid;
+        private final float cpuPercent;
+        private final long rssBytes;
+        private final int threads;
+        private final int fds;
+        private final long readRate;
+        private final long writeRate;
+
+        /**
+         * @param time
+         * @param pid of the process the tree starts at
+         * @param cpuPercent of one processor, since the previous sample
+         * @param rssBytes
+         * @param threads
+         * @param fds open file descriptors
+         * @param readRate bytes per second read from storage
+         * @param writeRate bytes per second written to storage
+         */
+        public Sample(long time,
+                      int pid,
+                      float cpuPercent,
+                      long rssBytes,
+                      int threads,
+                      int fds,
+                      long readRate,
+                      long writeRate) {
+            this.time = time;
+            this.pid = pid;
+            this.cpuPercent = cpuPercent;
+            this.rssBytes = rssBytes;
+            this.threads = threads;
+            this.fds = fds;
+            this.readRate = readRate;
+            this.writeRate = writeRate;
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        public int getPid() {
+            return pid;
+        }
+
+        public float getCpuPercent() {
+            return cpuPercent;
+        }
+
+        public long getRssBytes() {
+            return rssBytes;
+        }
+
+        public int getThreads() {
+            return threads;
+        }
+
+        public int getFds() {
+            return fds;
+        }
+
+        public long getReadRate() {
+            return readRate;
+        }
+
+        public long getWriteRate() {
+            return writeRate;
+        }
+
+        public static Sample read(DataInputStream dis) throws IOException {
+            long time = dis.readLong();
+            int pid = dis.readInt();
+            float cpuPercent = dis.readFloat();
+            long rssBytes = dis.readLong();
+            int threads = dis.readInt();
+            int fds = dis.readInt();
+            long readRate = dis.readLong();
+            long writeRate = dis.readLong();
+            return new Sample(time, pid, cpuPercent, rssBytes, threads, fds, readRate, writeRate);
+        }
+
+        public void write(DataOutputStream dos) throws IOException {
+            dos.writeLong(time);
+            dos.writeInt(pid);
+            dos.writeFloat(cpuPercent);
+            dos.writeLong(rssBytes);
+            dos.writeInt(threads);
+            dos.writeInt(fds);
+            dos.writeLong(readRate);
+            dos.writeLong(writeRate);
+        }
+    }
+}
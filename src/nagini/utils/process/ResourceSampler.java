@@ -0,0 +1,286 @@
+package nagini.utils.process;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import nagini.utils.NaginiFileUtils;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Samples the resources used by the application of every node from a single
+ * thread, reading /proc for the whole process tree of the running job: CPU
+ * time and threads from stat, resident memory from status, storage I/O from
+ * io and open files from fd. Samples go to the ResourceHistory of each node.
+ * Where there is no /proc, nothing is sampled.
+ */
+public class ResourceSampler extends Thread {
+
+    private static final File PROC = new File("/proc");
+    // clock ticks per second of the times in /proc/[pid]/stat, which Linux
+    // always reports in USER_HZ, 100 on all common platforms
+    private static final long USER_HZ = 100;
+    private static final long IDLE_INTERVAL_MS = 1000;
+
+    private volatile Map<Integer, Service> services;
+    private volatile long interval;
+    private volatile Boolean exitFlag;
+    // used by this thread only, previous totals of each process tree
+    private final Map<ResourceHistory, Usage> previous;
+
+    public ResourceSampler(String name) {
+        this.setName(name);
+        this.setDaemon(true);
+        this.setPriority(MIN_PRIORITY);
+        this.services = Maps.newHashMap();
+        this.interval = 0;
+        this.exitFlag = false;
+        this.previous = Maps.newHashMap();
+    }
+
+    /**
+     * @param services node services to sample, those without a resource
+     *        history are skipped
+     * @param interval milliseconds between samples, 0 for none
+     */
+    public void configure(Map<Integer, Service> services, long interval) {
+        this.services = services;
+        this.interval = interval;
+    }
+
+    @Override
+    public void run() {
+        if(!new File(PROC, "self/stat").exists()) {
+            System.out.println("ResourceSampler: no /proc, node resources are not sampled.");
+            return;
+        }
+        while(!exitFlag) {
+            long wait = interval;
+            if(wait > 0) {
+                try {
+                    sample(System.currentTimeMillis());
+                } catch(Exception e) {
+                    e.printStackTrace();
+                }
+            } else {
+                wait = IDLE_INTERVAL_MS;
+            }
+            try {
+                Thread.sleep(wait);
+            } catch(InterruptedException e) {
+                continue;
+            }
+        }
+    }
+
+    /**
+     * Stops this sampler thread
+     */
+    public void terminate() {
+        exitFlag = true;
+        interrupt();
+    }
+
+    /**
+     * Takes a sample of every node running a job. The first sample of a
+     * process only sets the totals that CPU and I/O rates are computed from.
+     *
+     * @param now
+     */
+    private void sample(long now) {
+        Map<Integer, ProcStat> processes = null;
+        Map<Integer, List<Integer>> children = null;
+        Map<ResourceHistory, Usage> current = Maps.newHashMap();
+        for(Service service: services.values()) {
+            ResourceHistory history = service.getResourceHistory();
+            ProcessThread job = service.getCurrentJob();
+            Integer pid = job == null ? null : job.getPid();
+            if(history == null || pid == null) {
+                continue;
+            }
+            if(processes == null) {
+                processes = readProcesses();
+                children = getChildren(processes);
+            }
+            Usage usage = readTree(pid, processes, children, now);
+            if(usage == null) {
+                continue;
+            }
+            current.put(history, usage);
+            Usage last = previous.get(history);
+            if(last == null || last.pid != pid || now <= last.time) {
+                continue;
+            }
+            long elapsed = now - last.time;
+            // ticks of exited children are gone from the totals
+            float cpuPercent = Math.max(0, usage.ticks - last.ticks) * 100f * 1000
+                               / (USER_HZ * elapsed);
+            long readRate = Math.max(0, usage.readBytes - last.readBytes) * 1000 / elapsed;
+            long writeRate = Math.max(0, usage.writeBytes - last.writeBytes) * 1000 / elapsed;
+            history.add(now,
+                        pid,
+                        cpuPercent,
+                        usage.rssBytes,
+                        usage.threads,
+                        usage.fds,
+                        readRate,
+                        writeRate);
+        }
+        // drop the totals of jobs and services that are gone
+        previous.clear();
+        previous.putAll(current);
+    }
+
+    /**
+     * @return parent, CPU time and threads of every process
+     */
+    private static Map<Integer, ProcStat> readProcesses() {
+        Map<Integer, ProcStat> processes = Maps.newHashMap();
+        String[] names = PROC.list();
+        if(names == null) {
+            return processes;
+        }
+        for(String name: names) {
+            if(name.isEmpty() || !Character.isDigit(name.charAt(0))) {
+                continue;
+            }
+            ProcStat stat = readStat(new File(PROC, name + "/stat"));
+            if(stat != null) {
+                processes.put(Integer.parseInt(name), stat);
+            }
+        }
+        return processes;
+    }
+
+    /**
+     * @param file
+     * @return the stat of a process, or null if it exited meanwhile
+     */
+    private static ProcStat readStat(File file) {
+        List<String> lines;
+        try {
+            lines = NaginiFileUtils.read(file);
+        } catch(IOException e) {
+            return null;
+        }
+        if(lines.isEmpty()) {
+            return null;
+        }
+        // the command name is in parentheses and may hold spaces, the
+        // fields after it start with the state, the 3rd field
+        String line = lines.get(0);
+        String[] fields = line.substring(line.lastIndexOf(')') + 2).split(" ");
+        ProcStat stat = new ProcStat();
+        stat.ppid = Integer.parseInt(fields[4 - 3]);
+        stat.ticks = Long.parseLong(fields[14 - 3]) + Long.parseLong(fields[15 - 3]);
+        stat.threads = Integer.parseInt(fields[20 - 3]);
+        return stat;
+    }
+
+    /**
+     * @param processes
+     * @return children of every process that has any
+     */
+    private static Map<Integer, List<Integer>> getChildren(Map<Integer, ProcStat> processes) {
+        Map<Integer, List<Integer>> children = Maps.newHashMap();
+        for(Map.Entry<Integer, ProcStat> entry: processes.entrySet()) {
+            List<Integer> siblings = children.get(entry.getValue().ppid);
+            if(siblings == null) {
+                siblings = Lists.newArrayList();
+                children.put(entry.getValue().ppid, siblings);
+            }
+            siblings.add(entry.getKey());
+        }
+        return children;
+    }
+
+    /**
+     * Adds up the resources of a process and all its descendants.
+     *
+     * @param pid
+     * @param processes
+     * @param children
+     * @param now
+     * @return totals, or null if the process is gone
+     */
+    private static Usage readTree(int pid,
+                                  Map<Integer, ProcStat> processes,
+                                  Map<Integer, List<Integer>> children,
+                                  long now) {
+        if(!processes.containsKey(pid)) {
+            return null;
+        }
+        Usage usage = new Usage(pid, now);
+        List<Integer> pending = Lists.newArrayList(pid);
+        while(!pending.isEmpty()) {
+            Integer member = pending.remove(pending.size() - 1);
+            ProcStat stat = processes.get(member);
+            usage.ticks += stat.ticks;
+            usage.threads += stat.threads;
+            usage.rssBytes += readFields(new File(PROC, member + "/status"), "VmRSS:")[0] * 1024;
+            long[] io = readFields(new File(PROC, member + "/io"), "read_bytes:", "write_bytes:");
+            usage.readBytes += io[0];
+            usage.writeBytes += io[1];
+            String[] fds = new File(PROC, member + "/fd").list();
+            usage.fds += fds == null ? 0 : fds.length;
+            if(children.containsKey(member)) {
+                pending.addAll(children.get(member));
+            }
+        }
+        return usage;
+    }
+
+    /**
+     * @param file
+     * @param names
+     * @return the numbers after names in a /proc file, 0 for those not found
+     *         or if the file cannot be read, e.g. io of processes of other
+     *         users
+     */
+    private static long[] readFields(File file, String... names) {
+        long[] values = new long[names.length];
+        try {
+            for(String line: NaginiFileUtils.read(file)) {
+                for(int i = 0; i < names.length; i++) {
+                    if(line.startsWith(names[i])) {
+                        String value = line.substring(names[i].length()).trim().split("\\s+")[0];
+                        values[i] = Long.parseLong(value);
+                    }
+                }
+            }
+        } catch(IOException e) {
+            // exited meanwhile or not readable
+        }
+        return values;
+    }
+
+    private static class ProcStat {
+
+        private int ppid;
+        private long ticks;
+        private int threads;
+    }
+
+    /**
+     * Totals of a process tree at one time
+     */
+    private static class Usage {
+
+        private final int pid;
+        private final long time;
+        private long ticks;
+        private long rssBytes;
+        private int threads;
+        private int fds;
+        private long readBytes;
+        private long writeBytes;
+
+        private Usage(int pid, long time) {
+            this.pid = pid;
+            this.time = time;
+        }
+    }
+}
@@ -1,35 +1,82 @@
 package nagini.utils.process;
 
-import java.io.File;
 import java.util.List;
 import java.util.Queue;
 
-import nagini.utils.NaginiFileUtils;
-
 import com.google.common.collect.Lists;
 import com.google.common.collect.Queues;
 
-public class Service extends Thread {
+/**
+ * Runs queued jobs one after another. A service has no thread of its own, it
+ * is driven by a ServiceScheduler that is told when a job is added and when
+ * the running job exits.
+ */
+public class Service {
 
-    private String logfile;
+    private String name;
+    private LogFile logFile;
     private Integer capacity;
-    private Boolean watchBufferEnabled;
+    private OutputBuffer outputBuffer;
+    private OutputTailer outputTailer;
+    private ResourceHistory resourceHistory;
+    private ServiceScheduler scheduler;
 
-    private Boolean exitFlag;
+    private volatile Boolean started;
+    private volatile Boolean exitFlag;
     private Queue<ProcessThread> queue;
+    private ProcessThread running;
+    private Long startTime;
+    // cursor of watchers that do not keep their own
+    private long sharedCursor;
 
-    public Service(String name, String logfile, Integer capacity, Boolean watchBufferEnabled) {
-        this.setName(name);
-        this.logfile = logfile;
+    /**
+     * @param name
+     * @param logFile
+     * @param capacity
+     * @param outputBuffer buffer to keep the output of the jobs in for
+     *        watchers, or null
+     * @param outputTailer tailer to feed the buffer from the log file, if the
+     *        jobs are to write to the log file themselves, or null
+     * @param resourceHistory history to keep resource samples of the jobs
+     *        in, or null
+     * @param scheduler
+     */
+    public Service(String name,
+                   LogFile logFile,
+                   Integer capacity,
+                   OutputBuffer outputBuffer,
+                   OutputTailer outputTailer,
+                   ResourceHistory resourceHistory,
+                   ServiceScheduler scheduler) {
+        this.name = name;
+        this.logFile = logFile;
         this.capacity = capacity;
-        this.watchBufferEnabled = watchBufferEnabled;
+        this.outputBuffer = outputBuffer;
+        this.outputTailer = outputTailer;
+        this.resourceHistory = resourceHistory;
+        this.scheduler = scheduler;
 
-        this.exitFlag = true;
+        this.started = false;
+        this.exitFlag = false;
         this.queue = Queues.newArrayBlockingQueue(capacity);
+        this.running = null;
+        this.startTime = null;
+        this.sharedCursor = 0;
     }
 
-    public String getLogFile() {
-        return this.logfile;
+    public String getName() {
+        return this.name;
+    }
+
+    public LogFile getLogFile() {
+        return this.logFile;
+    }
+
+    /**
+     * @return resource samples of the jobs, or null if they are not sampled
+     */
+    public ResourceHistory getResourceHistory() {
+        return this.resourceHistory;
     }
 
     public Integer getCapacity() {
@@ -40,21 +87,31 @@ public class Service extends Thread {
         return queue.size();
     }
 
+    /**
+     * @return true if this service is started and able to run jobs
+     */
+    public Boolean isAlive() {
+        return started && !exitFlag && scheduler.isAlive();
+    }
+
     public Boolean isRunningJob() {
-        return queue.size() > 0 && queue.peek().isAlive();
+        ProcessThread current = queue.peek();
+        return current != null && current.isAlive();
     }
 
     public ProcessThread getCurrentJob() {
-        if(isRunningJob()) {
-            return queue.peek();
+        ProcessThread current = queue.peek();
+        if(current != null && current.isAlive()) {
+            return current;
         } else {
             return null;
         }
     }
 
     public synchronized void removeCurrentJob() {
-        if(isRunningJob()) {
-            getCurrentJob().terminate();
+        ProcessThread current = getCurrentJob();
+        if(current != null) {
+            current.terminate();
         }
     }
 
@@ -64,16 +121,15 @@ public class Service extends Thread {
 
     public synchronized void removeAllJobs() {
         for(ProcessThread thread: queue) {
-            if(thread.isAlive()) {
-                thread.terminate();
-            }
+            thread.terminate();
         }
         queue.clear();
     }
 
     /**
-     * Adds a new job to the queue
-     * 
+     * Adds a new job to the queue, which is started as soon as the jobs
+     * before it have exited
+     *
      * @param name
      * @param args
      * @param path
@@ -81,61 +137,133 @@ public class Service extends Thread {
      */
     public synchronized Boolean addJob(String name, List<String> args, String path) {
         if(queue != null && queue.size() < capacity) {
-            queue.add(new ProcessThread(name, args, path, logfile, watchBufferEnabled));
+            ProcessThread job = new ProcessThread(name,
+                                                  args,
+                                                  path,
+                                                  logFile,
+                                                  outputBuffer,
+                                                  outputTailer);
+            job.setExitListener(new Runnable() {
+
+                @Override
+                public void run() {
+                    scheduler.schedule(Service.this);
+                }
+            });
+            queue.add(job);
+            scheduler.schedule(this);
             return true;
         } else {
             return false;
         }
     }
 
-    public List<String> readOutput() {
-        List<String> output = Lists.newArrayList();
-        if(isRunningJob()) {
-            List<String> stdout = getCurrentJob().readStdOut();
-            List<String> stderr = getCurrentJob().readStdErr();
-            output.addAll(stdout);
-            output.addAll(stderr);
+    /**
+     * @return cursor after the last line of output, where the output of the
+     *         next job starts if no job is running
+     */
+    public long getOutputEnd() {
+        return outputBuffer == null ? 0 : outputBuffer.getEnd();
+    }
+
+    /**
+     * Reads the output that no watcher without a cursor of its own has read
+     * yet.
+     *
+     * @return lines of output, empty if the output is not kept
+     */
+    public synchronized List<String> readOutput() {
+        if(outputBuffer == null) {
+            return Lists.newArrayList();
         }
-        return output;
-    }
-
-    @Override
-    public void run() {
-        exitFlag = false;
-
-        while(!exitFlag) {
-            try {
-                if(queue.size() > 0) {
-                    ProcessThread current = queue.peek();
-                    Long startTime = System.currentTimeMillis();
-                    if(new File(logfile).exists()) {
-                        NaginiFileUtils.delete(logfile);
-                    }
-                    if(!current.isAlive()) {
-                        current.start();
-                    }
-                    current.join();
-                    if(!queue.isEmpty()) {
-                        queue.remove();
-                    }
-                    Long endTime = System.currentTimeMillis();
-                    if(new File(logfile).exists()) {
-                        NaginiFileUtils.move(logfile, logfile + "." + startTime + "." + endTime);
-                    }
-                }
-                Thread.sleep(1000);
-            } catch(Exception e) {
-                e.printStackTrace();
+        OutputBuffer.Chunk chunk = outputBuffer.read(sharedCursor, 0);
+        sharedCursor = chunk.getCursor();
+        return Lists.newArrayList(chunk.getLines());
+    }
+
+    /**
+     * Reads the output after a cursor of a watcher.
+     *
+     * @param cursor
+     * @param tail most lines to return, the last ones, or 0 for all
+     * @return lines read and the cursor to read on from, or null if the
+     *         output is not kept
+     */
+    public OutputBuffer.Chunk readOutput(long cursor, int tail) {
+        if(outputBuffer == null) {
+            return null;
+        }
+        return outputBuffer.read(cursor, tail);
+    }
+
+    /**
+     * Lets the scheduler run the jobs of this service
+     */
+    public void start() {
+        started = true;
+        scheduler.schedule(this);
+    }
+
+    /**
+     * Called by the scheduler: finishes the running job if it exited, and
+     * starts the next one if there is no running job.
+     */
+    synchronized void dispatch() {
+        if(running != null) {
+            if(!running.hasExited()) {
+                return;
             }
+            queue.remove(running);
+            running = null;
+            logFile.rotate(System.currentTimeMillis());
+            notifyAll();
+        }
+        ProcessThread next = queue.peek();
+        if(!started || exitFlag || next == null) {
+            return;
         }
+        startTime = System.currentTimeMillis();
+        logFile.reset(startTime);
+        running = next;
+        next.start();
     }
 
     /**
-     * Remove all jobs and stops this service thread
+     * Remove all jobs and stops this service
      */
     public synchronized void terminate() {
         removeAllJobs();
         exitFlag = true;
     }
 
+    /**
+     * Waits until no job is running, e.g. after the jobs were removed.
+     *
+     * @param timeout milliseconds
+     * @return true if no job is running
+     * @throws InterruptedException
+     */
+    public synchronized Boolean awaitIdle(long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while(running != null && scheduler.isAlive()) {
+            long left = deadline - System.currentTimeMillis();
+            if(left <= 0) {
+                return false;
+            }
+            wait(left);
+        }
+        return true;
+    }
+
+    /**
+     * Waits until the job that was running when this service was terminated
+     * has exited.
+     *
+     * @throws InterruptedException
+     */
+    public synchronized void awaitTermination() throws InterruptedException {
+        while(running != null && scheduler.isAlive()) {
+            wait();
+        }
+    }
 }
@@ -0,0 +1,58 @@
+package nagini.utils.process;
+
+import java.util.concurrent.BlockingQueue;
+
+import com.google.common.collect.Queues;
+
+/**
+ * Starts the jobs of any number of services from a single thread. A service
+ * is handed to the scheduler whenever something happened to it, i.e. a job
+ * was added or its running job exited, and the scheduler wakes up at once to
+ * start the next job, instead of checking every service periodically.
+ */
+public class ServiceScheduler extends Thread {
+
+    private final BlockingQueue<Service> events;
+    private volatile Boolean exitFlag;
+
+    public ServiceScheduler(String name) {
+        this.setName(name);
+        this.setDaemon(true);
+        this.events = Queues.newLinkedBlockingQueue();
+        this.exitFlag = false;
+    }
+
+    /**
+     * Asks the scheduler to look at a service as soon as possible.
+     *
+     * @param service
+     */
+    public void schedule(Service service) {
+        events.add(service);
+    }
+
+    @Override
+    public void run() {
+        while(!exitFlag) {
+            Service service;
+            try {
+                service = events.take();
+            } catch(InterruptedException e) {
+                continue;
+            }
+            try {
+                service.dispatch();
+            } catch(Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Stops this scheduler thread, services are left as they are
+     */
+    public void terminate() {
+        exitFlag = true;
+        interrupt();
+    }
+}
@@ -5,44 +5,36 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.PrintStream;
-import java.util.List;
-
-import com.google.common.collect.Lists;
 
 public class StreamWatchThread extends Thread {
 
     private InputStream is;
     private PrintStream ps;
-    private List<String> buffer;
-    private final Object lock = new Object();
-
-    public StreamWatchThread(InputStream is, PrintStream ps, Boolean watchBufferEnabled) {
+    private LogSink sink;
+    private OutputBuffer buffer;
+
+    /**
+     * @param is
+     * @param ps stream to copy the lines to, or null
+     * @param buffer buffer to keep the lines in for watchers, or null
+     */
+    public StreamWatchThread(InputStream is, PrintStream ps, OutputBuffer buffer) {
         this.is = is;
         this.ps = ps;
-        if(watchBufferEnabled) {
-            this.buffer = Lists.newArrayList();
-        } else {
-            this.buffer = null;
-        }
-    }
-
-    public List<String> readOutput() {
-        List<String> list = null;
-        if(buffer != null) {
-            synchronized(lock) {
-                list = Lists.newArrayList(buffer);
-                buffer.clear();
-            }
-        }
-        return list;
+        this.sink = null;
+        this.buffer = buffer;
     }
 
-    private void writeNewLine(String newLine) {
-        if(buffer != null) {
-            synchronized(lock) {
-                buffer.add(newLine);
-            }
-        }
+    /**
+     * @param is
+     * @param sink log to copy the lines to
+     * @param buffer buffer to keep the lines in for watchers, or null
+     */
+    public StreamWatchThread(InputStream is, LogSink sink, OutputBuffer buffer) {
+        this.is = is;
+        this.ps = null;
+        this.sink = sink;
+        this.buffer = buffer;
     }
 
     @Override
@@ -55,7 +47,12 @@ public class StreamWatchThread extends Thread {
                 if(ps != null) {
                     ps.println(line);
                 }
-                writeNewLine(line);
+                if(sink != null) {
+                    sink.println(line);
+                }
+                if(buffer != null) {
+                    buffer.append(line);
+                }
             }
         } catch(IOException ioe) {
             System.out.println(ioe.getMessage());
@@ -0,0 +1,181 @@
+package nagini.protocol;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import nagini.utils.NaginiFileUtils;
+
+import com.google.common.collect.Lists;
+
+/**
+ * A relay host on a port of its own on the loopback interface, for tests
+ * and benchmarks of relay trees without a cluster. It takes relay requests
+ * the way NaginiServer does, until one brings the whole payload: it keeps
+ * the payload in a temp file while forwarding it to its children, re-routes
+ * around them from that copy and reports, but it checksums the payload
+ * instead of unzipping it.
+ */
+class LoopbackRelayHost extends Thread {
+
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private final ServerSocket serverSocket;
+    private final String hostName;
+    private final File dir;
+    private final int timeoutMs;
+    // bytes after which the host drops the connection, -1 to take it all
+    private final long dropAfter;
+    private volatile long received;
+    private volatile long checksum;
+    private volatile IOException error;
+
+    /**
+     * @param dir folder for the copy of the payload
+     * @param timeoutMs milliseconds to wait for the children
+     * @param dropAfter bytes after which the host drops out, -1 to take all
+     * @throws IOException if no port is free
+     */
+    LoopbackRelayHost(File dir, int timeoutMs, long dropAfter) throws IOException {
+        this.serverSocket = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        this.hostName = "127.0.0.1:" + serverSocket.getLocalPort();
+        this.dir = dir;
+        this.timeoutMs = timeoutMs;
+        this.dropAfter = dropAfter;
+        setName("relay-host-" + serverSocket.getLocalPort());
+        setDaemon(true);
+    }
+
+    /**
+     * @return host:port of a port nobody listens on, for a host that is down
+     * @throws IOException
+     */
+    static String getDeadHostName() throws IOException {
+        ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        try {
+            return "127.0.0.1:" + serverSocket.getLocalPort();
+        } finally {
+            serverSocket.close();
+        }
+    }
+
+    String getHostName() {
+        return hostName;
+    }
+
+    /**
+     * @return bytes of the payload received
+     */
+    long getReceived() {
+        return received;
+    }
+
+    /**
+     * @return CRC32 of the payload received
+     */
+    long getChecksum() {
+        return checksum;
+    }
+
+    /**
+     * @return error that ended the request, or null
+     */
+    IOException getError() {
+        return error;
+    }
+
+    @Override
+    public void run() {
+        try {
+            boolean done = false;
+            while(!done) {
+                Socket socket = serverSocket.accept();
+                try {
+                    done = handle(new SocketAndStreams(socket));
+                } catch(IOException e) {
+                    // e.g. the parent dropped out, the sender re-routes to us
+                    error = e;
+                } finally {
+                    socket.close();
+                }
+            }
+        } catch(IOException e) {
+            error = e;
+        } finally {
+            try {
+                serverSocket.close();
+            } catch(IOException e) {
+                // the port is freed with the process
+            }
+        }
+    }
+
+    /**
+     * @param sands
+     * @return true if the host is done: it got the whole payload, or it
+     *         dropped out
+     * @throws IOException
+     */
+    private boolean handle(SocketAndStreams sands) throws IOException {
+        DataInputStream dis = sands.getInputStream();
+        DataOutputStream dos = sands.getOutputStream();
+        int requestType = dis.readInt();
+        if(requestType != RequestType.REQUEST_FILE_PUT_RELAY) {
+            throw new IOException("unexpected request 0x" + Integer.toHexString(requestType));
+        }
+        String destPath = dis.readUTF();
+        List<RelayTree> children = RelayTree.read(dis);
+        long length = dis.readLong();
+        RelaySender sender = new RelaySender(destPath, children, length, 0, timeoutMs);
+        File copy = new File(dir, hostName.replace(':', '-') + ".zip");
+        CRC32 crc = new CRC32();
+        long done = 0;
+        FileOutputStream fos = new FileOutputStream(copy);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while(done < length) {
+                int read = dis.read(buffer, 0, (int) Math.min(buffer.length, length - done));
+                if(read == -1) {
+                    break;
+                }
+                if(dropAfter >= 0 && done + read > dropAfter) {
+                    // goes away half way, without a word to parent or children
+                    sender.abort();
+                    received = done;
+                    return true;
+                }
+                fos.write(buffer, 0, read);
+                crc.update(buffer, 0, read);
+                sender.write(buffer, 0, read);
+                done += read;
+            }
+        } finally {
+            fos.close();
+        }
+        received = done;
+        checksum = crc.getValue();
+
+        List<RelaySender.Result> results = Lists.newArrayList();
+        if(done == length) {
+            results.add(new RelaySender.Result(hostName, true, "received " + done + " bytes"));
+            results.addAll(sender.finish(copy));
+        } else {
+            sender.abort();
+            results.add(new RelaySender.Result(hostName, false, "received " + done + " out of "
+                                                                + length + " bytes"));
+            results.addAll(sender.finish(null));
+        }
+        NaginiFileUtils.delete(copy);
+        dos.writeInt(ResponseType.RESPONSE_RELAY_REPORT);
+        RelaySender.Result.write(dos, results);
+        dos.flush();
+        return done == length;
+    }
+}
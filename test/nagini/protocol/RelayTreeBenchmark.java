@@ -0,0 +1,99 @@
+package nagini.protocol;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Random;
+
+import nagini.utils.NaginiFileUtils;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Relays one payload to hosts on ports of their own on the loopback
+ * interface, at several fanouts down to a flat tree in which the sender
+ * feeds every host itself: wall time until all hosts reported, and the
+ * bytes delivered per second over all hosts. On one machine all hosts share
+ * the cpus and the loopback, so this shows the overhead of the tree more
+ * than the gain of spreading the upload over many links.
+ *
+ * Run with "ant benchmark", or with the number of hosts and the payload in
+ * MB as arguments.
+ */
+public class RelayTreeBenchmark {
+
+    private static final int RUNS = 3;
+    private static final int TIMEOUT_MS = 60000;
+
+    public static void main(String[] args) throws Exception {
+        int hostCount = args.length > 0 ? Integer.parseInt(args[0]) : 9;
+        int megabytes = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        File dir = Files.createTempDirectory("nagini-relay-benchmark").toFile();
+        try {
+            File payload = new File(dir, "payload.zip");
+            byte[] data = new byte[megabytes << 20];
+            new Random(20151018L).nextBytes(data);
+            Files.write(payload.toPath(), data);
+            System.out.println("RelayTreeBenchmark: " + hostCount + " hosts, " + megabytes
+                               + " MB, " + Runtime.getRuntime().availableProcessors()
+                               + " cores");
+            System.out.println(String.format("%-8s %6s %10s %10s",
+                                             "fanout",
+                                             "depth",
+                                             "wall ms",
+                                             "MB/s"));
+            List<Integer> fanouts = Lists.newArrayList(1, 2, 3);
+            if(hostCount > 3) {
+                fanouts.add(hostCount);
+            }
+            for(int fanout: fanouts) {
+                report(dir, payload, hostCount, fanout);
+            }
+        } finally {
+            NaginiFileUtils.delete(dir);
+        }
+    }
+
+    /**
+     * Relays once to warm up, then prints the fastest of RUNS.
+     */
+    private static void report(File dir, File payload, int hostCount, int fanout)
+            throws Exception {
+        relay(dir, payload, hostCount, fanout);
+        long best = Long.MAX_VALUE;
+        for(int i = 0; i < RUNS; i++) {
+            best = Math.min(best, relay(dir, payload, hostCount, fanout));
+        }
+        List<String> hostNames = Lists.newArrayList();
+        for(int i = 0; i < hostCount; i++) {
+            hostNames.add("h" + i);
+        }
+        int depth = RelayTree.depth(RelayTree.build(hostNames, fanout));
+        double megabytes = (double) payload.length() * hostCount / 1048576;
+        System.out.println(String.format("%-8d %6d %10d %10.1f",
+                                         fanout,
+                                         depth,
+                                         best / 1000000,
+                                         megabytes / (best / 1e9)));
+    }
+
+    /**
+     * @return nanoseconds until all hosts reported
+     */
+    private static long relay(File dir, File payload, int hostCount, int fanout)
+            throws Exception {
+        List<LoopbackRelayHost> hosts = Lists.newArrayList();
+        for(int i = 0; i < hostCount; i++) {
+            hosts.add(new LoopbackRelayHost(dir, TIMEOUT_MS, -1));
+        }
+        long start = System.nanoTime();
+        List<RelaySender.Result> results = RelayTreeTest.relay(hosts, null, payload, fanout);
+        long wall = System.nanoTime() - start;
+        for(RelaySender.Result result: results) {
+            if(!result.succeeded) {
+                throw new AssertionError(result.hostName + " failed (" + result.message + ")");
+            }
+        }
+        return wall;
+    }
+}
@@ -0,0 +1,264 @@
+package nagini.protocol;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import nagini.utils.NaginiFileUtils;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * The shape of relay trees, and relays through hosts on ports of their own
+ * on the loopback interface: every host must get the payload, also the ones
+ * below an interior host that is down or drops out half way. Run with
+ * "ant test".
+ */
+public class RelayTreeTest {
+
+    private static final Random RANDOM = new Random(20151018L);
+    private static final int TIMEOUT_MS = 10000;
+
+    public static void main(String[] args) throws Exception {
+        testShape();
+        testDepth();
+        testInvalidFanout();
+        testWriteRead();
+        File dir = Files.createTempDirectory("nagini-relay-test").toFile();
+        try {
+            File payload = new File(dir, "payload.zip");
+            byte[] data = new byte[3 * (1 << 20) + 4321];
+            RANDOM.nextBytes(data);
+            Files.write(payload.toPath(), data);
+            testRelay(dir, payload);
+            testDeadInteriorHost(dir, payload);
+            testDroppedInteriorHost(dir, payload);
+        } finally {
+            NaginiFileUtils.delete(dir);
+        }
+        System.out.println("RelayTreeTest: all tests passed.");
+    }
+
+    /**
+     * Host i is fed by host i / fanout - 1, in the order given.
+     */
+    private static void testShape() {
+        List<RelayTree> trees = RelayTree.build(hostNames(13), 3);
+        check("shape",
+              "[h0 -> [h3 -> [h12], h4, h5], h1 -> [h6, h7, h8], h2 -> [h9, h10, h11]]",
+              trees.toString());
+        check("shape count", 13, RelayTree.count(trees));
+        check("shape depth", 3, RelayTree.depth(trees));
+
+        check("fewer hosts than fanout", "[h0, h1]", RelayTree.build(hostNames(2), 3)
+                                                               .toString());
+        check("no hosts", 0, RelayTree.build(hostNames(0), 3).size());
+        check("fanout 1", "[h0 -> [h1 -> [h2]]]", RelayTree.build(hostNames(3), 1).toString());
+        System.out.println("RelayTreeTest: shape passed.");
+    }
+
+    /**
+     * Every level holds fanout times the hosts of the one above, so the depth
+     * grows with log(hosts) and every host is in the tree exactly once.
+     */
+    private static void testDepth() {
+        for(int fanout = 1; fanout <= 5; fanout++) {
+            for(int hosts = 1; hosts <= 200; hosts++) {
+                List<RelayTree> trees = RelayTree.build(hostNames(hosts), fanout);
+                int expected = 0;
+                for(long level = fanout, total = 0; total < hosts; level *= fanout) {
+                    total += fanout == 1 ? 1 : level;
+                    expected++;
+                }
+                String name = hosts + " hosts, fanout " + fanout;
+                check(name + " count", hosts, RelayTree.count(trees));
+                check(name + " depth", expected, RelayTree.depth(trees));
+                Map<String, Integer> seen = Maps.newHashMap();
+                collect(trees, seen);
+                check(name + " distinct hosts", hosts, seen.size());
+            }
+        }
+        System.out.println("RelayTreeTest: depth passed.");
+    }
+
+    private static void testInvalidFanout() {
+        try {
+            RelayTree.build(hostNames(3), 0);
+        } catch(IllegalArgumentException e) {
+            System.out.println("RelayTreeTest: invalid fanout passed.");
+            return;
+        }
+        throw new AssertionError("invalid fanout: no exception");
+    }
+
+    private static void testWriteRead() throws IOException {
+        List<RelayTree> trees = RelayTree.build(hostNames(40), 3);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bos);
+        RelayTree.write(dos, trees);
+        dos.writeInt(0x12345678);
+        dos.flush();
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(bos.toByteArray()));
+        check("write read", trees.toString(), RelayTree.read(dis).toString());
+        // nothing more and nothing less is read
+        check("write read end", 0x12345678, dis.readInt());
+        System.out.println("RelayTreeTest: write read passed.");
+    }
+
+    /**
+     * Ten hosts, three levels deep.
+     */
+    private static void testRelay(File dir, File payload) throws IOException {
+        List<LoopbackRelayHost> hosts = Lists.newArrayList();
+        for(int i = 0; i < 10; i++) {
+            hosts.add(new LoopbackRelayHost(dir, TIMEOUT_MS, -1));
+        }
+        List<RelaySender.Result> results = relay(hosts, null, payload, 3);
+        checkResults("relay", hosts, null, results, payload);
+        System.out.println("RelayTreeTest: relay passed.");
+    }
+
+    /**
+     * The first root is down: the sender feeds its children from its own
+     * copy, and they feed theirs.
+     */
+    private static void testDeadInteriorHost(File dir, File payload) throws IOException {
+        List<LoopbackRelayHost> hosts = Lists.newArrayList();
+        hosts.add(null);
+        for(int i = 1; i < 7; i++) {
+            hosts.add(new LoopbackRelayHost(dir, TIMEOUT_MS, -1));
+        }
+        String deadHostName = LoopbackRelayHost.getDeadHostName();
+        // dead host -> [host 2 -> [host 6], host 3]
+        List<RelaySender.Result> results = relay(hosts, deadHostName, payload, 2);
+        checkResults("dead interior host", hosts, deadHostName, results, payload);
+        System.out.println("RelayTreeTest: dead interior host passed.");
+    }
+
+    /**
+     * The second root drops out after a part of the payload, also from under
+     * its children: they are fed again by the sender.
+     */
+    private static void testDroppedInteriorHost(File dir, File payload) throws IOException {
+        List<LoopbackRelayHost> hosts = Lists.newArrayList();
+        for(int i = 0; i < 7; i++) {
+            hosts.add(new LoopbackRelayHost(dir, TIMEOUT_MS, i == 1 ? 1 << 20 : -1));
+        }
+        // host 1 -> [host 4, host 5]
+        List<RelaySender.Result> results = relay(hosts, null, payload, 2);
+        String droppedHostName = hosts.get(1).getHostName();
+        hosts.set(1, null);
+        checkResults("dropped interior host", hosts, droppedHostName, results, payload);
+        System.out.println("RelayTreeTest: dropped interior host passed.");
+    }
+
+    /**
+     * Relays the payload through the hosts the way the client does.
+     *
+     * @param hosts
+     * @param deadHostName name of the host in place of null in hosts
+     * @param payload
+     * @param fanout
+     * @return results of all hosts
+     */
+    static List<RelaySender.Result> relay(List<LoopbackRelayHost> hosts,
+                                          String deadHostName,
+                                          File payload,
+                                          int fanout) throws IOException {
+        List<String> hostNames = Lists.newArrayList();
+        for(LoopbackRelayHost host: hosts) {
+            if(host == null) {
+                hostNames.add(deadHostName);
+            } else {
+                hostNames.add(host.getHostName());
+                host.start();
+            }
+        }
+        List<RelayTree> trees = RelayTree.build(hostNames, fanout);
+        RelaySender sender = new RelaySender("app", trees, payload.length(), 0, TIMEOUT_MS);
+        sender.writeFile(payload);
+        List<RelaySender.Result> results = sender.finish(payload);
+        for(LoopbackRelayHost host: hosts) {
+            if(host != null) {
+                try {
+                    host.join(TIMEOUT_MS);
+                } catch(InterruptedException e) {
+                    throw new AssertionError("interrupted");
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Every host but the failed one reports success and holds the payload.
+     */
+    private static void checkResults(String name,
+                                     List<LoopbackRelayHost> hosts,
+                                     String failedHostName,
+                                     List<RelaySender.Result> results,
+                                     File payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(Files.readAllBytes(payload.toPath()));
+        check(name + " results", hosts.size(), results.size());
+        Map<String, RelaySender.Result> byHost = Maps.newHashMap();
+        for(RelaySender.Result result: results) {
+            byHost.put(result.hostName, result);
+        }
+        if(failedHostName != null) {
+            RelaySender.Result result = byHost.remove(failedHostName);
+            if(result == null || result.succeeded) {
+                throw new AssertionError(name + ": " + failedHostName + " did not fail");
+            }
+        }
+        for(LoopbackRelayHost host: hosts) {
+            if(host == null) {
+                continue;
+            }
+            RelaySender.Result result = byHost.get(host.getHostName());
+            if(result == null || !result.succeeded) {
+                throw new AssertionError(name + ": " + host.getHostName() + " failed ("
+                                         + (result == null ? "no result" : result.message)
+                                         + ", " + host.getError() + ")");
+            }
+            check(name + " " + host.getHostName() + " length",
+                  payload.length(),
+                  host.getReceived());
+            check(name + " " + host.getHostName() + " checksum",
+                  crc.getValue(),
+                  host.getChecksum());
+        }
+    }
+
+    private static void collect(List<RelayTree> trees, Map<String, Integer> seen) {
+        for(RelayTree tree: trees) {
+            if(seen.put(tree.hostName, 1) != null) {
+                throw new AssertionError(tree.hostName + " is in the tree twice");
+            }
+            collect(tree.children, seen);
+        }
+    }
+
+    private static List<String> hostNames(int count) {
+        List<String> hostNames = Lists.newArrayList();
+        for(int i = 0; i < count; i++) {
+            hostNames.add("h" + i);
+        }
+        return hostNames;
+    }
+
+    private static void check(String name, Object expected, Object actual) {
+        if(!expected.equals(actual)) {
+            throw new AssertionError(name + ": " + actual + " instead of " + expected);
+        }
+    }
+}
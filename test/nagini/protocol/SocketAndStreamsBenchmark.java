@@ -0,0 +1,149 @@
+package nagini.protocol;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.util.Random;
+
+import nagini.utils.NaginiFileUtils;
+
+/**
+ * Sends one file over the loopback interface with sendFile and receiveFile,
+ * once through the socket channels (sendfile, and a direct buffer written to
+ * the file channel) and once through the byte[] copy loops of streams
+ * without a socket, as every transfer went before: wall time, cpu time of
+ * the process and MB/s.
+ *
+ * Run with "ant benchmark", or with the size of the file in MB as argument.
+ */
+public class SocketAndStreamsBenchmark {
+
+    private static final int RUNS = 3;
+
+    public static void main(String[] args) throws Exception {
+        int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 1024;
+        File dir = Files.createTempDirectory("nagini-sands-benchmark").toFile();
+        try {
+            File src = new File(dir, "payload.bin");
+            createFile(src, (long) megabytes << 20);
+            System.out.println("SocketAndStreamsBenchmark: " + megabytes + " MB, "
+                               + Runtime.getRuntime().availableProcessors() + " cores");
+            System.out.println(String.format("%-10s %10s %10s %10s",
+                                             "path",
+                                             "wall ms",
+                                             "cpu ms",
+                                             "MB/s"));
+            report("channel", src, new File(dir, "received.bin"), true);
+            report("byte[]", src, new File(dir, "received.bin"), false);
+        } finally {
+            NaginiFileUtils.delete(dir);
+        }
+    }
+
+    /**
+     * Transfers once to warm up, then prints the fastest of RUNS.
+     */
+    private static void report(String name, File src, File dest, boolean channels)
+            throws Exception {
+        transfer(src, dest, channels);
+        long bestWall = Long.MAX_VALUE;
+        long bestCpu = Long.MAX_VALUE;
+        for(int i = 0; i < RUNS; i++) {
+            long cpu = getProcessCpuTime();
+            long wall = System.nanoTime();
+            transfer(src, dest, channels);
+            bestWall = Math.min(bestWall, System.nanoTime() - wall);
+            bestCpu = Math.min(bestCpu, getProcessCpuTime() - cpu);
+        }
+        System.out.println(String.format("%-10s %10d %10d %10.1f",
+                                         name,
+                                         bestWall / 1000000,
+                                         bestCpu / 1000000,
+                                         src.length() / 1048576.0 / (bestWall / 1e9)));
+    }
+
+    /**
+     * @param channels false to go through the streams of the sockets only
+     */
+    private static void transfer(final File src, File dest, final boolean channels)
+            throws Exception {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        try {
+            server.bind(new InetSocketAddress("127.0.0.1", 0));
+            final int port = server.socket().getLocalPort();
+            final IOException[] error = new IOException[1];
+            Thread sender = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        SocketAndStreams sands = new SocketAndStreams("127.0.0.1", port);
+                        try {
+                            wrap(sands.getSocket(), channels).sendFile(src);
+                        } finally {
+                            sands.close();
+                        }
+                    } catch(IOException e) {
+                        error[0] = e;
+                    }
+                }
+            });
+            sender.start();
+            Socket socket = server.accept().socket();
+            try {
+                long received = wrap(socket, channels).receiveFile(dest, src.length());
+                sender.join();
+                if(error[0] != null) {
+                    throw error[0];
+                }
+                if(received != src.length()) {
+                    throw new IOException("received " + received + " out of " + src.length()
+                                          + " bytes");
+                }
+            } finally {
+                socket.close();
+            }
+        } finally {
+            server.close();
+        }
+    }
+
+    private static SocketAndStreams wrap(Socket socket, boolean channels) throws IOException {
+        if(channels) {
+            return new SocketAndStreams(socket);
+        }
+        return new SocketAndStreams(socket.getInputStream(), socket.getOutputStream());
+    }
+
+    private static void createFile(File file, long length) throws IOException {
+        Random random = new Random(20151018L);
+        byte[] block = new byte[1 << 20];
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            for(long done = 0; done < length; done += block.length) {
+                random.nextBytes(block);
+                raf.write(block, 0, (int) Math.min(block.length, length - done));
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * @return cpu time of all threads of the process, in nanoseconds, or 0
+     *         if the jvm does not tell
+     */
+    private static long getProcessCpuTime() {
+        OperatingSystemMXBean bean = ManagementFactory.getOperatingSystemMXBean();
+        if(bean instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) bean).getProcessCpuTime();
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,241 @@
+package nagini.protocol;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import nagini.utils.NaginiFileUtils;
+
+import com.google.common.io.ByteStreams;
+
+/**
+ * File transfers of SocketAndStreams over the loopback interface, through
+ * socket channels and through plain streams: the bytes read ahead with a
+ * header, ranges, peers that close early and files over 2 GB, whose lengths
+ * must be counted in 64 bits all the way. Run with "ant test".
+ */
+public class SocketAndStreamsTest {
+
+    private static final Random RANDOM = new Random(20151018L);
+    private static final int HEADER = 0x5a5a0001;
+    // just past what an int can count, and past what one sendfile call sends
+    private static final long LARGE_LENGTH = (1L << 31) + 12345;
+
+    public static void main(String[] args) throws Exception {
+        File dir = Files.createTempDirectory("nagini-sands-test").toFile();
+        try {
+            testSmallFile(dir);
+            testRange(dir);
+            testEarlyClose(dir);
+            testLargeStream();
+            testLargeFile(dir);
+        } finally {
+            NaginiFileUtils.delete(dir);
+        }
+        System.out.println("SocketAndStreamsTest: all tests passed.");
+    }
+
+    /**
+     * The receiver reads the header through the stream buffer, which reads
+     * ahead into the file, so receiveFile must start with the buffered bytes.
+     */
+    private static void testSmallFile(File dir) throws Exception {
+        byte[] data = random(3 * 65536 + 17);
+        File src = new File(dir, "small.bin");
+        Files.write(src.toPath(), data);
+        File dest = new File(dir, "small.out");
+        check("small file",
+              (long) data.length,
+              transfer(src, 0, data.length, dest, data.length));
+        check("small file content",
+              true,
+              Arrays.equals(data, Files.readAllBytes(dest.toPath())));
+        System.out.println("SocketAndStreamsTest: small file passed.");
+    }
+
+    private static void testRange(File dir) throws Exception {
+        byte[] data = random(1 << 20);
+        File src = new File(dir, "range.bin");
+        Files.write(src.toPath(), data);
+        File dest = new File(dir, "range.out");
+        check("range", 400000L, transfer(src, 123456, 400000, dest, 400000));
+        check("range content",
+              true,
+              Arrays.equals(Arrays.copyOfRange(data, 123456, 123456 + 400000),
+                            Files.readAllBytes(dest.toPath())));
+        System.out.println("SocketAndStreamsTest: range passed.");
+    }
+
+    /**
+     * The sender closes after part of the announced length.
+     */
+    private static void testEarlyClose(File dir) throws Exception {
+        byte[] data = random(300000);
+        File src = new File(dir, "short.bin");
+        Files.write(src.toPath(), data);
+        File dest = new File(dir, "short.out");
+        check("early close", (long) data.length, transfer(src, 0, data.length, dest, 1 << 20));
+        check("early close length", (long) data.length, dest.length());
+        System.out.println("SocketAndStreamsTest: early close passed.");
+    }
+
+    /**
+     * The copy loop of streams without a socket, over 2 GB generated on the
+     * fly and dropped.
+     */
+    private static void testLargeStream() throws IOException {
+        InputStream in = new ZeroInputStream(LARGE_LENGTH);
+        SocketAndStreams sands = new SocketAndStreams(in, ByteStreams.nullOutputStream());
+        check("large stream", LARGE_LENGTH, sands.receiveFile(new File("/dev/null"),
+                                                              LARGE_LENGTH));
+        // more announced than the stream holds
+        in = new ZeroInputStream(LARGE_LENGTH);
+        sands = new SocketAndStreams(in, ByteStreams.nullOutputStream());
+        check("large stream short", LARGE_LENGTH, sands.receiveFile(new File("/dev/null"),
+                                                                    LARGE_LENGTH + 1));
+        System.out.println("SocketAndStreamsTest: large stream passed.");
+    }
+
+    /**
+     * A sparse file over 2 GB, with marks around the 2 GB boundary and at the
+     * end, sent with sendfile and received through the socket channel.
+     */
+    private static void testLargeFile(File dir) throws Exception {
+        File src = new File(dir, "large.bin");
+        // one mark straddles the boundary
+        long[] offsets = {0, (1L << 31) - 12, (1L << 31) - 4, (1L << 31) + 4, LARGE_LENGTH - 8};
+        RandomAccessFile raf = new RandomAccessFile(src, "rw");
+        try {
+            raf.setLength(LARGE_LENGTH);
+            for(long offset: offsets) {
+                raf.seek(offset);
+                raf.writeLong(offset ^ 0x0123456789abcdefL);
+            }
+        } finally {
+            raf.close();
+        }
+        File dest = new File(dir, "large.out");
+        check("large file", LARGE_LENGTH, transfer(src, 0, LARGE_LENGTH, dest, LARGE_LENGTH));
+        check("large file length", LARGE_LENGTH, dest.length());
+        raf = new RandomAccessFile(dest, "r");
+        try {
+            for(long offset: offsets) {
+                raf.seek(offset);
+                check("large file mark at " + offset,
+                      offset ^ 0x0123456789abcdefL,
+                      raf.readLong());
+            }
+        } finally {
+            raf.close();
+        }
+        NaginiFileUtils.delete(src);
+        NaginiFileUtils.delete(dest);
+        System.out.println("SocketAndStreamsTest: large file passed.");
+    }
+
+    /**
+     * Sends a header and a range of a file from one socket to another, the
+     * way client and server do.
+     *
+     * @param src
+     * @param offset
+     * @param length bytes sent
+     * @param dest
+     * @param announced bytes the receiver expects
+     * @return bytes received
+     */
+    private static long transfer(final File src,
+                                 final long offset,
+                                 final long length,
+                                 File dest,
+                                 long announced) throws Exception {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        try {
+            server.bind(new InetSocketAddress("127.0.0.1", 0));
+            final int port = server.socket().getLocalPort();
+            final IOException[] error = new IOException[1];
+            Thread sender = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        SocketAndStreams sands = new SocketAndStreams("127.0.0.1", port);
+                        try {
+                            sands.getOutputStream().writeInt(HEADER);
+                            sands.sendFile(src, offset, length);
+                        } finally {
+                            sands.close();
+                        }
+                    } catch(IOException e) {
+                        error[0] = e;
+                    }
+                }
+            });
+            sender.start();
+            SocketAndStreams sands = new SocketAndStreams(server.accept().socket());
+            try {
+                check("header", HEADER, sands.getInputStream().readInt());
+                long received = sands.receiveFile(dest, announced);
+                sender.join();
+                if(error[0] != null) {
+                    throw new AssertionError("sender failed: " + error[0]);
+                }
+                return received;
+            } finally {
+                sands.close();
+            }
+        } finally {
+            server.close();
+        }
+    }
+
+    /**
+     * Zeros up to a length, read in blocks as large as the reader asks for.
+     */
+    private static class ZeroInputStream extends InputStream {
+
+        private long remaining;
+
+        private ZeroInputStream(long length) {
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if(remaining == 0) {
+                return -1;
+            }
+            remaining--;
+            return 0;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if(remaining == 0) {
+                return -1;
+            }
+            int read = (int) Math.min(len, remaining);
+            Arrays.fill(b, off, off + read, (byte) 0);
+            remaining -= read;
+            return read;
+        }
+    }
+
+    private static byte[] random(int size) {
+        byte[] data = new byte[size];
+        RANDOM.nextBytes(data);
+        return data;
+    }
+
+    private static void check(String name, Object expected, Object actual) {
+        if(!expected.equals(actual)) {
+            throw new AssertionError(name + ": " + actual + " instead of " + expected);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package nagini.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Round trips of NaginiDeltaUtils: a delta written against the signature of
+ * an old copy must rebuild the new copy from the old one. Run with
+ * "ant test".
+ */
+public class NaginiDeltaUtilsTest {
+
+    private static final Random RANDOM = new Random(20151018L);
+
+    public static void main(String[] args) throws Exception {
+        File dir = Files.createTempDirectory("nagini-delta-test").toFile();
+        try {
+            testLongLiteralBeforeLastBlock(dir);
+            testLongLiteralBeforeFullBlock(dir);
+            testUnchanged(dir);
+            testNoOldCopy(dir);
+            testInsertion(dir);
+        } finally {
+            NaginiFileUtils.delete(dir);
+        }
+        System.out.println("NaginiDeltaUtilsTest: all tests passed.");
+    }
+
+    /**
+     * More than one literal of new data, followed by the short last block of
+     * the old copy.
+     */
+    private static void testLongLiteralBeforeLastBlock(File dir) throws IOException {
+        byte[] oldData = random(6244);
+        byte[] newData = random(67000);
+        System.arraycopy(oldData, oldData.length - 100, newData, newData.length - 100, 100);
+        roundTrip(dir, "long literal before last block", oldData, newData);
+    }
+
+    /**
+     * More than one literal of new data, followed by a whole block of the old
+     * copy.
+     */
+    private static void testLongLiteralBeforeFullBlock(File dir) throws IOException {
+        byte[] oldData = random(8192);
+        byte[] newData = random(200000);
+        System.arraycopy(oldData, 0, newData, newData.length - 2048, 2048);
+        roundTrip(dir, "long literal before full block", oldData, newData);
+    }
+
+    private static void testUnchanged(File dir) throws IOException {
+        byte[] data = random(300000);
+        roundTrip(dir, "unchanged", data, data);
+    }
+
+    private static void testNoOldCopy(File dir) throws IOException {
+        roundTrip(dir, "no old copy", null, random(150000));
+    }
+
+    private static void testInsertion(File dir) throws IOException {
+        byte[] oldData = random(500000);
+        byte[] inserted = random(70000);
+        byte[] newData = new byte[oldData.length + inserted.length];
+        System.arraycopy(oldData, 0, newData, 0, 250000);
+        System.arraycopy(inserted, 0, newData, 250000, inserted.length);
+        System.arraycopy(oldData, 250000, newData, 250000 + inserted.length, 250000);
+        roundTrip(dir, "insertion", oldData, newData);
+    }
+
+    /**
+     * @param dir
+     * @param name
+     * @param oldData old copy, or null if there is none
+     * @param newData new copy
+     * @throws IOException
+     */
+    private static void roundTrip(File dir, String name, byte[] oldData, byte[] newData)
+            throws IOException {
+        File oldFile = new File(dir, "old");
+        File newFile = new File(dir, "new");
+        if(oldFile.exists()) {
+            NaginiFileUtils.delete(oldFile);
+        }
+        if(oldData != null) {
+            Files.write(oldFile.toPath(), oldData);
+        }
+        Files.write(newFile.toPath(), newData);
+
+        NaginiDeltaUtils.Signature signature = NaginiDeltaUtils.getSignature(oldFile);
+        ByteArrayOutputStream delta = new ByteArrayOutputStream();
+        NaginiDeltaUtils.writeDelta(newFile, signature, new DataOutputStream(delta));
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(delta.toByteArray()));
+        long length = NaginiDeltaUtils.applyDelta(oldFile, signature, dis);
+
+        if(length != newData.length
+           || !Arrays.equals(Files.readAllBytes(oldFile.toPath()), newData)) {
+            throw new AssertionError(name + ": rebuilt file differs from the new copy");
+        }
+        System.out.println("NaginiDeltaUtilsTest: " + name + " passed.");
+    }
+
+    private static byte[] random(int size) {
+        byte[] data = new byte[size];
+        RANDOM.nextBytes(data);
+        return data;
+    }
+}
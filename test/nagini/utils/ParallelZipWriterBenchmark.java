@@ -0,0 +1,198 @@
+package nagini.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
+
+/**
+ * Compares the sequential ZipOutputStream path of NaginiZipUtils with
+ * ParallelZipWriter on a tree like a build output: wall time, cpu time of
+ * the process and the size of the zip against the tree, at several deflate
+ * levels and pool sizes. Zips are written to a counting stream, so the disk
+ * only shows in reading the tree.
+ *
+ * Run with "ant benchmark", or with a tree of your own as argument. Without
+ * one, the jars of lib/ are unpacked, so the tree holds real class files,
+ * and the jars themselves are added, as stored entries.
+ */
+public class ParallelZipWriterBenchmark {
+
+    private static final int RUNS = 3;
+
+    public static void main(String[] args) throws Exception {
+        File dir = Files.createTempDirectory("nagini-zip-benchmark").toFile();
+        try {
+            File tree;
+            if(args.length > 0) {
+                tree = new File(args[0]);
+            } else {
+                tree = new File(dir, "app");
+                createTree(new File("lib"), tree, 4);
+            }
+            long treeSize = size(tree);
+            System.out.println("ParallelZipWriterBenchmark: " + tree + ", " + treeSize
+                               + " bytes, " + Runtime.getRuntime().availableProcessors()
+                               + " cores");
+            System.out.println(String.format("%-24s %10s %10s %8s %8s",
+                                             "path",
+                                             "wall ms",
+                                             "cpu ms",
+                                             "ratio",
+                                             "MB/s"));
+            int cores = Runtime.getRuntime().availableProcessors();
+            List<Integer> poolSizes = Lists.newArrayList(1);
+            for(int threads = 2; threads < cores; threads *= 2) {
+                poolSizes.add(threads);
+            }
+            if(cores > 1) {
+                poolSizes.add(cores);
+            }
+            for(int level: new int[] {1, Deflater.DEFAULT_COMPRESSION, 9}) {
+                String extensions = CompressionPolicy.DEFAULT_STORED_EXTENSIONS;
+                CompressionPolicy policy = new CompressionPolicy(CompressionPolicy.MODE_AUTO,
+                                                                 level,
+                                                                 extensions);
+                report("sequential, level " + level, tree, treeSize, null, policy);
+                for(int threads: poolSizes) {
+                    ForkJoinPool pool = new ForkJoinPool(threads);
+                    try {
+                        report("parallel " + threads + ", level " + level,
+                               tree,
+                               treeSize,
+                               pool,
+                               policy);
+                    } finally {
+                        pool.shutdown();
+                    }
+                }
+            }
+        } finally {
+            NaginiFileUtils.delete(dir);
+        }
+    }
+
+    /**
+     * Zips the tree once to warm up, then prints the fastest of RUNS.
+     *
+     * @param pool pool to deflate on, or null for the sequential path
+     */
+    private static void report(String name,
+                               File tree,
+                               long treeSize,
+                               ForkJoinPool pool,
+                               CompressionPolicy policy) throws IOException {
+        zip(tree, pool, policy);
+        long bestWall = Long.MAX_VALUE;
+        long bestCpu = Long.MAX_VALUE;
+        long zipSize = 0;
+        for(int i = 0; i < RUNS; i++) {
+            long cpu = getProcessCpuTime();
+            long wall = System.nanoTime();
+            zipSize = zip(tree, pool, policy);
+            bestWall = Math.min(bestWall, System.nanoTime() - wall);
+            bestCpu = Math.min(bestCpu, getProcessCpuTime() - cpu);
+        }
+        System.out.println(String.format("%-24s %10d %10d %8.3f %8.1f",
+                                         name,
+                                         bestWall / 1000000,
+                                         bestCpu / 1000000,
+                                         (double) zipSize / treeSize,
+                                         treeSize / 1048576.0 / (bestWall / 1e9)));
+    }
+
+    /**
+     * @return size of the zip
+     */
+    private static long zip(File tree, ForkJoinPool pool, CompressionPolicy policy)
+            throws IOException {
+        CountingOutputStream out = new CountingOutputStream(ByteStreams.nullOutputStream());
+        if(pool == null) {
+            NaginiZipUtils.zipSequential(tree, out, policy, null);
+        } else {
+            ParallelZipWriter writer = new ParallelZipWriter(out, pool, policy);
+            writer.write(tree, null);
+            writer.finish();
+        }
+        return out.getCount();
+    }
+
+    /**
+     * @return cpu time of all threads of the process, in nanoseconds, or 0
+     *         if the jvm does not tell
+     */
+    private static long getProcessCpuTime() {
+        OperatingSystemMXBean bean = ManagementFactory.getOperatingSystemMXBean();
+        if(bean instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) bean).getProcessCpuTime();
+        }
+        return 0;
+    }
+
+    private static long size(File file) {
+        if(!file.isDirectory()) {
+            return file.length();
+        }
+        long size = 0;
+        for(File child: file.listFiles()) {
+            size += size(child);
+        }
+        return size;
+    }
+
+    /**
+     * Unpacks the jars of a folder into a tree, as many times as asked, and
+     * adds the jars themselves.
+     */
+    private static void createTree(File jars, File tree, int copies) throws IOException {
+        File[] files = jars.listFiles();
+        if(files == null) {
+            throw new IOException(jars + " does not exist, give a tree to zip as argument.");
+        }
+        for(int copy = 0; copy < copies; copy++) {
+            File module = new File(tree, "module-" + copy);
+            for(File jar: files) {
+                if(!jar.getName().endsWith(".jar")) {
+                    continue;
+                }
+                File lib = new File(module, "lib");
+                lib.mkdirs();
+                Files.copy(jar.toPath(),
+                           new File(lib, jar.getName()).toPath(),
+                           StandardCopyOption.REPLACE_EXISTING);
+                unpack(jar, new File(module, "classes"));
+            }
+        }
+    }
+
+    private static void unpack(File jar, File dest) throws IOException {
+        InputStream is = Files.newInputStream(jar.toPath());
+        try {
+            ZipInputStream zis = new ZipInputStream(is);
+            ZipEntry entry;
+            while((entry = zis.getNextEntry()) != null) {
+                File file = new File(dest, entry.getName());
+                if(entry.isDirectory()) {
+                    file.mkdirs();
+                } else {
+                    file.getParentFile().mkdirs();
+                    Files.copy(zis, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+        } finally {
+            is.close();
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package nagini.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Round trips of ParallelZipWriter: a zip of a tree with files of several
+ * blocks, stored entries and empty folders must read back the same through
+ * ZipFile, ZipInputStream and NaginiZipUtils.unzip, which must refuse
+ * entries that leave the destination folder. Run with "ant test".
+ */
+public class ParallelZipWriterTest {
+
+    private static final Random RANDOM = new Random(20151018L);
+    private static final int BLOCK_SIZE = 1 << 20;
+
+    public static void main(String[] args) throws Exception {
+        File dir = Files.createTempDirectory("nagini-zip-test").toFile();
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            File src = new File(dir, "app");
+            createTree(src);
+            testRoundTrip(dir, src, pool, CompressionPolicy.getDefault(), "auto");
+            testRoundTrip(dir,
+                          src,
+                          pool,
+                          new CompressionPolicy(CompressionPolicy.MODE_STORE, -1, ""),
+                          "store");
+            testRoundTrip(dir,
+                          src,
+                          pool,
+                          new CompressionPolicy(CompressionPolicy.MODE_DEFLATE, 1, ""),
+                          "deflate level 1");
+            testUnsafeNames(dir);
+        } finally {
+            pool.shutdown();
+            NaginiFileUtils.delete(dir);
+        }
+        System.out.println("ParallelZipWriterTest: all tests passed.");
+    }
+
+    /**
+     * Files across block boundaries, a jar that the default policy stores,
+     * an empty file and empty folders.
+     */
+    private static void createTree(File src) throws IOException {
+        write(new File(src, "README.txt"), text(3000));
+        write(new File(src, "classes/Main.class"), text(200000));
+        // not a multiple of the block size, and exactly two blocks
+        write(new File(src, "data/big.bin"), text(3 * BLOCK_SIZE + 12345));
+        write(new File(src, "data/exact.bin"), text(2 * BLOCK_SIZE));
+        write(new File(src, "lib/dependency.jar"), random(BLOCK_SIZE + 777));
+        write(new File(src, "logs/empty.log"), new byte[0]);
+        new File(src, "empty").mkdirs();
+        new File(src, "conf/empty").mkdirs();
+    }
+
+    private static void testRoundTrip(File dir,
+                                      File src,
+                                      ForkJoinPool pool,
+                                      CompressionPolicy policy,
+                                      String name) throws IOException {
+        File zip = new File(dir, "app.zip");
+        OutputStream out = new FileOutputStream(zip);
+        try {
+            ParallelZipWriter writer = new ParallelZipWriter(out, pool, policy);
+            writer.write(src, null);
+            writer.finish();
+        } finally {
+            out.close();
+        }
+        Map<String, byte[]> expected = Maps.newTreeMap();
+        collect(src, src.getName(), expected);
+
+        // through the central directory
+        Map<String, byte[]> viaZipFile = Maps.newTreeMap();
+        ZipFile zipFile = new ZipFile(zip);
+        try {
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while(entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if(entry.getName().endsWith(".jar") && policy.isStored(new File(entry.getName()))
+                   && entry.getMethod() != ZipEntry.STORED) {
+                    throw new AssertionError(name + ": " + entry.getName() + " is not stored");
+                }
+                InputStream is = zipFile.getInputStream(entry);
+                try {
+                    viaZipFile.put(entry.getName(), entry.isDirectory() ? null : read(is));
+                } finally {
+                    is.close();
+                }
+            }
+        } finally {
+            zipFile.close();
+        }
+        check(name + " (ZipFile)", expected, viaZipFile);
+
+        // through the local headers and data descriptors
+        Map<String, byte[]> viaZipInputStream = Maps.newTreeMap();
+        ZipInputStream zis = new ZipInputStream(Files.newInputStream(zip.toPath()));
+        try {
+            ZipEntry entry;
+            while((entry = zis.getNextEntry()) != null) {
+                viaZipInputStream.put(entry.getName(), entry.isDirectory() ? null : read(zis));
+            }
+        } finally {
+            zis.close();
+        }
+        check(name + " (ZipInputStream)", expected, viaZipInputStream);
+
+        // through the extractor that puts use
+        File dest = new File(dir, "unzipped");
+        NaginiFileUtils.delete(dest);
+        NaginiZipUtils.unzip(zip.getPath(), dest.getPath(), null);
+        Map<String, byte[]> unzipped = Maps.newTreeMap();
+        collect(new File(dest, src.getName()), src.getName(), unzipped);
+        check(name + " (unzip)", expected, unzipped);
+
+        NaginiFileUtils.delete(zip);
+        NaginiFileUtils.delete(dest);
+        System.out.println("ParallelZipWriterTest: " + name + " passed.");
+    }
+
+    /**
+     * Entries that would land outside the destination folder are refused by
+     * both extractors, before anything is written.
+     */
+    private static void testUnsafeNames(File dir) throws IOException {
+        File dest = new File(dir, "unsafe/dest");
+        for(String name: new String[] {"../evil.txt", "app/../../evil.txt", "/evil.txt",
+                                       "\\evil.txt", "app\\..\\..\\evil.txt"}) {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            ZipOutputStream zos = new ZipOutputStream(bos);
+            zos.putNextEntry(new ZipEntry(name));
+            zos.write(text(100));
+            zos.closeEntry();
+            zos.close();
+            File zip = new File(dir, "unsafe.zip");
+            Files.write(zip.toPath(), bos.toByteArray());
+            try {
+                NaginiZipUtils.unzip(new ByteArrayInputStream(bos.toByteArray()),
+                                     dest.getPath(),
+                                     null);
+                throw new AssertionError("unsafe name " + name + " unzipped from a stream");
+            } catch(IOException e) {
+                // refused
+            }
+            try {
+                NaginiZipUtils.unzip(zip.getPath(), dest.getPath(), null);
+                throw new AssertionError("unsafe name " + name + " unzipped from a file");
+            } catch(IOException e) {
+                // refused
+            }
+            if(new File(dir, "evil.txt").exists() || new File(dir, "unsafe/evil.txt").exists()) {
+                throw new AssertionError("unsafe name " + name + " written");
+            }
+            NaginiFileUtils.delete(zip);
+        }
+        NaginiFileUtils.delete(new File(dir, "unsafe"));
+        System.out.println("ParallelZipWriterTest: unsafe names passed.");
+    }
+
+    /**
+     * @param file
+     * @param path name of the file in the zip
+     * @param result content by name, null for an empty folder
+     */
+    private static void collect(File file, String path, Map<String, byte[]> result)
+            throws IOException {
+        if(file.isDirectory()) {
+            File[] children = file.listFiles();
+            if(children.length == 0) {
+                result.put(path + "/", null);
+            }
+            for(File child: children) {
+                collect(child, path + "/" + child.getName(), result);
+            }
+        } else {
+            result.put(path, Files.readAllBytes(file.toPath()));
+        }
+    }
+
+    private static void check(String name,
+                              Map<String, byte[]> expected,
+                              Map<String, byte[]> actual) {
+        if(!expected.keySet().equals(actual.keySet())) {
+            throw new AssertionError(name + ": entries " + actual.keySet() + " instead of "
+                                     + expected.keySet());
+        }
+        for(Map.Entry<String, byte[]> entry: expected.entrySet()) {
+            if(!Arrays.equals(entry.getValue(), actual.get(entry.getKey()))) {
+                throw new AssertionError(name + ": " + entry.getKey() + " differs");
+            }
+        }
+    }
+
+    private static byte[] read(InputStream is) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        byte[] buffer = new byte[65536];
+        int read;
+        while((read = is.read(buffer)) > 0) {
+            bos.write(buffer, 0, read);
+        }
+        return bos.toByteArray();
+    }
+
+    private static void write(File file, byte[] data) throws IOException {
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), data);
+    }
+
+    /**
+     * @param size
+     * @return text that deflates about as well as source code
+     */
+    private static byte[] text(int size) {
+        String[] words = {"public", "static", "void", "return", "final", "String", "int",
+                          "if", "else", "for", "new", "null", "this", "throws", "IOException",
+                          "{", "}", "(", ")", ";", "\n", "    "};
+        byte[] data = new byte[size];
+        int length = 0;
+        while(length < size) {
+            byte[] word = (words[RANDOM.nextInt(words.length)] + " ").getBytes();
+            int count = Math.min(word.length, size - length);
+            System.arraycopy(word, 0, data, length, count);
+            length += count;
+        }
+        return data;
+    }
+
+    private static byte[] random(int size) {
+        byte[] data = new byte[size];
+        RANDOM.nextBytes(data);
+        return data;
+    }
+}